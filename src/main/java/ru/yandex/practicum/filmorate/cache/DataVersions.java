@@ -0,0 +1,76 @@
+package ru.yandex.practicum.filmorate.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//счётчики версий данных: увеличиваются при каждой записи в хранилище
+//и используются для формирования ETag без обращения к БД.
+//epoch - время запуска приложения, чтобы версии после перезапуска не совпадали с прежними
+@Component
+@Slf4j
+public class DataVersions {
+    private final long epoch = System.currentTimeMillis();
+
+    private final AtomicLong films = new AtomicLong(); //версия списка всех фильмов
+    private final AtomicLong popular = new AtomicLong(); //версия рейтинга популярных фильмов
+    private final Map<Long, AtomicLong> filmVersions = new ConcurrentHashMap<>(); //версии отдельных фильмов
+    private final Map<Long, AtomicLong> viewVersions = new ConcurrentHashMap<>(); //версии зрителей фильмов
+
+    //изменились данные фильма (добавление, обновление, удаление, жанры)
+    public void filmChanged(long filmId) {
+        filmVersions.computeIfAbsent(filmId, id -> new AtomicLong()).incrementAndGet();
+        films.incrementAndGet();
+        popular.incrementAndGet();
+        log.debug("Версия фильма с id={} увеличена.", filmId);
+    }
+
+    //изменились лайки фильма
+    public void likesChanged(long filmId) {
+        popular.incrementAndGet();
+        log.debug("Версия популярных фильмов увеличена после изменения лайков фильма с id={}.", filmId);
+    }
+
+    //просмотр изменил регистры зрителей фильма, поэтому количество зрителей могло измениться
+    public void viewsChanged(long filmId) {
+        viewVersions.computeIfAbsent(filmId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    //рейтинг популярных фильмов пересчитан без изменения лайков (сверка приближённых счётчиков)
+    public void popularChanged() {
+        popular.incrementAndGet();
+        log.debug("Версия популярных фильмов увеличена после пересчёта рейтинга.");
+    }
+
+    public long getFilmVersion(long filmId) {
+        AtomicLong version = filmVersions.get(filmId);
+        return version == null ? 0 : version.get();
+    }
+
+    public long getViewsVersion(long filmId) {
+        AtomicLong version = viewVersions.get(filmId);
+        return version == null ? 0 : version.get();
+    }
+
+    public long getFilmsVersion() {
+        return films.get();
+    }
+
+    public long getPopularVersion() {
+        return popular.get();
+    }
+
+    //формирует значение ETag: имя ресурса, время запуска и версия
+    public String etag(String resource, long version) {
+        return "\"" + resource + "-" + Long.toHexString(epoch) + "-" + version + "\"";
+    }
+
+    //справочники жанров и рейтингов MPA изменяются только при инициализации БД во время запуска,
+    //поэтому их версия определяется временем запуска приложения
+    public String referenceEtag(String resource) {
+        return etag(resource, 0);
+    }
+}
@@ -0,0 +1,74 @@
+package ru.yandex.practicum.filmorate.cache;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+//множество id, существование которых уже подтверждено: проверка существования объекта
+//сначала выполняется по нему и только при промахе - запросом по первичному ключу (probe).
+//id добавляется при создании объекта и после успешной проверки в БД, удаляется при удалении объекта,
+//поэтому отсутствующий id всегда проверяется в БД. хранится не более capacity id: при заполнении
+//вытесняются произвольные id, и их существование при следующем обращении проверяется в БД заново.
+//удаление во время проверки в БД: id, прочитанный до удаления, не добавляется после него - добавление
+//выполняется, только если с начала проверки не было удалений (счётчик removals)
+public class KnownIds {
+    private static final int DEFAULT_CAPACITY = 100_000;
+
+    private final Set<Long> ids = ConcurrentHashMap.newKeySet();
+    private final LongPredicate probe;
+    private final int capacity;
+    private final Object lock = new Object(); //добавление и удаление id
+    private volatile long removals; //число удалений, изменяется под lock
+
+    public KnownIds(LongPredicate probe) {
+        this(probe, DEFAULT_CAPACITY);
+    }
+
+    public KnownIds(LongPredicate probe, int capacity) {
+        this.probe = probe;
+        this.capacity = capacity;
+    }
+
+    public boolean exists(long id) {
+        if (ids.contains(id)) {
+            return true;
+        }
+        long removalsBefore = removals;
+        if (!probe.test(id)) {
+            return false;
+        }
+        synchronized (lock) {
+            if (removals == removalsBefore) {
+                add(id);
+            }
+        }
+        return true;
+    }
+
+    public void added(long id) {
+        synchronized (lock) {
+            add(id);
+        }
+    }
+
+    public void removed(long id) {
+        synchronized (lock) {
+            removals++;
+            ids.remove(id);
+        }
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    private void add(long id) {
+        Iterator<Long> iterator = ids.iterator();
+        while (ids.size() >= capacity && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        ids.add(id);
+    }
+}
@@ -0,0 +1,125 @@
+package ru.yandex.practicum.filmorate.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+//кэш готовых ответов: хранит сериализованный JSON и его сжатый gzip вариант.
+//запись кэша действительна, пока совпадает ETag, построенный по версиям данных (DataVersions),
+//поэтому любая запись в хранилище, увеличившая версию, делает запись устаревшей.
+//устаревшая запись заменяется новой при следующем запросе ключа; при MAX_ENTRIES ключей вытесняется
+//ключ, к которому дольше всего не обращались (LRU), поэтому кэш не заполняется устаревшими ответами
+@Component
+@Slf4j
+public class ResponseCache {
+    public static final int MAX_ENTRIES = 256; //ограничение числа ключей (например, разных count у популярных)
+    private static final int MIN_GZIP_LENGTH = 256; //короткие ответы не сжимаем
+
+    private final ObjectMapper objectMapper;
+    //ключи в порядке обращения; доступ - под блокировкой карты, сериализация ответа выполняется вне её
+    private final Map<String, CachedResponse> responses = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public ResponseCache(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    //записывает ответ в выходной поток сервлета: из кэша или, если версия изменилась, после загрузки данных
+    public void write(String key, String etag, Supplier<?> loader, ServletWebRequest webRequest) throws IOException {
+        write(key, etag, loader, null, webRequest);
+    }
+
+    //то же, с фильтром сериализуемых полей (filters может быть null)
+    public void write(String key, String etag, Supplier<?> loader, FilterProvider filters,
+                      ServletWebRequest webRequest) throws IOException {
+        CachedResponse cached;
+        synchronized (responses) {
+            cached = responses.get(key);
+        }
+        if (cached == null || !cached.etag.equals(etag)) {
+            log.debug("Ответ для ключа {} отсутствует в кэше или устарел, формируем заново.", key);
+            cached = serialize(etag, loader.get(), filters);
+            synchronized (responses) {
+                responses.put(key, cached);
+            }
+        }
+
+        HttpServletResponse response = webRequest.getResponse();
+        boolean gzip = cached.gzip != null && acceptsGzip(webRequest.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        byte[] body = gzip ? cached.gzip : cached.json;
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private CachedResponse serialize(String etag, Object value, FilterProvider filters) throws IOException {
+        byte[] json = filters == null ? objectMapper.writeValueAsBytes(value)
+                : objectMapper.writer(filters).writeValueAsBytes(value);
+        byte[] gzip = json.length >= MIN_GZIP_LENGTH ? gzip(json) : null;
+        return new CachedResponse(etag, json, gzip);
+    }
+
+    private static byte[] gzip(byte[] json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    //клиент принимает gzip, если он указан в Accept-Encoding и не запрещён через q=0
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim().replace(" ", "");
+                if (param.matches("q=0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static class CachedResponse {
+        private final String etag;
+        private final byte[] json;
+        private final byte[] gzip;
+
+        private CachedResponse(String etag, byte[] json, byte[] gzip) {
+            this.etag = etag;
+            this.json = json;
+            this.gzip = gzip;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.yandex.practicum.filmorate.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
+import ru.yandex.practicum.filmorate.storage.film.dao.MpaDao;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmDbDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.FilmCatalog;
+import ru.yandex.practicum.filmorate.storage.film.memory.HeapFilmCatalog;
+import ru.yandex.practicum.filmorate.storage.film.memory.MappedFilmCatalog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+//выбор каталога фильмов хранилища в памяти (filmorate.storage.catalog):
+//heap - объекты Film в куче, mapped - записи фильмов в отображённом в память файле вне кучи.
+//каталог закрывается при остановке приложения, отображённый каталог при следующем запуске открывается из файла,
+//если фильмы в БД с тех пор не изменялись в обход гибридного хранилища (счётчик films_version).
+//хранилище в памяти используется только в гибридном режиме, в режиме db каталог не создаётся
+@Configuration
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class FilmCatalogConfig {
+
+    @Bean
+    @ConditionalOnProperty(name = "filmorate.storage.catalog", havingValue = "heap", matchIfMissing = true)
+    public FilmCatalog heapFilmCatalog() {
+        return new HeapFilmCatalog();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "filmorate.storage.catalog", havingValue = "mapped")
+    public FilmCatalog mappedFilmCatalog(@Value("${filmorate.storage.catalog.path:./db/films-catalog}") String path,
+                                         @Qualifier("mpaInMemoryDao") MpaDao mpaDao,
+                                         @Qualifier("genreInMemoryDao") GenreDao genreDao,
+                                         FilmDbDao filmDbDao) throws IOException {
+        log.info("Фильмы хранилища в памяти хранятся в отображённом в память файле {}.", path);
+        return new MappedFilmCatalog(Path.of(path), mpaDao, genreDao, filmDbDao.getVersion());
+    }
+}
@@ -0,0 +1,17 @@
+package ru.yandex.practicum.filmorate.config;
+
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class JacksonConfig {
+
+    //фильтр полей фильма (FilmField.FILTER) применяется только при запросе с параметром fields,
+    //в остальных случаях фильм сериализуется полностью
+    @Bean
+    public Jackson2ObjectMapperBuilderCustomizer filmFieldsFilterCustomizer() {
+        return builder -> builder.filters(new SimpleFilterProvider().setFailOnUnknownId(false));
+    }
+}
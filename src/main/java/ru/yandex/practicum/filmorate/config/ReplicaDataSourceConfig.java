@@ -0,0 +1,73 @@
+package ru.yandex.practicum.filmorate.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.flyway.FlywayDataSource;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import ru.yandex.practicum.filmorate.storage.replica.ReadWriteRoutingDataSource;
+import ru.yandex.practicum.filmorate.storage.replica.ReplicaLogShipper;
+import ru.yandex.practicum.filmorate.storage.replica.ReplicatingDataSource;
+
+import javax.sql.DataSource;
+
+//чтение из реплики (включается filmorate.datasource.replica.enabled=true).
+//первичная БД настраивается как обычно (spring.datasource), реплика - отдельная БД H2
+//(filmorate.datasource.replica.url), которую приложение само поддерживает в актуальном состоянии,
+//повторяя на ней журнал изменений первичной БД. основной источник данных для JdbcTemplate и транзакций
+//направляет чтение в транзакциях только для чтения на реплику, остальное - на первичную БД.
+//миграции применяются к первичной БД напрямую, реплика получает их вместе со снимком при запуске
+@Configuration
+@ConditionalOnProperty(name = "filmorate.datasource.replica.enabled", havingValue = "true")
+@Slf4j
+public class ReplicaDataSourceConfig {
+
+    @Bean
+    @FlywayDataSource
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    @Bean
+    public HikariDataSource replicaDataSource(DataSourceProperties properties,
+                                              @Value("${filmorate.datasource.replica.url}") String url) {
+        log.info("Чтение в транзакциях только для чтения выполняется из реплики {}.", url);
+        return DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .driverClassName(properties.determineDriverClassName())
+                .url(url)
+                .username(properties.determineUsername())
+                .password(properties.determinePassword())
+                .build();
+    }
+
+    @Bean
+    public ReplicatingDataSource replicatingDataSource(@Qualifier("primaryDataSource") DataSource primary,
+            @Value("${filmorate.datasource.replica.journal-capacity:10000}") int journalCapacity,
+            @Value("${filmorate.datasource.replica.journal-wait-ms:1000}") long journalWaitMs) {
+        return new ReplicatingDataSource(primary, journalCapacity, journalWaitMs, ReadWriteRoutingDataSource::committed);
+    }
+
+    @Bean
+    public ReplicaLogShipper replicaLogShipper(ReplicatingDataSource primary,
+                                               @Qualifier("replicaDataSource") DataSource replica,
+                                               @Value("${filmorate.datasource.replica.lag-ms:0}") long lagMs) {
+        return new ReplicaLogShipper(primary, replica, lagMs);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicatingDataSource primary, @Qualifier("replicaDataSource") DataSource replica,
+                                 ReplicaLogShipper shipper) {
+        return new LazyConnectionDataSourceProxy(new ReadWriteRoutingDataSource(primary, replica, shipper::hasApplied));
+    }
+}
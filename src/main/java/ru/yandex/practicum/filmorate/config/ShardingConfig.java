@@ -0,0 +1,51 @@
+package ru.yandex.practicum.filmorate.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.yandex.practicum.filmorate.storage.sharded.Shards;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+//шарды пользователей (filmorate.storage.mode=sharded): по одной БД H2 на каждый адрес filmorate.sharding.urls.
+//имя пользователя, пароль и драйвер - как у основной БД (spring.datasource). схема шарда создаётся
+//миграциями db/shard при запуске.
+//параллельные запросы к шардам выполняются в виртуальных потоках при filmorate.threads.virtual=true,
+//иначе - в пуле из filmorate.sharding.query-threads потоков. порядок адресов определяет номера шардов и не должен меняться -
+//изменение числа шардов выполняется инструментом ShardRebalancer
+@Configuration
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "sharded")
+@Slf4j
+public class ShardingConfig {
+
+    @Bean
+    public Shards shards(DataSourceProperties properties, @Value("${filmorate.sharding.urls}") List<String> urls,
+                         @Value("${filmorate.threads.virtual:false}") boolean virtualThreads,
+                         @Value("${filmorate.sharding.query-threads:16}") int queryThreads) {
+        if (urls.isEmpty()) {
+            throw new IllegalStateException("Не заданы адреса шардов filmorate.sharding.urls.");
+        }
+        List<DataSource> dataSources = new ArrayList<>();
+        for (String url : urls) {
+            HikariDataSource dataSource = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    .driverClassName(properties.determineDriverClassName())
+                    .url(url)
+                    .username(properties.determineUsername())
+                    .password(properties.determinePassword())
+                    .build();
+            Shards.migrate(dataSource);
+            dataSources.add(dataSource);
+        }
+        Shards shards = new Shards(dataSources, virtualThreads, queryThreads);
+        log.info("Пользователи, друзья и лайки хранятся в {} шардах.", dataSources.size());
+        return shards;
+    }
+}
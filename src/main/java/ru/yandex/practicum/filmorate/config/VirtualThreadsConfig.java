@@ -0,0 +1,35 @@
+package ru.yandex.practicum.filmorate.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.util.concurrent.Executors;
+
+//режим выполнения запросов на виртуальных потоках (включается filmorate.threads.virtual=true).
+//каждый запрос Tomcat и каждая асинхронная задача MVC выполняются в отдельном виртуальном потоке,
+//поэтому ожидание JDBC не занимает поток платформы. Фактический предел параллелизма при работе с БД
+//задаётся размером пула соединений spring.datasource.hikari.maximum-pool-size
+@Configuration
+@ConditionalOnProperty(name = "filmorate.threads.virtual", havingValue = "true")
+@Slf4j
+public class VirtualThreadsConfig {
+
+    //обработка запросов Tomcat
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadsProtocolHandlerCustomizer() {
+        log.info("Запросы обрабатываются на виртуальных потоках.");
+        return protocolHandler -> protocolHandler.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    //асинхронные задачи MVC (StreamingResponseBody, Callable)
+    @Bean(name = TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    public AsyncTaskExecutor applicationTaskExecutor() {
+        return new TaskExecutorAdapter(Executors.newVirtualThreadPerTaskExecutor());
+    }
+}
@@ -2,22 +2,49 @@ package ru.yandex.practicum.filmorate.controller;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.MappingJacksonValue;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.cache.ResponseCache;
+import ru.yandex.practicum.filmorate.model.BatchItem;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
+import ru.yandex.practicum.filmorate.model.FilmScoreStats;
+import ru.yandex.practicum.filmorate.model.FilmViewers;
+import ru.yandex.practicum.filmorate.model.LikeState;
+import ru.yandex.practicum.filmorate.model.PopularityEstimate;
 import ru.yandex.practicum.filmorate.service.FilmService;
 
 import javax.validation.Valid;
+import java.io.IOException;
+import java.time.LocalDate;
 import java.util.*;
 
 @RestController
 @RequestMapping("/films")
 @Slf4j
 public class FilmController {
+    private static final String POPULARITY_MODE_HEADER = "X-Popularity-Mode";
+    private static final String POPULARITY_ERROR_HEADER = "X-Popularity-Max-Error";
 
     private final FilmService filmService;
+    private final DataVersions dataVersions;
+    private final ResponseCache responseCache;
+    private final NdjsonWriter ndjsonWriter;
 
-    public FilmController(FilmService filmService) {
+    public FilmController(FilmService filmService, DataVersions dataVersions, ResponseCache responseCache,
+                          NdjsonWriter ndjsonWriter) {
         this.filmService = filmService;
+        this.dataVersions = dataVersions;
+        this.responseCache = responseCache;
+        this.ndjsonWriter = ndjsonWriter;
     }
 
     //добавление фильма
@@ -43,34 +70,147 @@ public class FilmController {
 
     //получение фильма по id
     @GetMapping("/{id}")
-    protected Film getFilm(@PathVariable("id") long filmId) {
+    protected Film getFilm(@PathVariable("id") long filmId, WebRequest webRequest) {
         log.info("Получен запрос на чтение фильма с id={}",filmId);
+        //если у клиента актуальная версия фильма, то отвечаем 304 без обращения к БД.
+        //количество зрителей изменяется без изменения версии фильма, поэтому в ETag входит версия зрителей
+        if (webRequest.checkNotModified(dataVersions.etag("film-" + filmId + "-" +
+                dataVersions.getViewsVersion(filmId), dataVersions.getFilmVersion(filmId)))) {
+            return null;
+        }
         return filmService.getFilm(filmId);
     }
 
-    //возвращает информацию обо всех фильмах
+    //возвращает информацию обо всех фильмах,
+    //параметр fields ограничивает набор полей в ответе (например, ?fields=id,name,mpa)
     @GetMapping
-    protected List<Film> getFilms() {
-        log.info("Получен запрос на чтение всех фильмов.");
-        return filmService.getFilms();
+    protected MappingJacksonValue getFilms(@RequestParam(required = false) String fields, WebRequest webRequest) {
+        log.info("Получен запрос на чтение всех фильмов, поля: {}", fields);
+        Set<FilmField> filmFields = FilmField.parse(fields);
+        String etag = dataVersions.etag("films-" + FilmField.key(filmFields), dataVersions.getFilmsVersion());
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+        MappingJacksonValue films = new MappingJacksonValue(filmService.getFilms(filmFields));
+        films.setFilters(FilmField.filter(filmFields));
+        return films;
     }
 
-    //пользователь ставит лайк фильму
+    //получение нескольких фильмов по списку id (например, ?ids=1,2,3)
+    @GetMapping(params = "ids")
+    protected List<BatchItem<Film>> getFilmsByIds(@RequestParam List<Long> ids) {
+        log.info("Получен запрос на чтение {} фильмов по списку id", ids.size());
+        return filmService.getFilmsByIds(ids);
+    }
+
+    //потоковая выгрузка всех фильмов в формате NDJSON
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    protected ResponseEntity<StreamingResponseBody> exportFilms() {
+        log.info("Получен запрос на выгрузку всех фильмов.");
+        return ndjsonWriter.stream(filmService::exportFilms);
+    }
+
+    //пользователь ставит лайк фильму, в ответе состояние лайка и количество лайков фильма
     @PutMapping("/{id}/like/{userId}")
-    protected void addLike(@PathVariable("id") long filmId, @PathVariable("userId") long userId) {
-        filmService.addLike(filmId, userId);
+    protected LikeState addLike(@PathVariable("id") long filmId, @PathVariable("userId") long userId) {
+        return filmService.addLike(filmId, userId);
     }
 
-    //пользователь удаляет лайк у фильма
+    //пользователь удаляет лайк у фильма, в ответе состояние лайка и количество лайков фильма
     @DeleteMapping("/{id}/like/{userId}")
-    protected void deleteLike(@PathVariable("id") long filmId, @PathVariable("userId") long userId) {
-        filmService.deleteLike(filmId, userId);
+    protected LikeState deleteLike(@PathVariable("id") long filmId, @PathVariable("userId") long userId) {
+        return filmService.deleteLike(filmId, userId);
+    }
+
+    //пользователь открыл фильм
+    @PostMapping("/{id}/views/{userId}")
+    protected void addView(@PathVariable("id") long filmId, @PathVariable("userId") long userId) {
+        filmService.addView(filmId, userId);
+    }
+
+    //количество уникальных зрителей фильма за период (например, ?from=2024-01-01&to=2024-01-07) или за всё время
+    @GetMapping("/{id}/views")
+    protected FilmViewers getViewers(@PathVariable("id") long filmId,
+                                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+                                     LocalDate from,
+                                     @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+                                     LocalDate to) {
+        return filmService.getViewers(filmId, from, to);
+    }
+
+    //пользователь оценивает фильм от 1 до 10 (например, ?score=8), в ответе оценки фильма
+    @PutMapping("/{id}/score/{userId}")
+    protected FilmScoreStats setScore(@PathVariable("id") long filmId, @PathVariable("userId") long userId,
+                                      @RequestParam int score) {
+        return filmService.setScore(filmId, userId, score);
+    }
+
+    //пользователь удаляет оценку фильма, в ответе оценки фильма
+    @DeleteMapping("/{id}/score/{userId}")
+    protected FilmScoreStats deleteScore(@PathVariable("id") long filmId, @PathVariable("userId") long userId) {
+        return filmService.deleteScore(filmId, userId);
+    }
+
+    //оценки фильма: количество, среднее, стандартное отклонение и байесовское среднее
+    @GetMapping("/{id}/score")
+    protected FilmScoreStats getScore(@PathVariable("id") long filmId) {
+        return filmService.getScore(filmId);
+    }
+
+    //фильмы с лучшими оценками (по байесовскому среднему)
+    @GetMapping("/top-rated")
+    protected List<Film> getTopRatedFilms(@RequestParam(defaultValue = "10") long count) {
+        log.info("Получен запрос на получение {} фильмов с лучшими оценками", count);
+        return filmService.getTopRatedFilms(count);
+    }
+
+    //фильмы в тренде: по лайкам за последние 24 часа или 7 дней (window=24h|7d)
+    //или по горячести - лайкам с весом, затухающим со временем (rank=hotness)
+    @GetMapping("/trending")
+    protected List<Film> getTrendingFilms(@RequestParam(defaultValue = "24h") String window,
+                                          @RequestParam(defaultValue = "likes") String rank,
+                                          @RequestParam(defaultValue = "10") long count) {
+        log.info("Получен запрос на получение {} фильмов в тренде, окно: {}, порядок: {}", count, window, rank);
+        return filmService.getTrendingFilms(window, rank, count);
     }
 
     //вернуть самые популярные фильмы
     @GetMapping("/popular")
-    protected List<Film> getPopularFilms(@RequestParam(defaultValue = "10", required = false) Long count) {
-        log.info("1.Запрос на получение {} популярных фильмов...", count);
-        return filmService.getPopularFilms(count);
+    protected void getPopularFilms(@RequestParam(defaultValue = "10", required = false) Long count,
+                                   @RequestParam(required = false) String fields,
+                                   ServletWebRequest webRequest) throws IOException {
+        log.info("1.Запрос на получение {} популярных фильмов, поля: {}", count, fields);
+        Set<FilmField> filmFields = FilmField.parse(fields);
+        String key = "popular-" + count + "-" + FilmField.key(filmFields);
+        String etag = dataVersions.etag(key, dataVersions.getPopularVersion());
+        if (webRequest.checkNotModified(etag)) {
+            return;
+        }
+        if (!filmService.isPopularApproximate(count)) {
+            responseCache.write(key, etag, () -> filmService.getPopularFilms(count, filmFields),
+                    FilmField.filter(filmFields), webRequest);
+            return;
+        }
+        //приближённый рейтинг: в заголовке - наибольшая погрешность количества лайков фильмов ответа
+        List<PopularityEstimate> estimates = filmService.getPopularEstimates(count);
+        long maxError = estimates.stream().mapToLong(PopularityEstimate::getError).max().orElse(0);
+        webRequest.getResponse().setHeader(POPULARITY_MODE_HEADER, "approximate");
+        webRequest.getResponse().setHeader(POPULARITY_ERROR_HEADER, String.valueOf(maxError));
+        responseCache.write(key, etag, () -> filmService.getPopularFilms(estimates),
+                FilmField.filter(filmFields), webRequest);
+    }
+
+    //приближённые количества лайков самых популярных фильмов: точное значение от likes - error до likes
+    @GetMapping("/popular/estimates")
+    protected List<PopularityEstimate> getPopularEstimates(@RequestParam(defaultValue = "10") long count) {
+        log.info("Получен запрос на получение оценок лайков {} популярных фильмов.", count);
+        return filmService.getPopularEstimates(count);
+    }
+
+    //подписка (SSE) на изменения списка самых популярных фильмов
+    @GetMapping(value = "/popular/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    protected SseEmitter streamPopularFilms(@RequestParam(defaultValue = "10", required = false) Long count) {
+        log.info("Получен запрос на подписку на {} популярных фильмов.", count);
+        return filmService.subscribePopularFilms(count);
     }
 }
@@ -5,32 +5,47 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.cache.ResponseCache;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.service.GenreService;
 
-import java.util.List;
+import java.io.IOException;
 
 @RestController
 @RequestMapping("/genres")
 @Slf4j
 public class GenreController {
 private final GenreService genreService;
+    private final DataVersions dataVersions;
+    private final ResponseCache responseCache;
 
-    public GenreController(GenreService genreService) {
+    public GenreController(GenreService genreService, DataVersions dataVersions, ResponseCache responseCache) {
         this.genreService = genreService;
+        this.dataVersions = dataVersions;
+        this.responseCache = responseCache;
     }
 
     //получение всех жанров
     @GetMapping
-    protected List<Genre> getGenres() {
+    protected void getGenres(ServletWebRequest webRequest) throws IOException {
         log.info("Получен запрос на чтение жанров фильмов.");
-        return genreService.getGenres();
+        String etag = dataVersions.referenceEtag("genres");
+        if (webRequest.checkNotModified(etag)) {
+            return;
+        }
+        responseCache.write("genres", etag, genreService::getGenres, webRequest);
     }
 
     //получение рейтинга MPA по id
     @GetMapping("/{id}")
-    protected Genre getGenre(@PathVariable("id") int genreId) {
+    protected Genre getGenre(@PathVariable("id") int genreId, WebRequest webRequest) {
         log.info("Получен запрос на чтение жанра с id={}",genreId);
+        if (webRequest.checkNotModified(dataVersions.referenceEtag("genre-" + genreId))) {
+            return null;
+        }
         return genreService.getGenre(genreId);
     }
 }
@@ -5,32 +5,47 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.cache.ResponseCache;
 import ru.yandex.practicum.filmorate.model.MPA;
 import ru.yandex.practicum.filmorate.service.MpaService;
 
-import java.util.List;
+import java.io.IOException;
 
 @RestController
 @RequestMapping("/mpa")
 @Slf4j
 public class MpaController {
     private final MpaService mpaService;
+    private final DataVersions dataVersions;
+    private final ResponseCache responseCache;
 
-    public MpaController(MpaService mpaService) {
+    public MpaController(MpaService mpaService, DataVersions dataVersions, ResponseCache responseCache) {
         this.mpaService = mpaService;
+        this.dataVersions = dataVersions;
+        this.responseCache = responseCache;
     }
 
     //получение всех рейтингов MPA
     @GetMapping
-    protected List<MPA> getMpas() {
+    protected void getMpas(ServletWebRequest webRequest) throws IOException {
         log.info("Получен запрос на чтение рейтингов MPA.");
-        return mpaService.getMpas();
+        String etag = dataVersions.referenceEtag("mpa");
+        if (webRequest.checkNotModified(etag)) {
+            return;
+        }
+        responseCache.write("mpa", etag, mpaService::getMpas, webRequest);
     }
 
     //получение рейтинга MPA по id
     @GetMapping("/{id}")
-    protected MPA getMpa(@PathVariable("id") int mpaId) {
+    protected MPA getMpa(@PathVariable("id") int mpaId, WebRequest webRequest) {
         log.info("Получен запрос на чтение рейтинга MPA с id={}",mpaId);
+        if (webRequest.checkNotModified(dataVersions.referenceEtag("mpa-" + mpaId))) {
+            return null;
+        }
         return mpaService.getMpa(mpaId);
     }
 }
@@ -0,0 +1,42 @@
+package ru.yandex.practicum.filmorate.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+//формирует потоковый ответ в формате NDJSON: каждый объект сериализуется в отдельную строку
+//и сразу пишется в выходной поток, поэтому весь набор данных в памяти не накапливается
+@Component
+public class NdjsonWriter {
+    private final ObjectWriter writer;
+
+    public NdjsonWriter(ObjectMapper objectMapper) {
+        this.writer = objectMapper.writer();
+    }
+
+    //source - выгрузка из хранилища, которая передаёт объекты по одному
+    public <T> ResponseEntity<StreamingResponseBody> stream(Consumer<Consumer<T>> source) {
+        StreamingResponseBody body = out -> {
+            try {
+                source.accept(value -> {
+                    try {
+                        out.write(writer.writeValueAsBytes(value));
+                        out.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+}
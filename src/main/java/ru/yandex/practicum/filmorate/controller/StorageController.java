@@ -0,0 +1,38 @@
+package ru.yandex.practicum.filmorate.controller;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import ru.yandex.practicum.filmorate.model.WriteBehindStats;
+import ru.yandex.practicum.filmorate.storage.hybrid.WriteBehindQueue;
+
+//состояние гибридного хранилища (доступно только в гибридном режиме)
+@RestController
+@RequestMapping("/storage")
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class StorageController {
+    private final WriteBehindQueue writeBehind;
+
+    public StorageController(WriteBehindQueue writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    //глубина очереди отложенной записи и отставание БД от памяти
+    @GetMapping("/write-behind")
+    public WriteBehindStats getWriteBehindStats() {
+        log.debug("Получен запрос на состояние очереди отложенной записи.");
+        return writeBehind.getStats();
+    }
+
+    //повторная постановка в очередь изменений, которые не удалось записать в БД
+    @PostMapping("/write-behind/retry")
+    public WriteBehindStats retryFailedWrites() {
+        log.debug("Получен запрос на повторную запись незаписанных изменений.");
+        writeBehind.retryFailed();
+        return writeBehind.getStats();
+    }
+}
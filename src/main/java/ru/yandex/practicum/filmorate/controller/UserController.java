@@ -3,8 +3,13 @@ package ru.yandex.practicum.filmorate.controller;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.yandex.practicum.filmorate.model.BatchItem;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.UserEvent;
 import ru.yandex.practicum.filmorate.service.UserService;
 
 import javax.validation.Valid;
@@ -17,10 +22,12 @@ import java.util.*;
 public class UserController {
 
     private final UserService userService;
+    private final NdjsonWriter ndjsonWriter;
 
     @Autowired
-    public UserController(UserService userService) {
+    public UserController(UserService userService, NdjsonWriter ndjsonWriter) {
         this.userService = userService;
+        this.ndjsonWriter = ndjsonWriter;
     }
 
     //добавление пользователя
@@ -41,6 +48,20 @@ public class UserController {
         return userService.getUsers();
     }
 
+    //получение нескольких пользователей по списку id (например, ?ids=1,2,3)
+    @GetMapping(params = "ids")
+    private List<BatchItem<User>> getUsersByIds(@RequestParam List<Long> ids) {
+        log.info("Получен запрос на получение {} пользователей по списку id", ids.size());
+        return userService.getUsersByIds(ids);
+    }
+
+    //потоковая выгрузка всех пользователей в формате NDJSON
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    private ResponseEntity<StreamingResponseBody> exportUsers() {
+        log.info("Получен запрос на выгрузку всех пользователей.");
+        return ndjsonWriter.stream(userService::exportUsers);
+    }
+
     //получение данных о пользователе
     @GetMapping("/{id}")
     private User getUser(@PathVariable("id") long userId) {
@@ -59,11 +80,21 @@ public class UserController {
         userService.deleteFriend(userId, friendId);
     }
 
-    //возвращение списка друзей пользователя
+    //возвращение списка друзей пользователя, с mutual=true - с количеством общих друзей у каждого друга
     @GetMapping("/{id}/friends")
-    private List<User> getFriends(@PathVariable("id") long userId) {
+    private List<User> getFriends(@PathVariable("id") long userId,
+                                  @RequestParam(defaultValue = "false") boolean mutual) {
         log.info("Получен запрос на получение для пользователя с id={} списка друзей", userId);
-        return userService.getFriends(userId);
+        return mutual ? userService.getFriendsWithMutual(userId) : userService.getFriends(userId);
+    }
+
+    //лента событий пользователя: лайки и дружба, от новых к старым (например, ?before=120&limit=20)
+    @GetMapping("/{id}/feed")
+    private List<UserEvent> getFeed(@PathVariable("id") long userId,
+                                    @RequestParam(required = false) Long before,
+                                    @RequestParam(defaultValue = "20") int limit) {
+        log.info("Получен запрос на получение ленты пользователя с id={}", userId);
+        return userService.getFeed(userId, before, limit);
     }
 
     //список друзей, общих с другим пользователем.
@@ -0,0 +1,24 @@
+package ru.yandex.practicum.filmorate.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+//элемент ответа на запрос нескольких объектов по списку id:
+//содержит найденный объект (value) или описание ошибки (error), если объект не найден
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchItem<T> {
+    private long id;
+    private T value;
+    private String error;
+
+    public static <T> BatchItem<T> found(long id, T value) {
+        return new BatchItem<>(id, value, null);
+    }
+
+    public static <T> BatchItem<T> error(long id, String error) {
+        return new BatchItem<>(id, null, error);
+    }
+}
@@ -1,5 +1,9 @@
 package ru.yandex.practicum.filmorate.model;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import ru.yandex.practicum.filmorate.model.validator.DateBefore;
@@ -10,6 +14,7 @@ import javax.validation.constraints.Size;
 import java.time.LocalDate;
 import java.util.Set;
 
+@JsonFilter(FilmField.FILTER)
 @Data
 @AllArgsConstructor
 //генерирует @Getter,@Setter,@ToString,@EqualsAndHashCode,@RequiredArgsConstructor
@@ -34,6 +39,18 @@ public class Film {
 
     private Set<Genre> genres; //жанр фильма
 
+    //количество уникальных зрителей (оценка HyperLogLog): заполняется при чтении одного фильма
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private Long viewers;
+
+    //конструктор для чтения фильма из запроса: зрители в запросе не принимаются
+    @JsonCreator
+    public Film(long id, String name, String description, LocalDate releaseDate, int duration, int rate, MPA mpa,
+                Set<Genre> genres) {
+        this(id, name, description, releaseDate, duration, rate, mpa, genres, null);
+    }
+
     public Set<Genre> getGenres() {
         return genres;
     }
@@ -0,0 +1,70 @@
+package ru.yandex.practicum.filmorate.model;
+
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import ru.yandex.practicum.filmorate.exceptions.ValidationException;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+//поля фильма, которые можно запросить параметром fields (например, ?fields=id,name,mpa).
+//набор полей определяет и столбцы в sql запросе, и сериализуемые свойства Film
+public enum FilmField {
+    ID("id"),
+    NAME("name"),
+    DESCRIPTION("description"),
+    RELEASE_DATE("releaseDate"),
+    DURATION("duration"),
+    RATE("rate"),
+    MPA("mpa"),
+    GENRES("genres");
+
+    public static final String FILTER = "filmFields"; //имя фильтра Jackson для класса Film
+    public static final Set<FilmField> ALL = Collections.unmodifiableSet(EnumSet.allOf(FilmField.class));
+
+    private final String property;
+
+    FilmField(String property) {
+        this.property = property;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    //разбор параметра fields: если он не задан, то возвращаются все поля, id возвращается всегда
+    public static Set<FilmField> parse(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return ALL;
+        }
+        Set<FilmField> result = EnumSet.of(ID);
+        for (String name : fields.split(",")) {
+            result.add(byProperty(name.trim()));
+        }
+        return result;
+    }
+
+    //фильтр сериализации, оставляющий только запрошенные поля
+    public static FilterProvider filter(Set<FilmField> fields) {
+        Set<String> properties = fields.stream().map(FilmField::getProperty).collect(Collectors.toSet());
+        return new SimpleFilterProvider().addFilter(FILTER, SimpleBeanPropertyFilter.filterOutAllExcept(properties));
+    }
+
+    //ключ набора полей для кэша и ETag
+    public static String key(Set<FilmField> fields) {
+        return fields.size() == ALL.size() ? "all" : fields.stream().map(FilmField::getProperty)
+                .collect(Collectors.joining(","));
+    }
+
+    private static FilmField byProperty(String property) {
+        for (FilmField field : values()) {
+            if (field.property.equals(property)) {
+                return field;
+            }
+        }
+        throw new ValidationException("Неизвестное поле фильма: " + property);
+    }
+}
@@ -0,0 +1,18 @@
+package ru.yandex.practicum.filmorate.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+//оценки фильма: количество, среднее, стандартное отклонение и байесовское среднее.
+//у фильма без оценок заполнены только filmId и count
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FilmScoreStats {
+    private long filmId;
+    private long count;
+    private Double average;
+    private Double stdDev;
+    private Double bayesianAverage;
+}
@@ -0,0 +1,19 @@
+package ru.yandex.practicum.filmorate.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDate;
+
+//количество уникальных зрителей фильма за дни с from по to включительно (оценка HyperLogLog),
+//у количества за всё время период не заполнен
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FilmViewers {
+    private long filmId;
+    private LocalDate from;
+    private LocalDate to;
+    private long viewers;
+}
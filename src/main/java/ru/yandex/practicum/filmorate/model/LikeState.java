@@ -0,0 +1,25 @@
+package ru.yandex.practicum.filmorate.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.Instant;
+
+//результат постановки или удаления лайка: состояние лайка пользователя,
+//изменилось ли оно этим запросом и количество лайков фильма после запроса
+@Data
+@AllArgsConstructor
+public class LikeState {
+    private long filmId;
+    private long userId;
+    private boolean liked; //стоит ли лайк пользователя после запроса
+    private boolean changed; //false - повторный запрос, состояние уже было таким
+    private long likes; //количество лайков фильма
+    @JsonIgnore
+    private Instant changedAt; //время изменения для отложенной записи; null - время записи
+
+    public LikeState(long filmId, long userId, boolean liked, boolean changed, long likes) {
+        this(filmId, userId, liked, changed, likes, null);
+    }
+}
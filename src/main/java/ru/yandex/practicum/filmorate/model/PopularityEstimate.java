@@ -0,0 +1,13 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+//приближённое количество лайков фильма: точное значение не больше likes и не меньше likes - error
+@Data
+@AllArgsConstructor
+public class PopularityEstimate {
+    private long filmId;
+    private long likes;
+    private long error;
+}
@@ -1,5 +1,8 @@
 package ru.yandex.practicum.filmorate.model;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
@@ -27,4 +30,15 @@ public class User {
         @PastOrPresent
         private LocalDate birthday; //дата рождения
 
+        //количество общих друзей с пользователем, список друзей которого запрошен (?mutual=true)
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        private Integer mutualFriends;
+
+        //конструктор для чтения пользователя из запроса: общие друзья в запросе не принимаются
+        @JsonCreator
+        public User(long id, String email, String login, String name, LocalDate birthday) {
+                this(id, email, login, name, birthday, null);
+        }
+
 }
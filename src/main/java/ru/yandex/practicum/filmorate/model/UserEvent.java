@@ -0,0 +1,18 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+//событие ленты пользователя: пользователь userId поставил или снял лайк фильму entityId,
+//добавил или удалил из друзей пользователя entityId
+@Data
+@AllArgsConstructor
+public class UserEvent {
+    private long eventId;
+    private long userId;
+    private UserEventType eventType;
+    private long entityId;
+    private LocalDateTime timestamp;
+}
@@ -0,0 +1,9 @@
+package ru.yandex.practicum.filmorate.model;
+
+//тип события ленты пользователя: entityId события - id фильма для лайков и id друга для дружбы
+public enum UserEventType {
+    LIKE,
+    UNLIKE,
+    FRIEND_ADD,
+    FRIEND_REMOVE
+}
@@ -0,0 +1,19 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+//состояние очереди отложенной записи гибридного хранилища
+@Data
+@AllArgsConstructor
+public class WriteBehindStats {
+    private int depth; //изменений в очереди
+    private int capacity; //размер очереди, при заполнении запись в память ждёт освобождения места
+    private long lagMs; //возраст самого старого изменения, ещё не записанного в БД
+    private long written; //изменений записано в БД
+    private long failed; //изменений, которые не удалось записать
+    private long batches; //выполнено пакетов
+    private long throttled; //сколько раз запись ждала освобождения места в очереди
+    private long retries; //повторных попыток записи изменений
+    private int unwritten; //незаписанных изменений, ожидающих повторной постановки в очередь
+}
@@ -0,0 +1,112 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.model.PopularityEstimate;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.PopularitySketch;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//приближённый рейтинг популярных фильмов (filmorate.popular.mode=approximate): изменения лайков учитываются
+//счётчиками в памяти ограниченного размера (PopularitySketch), и рейтинг строится без подсчёта лайков в хранилище.
+//счётчики периодически сверяются с точными количествами лайков. до первой сверки, а также в режиме exact
+//рейтинг строится хранилищем
+@Component
+@Slf4j
+public class ApproximatePopularity {
+    private static final String APPROXIMATE_MODE = "approximate";
+
+    private final FilmLikeDao filmLikeDao;
+    private final DataVersions dataVersions;
+    private final boolean enabled;
+    private final PopularitySketch sketch;
+    private final long intervalMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "popularity-reconciler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ApproximatePopularity(FilmLikeDao filmLikeDao, DataVersions dataVersions,
+                                 @Value("${filmorate.popular.mode:exact}") String mode,
+                                 @Value("${filmorate.popular.approximate.epsilon:0.001}") double epsilon,
+                                 @Value("${filmorate.popular.approximate.confidence:0.99}") double confidence,
+                                 @Value("${filmorate.popular.approximate.capacity:1000}") int capacity,
+                                 @Value("${filmorate.popular.approximate.reconcile-interval-ms:60000}") long intervalMs) {
+        this.filmLikeDao = filmLikeDao;
+        this.dataVersions = dataVersions;
+        this.enabled = APPROXIMATE_MODE.equals(mode);
+        this.sketch = new PopularitySketch(epsilon, confidence, capacity);
+        this.intervalMs = intervalMs;
+    }
+
+    //сверки запускаются после создания бина, а не в конструкторе: первая сверка читает лайки из хранилища
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            log.info("Приближённый рейтинг популярных фильмов: {}x{} счётчиков, список из {} фильмов.",
+                    sketch.getDepth(), sketch.getWidth(), sketch.getCapacity());
+            scheduler.scheduleWithFixedDelay(this::reconcile, 0, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //рейтинг из count фильмов строится приближённо
+    public boolean isUsedFor(long count) {
+        return enabled && count <= sketch.getCapacity() && sketch.isReconciled();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getCapacity() {
+        return sketch.getCapacity();
+    }
+
+    //изменение лайков фильма (delta=1 - лайк, delta=-1 - удаление лайка)
+    public void likesChanged(long filmId, long delta) {
+        if (enabled) {
+            sketch.add(filmId, delta);
+        }
+    }
+
+    public void filmDeleted(long filmId) {
+        if (enabled) {
+            sketch.remove(filmId);
+        }
+    }
+
+    //не более count фильмов с наибольшей оценкой лайков
+    public List<PopularityEstimate> top(int count) {
+        return sketch.top(count);
+    }
+
+    //сверка счётчиков с точными количествами лайков в хранилище
+    public void reconcile() {
+        try {
+            sketch.beginReset();
+            Map<Long, Long> likes = filmLikeDao.getLikeCounts();
+            sketch.reset(likes);
+            dataVersions.popularChanged();
+            log.debug("Приближённые счётчики сверены с лайками {} фильмов.", likes.size());
+        } catch (RuntimeException e) {
+            sketch.cancelReset();
+            //ошибка не должна останавливать следующие запуски
+            log.warn("Ошибка сверки приближённых счётчиков лайков: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,55 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserEventDao;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//фоновое сжатие ленты событий: у каждого пользователя хранится не более max-events последних событий,
+//поэтому размер таблицы событий ограничен числом пользователей
+@Component
+@Slf4j
+public class FeedCompactor {
+    private final UserEventDao eventDao;
+    private final int maxEvents;
+    private final long intervalMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "feed-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FeedCompactor(UserEventDao eventDao,
+                         @Value("${filmorate.feed.max-events:1000}") int maxEvents,
+                         @Value("${filmorate.feed.compaction-interval-ms:60000}") long intervalMs) {
+        this.eventDao = eventDao;
+        this.maxEvents = maxEvents;
+        this.intervalMs = intervalMs;
+    }
+
+    //сжатие запускается после создания бина, а не в конструкторе
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::compact, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void compact() {
+        try {
+            eventDao.compact(maxEvents);
+        } catch (RuntimeException e) {
+            //ошибка не должна останавливать следующие запуски
+            log.warn("Ошибка сжатия ленты событий: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
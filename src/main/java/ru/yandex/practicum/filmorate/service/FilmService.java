@@ -2,21 +2,35 @@ package ru.yandex.practicum.filmorate.service;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ru.yandex.practicum.filmorate.exceptions.ValidationException;
 import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.user.UserNotFoundException;
+import ru.yandex.practicum.filmorate.model.BatchItem;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
+import ru.yandex.practicum.filmorate.model.FilmScoreStats;
+import ru.yandex.practicum.filmorate.model.FilmViewers;
+import ru.yandex.practicum.filmorate.model.LikeState;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.model.MPA;
-import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.PopularityEstimate;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
 import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmScoreDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.MpaDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.TrendingCounters;
 import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
 
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 //отвечает за операции с фильмами, — добавление и удаление лайка, вывод 10 наиболее популярных фильмов
@@ -30,13 +44,27 @@ public class FilmService {
     private final MpaDao mpaDao;
     private final FilmLikeDao filmLikeDao;
     private final GenreDao genreDao;
+    private final PopularFilmsFeed popularFilmsFeed;
+    private final FilmScoreDao filmScoreDao;
+    private final TrendingCounters trending;
+    private final ApproximatePopularity approximatePopularity;
+    private final FilmViewTracker viewTracker;
+    private static final int MIN_SCORE = 1;
+    private static final int MAX_SCORE = 10;
 
-    public FilmService(FilmDao filmStorage, UserDao userStorage, MpaDao mpaDao, FilmLikeDao filmLikeDao, GenreDao genreDao) {
+    public FilmService(FilmDao filmStorage, UserDao userStorage, MpaDao mpaDao, FilmLikeDao filmLikeDao, GenreDao genreDao,
+                       PopularFilmsFeed popularFilmsFeed, FilmScoreDao filmScoreDao, TrendingCounters trending,
+                       ApproximatePopularity approximatePopularity, FilmViewTracker viewTracker) {
         this.filmStorage = filmStorage;
         this.userStorage = userStorage;
         this.mpaDao = mpaDao;
         this.filmLikeDao = filmLikeDao;
         this.genreDao = genreDao;
+        this.popularFilmsFeed = popularFilmsFeed;
+        this.filmScoreDao = filmScoreDao;
+        this.trending = trending;
+        this.approximatePopularity = approximatePopularity;
+        this.viewTracker = viewTracker;
     }
 
     //добавляем фильм
@@ -80,13 +108,60 @@ public class FilmService {
     public void deleteFilm(long filmId) {
         isValidFilmId(filmId);
         filmStorage.deleteFilm(filmId);
+        trending.remove(filmId);
+        filmScoreDao.deleteFilmScores(filmId);
+        approximatePopularity.filmDeleted(filmId);
+        viewTracker.filmDeleted(filmId);
     }
 
-    //получение фильма по id
+    //получение фильма по id вместе с количеством уникальных зрителей.
+    //хранилище в памяти возвращает хранимый объект, поэтому зрители заполняются в копии
     public Film getFilm(long filmId) {
         log.info("GET Запрос на поиск фильма с id={}", filmId);
         isValidFilmId(filmId);
-        return filmStorage.getFilm(filmId);
+        Film film = filmStorage.getFilm(filmId);
+        return new Film(film.getId(), film.getName(), film.getDescription(), film.getReleaseDate(),
+                film.getDuration(), film.getRate(), film.getMpa(), film.getGenres(), viewTracker.getViewers(filmId));
+    }
+
+    //пользователь открыл фильм
+    public void addView(long filmId, long userId) {
+        log.debug("Просмотр фильма с id={} пользователем с userId={}", filmId, userId);
+        isExistsFilmAndUser(filmId, userId);
+        viewTracker.addView(filmId, userId);
+    }
+
+    //количество уникальных зрителей фильма за дни с from по to включительно; без дат - за всё время,
+    //без одной из дат - с первого дня просмотров или по сегодняшний день
+    public FilmViewers getViewers(long filmId, LocalDate from, LocalDate to) {
+        isValidFilmId(filmId);
+        if (!filmStorage.exists(filmId)) {
+            throw new FilmNotFoundException("Фильм с id=" + filmId + " не найден.");
+        }
+        if (from == null && to == null) {
+            return new FilmViewers(filmId, null, null, viewTracker.getViewers(filmId));
+        }
+        LocalDate windowFrom = from == null ? LocalDate.EPOCH : from;
+        LocalDate windowTo = to == null ? LocalDate.now(ZoneOffset.UTC) : to;
+        if (windowFrom.isAfter(windowTo)) {
+            throw new ValidationException("Начало периода просмотров позже его окончания.");
+        }
+        return new FilmViewers(filmId, windowFrom, windowTo, viewTracker.getViewers(filmId, windowFrom, windowTo));
+    }
+
+    //получение нескольких фильмов по списку id: для каждого id в порядке запроса
+    //возвращается фильм или ошибка, если фильм не найден
+    public List<BatchItem<Film>> getFilmsByIds(List<Long> filmIds) {
+        log.info("GET Запрос на поиск {} фильмов по списку id", filmIds.size());
+        if (filmIds.isEmpty() || filmIds.size() > QueryLimits.MAX_BATCH_IDS) {
+            throw new ValidationException("Количество id в запросе должно быть от 1 до " +
+                    QueryLimits.MAX_BATCH_IDS + ".");
+        }
+        Map<Long, Film> films = filmStorage.getFilmsByIds(filmIds);
+        return filmIds.stream()
+                .map(id -> films.containsKey(id) ? BatchItem.found(id, films.get(id))
+                        : BatchItem.<Film>error(id, "Фильм с id=" + id + " не найден."))
+                .collect(Collectors.toList());
     }
 
     //возвращает информацию обо всех фильмах
@@ -94,30 +169,52 @@ public class FilmService {
         return filmStorage.getFilms();
     }
 
-    //пользователь ставит лайк фильму.
-    public void addLike(long filmId, long userId) {
+    //возвращает все фильмы только с запрошенными полями
+    public List<Film> getFilms(Set<FilmField> fields) {
+        return filmStorage.getFilms(fields);
+    }
+
+    //построчная выгрузка всех фильмов
+    public void exportFilms(Consumer<Film> consumer) {
+        log.info("Запрос на выгрузку всех фильмов направлен в хранилище...");
+        filmStorage.exportFilms(consumer);
+    }
+
+    //пользователь ставит лайк фильму, повторный лайк ничего не меняет.
+    public LikeState addLike(long filmId, long userId) {
         log.debug("Запрос на добавление фильму с id={} лайка от пользователя с userId={}", filmId, userId);
         //проверка существования фильма с id
         isValidFilmId(filmId);
         isValidUserId(userId);
-        Film film=filmStorage.getFilm(filmId);
-        if(film==null) {
+        if (!filmStorage.exists(filmId)) {
             throw new FilmNotFoundException("Фильм с id="+filmId+" не найден.");
         }
         //проверка существования пользователя с id
-        User user=userStorage.getUser(userId);
-        if(user==null) {
+        if (!userStorage.exists(userId)) {
             throw new UserNotFoundException("Пользователь с id=" + userId + " не найден.");
         }
-        filmLikeDao.addLike(filmId,userId);
+        LikeState state = filmLikeDao.addLike(filmId,userId);
+        if (state.isChanged()) {
+            approximatePopularity.likesChanged(filmId, 1);
+            popularFilmsFeed.likesChanged();
+        }
+        return state;
     }
 
-    //пользователь удаляет лайк.
-    public void deleteLike(long filmId, long userId) {
+    //пользователь удаляет лайк, удаление отсутствующего лайка ничего не меняет.
+    public LikeState deleteLike(long filmId, long userId) {
         log.debug("Запрос на удаление лайка фильму с id={} лайка от пользователя с userId={}", filmId, userId);
         isValidFilmId(filmId);
         isValidUserId(userId);
-        filmLikeDao.deleteLike(filmId,userId);
+        if (!userStorage.exists(userId)) {
+            throw new UserNotFoundException("Пользователь с id=" + userId + " не найден.");
+        }
+        LikeState state = filmLikeDao.deleteLike(filmId,userId);
+        if (state.isChanged()) {
+            approximatePopularity.likesChanged(filmId, -1);
+            popularFilmsFeed.likesChanged();
+        }
+        return state;
     }
 
     //вывод популярных фильмов,если параметр не задан, то выводим 10 фильмов
@@ -130,6 +227,127 @@ public class FilmService {
         return filmStorage.getPopularFilms(count);
     }
 
+    //популярные фильмы только с запрошенными полями
+    public List<Film> getPopularFilms(long count, Set<FilmField> fields) {
+        if (count <= 0) {
+            throw new ValidationException("Запрошено отрицательное количество популярных фильмов.");
+        }
+        log.debug("Запрос на получение {} популярных фильмов с полями {}...", count, fields);
+        return filmStorage.getPopularFilms(count, fields);
+    }
+
+    //рейтинг из count популярных фильмов строится по приближённым счётчикам (filmorate.popular.mode=approximate)
+    public boolean isPopularApproximate(long count) {
+        return approximatePopularity.isUsedFor(count);
+    }
+
+    //приближённые количества лайков популярных фильмов с погрешностью
+    public List<PopularityEstimate> getPopularEstimates(long count) {
+        if (!approximatePopularity.isEnabled()) {
+            throw new ValidationException("Приближённый рейтинг популярных фильмов отключён.");
+        }
+        if (count <= 0 || count > approximatePopularity.getCapacity()) {
+            throw new ValidationException("Количество фильмов в запросе должно быть от 1 до " +
+                    approximatePopularity.getCapacity() + ".");
+        }
+        log.debug("Запрос на получение оценок лайков {} популярных фильмов...", count);
+        return approximatePopularity.top((int) count);
+    }
+
+    //фильмы приближённого рейтинга в порядке рейтинга. фильмы без лайков в него не входят
+    public List<Film> getPopularFilms(List<PopularityEstimate> estimates) {
+        Map<Long, Film> films = filmStorage.getFilmsByIds(estimates.stream()
+                .map(PopularityEstimate::getFilmId)
+                .collect(Collectors.toList()));
+        return estimates.stream()
+                .map(estimate -> films.get(estimate.getFilmId()))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    //пользователь оценивает фильм от 1 до 10, повторная оценка заменяет прежнюю
+    public FilmScoreStats setScore(long filmId, long userId, int score) {
+        log.debug("Запрос на оценку {} фильма с id={} пользователем с userId={}", score, filmId, userId);
+        if (score < MIN_SCORE || score > MAX_SCORE) {
+            throw new ValidationException("Оценка должна быть от " + MIN_SCORE + " до " + MAX_SCORE + ".");
+        }
+        isExistsFilmAndUser(filmId, userId);
+        return filmScoreDao.setScore(filmId, userId, score);
+    }
+
+    //пользователь удаляет оценку фильма, удаление отсутствующей оценки ничего не меняет
+    public FilmScoreStats deleteScore(long filmId, long userId) {
+        log.debug("Запрос на удаление оценки фильма с id={} пользователем с userId={}", filmId, userId);
+        isExistsFilmAndUser(filmId, userId);
+        return filmScoreDao.deleteScore(filmId, userId);
+    }
+
+    //оценки фильма
+    public FilmScoreStats getScore(long filmId) {
+        isValidFilmId(filmId);
+        if (!filmStorage.exists(filmId)) {
+            throw new FilmNotFoundException("Фильм с id=" + filmId + " не найден.");
+        }
+        return filmScoreDao.getStats(filmId);
+    }
+
+    //фильмы с наибольшим байесовским средним оценок
+    public List<Film> getTopRatedFilms(long count) {
+        if (count <= 0 || count > QueryLimits.MAX_BATCH_IDS) {
+            throw new ValidationException("Количество фильмов в запросе должно быть от 1 до " +
+                    QueryLimits.MAX_BATCH_IDS + ".");
+        }
+        log.debug("Запрос на получение {} фильмов с лучшими оценками...", count);
+        List<Long> filmIds = filmScoreDao.getTopRatedIds(count);
+        Map<Long, Film> films = filmStorage.getFilmsByIds(filmIds);
+        return filmIds.stream().map(films::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    //фильмы в тренде: по лайкам за окно window (24h или 7d) или по горячести (rank=hotness)
+    public List<Film> getTrendingFilms(String window, String rank, long count) {
+        if (count <= 0 || count > QueryLimits.MAX_BATCH_IDS) {
+            throw new ValidationException("Количество фильмов в запросе должно быть от 1 до " +
+                    QueryLimits.MAX_BATCH_IDS + ".");
+        }
+        TrendingCounters.Ranking ranking;
+        if ("hotness".equals(rank)) {
+            ranking = TrendingCounters.Ranking.HOTNESS;
+        } else if (!"likes".equals(rank)) {
+            throw new ValidationException("Неизвестный порядок трендов: " + rank + ", допустимы likes и hotness.");
+        } else if ("24h".equals(window)) {
+            ranking = TrendingCounters.Ranking.DAY;
+        } else if ("7d".equals(window)) {
+            ranking = TrendingCounters.Ranking.WEEK;
+        } else {
+            throw new ValidationException("Неизвестное окно трендов: " + window + ", допустимы 24h и 7d.");
+        }
+        log.debug("Запрос на получение {} фильмов в тренде: {}", count, ranking);
+        List<Long> filmIds = trending.top(ranking, (int) count);
+        Map<Long, Film> films = filmStorage.getFilmsByIds(filmIds);
+        return filmIds.stream().map(films::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    //подписка на изменения списка популярных фильмов
+    public SseEmitter subscribePopularFilms(long count) {
+        if (count <= 0) {
+            throw new ValidationException("Запрошено отрицательное количество популярных фильмов.");
+        }
+        log.debug("Запрос на подписку на {} популярных фильмов...", count);
+        return popularFilmsFeed.subscribe(count);
+    }
+
+    //проверка существования фильма и пользователя
+    private void isExistsFilmAndUser(long filmId, long userId) {
+        isValidFilmId(filmId);
+        isValidUserId(userId);
+        if (!filmStorage.exists(filmId)) {
+            throw new FilmNotFoundException("Фильм с id=" + filmId + " не найден.");
+        }
+        if (!userStorage.exists(userId)) {
+            throw new UserNotFoundException("Пользователь с id=" + userId + " не найден.");
+        }
+    }
+
     //проверка корректности значений filmId
     private boolean isValidFilmId(long filmId) {
         if (filmId <= 0) {
@@ -0,0 +1,238 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmViewDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.HyperLogLog;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//уникальные зрители фильмов: просмотр добавляется в регистры HyperLogLog фильма за текущий день (UTC),
+//которые периодически объединяются с регистрами в БД. количество зрителей за всё время - объединение регистров
+//всех дней; оно хранится в памяти для не более cache-size фильмов и обновляется каждым просмотром.
+//просмотры добавляются параллельно под блокировкой чтения, сброс в БД забирает накопленные регистры
+//под блокировкой записи, поэтому просмотр не теряется между забранными и новыми регистрами.
+//зрители за всё время читаются из БД без блокировок; просмотры, добавленные во время чтения, собираются
+//отдельно и объединяются с прочитанными, а регистры, забранные на запись, читаются вместе с накопленными.
+//просмотр, изменивший регистры, увеличивает версию зрителей фильма: по ней строится ETag фильма без чтения БД
+@Component
+@Slf4j
+public class FilmViewTracker {
+    private static final LocalDate FIRST_DAY = LocalDate.EPOCH;
+    private static final LocalDate LAST_DAY = LocalDate.of(9999, 12, 31);
+
+    private final FilmViewDao viewDao;
+    private final DataVersions dataVersions;
+    private final int cacheSize;
+    private final long flushIntervalMs;
+    private final ReadWriteLock pendingLock = new ReentrantReadWriteLock();
+    //регистры просмотров с последнего сброса: день -> id фильма -> регистры
+    private Map<LocalDate, Map<Long, HyperLogLog>> pending = new ConcurrentHashMap<>();
+    //регистры, забранные на запись в БД и ещё не записанные (null - записи нет)
+    private Map<LocalDate, Map<Long, HyperLogLog>> flushing;
+    private final Map<Long, HyperLogLog> totals = new ConcurrentHashMap<>(); //зрители фильмов за всё время
+    private final Map<Long, HyperLogLog> loading = new ConcurrentHashMap<>(); //просмотры во время чтения totals
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "film-views-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FilmViewTracker(FilmViewDao viewDao, DataVersions dataVersions,
+                           @Value("${filmorate.views.cache-size:10000}") int cacheSize,
+                           @Value("${filmorate.views.flush-interval-ms:10000}") long flushIntervalMs) {
+        this.viewDao = viewDao;
+        this.dataVersions = dataVersions;
+        this.cacheSize = cacheSize;
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    //сброс в БД запускается после создания бина, а не в конструкторе
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::flushSafely, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    //пользователь открыл фильм сегодня
+    public void addView(long filmId, long userId) {
+        addView(filmId, userId, LocalDate.now(ZoneOffset.UTC));
+    }
+
+    //пользователь открыл фильм в день day
+    public void addView(long filmId, long userId, LocalDate day) {
+        boolean changed;
+        pendingLock.readLock().lock();
+        try {
+            changed = pending.computeIfAbsent(day, d -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(filmId, id -> new HyperLogLog())
+                    .add(userId);
+        } finally {
+            pendingLock.readLock().unlock();
+        }
+        //просмотр во время чтения зрителей за всё время запоминается для объединения с прочитанными,
+        //после чтения - добавляется к ним. чтение сначала публикует прочитанных зрителей, затем перестаёт
+        //собирать просмотры, поэтому просмотр попадает хотя бы в один из наборов
+        HyperLogLog raced = loading.get(filmId);
+        if (raced != null) {
+            raced.add(userId);
+        }
+        HyperLogLog views = totals.get(filmId);
+        if (views != null && views.add(userId)) {
+            changed = true;
+        }
+        if (changed) {
+            dataVersions.viewsChanged(filmId);
+        }
+    }
+
+    //количество уникальных зрителей фильма за всё время
+    public long getViewers(long filmId) {
+        HyperLogLog views = totals.get(filmId);
+        if (views == null) {
+            //чтение БД - вне computeIfAbsent, чтобы медленный запрос не блокировал карту
+            HyperLogLog raced = loading.computeIfAbsent(filmId, id -> new HyperLogLog());
+            HyperLogLog loaded = loadViews(filmId, FIRST_DAY, LAST_DAY);
+            loaded.merge(raced);
+            evictIfFull();
+            HyperLogLog existing = totals.putIfAbsent(filmId, loaded);
+            views = existing != null ? existing : loaded;
+            //просмотры, добавленные после объединения, но до публикации
+            views.merge(raced);
+            loading.remove(filmId, raced);
+        }
+        return views.estimate();
+    }
+
+    //количество уникальных зрителей фильма за дни с from по to включительно
+    public long getViewers(long filmId, LocalDate from, LocalDate to) {
+        return loadViews(filmId, from, to).estimate();
+    }
+
+    public void filmDeleted(long filmId) {
+        pendingLock.readLock().lock();
+        try {
+            pending.values().forEach(films -> films.remove(filmId));
+        } finally {
+            pendingLock.readLock().unlock();
+        }
+        totals.remove(filmId);
+        loading.remove(filmId);
+        viewDao.deleteViews(filmId);
+    }
+
+    //сброс накопленных регистров в БД (не более одного одновременно); при ошибке они возвращаются в накопленные
+    public synchronized void flush() {
+        Map<LocalDate, Map<Long, HyperLogLog>> flushed;
+        pendingLock.writeLock().lock();
+        try {
+            flushed = pending;
+            pending = new ConcurrentHashMap<>();
+            flushing = flushed;
+        } finally {
+            pendingLock.writeLock().unlock();
+        }
+        try {
+            for (Iterator<Map.Entry<LocalDate, Map<Long, HyperLogLog>>> days = flushed.entrySet().iterator();
+                 days.hasNext(); ) {
+                Map.Entry<LocalDate, Map<Long, HyperLogLog>> day = days.next();
+                try {
+                    viewDao.mergeViews(day.getKey(), day.getValue());
+                    days.remove();
+                } catch (RuntimeException e) {
+                    flushed.forEach((failedDay, films) -> films.forEach((filmId, views) -> restore(failedDay,
+                            filmId, views)));
+                    throw e;
+                }
+            }
+        } finally {
+            //записанные дни уже в БД, незаписанные возвращены в накопленные
+            pendingLock.writeLock().lock();
+            try {
+                flushing = null;
+            } finally {
+                pendingLock.writeLock().unlock();
+            }
+        }
+    }
+
+    //регистры фильма за дни с from по to: сохранённые в БД и ещё не записанные (накопленные и забранные
+    //на запись). они копируются до чтения БД: регистры, записанные во время чтения, окажутся в БД
+    private HyperLogLog loadViews(long filmId, LocalDate from, LocalDate to) {
+        List<HyperLogLog> unflushed = new ArrayList<>();
+        pendingLock.readLock().lock();
+        try {
+            copyViews(pending, filmId, from, to, unflushed);
+            Map<LocalDate, Map<Long, HyperLogLog>> inFlight = flushing;
+            if (inFlight != null) {
+                copyViews(inFlight, filmId, from, to, unflushed);
+            }
+        } finally {
+            pendingLock.readLock().unlock();
+        }
+        HyperLogLog views = viewDao.getViews(filmId, from, to);
+        unflushed.forEach(views::merge);
+        return views;
+    }
+
+    private static void copyViews(Map<LocalDate, Map<Long, HyperLogLog>> days, long filmId, LocalDate from,
+                                  LocalDate to, List<HyperLogLog> copies) {
+        days.forEach((day, films) -> {
+            HyperLogLog views = films.get(filmId);
+            if (views != null && !day.isBefore(from) && !day.isAfter(to)) {
+                copies.add(views.copy());
+            }
+        });
+    }
+
+    private void restore(LocalDate day, long filmId, HyperLogLog views) {
+        pendingLock.readLock().lock();
+        try {
+            pending.computeIfAbsent(day, d -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(filmId, id -> new HyperLogLog())
+                    .merge(views);
+        } finally {
+            pendingLock.readLock().unlock();
+        }
+    }
+
+    //зрители за всё время хранятся не более чем для cache-size фильмов: вытесняется произвольный фильм,
+    //при следующем обращении его зрители читаются из БД заново
+    private void evictIfFull() {
+        Iterator<Long> filmIds = totals.keySet().iterator();
+        while (totals.size() >= cacheSize && filmIds.hasNext()) {
+            filmIds.next();
+            filmIds.remove();
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            //ошибка не должна останавливать следующие запуски
+            log.warn("Ошибка записи зрителей фильмов: {}", e.getMessage());
+        }
+    }
+
+    //накопленные просмотры записываются в БД при остановке приложения
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+        flushSafely();
+    }
+}
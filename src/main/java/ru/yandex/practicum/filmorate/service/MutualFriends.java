@@ -0,0 +1,76 @@
+package ru.yandex.practicum.filmorate.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+//количество общих друзей пользователя с каждым из его друзей: пересечение отсортированных массивов id друзей.
+//массивы близкого размера пересекаются слиянием за O(n + m), при большой разнице размеров элементы меньшего
+//массива ищутся двоичным поиском в большем за O(n log m). для большого списка друзей пересечения
+//вычисляются параллельно (ForkJoinPool.commonPool)
+public final class MutualFriends {
+    private static final int PARALLEL_THRESHOLD = 256; //число друзей, начиная с которого счёт параллельный
+    private static final int SEARCH_RATIO = 32; //во сколько раз массив больше другого для двоичного поиска
+    private static final long[] NO_FRIENDS = new long[0];
+
+    private MutualFriends() {
+    }
+
+    //friendIds - отсортированные id друзей пользователя, adjacency - отсортированные id друзей каждого друга.
+    //результат: id друга -> количество общих друзей
+    public static Map<Long, Integer> count(long[] friendIds, Map<Long, long[]> adjacency) {
+        int[] counts = new int[friendIds.length];
+        IntStream indexes = IntStream.range(0, friendIds.length);
+        if (friendIds.length >= PARALLEL_THRESHOLD) {
+            indexes = indexes.parallel();
+        }
+        indexes.forEach(i -> counts[i] = intersectionSize(friendIds,
+                adjacency.getOrDefault(friendIds[i], NO_FRIENDS)));
+        Map<Long, Integer> result = new HashMap<>();
+        for (int i = 0; i < friendIds.length; i++) {
+            result.put(friendIds[i], counts[i]);
+        }
+        return result;
+    }
+
+    //количество общих элементов отсортированных массивов без повторов
+    public static int intersectionSize(long[] a, long[] b) {
+        long[] small = a.length <= b.length ? a : b;
+        long[] large = a.length <= b.length ? b : a;
+        if (small.length == 0) {
+            return 0;
+        }
+        int count = 0;
+        if (large.length / small.length >= SEARCH_RATIO) {
+            int from = 0;
+            for (long id : small) {
+                int found = Arrays.binarySearch(large, from, large.length, id);
+                if (found >= 0) {
+                    count++;
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+                if (from == large.length) {
+                    break;
+                }
+            }
+            return count;
+        }
+        int i = 0;
+        int j = 0;
+        while (i < small.length && j < large.length) {
+            if (small[i] < large[j]) {
+                i++;
+            } else if (small[i] > large[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+}
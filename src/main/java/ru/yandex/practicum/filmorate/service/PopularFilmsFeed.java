@@ -0,0 +1,174 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+//рассылка подписчикам (SSE) изменений рейтинга популярных фильмов.
+//изменения лайков накапливаются: рейтинг пересчитывается не чаще одного раза за интервал,
+//одним запросом для наибольшего запрошенного count, и раздаётся всем подписчикам.
+//подписчику отправляется только актуальный рейтинг: если он не успевает принимать события,
+//неотправленный рейтинг заменяется новым, поэтому на подписчика хранится не более одного события
+@Component
+@Slf4j
+public class PopularFilmsFeed {
+    private static final String EVENT_NAME = "popular";
+
+    private final FilmDao filmStorage;
+    private final long intervalMs; //минимальный интервал между пересчётами рейтинга
+    private final long timeoutMs; //время жизни подписки
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "popular-films-feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //отправка событий - собственный исполнитель, а не общий пул асинхронных задач приложения: отправка
+    //медленному подписчику может блокироваться до конца подписки и не должна занимать потоки обработки
+    //запросов. при filmorate.threads.virtual=true медленный подписчик блокирует только свой виртуальный поток,
+    //иначе - один из send-threads потоков, и задерживает только других подписчиков
+    private final ExecutorService senders;
+    private volatile long lastPublished;
+
+    @Autowired
+    public PopularFilmsFeed(FilmDao filmStorage,
+                            @Value("${filmorate.threads.virtual:false}") boolean virtualThreads,
+                            @Value("${filmorate.popular.stream.send-threads:4}") int sendThreads,
+                            @Value("${filmorate.popular.stream.interval-ms:1000}") long intervalMs,
+                            @Value("${filmorate.popular.stream.timeout-ms:1800000}") long timeoutMs) {
+        this(filmStorage, senders(virtualThreads, sendThreads), intervalMs, timeoutMs);
+    }
+
+    public PopularFilmsFeed(FilmDao filmStorage, ExecutorService senders, long intervalMs, long timeoutMs) {
+        this.filmStorage = filmStorage;
+        this.senders = senders;
+        this.intervalMs = intervalMs;
+        this.timeoutMs = timeoutMs;
+    }
+
+    private static ExecutorService senders(boolean virtualThreads, int sendThreads) {
+        if (virtualThreads) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(sendThreads, r -> {
+            Thread thread = new Thread(r, "popular-films-sender-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //новая подписка: сразу отправляем текущий рейтинг
+    public SseEmitter subscribe(long count) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        Subscriber subscriber = new Subscriber(emitter, count);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        subscriber.offer(filmStorage.getPopularFilms(count));
+        log.debug("Добавлен подписчик на {} популярных фильмов, всего подписчиков: {}", count, subscribers.size());
+        return emitter;
+    }
+
+    //изменились лайки: планируем пересчёт рейтинга, если он ещё не запланирован
+    public void likesChanged() {
+        if (subscribers.isEmpty() || !scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = Math.max(0, lastPublished + intervalMs - System.currentTimeMillis());
+        scheduler.schedule(this::publish, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void publish() {
+        scheduled.set(false);
+        lastPublished = System.currentTimeMillis();
+        long maxCount = subscribers.stream().mapToLong(s -> s.count).max().orElse(0);
+        if (maxCount == 0) {
+            return;
+        }
+        try {
+            List<Film> ranking = filmStorage.getPopularFilms(maxCount);
+            log.debug("Рейтинг из {} популярных фильмов пересчитан для {} подписчиков.", maxCount, subscribers.size());
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(ranking.subList(0, (int) Math.min(subscriber.count, ranking.size())));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Ошибка пересчёта популярных фильмов: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        subscribers.forEach(s -> s.emitter.complete());
+        senders.shutdownNow();
+    }
+
+    private class Subscriber {
+        private final SseEmitter emitter;
+        private final long count;
+        private final AtomicReference<List<Film>> pending = new AtomicReference<>();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private List<Long> lastSent; //id фильмов последнего отправленного рейтинга
+
+        private Subscriber(SseEmitter emitter, long count) {
+            this.emitter = emitter;
+            this.count = count;
+        }
+
+        //рейтинг отправляется, только если изменился состав или порядок фильмов. рейтинг предлагают и
+        //подписка, и пересчёт: сравнение с последним рейтингом и замена ожидающего выполняются атомарно
+        private void offer(List<Film> films) {
+            List<Long> ids = films.stream().map(Film::getId).collect(Collectors.toList());
+            synchronized (this) {
+                if (ids.equals(lastSent)) {
+                    return;
+                }
+                lastSent = ids;
+                pending.set(films);
+            }
+            if (sending.compareAndSet(false, true)) {
+                senders.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                List<Film> films = pending.getAndSet(null);
+                if (films == null) {
+                    sending.set(false);
+                    //рейтинг мог появиться после проверки, но до сброса флага
+                    if (pending.get() == null || !sending.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    emitter.send(SseEmitter.event().name(EVENT_NAME).data(films, MediaType.APPLICATION_JSON));
+                } catch (Exception e) {
+                    log.debug("Подписчик на популярные фильмы отключён: {}", e.getMessage());
+                    subscribers.remove(this);
+                    emitter.completeWithError(e);
+                    return;
+                }
+            }
+        }
+    }
+}
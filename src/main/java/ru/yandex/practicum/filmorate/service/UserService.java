@@ -2,12 +2,18 @@ package ru.yandex.practicum.filmorate.service;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.exceptions.ValidationException;
 import ru.yandex.practicum.filmorate.exceptions.user.UserNotFoundException;
+import ru.yandex.practicum.filmorate.model.BatchItem;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.UserEvent;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
 import ru.yandex.practicum.filmorate.storage.user.dao.FriendsDao;
 import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserEventDao;
 
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
@@ -16,11 +22,15 @@ public class UserService {
 
    private final UserDao userStorage;
    private final FriendsDao friendsDao;
+   private final UserEventDao eventDao;
+   private static final int MAX_FEED_LIMIT = 100; //максимальное число событий ленты в одном запросе
 
     public UserService(UserDao userStorage,
-                       FriendsDao friendsDao) {
+                       FriendsDao friendsDao,
+                       UserEventDao eventDao) {
         this.userStorage = userStorage;
         this.friendsDao = friendsDao;
+        this.eventDao = eventDao;
     }
 
     //добавление пользователя
@@ -39,7 +49,13 @@ public class UserService {
     //возвращает информацию обо всех пользователях
     public Set<User> getUsers() {
         log.info("Получен запрос на чтение пользователей...");
-        return userStorage.getUsers().stream().collect(Collectors.toSet());
+        return userStorage.getUsers();
+    }
+
+    //построчная выгрузка всех пользователей
+    public void exportUsers(Consumer<User> consumer) {
+        log.info("Получен запрос на выгрузку пользователей...");
+        userStorage.exportUsers(consumer);
     }
 
     //получение данных о пользователе
@@ -50,6 +66,21 @@ public class UserService {
         return userStorage.getUser(userId);
     }
 
+    //получение нескольких пользователей по списку id: для каждого id в порядке запроса
+    //возвращается пользователь или ошибка, если пользователь не найден
+    public List<BatchItem<User>> getUsersByIds(List<Long> userIds) {
+        log.info("Получен запрос на получение {} пользователей по списку id", userIds.size());
+        if (userIds.isEmpty() || userIds.size() > QueryLimits.MAX_BATCH_IDS) {
+            throw new ValidationException("Количество id в запросе должно быть от 1 до " +
+                    QueryLimits.MAX_BATCH_IDS + ".");
+        }
+        Map<Long, User> users = userStorage.getUsersByIds(userIds);
+        return userIds.stream()
+                .map(id -> users.containsKey(id) ? BatchItem.found(id, users.get(id))
+                        : BatchItem.<User>error(id, "Пользователь с id=" + id + " не найден."))
+                .collect(Collectors.toList());
+    }
+
     //добавление в друзья
     public void addFriend(long userId, long friendId) {
         log.debug("Получен запрос на добавление для пользователя с id={} друга с id={}", userId, friendId);
@@ -57,8 +88,8 @@ public class UserService {
         isValidIdUser(friendId);
         isNotEqualIdUser(userId, friendId);
         //проверка наличия пользователей в БД
-        userStorage.getUser(userId);
-        userStorage.getUser(friendId);
+        isExistsUser(userId);
+        isExistsUser(friendId);
         friendsDao.addFriend(userId,friendId);
         log.info("Для пользователя с id = {} добавлен друг с id={}", userId, friendId);
     }
@@ -81,6 +112,23 @@ public class UserService {
     }
 
 
+    //друзья пользователя с количеством общих друзей у каждого: id друзей пользователя и всех его друзей
+    //читаются из хранилища одним запросом вместо запроса общих друзей для каждого друга.
+    //хранилище в памяти возвращает хранимые объекты, поэтому количество заполняется в копиях
+    public List<User> getFriendsWithMutual(long userId) {
+        log.debug("Получен запрос на получение для пользователя с id={} списка друзей с общими друзьями", userId);
+        isValidIdUser(userId);
+        List<User> friends = friendsDao.getFriends(userId);
+        Set<Long> userIds = friends.stream().map(User::getId).collect(Collectors.toCollection(HashSet::new));
+        userIds.add(userId);
+        Map<Long, long[]> friendIds = friendsDao.getFriendIds(userIds);
+        Map<Long, Integer> mutual = MutualFriends.count(friendIds.get(userId), friendIds);
+        return friends.stream()
+                .map(friend -> new User(friend.getId(), friend.getEmail(), friend.getLogin(), friend.getName(),
+                        friend.getBirthday(), mutual.getOrDefault(friend.getId(), 0)))
+                .collect(Collectors.toList());
+    }
+
     //список друзей, общих с другим пользователем.
     public List<User> getCommonFriends(long userId, long otherId) {
         log.debug("Получен запрос на поиск общих друзей для пользователей с userId={} и otherId={}.", userId, otherId);
@@ -90,6 +138,19 @@ public class UserService {
         return friendsDao.getCommonFriends(userId,otherId);
     }
 
+    //лента событий пользователя от новых к старым: следующая страница запрашивается с before,
+    //равным eventId последнего события предыдущей страницы
+    public List<UserEvent> getFeed(long userId, Long beforeEventId, int limit) {
+        log.debug("Получен запрос на получение ленты пользователя с id={}, before={}, limit={}",
+                userId, beforeEventId, limit);
+        isValidIdUser(userId);
+        if (limit < 1 || limit > MAX_FEED_LIMIT) {
+            throw new ValidationException("Количество событий в запросе должно быть от 1 до " + MAX_FEED_LIMIT + ".");
+        }
+        isExistsUser(userId);
+        return eventDao.getFeed(userId, beforeEventId == null ? Long.MAX_VALUE : beforeEventId, limit);
+    }
+
     private boolean isValidIdUser(long userId) {
         if (userId <= 0) {
             throw new UserNotFoundException("Некорректный id=" + userId + " пользователя.");
@@ -98,6 +159,13 @@ public class UserService {
         return true;
     }
 
+    //проверка существования пользователя без чтения его данных
+    private void isExistsUser(long userId) {
+        if (!userStorage.exists(userId)) {
+            throw new UserNotFoundException("Пользователь с id=" + userId + " не найден.");
+        }
+    }
+
     //проверяет не равныли id пользователя и друга
     private boolean isNotEqualIdUser(long userId, long friendId) {
         if (userId == friendId) {
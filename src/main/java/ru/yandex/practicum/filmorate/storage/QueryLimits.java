@@ -0,0 +1,10 @@
+package ru.yandex.practicum.filmorate.storage;
+
+//ограничения размера запросов: общие для сервисов и всех хранилищ
+public final class QueryLimits {
+    public static final int MAX_BATCH_IDS = 500; //максимальное число id (или фильмов) в одном запросе к API
+    public static final int IN_CHUNK_SIZE = 100; //максимальное число значений в одном условии IN sql запроса
+
+    private QueryLimits() {
+    }
+}
@@ -0,0 +1,46 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.user.dao.FriendsDao;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
+
+import java.util.List;
+
+//в режимах hybrid и sharded основными (@Primary) становятся хранилища режима (пакет storage.<режим>):
+//у остальных хранилищ признак снимается, они остаются доступны по типу и имени для загрузки,
+//отложенной записи и данных, которые режим не переносит
+@Component
+public class StorageModePostProcessor implements BeanFactoryPostProcessor, EnvironmentAware {
+    private static final List<String> MODES = List.of("hybrid", "sharded");
+
+    private String mode;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        mode = environment.getProperty("filmorate.storage.mode", "db");
+    }
+
+    @Override
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+        if (!MODES.contains(mode)) {
+            return;
+        }
+        String modePackage = StorageModePostProcessor.class.getPackageName() + "." + mode + ".";
+        for (Class<?> type : List.of(FilmDao.class, FilmLikeDao.class, UserDao.class, FriendsDao.class)) {
+            for (String name : beanFactory.getBeanNamesForType(type, true, false)) {
+                BeanDefinition definition = beanFactory.getBeanDefinition(name);
+                String className = definition.getBeanClassName();
+                if (className != null && !className.startsWith(modePackage)) {
+                    definition.setPrimary(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+//блокировки хранилищ в памяти, распределённые по id объекта: изменения разных объектов
+//выполняются параллельно, изменения одного объекта - последовательно.
+//чтение выполняется без блокировок из потокобезопасных коллекций
+public class StripedLocks {
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] locks;
+
+    public StripedLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public StripedLocks(int stripes) {
+        locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    //выполнение действия под блокировкой объекта с id
+    public <T> T withLock(long id, Supplier<T> action) {
+        ReentrantLock lock = stripe(id);
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //то же для числового результата: без упаковки в Integer/Long на каждый вызов
+    public int withLockInt(long id, IntSupplier action) {
+        ReentrantLock lock = stripe(id);
+        lock.lock();
+        try {
+            return action.getAsInt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long withLockLong(long id, LongSupplier action) {
+        ReentrantLock lock = stripe(id);
+        lock.lock();
+        try {
+            return action.getAsLong();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //выполнение действия под блокировками двух объектов (например, пары пользователей).
+    //блокировки захватываются в порядке номеров, поэтому встречные запросы не приводят к взаимной блокировке
+    public <T> T withLocks(long id1, long id2, Supplier<T> action) {
+        int first = index(id1);
+        int second = index(id2);
+        if (first == second) {
+            return withLock(id1, action);
+        }
+        ReentrantLock lock1 = locks[Math.min(first, second)];
+        ReentrantLock lock2 = locks[Math.max(first, second)];
+        lock1.lock();
+        try {
+            lock2.lock();
+            try {
+                return action.get();
+            } finally {
+                lock2.unlock();
+            }
+        } finally {
+            lock1.unlock();
+        }
+    }
+
+    public void runWithLock(long id, Runnable action) {
+        withLock(id, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public void runWithLocks(long id1, long id2, Runnable action) {
+        withLocks(id1, id2, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private ReentrantLock stripe(long id) {
+        return locks[index(id)];
+    }
+
+    private int index(long id) {
+        return Math.floorMod(Long.hashCode(id) * 0x9E3779B9, locks.length);
+    }
+}
@@ -1,8 +1,13 @@
 package ru.yandex.practicum.filmorate.storage.film.dao;
 
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 //методы добавления, удаления и модификации объектов.
 
@@ -17,7 +22,20 @@ public interface FilmDao {
     //удаление фильма
     void deleteFilm(long filmId);
 
+    //проверка существования фильма без чтения его данных
+    boolean exists(long filmId);
+
     Film getFilm(long filmId);
     List<Film> getFilms();
     List<Film> getPopularFilms(long maxCount);
+
+    //чтение фильмов только с запрошенными полями
+    List<Film> getFilms(Set<FilmField> fields);
+    List<Film> getPopularFilms(long maxCount, Set<FilmField> fields);
+
+    //чтение нескольких фильмов по списку id, отсутствующие id в результат не попадают
+    Map<Long, Film> getFilmsByIds(Collection<Long> filmIds);
+
+    //построчная выгрузка всех фильмов без накопления результата в памяти
+    void exportFilms(Consumer<Film> consumer);
 }
@@ -1,9 +1,17 @@
 package ru.yandex.practicum.filmorate.storage.film.dao;
 
+import ru.yandex.practicum.filmorate.model.LikeState;
+
+import java.util.Map;
+
 public interface FilmLikeDao {
 
-    void addLike(long filmId, long userId);
+    //повторные запросы не меняют состояние и возвращают changed=false
+    LikeState addLike(long filmId, long userId);
+
+    LikeState deleteLike(long filmId, long userId);
 
-    void deleteLike(long filmId, long userId);
+    //количество лайков каждого фильма, у которого они есть
+    Map<Long, Long> getLikeCounts();
 
 }
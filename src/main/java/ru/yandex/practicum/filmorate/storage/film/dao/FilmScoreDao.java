@@ -0,0 +1,23 @@
+package ru.yandex.practicum.filmorate.storage.film.dao;
+
+import ru.yandex.practicum.filmorate.model.FilmScoreStats;
+
+import java.util.List;
+
+//оценки фильмов (1-10) и их агрегаты
+public interface FilmScoreDao {
+
+    //оценка пользователя фильму, повторная оценка заменяет прежнюю
+    FilmScoreStats setScore(long filmId, long userId, int score);
+
+    //удаление оценки, удаление отсутствующей оценки ничего не меняет
+    FilmScoreStats deleteScore(long filmId, long userId);
+
+    FilmScoreStats getStats(long filmId);
+
+    //удаление оценок и агрегатов удалённого фильма
+    void deleteFilmScores(long filmId);
+
+    //id не более count фильмов с наибольшим байесовским средним
+    List<Long> getTopRatedIds(long count);
+}
@@ -0,0 +1,18 @@
+package ru.yandex.practicum.filmorate.storage.film.dao;
+
+import ru.yandex.practicum.filmorate.storage.film.memory.HyperLogLog;
+
+import java.time.LocalDate;
+import java.util.Map;
+
+//уникальные зрители фильмов по дням (регистры HyperLogLog)
+public interface FilmViewDao {
+
+    //объединение регистров фильмов за день с сохранёнными (ключ - id фильма)
+    void mergeViews(LocalDate day, Map<Long, HyperLogLog> views);
+
+    //объединённые регистры фильма за дни с from по to включительно
+    HyperLogLog getViews(long filmId, LocalDate from, LocalDate to);
+
+    void deleteViews(long filmId);
+}
@@ -5,13 +5,19 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Primary;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.cache.KnownIds;
 import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.model.MPA;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
 import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.MpaDao;
@@ -22,21 +28,26 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Component("filmDbStorage")
 @Primary
 @Slf4j
 public class FilmDbDao implements FilmDao {
+    private static final int EXPORT_FETCH_SIZE = 500; //размер порции строк при выгрузке
     private final JdbcTemplate jdbcTemplate;
     private final MpaDao mpaDao;
     private final GenreDao genreDao;
+    private final DataVersions dataVersions;
+    private final KnownIds knownIds = new KnownIds(this::probeFilm); //id существующих фильмов
 
     public FilmDbDao(JdbcTemplate jdbcTemplate, @Qualifier("mpaDbDao") MpaDao mpaDao,
-                     @Qualifier("genreDbDao") GenreDao genreDao) {
+                     @Qualifier("genreDbDao") GenreDao genreDao, DataVersions dataVersions) {
         this.jdbcTemplate = jdbcTemplate;
         this.mpaDao = mpaDao;
         this.genreDao = genreDao;
+        this.dataVersions = dataVersions;
     }
 
     @Override
@@ -63,6 +74,9 @@ public class FilmDbDao implements FilmDao {
                 keyHolder);
         long filmId = keyHolder.getKey().intValue();
         film.setId(filmId);
+        knownIds.added(filmId);
+        dataVersions.filmChanged(filmId);
+        incrementVersion();
         log.debug("Добавлен новый фильм с id={}", filmId);
 
         //если все жанры найдены в БД, то добавляем записи о жанрах в таблицу films_genre
@@ -98,6 +112,8 @@ public class FilmDbDao implements FilmDao {
             log.debug("Фильм с id={} для обновления не найден.", film.getId());
             throw new FilmNotFoundException("Фильм с id=" + film.getId() + " для обновления не найден.");
         }
+        dataVersions.filmChanged(film.getId());
+        incrementVersion();
         log.debug("Фильм с id={} обновлён.", film.getId());
         //если все жанры найдены в БД, то сначала удаляем записи из films_genre
         // потом добавляем записи о жанрах в таблицу films_genre
@@ -126,21 +142,33 @@ public class FilmDbDao implements FilmDao {
             log.debug("Фильм с id={} для удаления не найден.", filmId);
             throw new FilmNotFoundException("Фильм с id=" + filmId + " для удаления не найден.");
         }
+        knownIds.removed(filmId);
+        dataVersions.filmChanged(filmId);
+        incrementVersion();
         log.debug("Фильм с id={} удалён.", filmId);
     }
 
     @Override
+    public boolean exists(long filmId) {
+        return knownIds.exists(filmId);
+    }
+
+    //проверка существования фильма по первичному ключу, без соединения с другими таблицами
+    private boolean probeFilm(long filmId) {
+        log.debug("Проверка существования фильма с id={} в БД", filmId);
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "select exists(select 1 from films where film_id=?);", Boolean.class, filmId));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
     //возвращаемые поля:
     //из таблицы films: film_id, name, description, release_date, duration, rate,
     //genre - Set: genre.id...
     //из таблицы ratings_mpa: mpa.id,mpa.name
     public Film getFilm(long filmId) {
         log.debug("Получен запрос на фильм с id={};", filmId);
-        String getFilmSql = "select f.FILM_ID,f.NAME,f.DESCRIPTION,f.RELEASE_DATE,f.RELEASE_DATE,f.DURATION,f.RATE," +
-                "rm.RATING_ID,rm.RATING_NAME,g.GENRE_ID,g.GENRE_NAME from films f " +
-                "LEFT JOIN RATINGS_MPA rm " +
-                "ON f.RATING_ID =rm.RATING_ID LEFT JOIN FILMS_GENRE fg ON f.FILM_ID =fg.FILM_ID LEFT JOIN GENRE g " +
-                "ON fg.GENRE_ID =g.GENRE_ID WHERE f.film_id=?; ";
+        String getFilmSql = selectFilmsSql(FilmField.ALL, "films") + " WHERE f.film_id=?;";
         List<Film> films = jdbcTemplate.query(getFilmSql, (rs, rowNum) -> filmMapper(rs), filmId);
         //перебираем films, убираем дубли и группируем жанры
         Optional<Film> film = getUniqueFilm(films).values().stream().findFirst();
@@ -153,14 +181,18 @@ public class FilmDbDao implements FilmDao {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<Film> getFilms() {
-        log.debug("Получен запрос на чтение всех фильмов");
-        String getFilmSql = "select f.FILM_ID ,f.NAME ,f.DESCRIPTION ,f.RELEASE_DATE ,f.RELEASE_DATE ,f.DURATION ,f.RATE ," +
-                "rm.RATING_ID ,rm.RATING_NAME ,g.GENRE_ID ,g.GENRE_NAME from films f LEFT JOIN RATINGS_MPA rm " +
-                "ON f.RATING_ID =rm.RATING_ID LEFT JOIN FILMS_GENRE fg ON f.FILM_ID =fg.FILM_ID LEFT JOIN GENRE g " +
-                "ON fg.GENRE_ID =g.GENRE_ID ORDER BY f.FILM_ID;";
-        //запрашиваем все фильмы с жанрами и рейтингом MPA
-        List<Film> films = jdbcTemplate.query(getFilmSql, (rs, rowNum) -> filmMapper(rs));
+        return getFilms(FilmField.ALL);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<Film> getFilms(Set<FilmField> fields) {
+        log.debug("Получен запрос на чтение всех фильмов, поля: {}", fields);
+        String getFilmSql = selectFilmsSql(fields, "films") + " ORDER BY f.FILM_ID;";
+        //запрашиваем все фильмы с запрошенными полями
+        List<Film> films = jdbcTemplate.query(getFilmSql, (rs, rowNum) -> filmMapper(rs, fields));
         if (films == null) {
             log.debug("Фильмы не найдены.");
             throw new FilmNotFoundException("Фильмы не найдены.");
@@ -177,15 +209,18 @@ public class FilmDbDao implements FilmDao {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<Film> getPopularFilms(long maxCount) {
-        String popFilmSql = "SELECT f2.FILM_ID ,f2.NAME ,f2.DESCRIPTION ,f2.RELEASE_DATE ,f2.RELEASE_DATE ,f2.DURATION ,f2.RATE," +
-                "rm.RATING_ID ,rm.RATING_NAME ,g.GENRE_ID ,g.GENRE_NAME FROM (SELECT f.* FROM FILMS f LEFT JOIN " +
-                "(SELECT FILM_ID,COUNT(*) cLike FROM FILMS_LIKE GROUP BY FILM_ID ) fl ON fl.FILM_ID=f.FILM_ID " +
-                "ORDER BY clike DESC limit(?)) f2 " +
-                "LEFT JOIN RATINGS_MPA rm ON f2.RATING_ID =rm.RATING_ID " +
-                "LEFT JOIN FILMS_GENRE fg ON f2.FILM_ID =fg.FILM_ID " +
-                "LEFT JOIN GENRE g ON fg.GENRE_ID =g.GENRE_ID;";
-        List<Film> popFilms = jdbcTemplate.query(popFilmSql, (rs, rowNum) -> filmMapper(rs), maxCount);
+        return getPopularFilms(maxCount, FilmField.ALL);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<Film> getPopularFilms(long maxCount, Set<FilmField> fields) {
+        String popFilmSql = selectFilmsSql(fields, "(SELECT " + filmColumns(fields) + ",f.RATING_ID FROM FILMS f " +
+                "LEFT JOIN (SELECT FILM_ID,COUNT(*) cLike FROM FILMS_LIKE GROUP BY FILM_ID ) fl " +
+                "ON fl.FILM_ID=f.FILM_ID ORDER BY clike DESC, f.FILM_ID limit(?))") + ";";
+        List<Film> popFilms = jdbcTemplate.query(popFilmSql, (rs, rowNum) -> filmMapper(rs, fields), maxCount);
         log.debug("Популярные фильмы:");
         for (Film film : popFilms) {
             log.debug("Фильм с film_id={}: {}", film.getId(), film);
@@ -195,22 +230,179 @@ public class FilmDbDao implements FilmDao {
         return filmsMap.values().stream().collect(Collectors.toList());
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Long, Film> getFilmsByIds(Collection<Long> filmIds) {
+        log.debug("Получен запрос на чтение {} фильмов по списку id", filmIds.size());
+        Map<Long, Film> result = new HashMap<>();
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(filmIds));
+        //одним запросом с IN по порциям, чтобы не превышать ограничение на число параметров
+        for (int from = 0; from < ids.size(); from += QueryLimits.IN_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + QueryLimits.IN_CHUNK_SIZE, ids.size()));
+            String getFilmsSql = selectFilmsSql(FilmField.ALL, "films") + " WHERE f.film_id IN ("
+                    + String.join(",", Collections.nCopies(chunk.size(), "?")) + ") ORDER BY f.FILM_ID;";
+            List<Film> films = jdbcTemplate.query(getFilmsSql, (rs, rowNum) -> filmMapper(rs), chunk.toArray());
+            //перебираем films, убираем дубли и группируем жанры
+            result.putAll(getUniqueFilm(films));
+        }
+        log.debug("Найдено фильмов: {} из {}", result.size(), ids.size());
+        return result;
+    }
+
+    @Override
+    public void exportFilms(Consumer<Film> consumer) {
+        log.debug("Получен запрос на выгрузку всех фильмов");
+        String exportFilmSql = selectFilmsSql(FilmField.ALL, "films") + " ORDER BY f.FILM_ID;";
+        //строки фильма с несколькими жанрами идут подряд: собираем их в один фильм
+        //и передаём его потребителю, как только начинаются строки следующего фильма
+        Film[] current = new Film[1];
+        jdbcTemplate.query(connection -> forwardOnly(connection, exportFilmSql), (RowCallbackHandler) rs -> {
+            Film film = filmMapper(rs);
+            if (current[0] != null && current[0].getId() == film.getId()) {
+                film.getGenres().forEach(current[0]::addGenres);
+                return;
+            }
+            if (current[0] != null) {
+                consumer.accept(current[0]);
+            }
+            current[0] = film;
+        });
+        if (current[0] != null) {
+            consumer.accept(current[0]);
+        }
+        log.debug("Выгрузка фильмов завершена.");
+    }
+
+    //пакетная запись фильмов с уже назначенными id (отложенная запись гибридного хранилища):
+    //фильм добавляется или обновляется, жанры фильма перезаписываются
+    public void saveFilms(List<Film> films) {
+        String saveFilmSql = "MERGE INTO films(film_id,name,description,release_date,duration,rate,rating_id) " +
+                "KEY(film_id) VALUES(?,?,?,?,?,?,?);";
+        jdbcTemplate.batchUpdate(saveFilmSql, films.stream()
+                .map(f -> new Object[]{f.getId(), f.getName(), f.getDescription(), f.getReleaseDate(),
+                        f.getDuration(), f.getRate(), f.getMpa() == null ? null : f.getMpa().getId()})
+                .collect(Collectors.toList()));
+        jdbcTemplate.batchUpdate("delete from films_genre where film_id=?;", films.stream()
+                .map(f -> new Object[]{f.getId()})
+                .collect(Collectors.toList()));
+        jdbcTemplate.batchUpdate("insert into films_genre(film_id,genre_id) VALUES(?,?);", films.stream()
+                .filter(f -> f.getGenres() != null)
+                .flatMap(f -> f.getGenres().stream().map(g -> new Object[]{f.getId(), g.getId()}))
+                .collect(Collectors.toList()));
+        films.forEach(f -> {
+            knownIds.added(f.getId());
+            dataVersions.filmChanged(f.getId());
+        });
+        log.debug("Записано {} фильмов.", films.size());
+    }
+
+    //пакетное удаление фильмов, отсутствующие фильмы пропускаются
+    public void deleteFilms(List<Long> filmIds) {
+        jdbcTemplate.batchUpdate("delete from films where film_id=?;", filmIds.stream()
+                .map(id -> new Object[]{id})
+                .collect(Collectors.toList()));
+        filmIds.forEach(id -> {
+            knownIds.removed(id);
+            dataVersions.filmChanged(id);
+        });
+        log.debug("Удалено {} фильмов.", filmIds.size());
+    }
+
+    //счётчик изменений фильмов, внесённых через БД: по нему каталог фильмов в файле определяет,
+    //что фильмы в БД изменились без него (saveFilms и deleteFilms счётчик не меняют)
+    public long getVersion() {
+        return jdbcTemplate.queryForList("select version from films_version where id=1;", Long.class).stream()
+                .findFirst()
+                .orElse(0L);
+    }
+
+    private void incrementVersion() {
+        jdbcTemplate.update("update films_version set version=version+1 where id=1;");
+    }
+
+    //после записи фильмов с заданными id счётчик film_id продолжается с наибольшего id,
+    //чтобы новые фильмы, добавленные через БД, не получили занятый id
+    public void restartIdentity() {
+        Long maxId = jdbcTemplate.queryForObject("select coalesce(max(film_id), 0) from films;", Long.class);
+        jdbcTemplate.execute("ALTER TABLE films ALTER COLUMN film_id RESTART WITH " + (maxId + 1));
+        log.debug("Счётчик id фильмов продолжается с {}.", maxId + 1);
+    }
+
+    //курсор только для чтения в прямом направлении с фиксированным размером порции
+    private PreparedStatement forwardOnly(Connection connection, String sql) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(EXPORT_FETCH_SIZE);
+        return ps;
+    }
+
+    //запрос фильмов только с запрошенными полями: описание и другие столбцы читаются, только если они
+    //запрошены, а рейтинг MPA и жанры присоединяются только при запросе mpa и genres.
+    //source - таблица films или подзапрос, содержащий её столбцы
+    private String selectFilmsSql(Set<FilmField> fields, String source) {
+        StringBuilder sql = new StringBuilder("select ").append(filmColumns(fields));
+        if (fields.contains(FilmField.MPA)) {
+            sql.append(",rm.RATING_ID ,rm.RATING_NAME");
+        }
+        if (fields.contains(FilmField.GENRES)) {
+            sql.append(",g.GENRE_ID ,g.GENRE_NAME");
+        }
+        sql.append(" from ").append(source).append(" f");
+        if (fields.contains(FilmField.MPA)) {
+            sql.append(" LEFT JOIN RATINGS_MPA rm ON f.RATING_ID =rm.RATING_ID");
+        }
+        if (fields.contains(FilmField.GENRES)) {
+            sql.append(" LEFT JOIN FILMS_GENRE fg ON f.FILM_ID =fg.FILM_ID LEFT JOIN GENRE g ON fg.GENRE_ID =g.GENRE_ID");
+        }
+        return sql.toString();
+    }
+
+    //столбцы таблицы films для запрошенных полей
+    private String filmColumns(Set<FilmField> fields) {
+        StringBuilder columns = new StringBuilder("f.FILM_ID");
+        if (fields.contains(FilmField.NAME)) {
+            columns.append(",f.NAME");
+        }
+        if (fields.contains(FilmField.DESCRIPTION)) {
+            columns.append(",f.DESCRIPTION");
+        }
+        if (fields.contains(FilmField.RELEASE_DATE)) {
+            columns.append(",f.RELEASE_DATE");
+        }
+        if (fields.contains(FilmField.DURATION)) {
+            columns.append(",f.DURATION");
+        }
+        if (fields.contains(FilmField.RATE)) {
+            columns.append(",f.RATE");
+        }
+        return columns.toString();
+    }
+
     private Film filmMapper(ResultSet rs) throws SQLException {
-        //перебираем записи результирующего набора
+        return filmMapper(rs, FilmField.ALL);
+    }
+
+    private Film filmMapper(ResultSet rs, Set<FilmField> fields) throws SQLException {
+        //перебираем записи результирующего набора, не запрошенные поля остаются пустыми
         long id = rs.getLong("film_id");
-        String name = rs.getString("name");
-        String description = rs.getString("description");
-        LocalDate releaseDate = rs.getDate("release_date").toLocalDate();
-        int duration = rs.getInt("duration");
-        int rate = rs.getInt("rate");
-        MPA mpa = new MPA();
-        mpa.setId(rs.getInt("rating_id"));
-        mpa.setName(rs.getString("rating_name"));
-        int genreId = rs.getInt("genre_id");
-        log.debug("Получен жанр фильма с film_id={} - genre_id={}", id, genreId);
+        String name = fields.contains(FilmField.NAME) ? rs.getString("name") : null;
+        String description = fields.contains(FilmField.DESCRIPTION) ? rs.getString("description") : null;
+        LocalDate releaseDate = fields.contains(FilmField.RELEASE_DATE) ? rs.getDate("release_date").toLocalDate() : null;
+        int duration = fields.contains(FilmField.DURATION) ? rs.getInt("duration") : 0;
+        int rate = fields.contains(FilmField.RATE) ? rs.getInt("rate") : 0;
+        MPA mpa = null;
+        if (fields.contains(FilmField.MPA)) {
+            mpa = new MPA();
+            mpa.setId(rs.getInt("rating_id"));
+            mpa.setName(rs.getString("rating_name"));
+        }
         Set<Genre> genres = new HashSet<>();
-        if (genreId > 0) {
-            genres.add(new Genre(genreId, rs.getString("genre_name")));
+        if (fields.contains(FilmField.GENRES)) {
+            int genreId = rs.getInt("genre_id");
+            log.debug("Получен жанр фильма с film_id={} - genre_id={}", id, genreId);
+            if (genreId > 0) {
+                genres.add(new Genre(genreId, rs.getString("genre_name")));
+            }
         }
         return new Film(id, name, description, releaseDate, duration, rate, mpa, genres);
     }
@@ -3,64 +3,243 @@ package ru.yandex.practicum.filmorate.storage.film.daoImpl;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Primary;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
 import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
+import ru.yandex.practicum.filmorate.model.LikeState;
+import ru.yandex.practicum.filmorate.model.UserEvent;
+import ru.yandex.practicum.filmorate.model.UserEventType;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
 import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.MpaDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.TrendingCounters;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserEventDao;
+
+import javax.annotation.PostConstruct;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Component
 @Primary
 @Slf4j
 public class FilmLikeDbDao implements FilmLikeDao {
+    private static final int EXPORT_FETCH_SIZE = 500; //размер порции строк при выгрузке
+    private static final String ADD_LIKE_SQL = "MERGE INTO FILMS_LIKE t " +
+            "USING (VALUES (CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS TIMESTAMP))) " +
+            "s(film_id, user_id, created_at) " +
+            "ON t.film_id = s.film_id AND t.user_id = s.user_id " +
+            "WHEN NOT MATCHED THEN INSERT (film_id, user_id, created_at) VALUES (s.film_id, s.user_id, s.created_at);";
+    private static final String DELETE_LIKE_SQL = "delete from FILMS_LIKE where film_id=? AND user_id=?;";
 
     private final JdbcTemplate jdbcTemplate;
     private final MpaDao mpaDao;
     private final GenreDao genreDao;
+    private final DataVersions dataVersions;
+    private final UserEventDao eventDao;
+    private final TrendingCounters trending;
 
     public FilmLikeDbDao(JdbcTemplate jdbcTemplate, @Qualifier("mpaDbDao") MpaDao mpaDao,
-                         @Qualifier("genreDbDao") GenreDao genreDao) {
+                         @Qualifier("genreDbDao") GenreDao genreDao, DataVersions dataVersions,
+                         UserEventDao eventDao, TrendingCounters trending) {
         this.jdbcTemplate = jdbcTemplate;
         this.mpaDao = mpaDao;
         this.genreDao = genreDao;
+        this.dataVersions = dataVersions;
+        this.eventDao = eventDao;
+        this.trending = trending;
+    }
+
+    //заполнение счётчиков трендов лайками за окно счётчиков (по индексу idx_films_like_created)
+    @PostConstruct
+    public void loadTrending() {
+        int[] count = new int[1];
+        jdbcTemplate.query("select film_id, created_at from FILMS_LIKE where created_at >= ?;",
+                (RowCallbackHandler) rs -> {
+                    trending.add(rs.getLong("film_id"), rs.getTimestamp("created_at").toInstant(), 1);
+                    count[0]++;
+                }, Timestamp.from(trending.windowStart()));
+        log.debug("В счётчики трендов загружено лайков: {}", count[0]);
     }
 
-    //добавить лайки фильмам в таблицу films_like
+    //добавить лайк фильму в таблицу films_like: одним запросом под ограничением uq_films_like,
+    //если лайк уже есть, то запись не добавляется. событие ленты записывается в той же транзакции
     @Override
-    public void addLike(long filmId, long userId) {
-        try{
-            String addSql="insert into  FILMS_LIKE (film_id, user_id) select ?, ? from dual where not exists "+
-                    "(select 1 from FILMS_LIKE where film_id=? AND user_id=?);";
-            Object[] args = new Object[] {filmId,userId,filmId,userId};
-            int addRow=jdbcTemplate.update(addSql, args);
-            if (addRow<=0) {
-                log.debug("Ошибка добавления для фильма с id={} лайка от пользователя с id={}.",filmId,userId);
-                throw new FilmNotFoundException("Фильм с id="+filmId+" или пользователь с id="+userId+" не найден.");
-            }
-        } catch (RuntimeException e) {
+    @Transactional
+    public LikeState addLike(long filmId, long userId) {
+        boolean changed;
+        Instant likedAt = trending.now();
+        try {
+            changed = jdbcTemplate.update(ADD_LIKE_SQL, filmId, userId, Timestamp.from(likedAt)) > 0;
+        } catch (DuplicateKeyException e) {
+            //одновременный повторный запрос: лайк уже добавлен параллельным запросом
+            log.debug("Лайк фильму с id={} от пользователя с id={} добавлен параллельным запросом.", filmId, userId);
+            changed = false;
+        } catch (DataIntegrityViolationException e) {
             log.debug("Возникло исключение: фильм или пользователь не найдены.");
             throw new FilmNotFoundException("Фильм с id="+filmId+" или пользователь с id="+userId+" не найден.");
         }
-        log.debug("Для фильма с id={} добавлен лайк пользователем с id={}.",filmId,userId);
+        if (changed) {
+            eventDao.addEvents(List.of(likeEvent(filmId, userId, true)));
+            afterCommit(() -> trending.add(filmId, likedAt, 1));
+            dataVersions.likesChanged(filmId);
+            log.debug("Для фильма с id={} добавлен лайк пользователем с id={}.",filmId,userId);
+        }
+        return new LikeState(filmId, userId, true, changed, countLikes(filmId));
     }
 
-    //удалить лайки фильмам из таблицы films_like
+    //удалить лайк фильма из таблицы films_like, если лайка нет, то ничего не меняется.
+    //время лайка читается с блокировкой строки, чтобы вычесть лайк из счётчика его часа
     @Override
-    public void deleteLike(long filmId, long userId) {
-        try{
-            String delSql="delete from  FILMS_LIKE where film_id=? AND user_id=?;";
-            Object[] args = new Object[] {filmId,userId};
-            int delRow=jdbcTemplate.update(delSql, args);
-            if (delRow<=0) {
-                log.debug("Ошибка удаления для фильма с id={} лайка от пользователя с id={}.",filmId,userId);
-                throw new FilmNotFoundException("Фильм с id="+filmId+" или пользователь с id="+userId+" не найден.");
+    @Transactional
+    public LikeState deleteLike(long filmId, long userId) {
+        List<Timestamp> likedAt = jdbcTemplate.queryForList("select created_at from FILMS_LIKE " +
+                "where film_id=? AND user_id=? FOR UPDATE;", Timestamp.class, filmId, userId);
+        boolean changed = !likedAt.isEmpty() && jdbcTemplate.update(DELETE_LIKE_SQL, filmId, userId) > 0;
+        if (changed) {
+            unliked(filmId, likedAt.get(0));
+            eventDao.addEvents(List.of(likeEvent(filmId, userId, false)));
+            dataVersions.likesChanged(filmId);
+            log.debug("Для фильма с id={} удалён лайк пользователем с id={}.",filmId,userId);
+        }
+        return new LikeState(filmId, userId, false, changed, countLikes(filmId));
+    }
+
+    //пакетная запись состояний лайков (отложенная запись гибридного хранилища): подряд идущие
+    //добавления и удаления выполняются пакетами, порядок изменений сохраняется. события ленты - одним пакетом.
+    //время лайка - время его постановки, если оно известно, иначе время записи
+    public void saveLikes(List<LikeState> states) {
+        Instant savedAt = trending.now();
+        int from = 0;
+        while (from < states.size()) {
+            boolean liked = states.get(from).isLiked();
+            int to = from;
+            while (to < states.size() && states.get(to).isLiked() == liked) {
+                to++;
             }
-        } catch (RuntimeException e) {
-            log.debug("Возникло исключение: фильм или пользователь не найдены.");
-            throw new FilmNotFoundException("Фильм с id="+filmId+" или пользователь с id="+userId+" не найден.");
+            List<LikeState> run = states.subList(from, to);
+            if (liked) {
+                List<Instant> likedAt = run.stream()
+                        .map(state -> state.getChangedAt() != null ? state.getChangedAt() : savedAt)
+                        .collect(Collectors.toList());
+                List<Object[]> args = new ArrayList<>(run.size());
+                for (int i = 0; i < run.size(); i++) {
+                    args.add(new Object[]{run.get(i).getFilmId(), run.get(i).getUserId(),
+                            Timestamp.from(likedAt.get(i))});
+                }
+                int[] rows = jdbcTemplate.batchUpdate(ADD_LIKE_SQL, args);
+                for (int i = 0; i < rows.length; i++) {
+                    long filmId = run.get(i).getFilmId();
+                    Instant time = likedAt.get(i);
+                    if (rows[i] > 0) {
+                        afterCommit(() -> trending.add(filmId, time, 1));
+                    }
+                }
+            } else {
+                Map<List<Long>, Timestamp> times = likeTimes(run);
+                jdbcTemplate.batchUpdate(DELETE_LIKE_SQL, run.stream()
+                        .map(state -> new Object[]{state.getFilmId(), state.getUserId()})
+                        .collect(Collectors.toList()));
+                times.forEach((like, time) -> unliked(like.get(0), time));
+            }
+            from = to;
+        }
+        eventDao.addEvents(states.stream()
+                .map(state -> likeEvent(state.getFilmId(), state.getUserId(), state.isLiked()))
+                .collect(Collectors.toList()));
+        states.forEach(state -> dataVersions.likesChanged(state.getFilmId()));
+        log.debug("Записано {} изменений лайков.", states.size());
+    }
+
+    @Override
+    public Map<Long, Long> getLikeCounts() {
+        Map<Long, Long> likes = new HashMap<>();
+        jdbcTemplate.query("select film_id, count(*) as likes from FILMS_LIKE group by film_id;",
+                (RowCallbackHandler) rs -> likes.put(rs.getLong("film_id"), rs.getLong("likes")));
+        log.debug("Количество лайков прочитано для {} фильмов.", likes.size());
+        return likes;
+    }
+
+    //построчная выгрузка всех лайков (id фильма, id пользователя) в порядке id фильмов
+    public void exportLikes(BiConsumer<Long, Long> consumer) {
+        String exportLikesSql = "select film_id, user_id from FILMS_LIKE order by film_id, user_id;";
+        jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(exportLikesSql, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(EXPORT_FETCH_SIZE);
+            return ps;
+        }, (RowCallbackHandler) rs -> consumer.accept(rs.getLong("film_id"), rs.getLong("user_id")));
+        log.debug("Выгрузка лайков завершена.");
+    }
+
+    //время удаляемых лайков: пары (id фильма, id пользователя) читаются порциями одним запросом
+    private Map<List<Long>, Timestamp> likeTimes(List<LikeState> states) {
+        Map<List<Long>, Timestamp> times = new HashMap<>();
+        for (int from = 0; from < states.size(); from += QueryLimits.IN_CHUNK_SIZE) {
+            List<LikeState> chunk = states.subList(from, Math.min(from + QueryLimits.IN_CHUNK_SIZE, states.size()));
+            Object[] args = chunk.stream()
+                    .flatMap(state -> Stream.of(state.getFilmId(), state.getUserId()))
+                    .toArray();
+            jdbcTemplate.query("select film_id, user_id, created_at from FILMS_LIKE where (film_id, user_id) IN (" +
+                            String.join(",", Collections.nCopies(chunk.size(), "(?,?)")) + ");",
+                    (RowCallbackHandler) rs -> times.put(List.of(rs.getLong("film_id"), rs.getLong("user_id")),
+                            rs.getTimestamp("created_at")), args);
+        }
+        return times;
+    }
+
+    //лайк удалён: после фиксации транзакции вычитается из счётчика часа, в который был поставлен.
+    //у лайков, поставленных до появления времени лайка, времени нет, и в счётчиках они не учитывались
+    private void unliked(long filmId, Timestamp likedAt) {
+        if (likedAt != null) {
+            afterCommit(() -> trending.add(filmId, likedAt.toInstant(), -1));
+        }
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private static UserEvent likeEvent(long filmId, long userId, boolean liked) {
+        return new UserEvent(0, userId, liked ? UserEventType.LIKE : UserEventType.UNLIKE, filmId, null);
+    }
+
+    //количество лайков фильма и проверка его существования одним запросом
+    private long countLikes(long filmId) {
+        String countSql = "select (select count(*) from FILMS_LIKE where film_id=?) AS likes " +
+                "from FILMS where film_id=?;";
+        List<Long> likes = jdbcTemplate.queryForList(countSql, Long.class, filmId, filmId);
+        if (likes.isEmpty()) {
+            log.debug("Фильм с id={} не найден.", filmId);
+            throw new FilmNotFoundException("Фильм с id=" + filmId + " не найден.");
         }
-        log.debug("Для фильма с id={} удалён лайк пользователем с id={}.",filmId,userId);
+        return likes.get(0);
     }
 
 }
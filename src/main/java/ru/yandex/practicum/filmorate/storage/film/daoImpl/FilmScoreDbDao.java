@@ -0,0 +1,127 @@
+package ru.yandex.practicum.filmorate.storage.film.daoImpl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.model.FilmScoreStats;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmScoreDao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+//оценки фильмов: оценка и агрегаты фильма (количество, сумма, сумма квадратов) изменяются в одной транзакции
+//на разницу между новой и прежней оценкой, поэтому при чтении агрегаты не пересчитываются по оценкам.
+//прежняя оценка читается с блокировкой строки, чтобы параллельные изменения одной оценки не потерялись.
+//внешних ключей на films нет (V5): существование фильма проверяет сервис, он же удаляет оценки удалённого фильма
+@Component
+@Slf4j
+public class FilmScoreDbDao implements FilmScoreDao {
+    //прибавление разницы к агрегатам фильма, параметры: id фильма, изменение количества, суммы и суммы квадратов
+    private static final String CHANGE_STATS_SQL = "MERGE INTO film_score_stats t USING (VALUES (CAST(? AS INTEGER), " +
+            "CAST(? AS INTEGER), CAST(? AS BIGINT), CAST(? AS BIGINT))) s(film_id, dc, ds, dq) " +
+            "ON t.film_id = s.film_id " +
+            "WHEN MATCHED THEN UPDATE SET score_count = t.score_count + s.dc, score_sum = t.score_sum + s.ds, " +
+            "score_sum_sq = t.score_sum_sq + s.dq " +
+            "WHEN NOT MATCHED THEN INSERT (film_id, score_count, score_sum, score_sum_sq) " +
+            "VALUES (s.film_id, s.dc, s.ds, s.dq);";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public FilmScoreDbDao(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    @Transactional
+    public FilmScoreStats setScore(long filmId, long userId, int score) {
+        Integer oldScore = lockScore(filmId, userId);
+        if (oldScore == null) {
+            try {
+                jdbcTemplate.update("INSERT INTO film_scores(film_id, user_id, score) VALUES(?,?,?);",
+                        filmId, userId, score);
+            } catch (DuplicateKeyException e) {
+                //оценка добавлена параллельным запросом: после его завершения заменяем её
+                log.debug("Оценка фильму с id={} от пользователя с id={} добавлена параллельным запросом.",
+                        filmId, userId);
+                return setScore(filmId, userId, score);
+            }
+            changeStats(filmId, 1, score, (long) score * score);
+            log.debug("Фильму с id={} поставлена оценка {} пользователем с id={}.", filmId, score, userId);
+        } else if (oldScore != score) {
+            jdbcTemplate.update("UPDATE film_scores SET score = ? WHERE film_id = ? AND user_id = ?;",
+                    score, filmId, userId);
+            changeStats(filmId, 0, score - oldScore, (long) score * score - (long) oldScore * oldScore);
+            log.debug("Оценка фильма с id={} пользователем с id={} изменена с {} на {}.",
+                    filmId, userId, oldScore, score);
+        }
+        return getStats(filmId);
+    }
+
+    @Override
+    @Transactional
+    public FilmScoreStats deleteScore(long filmId, long userId) {
+        Integer oldScore = lockScore(filmId, userId);
+        if (oldScore != null) {
+            jdbcTemplate.update("DELETE FROM film_scores WHERE film_id = ? AND user_id = ?;", filmId, userId);
+            changeStats(filmId, -1, -oldScore, -(long) oldScore * oldScore);
+            //фильм без оценок не участвует в топе
+            jdbcTemplate.update("DELETE FROM film_score_stats WHERE film_id = ? AND score_count = 0;", filmId);
+            log.debug("Удалена оценка фильма с id={} пользователем с id={}.", filmId, userId);
+        }
+        return getStats(filmId);
+    }
+
+    @Override
+    public FilmScoreStats getStats(long filmId) {
+        String getStatsSql = "SELECT film_id, score_count, score_sum, score_sum_sq, bayesian_average " +
+                "FROM film_score_stats WHERE film_id = ?;";
+        return jdbcTemplate.query(getStatsSql, (rs, rowNum) -> statsMapper(rs), filmId).stream()
+                .findAny()
+                .orElse(new FilmScoreStats(filmId, 0, null, null, null));
+    }
+
+    @Override
+    @Transactional
+    public void deleteFilmScores(long filmId) {
+        int rows = jdbcTemplate.update("DELETE FROM film_scores WHERE film_id = ?;", filmId);
+        jdbcTemplate.update("DELETE FROM film_score_stats WHERE film_id = ?;", filmId);
+        log.debug("Удалено {} оценок фильма с id={}.", rows, filmId);
+    }
+
+    //топ читается по индексу idx_film_score_stats_top: читается не более count записей индекса
+    @Override
+    @Transactional(readOnly = true)
+    public List<Long> getTopRatedIds(long count) {
+        List<Long> filmIds = jdbcTemplate.queryForList("SELECT film_id FROM film_score_stats " +
+                "ORDER BY bayesian_average DESC, film_id LIMIT ?;", Long.class, count);
+        log.debug("Найдено фильмов с оценками для топа: {}", filmIds.size());
+        return filmIds;
+    }
+
+    private Integer lockScore(long filmId, long userId) {
+        return jdbcTemplate.queryForList("SELECT score FROM film_scores WHERE film_id = ? AND user_id = ? FOR UPDATE;",
+                Integer.class, filmId, userId).stream().findAny().orElse(null);
+    }
+
+    //при одновременном добавлении агрегатов фильма второй запрос нарушит первичный ключ:
+    //тогда повторяем его, и он изменит строку, добавленную первым
+    private void changeStats(long filmId, int countDelta, long sumDelta, long sumSqDelta) {
+        try {
+            jdbcTemplate.update(CHANGE_STATS_SQL, filmId, countDelta, sumDelta, sumSqDelta);
+        } catch (DuplicateKeyException e) {
+            jdbcTemplate.update(CHANGE_STATS_SQL, filmId, countDelta, sumDelta, sumSqDelta);
+        }
+    }
+
+    //среднее и дисперсия вычисляются по агрегатам: D = sum(x^2)/n - (sum(x)/n)^2
+    private FilmScoreStats statsMapper(ResultSet rs) throws SQLException {
+        long count = rs.getLong("score_count");
+        double average = (double) rs.getLong("score_sum") / count;
+        double variance = Math.max(0, (double) rs.getLong("score_sum_sq") / count - average * average);
+        return new FilmScoreStats(rs.getLong("film_id"), count, average, Math.sqrt(variance),
+                rs.getDouble("bayesian_average"));
+    }
+}
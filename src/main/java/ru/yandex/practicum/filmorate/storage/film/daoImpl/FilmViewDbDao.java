@@ -0,0 +1,64 @@
+package ru.yandex.practicum.filmorate.storage.film.daoImpl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmViewDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.HyperLogLog;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+//зрители фильмов по дням: строка (фильм, день) хранит упакованные регистры HyperLogLog.
+//при записи сохранённые регистры читаются с блокировкой строк, объединяются с новыми и записываются пакетом
+@Component
+@Slf4j
+public class FilmViewDbDao implements FilmViewDao {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public FilmViewDbDao(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    @Transactional
+    public void mergeViews(LocalDate day, Map<Long, HyperLogLog> views) {
+        List<Long> filmIds = new ArrayList<>(views.keySet());
+        for (int from = 0; from < filmIds.size(); from += QueryLimits.IN_CHUNK_SIZE) {
+            List<Long> chunk = filmIds.subList(from, Math.min(from + QueryLimits.IN_CHUNK_SIZE, filmIds.size()));
+            List<Object> args = new ArrayList<>(chunk);
+            args.add(0, day);
+            jdbcTemplate.query("SELECT film_id, registers FROM film_views WHERE view_day = ? AND film_id IN (" +
+                    String.join(",", Collections.nCopies(chunk.size(), "?")) + ") FOR UPDATE;",
+                    (RowCallbackHandler) rs -> views.get(rs.getLong("film_id"))
+                            .merge(HyperLogLog.fromBytes(rs.getBytes("registers"))), args.toArray());
+            List<Object[]> rows = new ArrayList<>();
+            chunk.forEach(filmId -> rows.add(new Object[]{filmId, day, views.get(filmId).toBytes()}));
+            jdbcTemplate.batchUpdate("MERGE INTO film_views(film_id, view_day, registers) KEY(film_id, view_day) " +
+                    "VALUES(?,?,?);", rows);
+        }
+        log.debug("Записаны зрители {} фильмов за {}.", views.size(), day);
+    }
+
+    @Override
+    public HyperLogLog getViews(long filmId, LocalDate from, LocalDate to) {
+        HyperLogLog views = new HyperLogLog();
+        jdbcTemplate.query("SELECT registers FROM film_views WHERE film_id = ? AND view_day BETWEEN ? AND ?;",
+                (RowCallbackHandler) rs -> views.merge(HyperLogLog.fromBytes(rs.getBytes("registers"))),
+                filmId, from, to);
+        return views;
+    }
+
+    @Override
+    public void deleteViews(long filmId) {
+        int rows = jdbcTemplate.update("DELETE FROM film_views WHERE film_id = ?;", filmId);
+        log.debug("Удалены зрители фильма с id={} за {} дней.", filmId, rows);
+    }
+}
@@ -4,6 +4,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Primary;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
 import ru.yandex.practicum.filmorate.exceptions.genre.GenreNotFoundException;
 import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
@@ -18,12 +20,15 @@ import java.util.List;
 @Slf4j
 public class GenreDbDao implements GenreDao {
     private final JdbcTemplate jdbcTemplate;
+    private final DataVersions dataVersions;
 
-    public GenreDbDao(JdbcTemplate jdbcTemplate) {
+    public GenreDbDao(JdbcTemplate jdbcTemplate, DataVersions dataVersions) {
         this.jdbcTemplate = jdbcTemplate;
+        this.dataVersions = dataVersions;
     }
 
     @Override
+    @Transactional(readOnly = true)
     public Genre getGenge(int id) {
         log.debug("Получен запрос на поиск жанра с id={}", id);
         String getGenreSql = "select genre_id,genre_name from genre where genre_id = ?;";
@@ -37,6 +42,7 @@ public class GenreDbDao implements GenreDao {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<Genre> getGengesFilm(long filmId) {
         log.info("Получен запрос на чтение жанров для фильма с id={}", filmId);
         String getGenreSql = "SELECT g.GENRE_ID,g.GENRE_NAME FROM (SELECT * FROM FILMS_GENRE WHERE FILM_ID=?) fg " +
@@ -46,6 +52,7 @@ public class GenreDbDao implements GenreDao {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<Genre> getGenresFilms() {
         try {
             log.debug("Получен запрос на чтение всех жанров.");
@@ -65,6 +72,7 @@ public class GenreDbDao implements GenreDao {
         } catch (RuntimeException e) {
             throw new GenreNotFoundException("Ошибка добавления фильму с filmId="+filmId+" жанра с genreId="+genreId);
         }
+        dataVersions.filmChanged(filmId);
     }
 
     @Override
@@ -74,6 +82,7 @@ public class GenreDbDao implements GenreDao {
         } catch (RuntimeException e) {
             throw new GenreNotFoundException("Ошибка удаления жанров у фильма с filmId="+filmId);
         }
+        dataVersions.filmChanged(filmId);
     }
 
     private Genre genreMapper(ResultSet rs) throws SQLException {
@@ -4,6 +4,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Primary;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.exceptions.mpa.MpaNotFoundException;
 import ru.yandex.practicum.filmorate.model.MPA;
 import ru.yandex.practicum.filmorate.storage.film.dao.MpaDao;
@@ -24,6 +25,7 @@ public class MpaDbDao implements MpaDao {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public MPA getRating(int id) {
         log.debug("Получен запрос на поиск рейтинга MPA с id={}", id);
         String getMpaSql = "select rating_id,rating_name from ratings_mpa where rating_id = ?";
@@ -38,6 +40,7 @@ public class MpaDbDao implements MpaDao {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<MPA> getRatings() {
         String getMpaSql = "select rating_id,rating_name from ratings_mpa order by rating_id;";
         List<MPA> mpas = jdbcTemplate.query(getMpaSql, (rs, rowNum) -> mpaMapper(rs));
@@ -0,0 +1,38 @@
+package ru.yandex.practicum.filmorate.storage.film.memory;
+
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.io.Closeable;
+import java.util.PrimitiveIterator;
+import java.util.function.Consumer;
+
+//хранение данных фильмов для хранилища в памяти: в куче (HeapFilmCatalog)
+//или вне кучи, в отображённом в память файле (MappedFilmCatalog).
+//фильм с одним id изменяется под блокировкой фильма в хранилище, чтение выполняется без блокировок
+public interface FilmCatalog extends Closeable {
+    //добавление или замена фильма с заданным id
+    void put(Film film);
+
+    //фильм по id или null, если фильма нет
+    Film get(long filmId);
+
+    boolean contains(long filmId);
+
+    //удаление фильма, false - фильма не было
+    boolean remove(long filmId);
+
+    int size();
+
+    //наибольший id из когда-либо записанных фильмов
+    long maxId();
+
+    //id всех фильмов
+    PrimitiveIterator.OfLong ids();
+
+    //все фильмы по одному, без накопления списка
+    void forEach(Consumer<Film> consumer);
+
+    @Override
+    default void close() {
+    }
+}
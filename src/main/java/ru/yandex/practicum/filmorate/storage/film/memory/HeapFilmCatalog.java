@@ -0,0 +1,69 @@
+package ru.yandex.practicum.filmorate.storage.film.memory;
+
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+//фильмы хранятся объектами Film в куче
+public class HeapFilmCatalog implements FilmCatalog {
+    private final Map<Long, Film> films = new ConcurrentHashMap<>();
+    private final AtomicLong maxId = new AtomicLong();
+
+    @Override
+    public void put(Film film) {
+        films.put(film.getId(), film);
+        maxId.accumulateAndGet(film.getId(), Math::max);
+    }
+
+    @Override
+    public Film get(long filmId) {
+        return films.get(filmId);
+    }
+
+    @Override
+    public boolean contains(long filmId) {
+        return films.containsKey(filmId);
+    }
+
+    @Override
+    public boolean remove(long filmId) {
+        return films.remove(filmId) != null;
+    }
+
+    @Override
+    public int size() {
+        return films.size();
+    }
+
+    @Override
+    public long maxId() {
+        return maxId.get();
+    }
+
+    //id читаются из самих фильмов: без потока и распаковки ключей Long
+    @Override
+    public PrimitiveIterator.OfLong ids() {
+        Iterator<Film> iterator = films.values().iterator();
+        return new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                return iterator.next().getId();
+            }
+        };
+    }
+
+    @Override
+    public void forEach(Consumer<Film> consumer) {
+        films.values().forEach(consumer);
+    }
+}
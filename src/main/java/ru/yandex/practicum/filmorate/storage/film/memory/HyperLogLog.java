@@ -0,0 +1,107 @@
+package ru.yandex.practicum.filmorate.storage.film.memory;
+
+//оценка количества разных значений (HyperLogLog, Flajolet и др.): 2^11 регистров, регистр хранит наибольшую
+//позицию первой единицы в хешах значений, попавших в него. стандартная ошибка оценки - 1.04/sqrt(2048) ≈ 2.3%.
+//объединение наборов - максимум по каждому регистру, поэтому зрители за несколько дней считаются объединением
+//регистров дней. в БД регистры хранятся упакованными по 6 бит (1536 байт)
+public class HyperLogLog {
+    public static final int PRECISION = 11;
+    public static final int REGISTERS = 1 << PRECISION;
+    public static final int PACKED_SIZE = REGISTERS * 6 / 8;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this.registers = new byte[REGISTERS];
+    }
+
+    private HyperLogLog(byte[] registers) {
+        this.registers = registers;
+    }
+
+    //добавление значения, возвращает true, если изменился регистр
+    public synchronized boolean add(long value) {
+        long hash = mix(value);
+        int index = (int) (hash >>> (64 - PRECISION));
+        //позиция первой единицы в оставшихся битах; младший бит-ограничитель не даёт выйти за 64 - PRECISION + 1
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+            return true;
+        }
+        return false;
+    }
+
+    //объединение с другим набором
+    public void merge(HyperLogLog other) {
+        byte[] otherRegisters = other.snapshot(); //копия вне блокировки: встречные объединения не блокируют друг друга
+        synchronized (this) {
+            for (int i = 0; i < REGISTERS; i++) {
+                if (registers[i] < otherRegisters[i]) {
+                    registers[i] = otherRegisters[i];
+                }
+            }
+        }
+    }
+
+    //оценка количества разных значений; при малом количестве - по числу пустых регистров (linear counting)
+    public synchronized long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public synchronized HyperLogLog copy() {
+        return new HyperLogLog(registers.clone());
+    }
+
+    //регистры, упакованные по 6 бит: 4 регистра в 3 байтах
+    public synchronized byte[] toBytes() {
+        byte[] packed = new byte[PACKED_SIZE];
+        for (int i = 0, p = 0; i < REGISTERS; i += 4, p += 3) {
+            int bits = registers[i] << 18 | registers[i + 1] << 12 | registers[i + 2] << 6 | registers[i + 3];
+            packed[p] = (byte) (bits >>> 16);
+            packed[p + 1] = (byte) (bits >>> 8);
+            packed[p + 2] = (byte) bits;
+        }
+        return packed;
+    }
+
+    public static HyperLogLog fromBytes(byte[] packed) {
+        if (packed.length != PACKED_SIZE) {
+            throw new IllegalArgumentException("Некорректный размер регистров HyperLogLog: " + packed.length);
+        }
+        byte[] registers = new byte[REGISTERS];
+        for (int i = 0, p = 0; i < REGISTERS; i += 4, p += 3) {
+            int bits = (packed[p] & 0xFF) << 16 | (packed[p + 1] & 0xFF) << 8 | (packed[p + 2] & 0xFF);
+            registers[i] = (byte) (bits >>> 18 & 0x3F);
+            registers[i + 1] = (byte) (bits >>> 12 & 0x3F);
+            registers[i + 2] = (byte) (bits >>> 6 & 0x3F);
+            registers[i + 3] = (byte) (bits & 0x3F);
+        }
+        return new HyperLogLog(registers);
+    }
+
+    private synchronized byte[] snapshot() {
+        return registers.clone();
+    }
+
+    //перемешивание битов id (splitmix64): id пользователей идут подряд, а регистр выбирается старшими битами
+    private static long mix(long value) {
+        long hash = value + 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+}
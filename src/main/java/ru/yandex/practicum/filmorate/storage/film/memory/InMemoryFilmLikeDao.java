@@ -1,54 +1,158 @@
 package ru.yandex.practicum.filmorate.storage.film.memory;
 
 import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.exceptions.ValidationException;
+import ru.yandex.practicum.filmorate.model.LikeState;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
 import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-//реализация методов добавления, удаления и модификации объектов.
+//реализация методов добавления, удаления и модификации объектов, потокобезопасна.
+//лайки фильма хранятся сжатым битовым набором id пользователей (RoaringBitmap): проверка лайка и
+//количество лайков - без перебора, а на лайк приходится несколько байт вместо объекта Long в HashSet.
+//наборы лежат в массиве по id фильма (id выдаются подряд), изменения набора - под блокировкой фильма.
+//набор хранит 32-битные значения, поэтому лайк возможен для id фильма и пользователя до Integer.MAX_VALUE
 @Component("filmLikeInMemoryDao")
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
 @Slf4j
 public class InMemoryFilmLikeDao implements FilmLikeDao {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile AtomicReferenceArray<RoaringBitmap> likeUsers = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private final Object resizeLock = new Object();
+    private final StripedLocks locks = new StripedLocks();
 
-    HashMap<Long, Set<Long>> likeUsers=new HashMap<>();
     @Override
-    public void addLike(long filmId, long userId) {
-        Optional<Set<Long>> likesFilm = Optional.ofNullable(this.likeUsers.get(filmId));
-        Set<Long> newLikes=new HashSet<>();
-        if (likesFilm.isPresent()) {
-            newLikes = likesFilm.get();
-            Optional<Long> likes = newLikes.stream().filter(u -> u == userId).findFirst();
-            if (likes.isPresent()) {
-                return;
+    public LikeState addLike(long filmId, long userId) {
+        int user = toInt(userId, "пользователя");
+        RoaringBitmap likes = likesOf(filmId, true);
+        return locks.withLock(filmId, () -> {
+            boolean changed = likes.checkedAdd(user);
+            if (changed) {
+                log.debug("Фильму с filmId={} добавлен лайк от пользователя userId={}", filmId, userId);
             }
-        }
-        log.debug("Фильму с filmId={} добавлен лайк от пользователя userId={}", filmId, userId);
-        newLikes.add(userId);
-        likeUsers.put(filmId, newLikes);
+            return new LikeState(filmId, userId, true, changed, likes.getLongCardinality());
+        });
     }
 
     @Override
-    public void deleteLike(long filmId, long userId) {
+    public LikeState deleteLike(long filmId, long userId) {
         log.debug("Получен запрос на удаление лайка фильму с filmId={} пользователем с userId={}.", filmId, userId);
-        Optional<Set<Long>> likesFilm = Optional.ofNullable(likeUsers.get(filmId));
-        if (likesFilm.isPresent()) {
-            Iterator<Long> userIter = likesFilm.get().iterator();
-            while (userIter.hasNext()) {
-                if (userIter.next() == userId) {
-                    userIter.remove();
-                    log.debug("Для фильма filmId={} удалён лайк пользователя с userId={}.", filmId, userId);
+        RoaringBitmap likes = likesOf(filmId, false);
+        if (likes == null) {
+            return new LikeState(filmId, userId, false, false, 0);
+        }
+        if (userId < 0 || userId > Integer.MAX_VALUE) {
+            //такой пользователь не мог поставить лайк
+            return new LikeState(filmId, userId, false, false, getLikesCount(filmId));
+        }
+        return locks.withLock(filmId, () -> {
+            boolean changed = likes.checkedRemove((int) userId);
+            if (changed) {
+                log.debug("Для фильма filmId={} удалён лайк пользователя с userId={}.", filmId, userId);
+            }
+            return new LikeState(filmId, userId, false, changed, likes.getLongCardinality());
+        });
+    }
+
+    //загрузка лайков фильма пачкой (например, при заполнении хранилища из БД)
+    public void loadLikes(long filmId, int[] userIds) {
+        RoaringBitmap likes = likesOf(filmId, true);
+        locks.runWithLock(filmId, () -> likes.add(userIds));
+        log.debug("Фильму с filmId={} загружено {} лайков.", filmId, userIds.length);
+    }
+
+    //удаление лайков удалённого фильма, как каскадное удаление в БД. набор убирается под блокировкой расширения
+    //массива, чтобы расширение не скопировало его обратно
+    public void deleteFilmLikes(long filmId) {
+        if (filmId < 0 || filmId >= likeUsers.length()) {
+            return;
+        }
+        synchronized (resizeLock) {
+            RoaringBitmap likes = likeUsers.getAndSet((int) filmId, null);
+            if (likes != null) {
+                log.debug("Удалено {} лайков фильма с id={}.", likes.getLongCardinality(), filmId);
+            }
+        }
+    }
+
+    //количество лайков фильма
+    public int getLikesCount(long filmId) {
+        RoaringBitmap likes = likesOf(filmId, false);
+        return likes == null ? 0 : locks.withLockInt(filmId, likes::getCardinality);
+    }
+
+    @Override
+    public Map<Long, Long> getLikeCounts() {
+        Map<Long, Long> likes = new HashMap<>();
+        AtomicReferenceArray<RoaringBitmap> bitmaps = likeUsers;
+        for (int filmId = 0; filmId < bitmaps.length(); filmId++) {
+            RoaringBitmap filmLikes = bitmaps.get(filmId);
+            if (filmLikes != null) {
+                long count = locks.withLockLong(filmId, filmLikes::getLongCardinality);
+                if (count > 0) {
+                    likes.put((long) filmId, count);
+                }
+            }
+        }
+        return likes;
+    }
+
+    //объём памяти, занимаемый наборами лайков, байт
+    public long getSizeInBytes() {
+        long size = 0;
+        AtomicReferenceArray<RoaringBitmap> bitmaps = likeUsers;
+        for (int filmId = 0; filmId < bitmaps.length(); filmId++) {
+            RoaringBitmap likes = bitmaps.get(filmId);
+            if (likes != null) {
+                size += locks.withLockLong(filmId, likes::getLongSizeInBytes);
+            }
+        }
+        return size;
+    }
+
+    //набор лайков фильма; при create=true отсутствующий набор создаётся (массив при необходимости расширяется)
+    private RoaringBitmap likesOf(long filmId, boolean create) {
+        if (!create && (filmId < 0 || filmId >= likeUsers.length())) {
+            return null;
+        }
+        int index = toInt(filmId, "фильма");
+        AtomicReferenceArray<RoaringBitmap> bitmaps = likeUsers;
+        RoaringBitmap likes = index < bitmaps.length() ? bitmaps.get(index) : null;
+        if (likes != null || !create) {
+            return likes;
+        }
+        synchronized (resizeLock) {
+            bitmaps = likeUsers;
+            if (index >= bitmaps.length()) {
+                AtomicReferenceArray<RoaringBitmap> grown =
+                        new AtomicReferenceArray<>(Math.max(index + 1, bitmaps.length() * 2));
+                for (int i = 0; i < bitmaps.length(); i++) {
+                    grown.set(i, bitmaps.get(i));
                 }
+                likeUsers = grown;
+                bitmaps = grown;
+            }
+            likes = bitmaps.get(index);
+            if (likes == null) {
+                likes = new RoaringBitmap();
+                bitmaps.set(index, likes);
             }
+            return likes;
         }
     }
 
-    public Map<Long, Integer> getPopularFilms() {
-        Map<Long,Integer> popFilms=new HashMap<>();
-        for(Long k:likeUsers.keySet()) {
-            popFilms.put(k,likeUsers.get(k).size());
+    //id вне диапазона набора - ошибка запроса (400), а не переполнение (500)
+    private static int toInt(long id, String owner) {
+        if (id < 0 || id > Integer.MAX_VALUE) {
+            throw new ValidationException("Лайки поддерживаются для id " + owner + " от 0 до " +
+                    Integer.MAX_VALUE + ", получен id=" + id);
         }
-        log.debug("Возвращено {} популярных фильмов.",popFilms.size());
-        return popFilms;
+        return (int) id;
     }
 }
@@ -1,38 +1,57 @@
 package ru.yandex.practicum.filmorate.storage.film.memory;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.genre.GenreNotFoundException;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
 import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
 import ru.yandex.practicum.filmorate.storage.film.dao.MpaDao;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 //реализация методов добавления, удаления и модификации объектов.
+//потокобезопасна: данные в каталоге фильмов (в куче или в отображённом в память файле), id выдаются атомарно,
+//обновление и удаление фильма - под блокировкой фильма
 @Component("filmInMemoryDao")
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
 @Slf4j
 public class InMemoryFilmStorage implements FilmDao {
 
-    private int maxId = 0;
+    private final AtomicLong maxId = new AtomicLong();
 
-    private Map<Long, Film> films = new HashMap<>(); //информация о фильмах
+    private final FilmCatalog films; //информация о фильмах
+    private final StripedLocks locks = new StripedLocks();
 
     InMemoryFilmLikeDao inMemoryFilmLikeDao;
     GenreDao genreDao;
     MpaDao mpaDao;
 
+    public InMemoryFilmStorage(InMemoryFilmLikeDao inMemoryFilmLikeDao, GenreDao genreDao, MpaDao mpaDao) {
+        this(inMemoryFilmLikeDao, genreDao, mpaDao, new HeapFilmCatalog());
+    }
+
+    @Autowired
     public InMemoryFilmStorage(@Qualifier("filmLikeInMemoryDao") InMemoryFilmLikeDao inMemoryFilmLikeDao,
                                @Qualifier("genreInMemoryDao") GenreDao genreDao,
-                               @Qualifier("mpaInMemoryDao") MpaDao mpaDao) {
+                               @Qualifier("mpaInMemoryDao") MpaDao mpaDao,
+                               FilmCatalog films) {
         this.inMemoryFilmLikeDao = inMemoryFilmLikeDao;
         this.genreDao = genreDao;
         this.mpaDao = mpaDao;
+        this.films = films;
+        //каталог, открытый из файла, уже содержит фильмы: новые id продолжают записанные
+        this.maxId.set(films.maxId());
     }
 
     @Override
@@ -58,15 +77,30 @@ public class InMemoryFilmStorage implements FilmDao {
         } else{
             film.setGenres(new HashSet<>());
         }
-        this.films.put(id, film);
-        log.info("Фильм добавлен : {}", this.films.get(id));
+        this.films.put(film);
+        log.info("Фильм добавлен : {}", film);
         return film;
     }
 
+    //загрузка фильма с уже назначенным id (например, при заполнении хранилища из БД):
+    //следующие фильмы получат id больше загруженного
+    public void loadFilm(Film film) {
+        TreeSet<Genre> genres = new TreeSet<>((o1, o2) -> o1.getId() - o2.getId());
+        if (film.getGenres() != null) {
+            genres.addAll(film.getGenres());
+        }
+        film.setGenres(genres);
+        films.put(film);
+        maxId.accumulateAndGet(film.getId(), Math::max);
+    }
+
     @Override
     public Film updateFilm(Film film) {
         long filmId = film.getId();
-        if (this.films.containsKey(filmId)) {
+        return locks.withLock(filmId, () -> {
+            if (!this.films.contains(filmId)) {
+                throw new FilmNotFoundException("Фильм с id=" + filmId + " не найден.");
+            }
             //добавляем названия рейтингов MPAA
             if(film.getMpa()!=null) {
                 film.setMpa(mpaDao.getRating(film.getMpa().getId()));
@@ -88,57 +122,160 @@ public class InMemoryFilmStorage implements FilmDao {
             }else{
                 film.setGenres(new HashSet<>());
             }
-            this.films.put(film.getId(), film);
-            log.info("Фильм обновлён : {}", this.films.get(filmId));
+            this.films.put(film);
+            log.info("Фильм обновлён : {}", film);
             return film;
-        }
-        throw new FilmNotFoundException("Фильм с id=" + filmId + " не найден.");
+        });
     }
 
-    //удаление фильма
+    //удаление фильма вместе с его лайками
     @Override
     public void deleteFilm(long filmId) {
-        films.remove(filmId);
+        locks.runWithLock(filmId, () -> {
+            films.remove(filmId);
+            inMemoryFilmLikeDao.deleteFilmLikes(filmId);
+        });
         log.info("Фильм с id={} удалён.", filmId);
     }
 
+    //количество фильмов в хранилище
+    public int size() {
+        return films.size();
+    }
+
     //возвращает список всех фильмов
     @Override
     public List<Film> getFilms() {
-        return new ArrayList<>(this.films.values());
+        List<Film> result = new ArrayList<>(films.size());
+        films.forEach(result::add);
+        return result;
+    }
+
+    @Override
+    public boolean exists(long filmId) {
+        return films.contains(filmId);
     }
 
     //получение фильма по id
     @Override
     public Film getFilm(long filmId) {
         log.debug("Запрошен фильм с id={}", filmId);
-        if(!this.films.containsKey(filmId)) {
+        Film film = this.films.get(filmId);
+        if (film == null) {
             throw new FilmNotFoundException("Фильм с filmId="+filmId+" не найден.");
         }
-        return this.films.get(filmId);
+        return film;
     }
 
+    //отбор maxCount фильмов с наибольшим числом лайков (при равенстве - с меньшим id) без сортировки всех фильмов:
+    //минимальная куча на примитивных массивах размера maxCount, в корне - худший из отобранных фильмов
     @Override
     public List<Film> getPopularFilms(long maxCount) {
         log.debug("Запрос на получение {} популярных фильмов...", maxCount);
-        Map<Long, Integer> popFilms= inMemoryFilmLikeDao.getPopularFilms();
-        for(Long pf:films.keySet()) {
-            if(!popFilms.containsKey(pf)) {
-                log.debug("Добавлен фильм filmId={} с нулевым рейтингом.",pf);
-                popFilms.put(pf,0);
+        int capacity = (int) Math.min(maxCount, films.size());
+        if (capacity <= 0) {
+            return new ArrayList<>();
+        }
+        long[] heapIds = new long[capacity];
+        int[] heapLikes = new int[capacity];
+        int size = 0;
+        for (PrimitiveIterator.OfLong ids = films.ids(); ids.hasNext(); ) {
+            long filmId = ids.nextLong();
+            int likes = inMemoryFilmLikeDao.getLikesCount(filmId);
+            if (size < capacity) {
+                heapIds[size] = filmId;
+                heapLikes[size] = likes;
+                siftUp(heapIds, heapLikes, size++);
+            } else if (isMorePopular(likes, filmId, heapLikes[0], heapIds[0])) {
+                heapIds[0] = filmId;
+                heapLikes[0] = likes;
+                siftDown(heapIds, heapLikes, 0, size);
             }
         }
-        log.debug("Найдено {} популярных фильмов.",popFilms.size());
-        return popFilms.entrySet().stream()
-                .sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
-                .map(f->getFilm(f.getKey()))
-                .limit(maxCount)
-                .collect(Collectors.toList());
+        //извлекаем фильмы из кучи от наименее популярного к самому популярному
+        Film[] popFilms = new Film[size];
+        while (size > 0) {
+            popFilms[--size] = films.get(heapIds[0]);
+            heapIds[0] = heapIds[size];
+            heapLikes[0] = heapLikes[size];
+            siftDown(heapIds, heapLikes, 0, size);
+        }
+        log.debug("Найдено {} популярных фильмов.", popFilms.length);
+        //фильм мог быть удалён параллельным запросом после отбора
+        return Arrays.stream(popFilms).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    private static boolean isMorePopular(int likes, long filmId, int otherLikes, long otherId) {
+        return likes > otherLikes || (likes == otherLikes && filmId < otherId);
+    }
+
+    private static void siftUp(long[] ids, int[] likes, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!isMorePopular(likes[parent], ids[parent], likes[index], ids[index])) {
+                return;
+            }
+            swap(ids, likes, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(long[] ids, int[] likes, int index, int size) {
+        while (true) {
+            int least = index;
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                if (isMorePopular(likes[least], ids[least], likes[child], ids[child])) {
+                    least = child;
+                }
+            }
+            if (least == index) {
+                return;
+            }
+            swap(ids, likes, least, index);
+            index = least;
+        }
+    }
+
+    private static void swap(long[] ids, int[] likes, int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        int like = likes[i];
+        likes[i] = likes[j];
+        likes[j] = like;
+    }
+
+    //фильмы хранятся в памяти целиком, лишние поля отбрасываются при сериализации
+    @Override
+    public List<Film> getFilms(Set<FilmField> fields) {
+        return getFilms();
+    }
+
+    @Override
+    public List<Film> getPopularFilms(long maxCount, Set<FilmField> fields) {
+        return getPopularFilms(maxCount);
+    }
+
+    @Override
+    public Map<Long, Film> getFilmsByIds(Collection<Long> filmIds) {
+        Map<Long, Film> result = new HashMap<>();
+        for (Long filmId : filmIds) {
+            Film film = films.get(filmId);
+            if (film != null) {
+                result.put(filmId, film);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void exportFilms(Consumer<Film> consumer) {
+        films.forEach(consumer);
     }
 
     //генерация очередного id фильма
-    private int generateId() {
-        return ++maxId;
+    private long generateId() {
+        return maxId.incrementAndGet();
     }
 
 }
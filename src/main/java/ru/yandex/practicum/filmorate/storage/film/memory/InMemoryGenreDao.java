@@ -1,6 +1,7 @@
 package ru.yandex.practicum.filmorate.storage.film.memory;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.mpa.MpaNotFoundException;
@@ -8,14 +9,16 @@ import ru.yandex.practicum.filmorate.model.Genre;
 import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static java.util.Map.entry;
 
 @Component("genreInMemoryDao")
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
 @Slf4j
 public class InMemoryGenreDao implements GenreDao {
-    Map<Long, LinkedHashSet<Genre>> genresFilms = new HashMap<>();
+    private final Map<Long, Set<Genre>> genresFilms = new ConcurrentHashMap<>(); //жанры по id фильма
     private final LinkedHashMap<Integer, String> genres = new LinkedHashMap<>(Map.ofEntries(
             entry(1, "Комедия"),
             entry(2, "Драма"),
@@ -35,8 +38,9 @@ public class InMemoryGenreDao implements GenreDao {
 
     @Override
     public List<Genre> getGengesFilm(long filmId) {
-        if(genresFilms.containsKey(filmId)) {
-            return genresFilms.get(filmId).stream()
+        Set<Genre> genresFilm = genresFilms.get(filmId);
+        if (genresFilm != null) {
+            return genresFilm.stream()
                     .sorted((g1,g2)->g1.getId()-g2.getId())
                     .collect(Collectors.toList());
         }
@@ -53,25 +57,20 @@ public class InMemoryGenreDao implements GenreDao {
 
     @Override
     public void addFilmGenre(long filmId, int genreId) {
-        Optional<LinkedHashSet<Genre>> genresFilm = Optional.ofNullable(this.genresFilms.get(filmId));
-        LinkedHashSet<Genre> newGenre = new LinkedHashSet<>();
-        if (genresFilm.isPresent()) {
-            newGenre = genresFilm.get();
-            Optional<Genre> genre = newGenre.stream().filter(u -> u.getId() == genreId).findFirst();
-            if (genre.isPresent()) {
-                return;
+        //набор жанров фильма заменяется целиком, поэтому чтение без блокировок видит согласованный набор
+        genresFilms.compute(filmId, (id, genresFilm) -> {
+            Set<Genre> newGenre = genresFilm == null ? new LinkedHashSet<>() : new LinkedHashSet<>(genresFilm);
+            if (newGenre.stream().noneMatch(g -> g.getId() == genreId)) {
+                log.debug("Фильму с filmId={} добавлен очередной жанр с genreId={}", filmId, genreId);
+                newGenre.add(new Genre(genreId, genres.get(genreId)));
             }
-        }
-        log.debug("Фильму с filmId={} добавлен очередной жанр с friendIв={}", filmId, genreId);
-        newGenre.add(new Genre(genreId, genres.get(genreId)));
-        genresFilms.put(filmId, newGenre);
+            return Collections.unmodifiableSet(newGenre);
+        });
     }
 
     @Override
     public void delFilmGenre(long filmId) {
         log.debug("Получен запрос на удаление жанров фильма с filmId={}.", filmId);
-        if(genresFilms.containsKey(filmId)) {
-            genresFilms.remove(filmId);
-        }
+        genresFilms.remove(filmId);
     }
 }
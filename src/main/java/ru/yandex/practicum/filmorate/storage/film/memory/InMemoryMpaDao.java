@@ -1,6 +1,7 @@
 package ru.yandex.practicum.filmorate.storage.film.memory;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exceptions.genre.GenreNotFoundException;
 import ru.yandex.practicum.filmorate.model.MPA;
@@ -12,6 +13,7 @@ import java.util.stream.Collectors;
 import static java.util.Map.entry;
 
 @Component("mpaInMemoryDao")
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
 @Slf4j
 public class InMemoryMpaDao implements MpaDao {
     private final LinkedHashMap<Integer, String> mpa = new LinkedHashMap<>(Map.ofEntries(
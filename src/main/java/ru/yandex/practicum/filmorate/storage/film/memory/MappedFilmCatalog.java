@@ -0,0 +1,463 @@
+package ru.yandex.practicum.filmorate.storage.film.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.storage.film.dao.GenreDao;
+import ru.yandex.practicum.filmorate.storage.film.dao.MpaDao;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+//фильмы хранятся вне кучи, в двух отображённых в память файлах:
+//<имя>.idx - заголовок и записи фиксированной длины по id фильма (числа, дата выпуска, id рейтинга MPA,
+//жанры битовой маской, смещения и длины строк), <имя>.str - область строк (название и описание в UTF-8).
+//объект Film создаётся только при чтении фильма, поэтому в куче не лежат миллионы строк, дат и наборов жанров.
+//строки только дописываются: при обновлении фильма прежние строки остаются в файле неиспользуемыми.
+//запись фильма защищена счётчиком версии (seqlock): на время изменения версия нечётная,
+//а читатель повторяет чтение, если версия изменилась. при штатном закрытии в заголовке ставится признак,
+//и при следующем запуске файлы открываются как есть; после аварийной остановки каталог создаётся заново.
+//в заголовке также хранится значение счётчика изменений фильмов в БД, с которым каталог заполнялся:
+//если фильмы в БД с тех пор изменились без каталога, он тоже создаётся заново
+@Slf4j
+public class MappedFilmCatalog implements FilmCatalog {
+    private static final long MAGIC = 0x46494C4D43415431L; //"FILMCAT1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_SIZE = 1 << 26; //файлы отображаются сегментами по 64 МБ
+    private static final int RECORD_SIZE = 64; //место записи с id=0 занимает заголовок
+    private static final int MAX_GENRE_ID = 63; //жанры хранятся битовой маской long
+
+    //поля заголовка
+    private static final int H_MAGIC = 0;
+    private static final int H_FORMAT = 8;
+    private static final int H_CLEAN = 12; //1 - каталог штатно закрыт
+    private static final int H_STRINGS_END = 16; //конец занятой части области строк
+    private static final int H_SOURCE_VERSION = 24; //счётчик изменений фильмов в БД при заполнении каталога
+
+    //поля записи фильма
+    private static final int R_SEQ = 0; //версия записи: 0 - фильм никогда не записывался, нечётная - запись изменяется
+    private static final int R_PRESENT = 4; //1 - фильм есть, 0 - удалён
+    private static final int R_RELEASE = 8; //дата выпуска в днях от 1970-01-01
+    private static final int R_DURATION = 16;
+    private static final int R_RATE = 20;
+    private static final int R_MPA = 24; //0 - рейтинг не задан
+    private static final int R_NAME_LENGTH = 28; //-1 - строка не задана
+    private static final int R_GENRES = 32;
+    private static final int R_NAME_OFFSET = 40;
+    private static final int R_DESCRIPTION_OFFSET = 48;
+    private static final int R_DESCRIPTION_LENGTH = 56;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    //чтение и запись версии записи с барьерами памяти
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final MappedFile index;
+    private final MappedFile strings;
+    private final MpaDao mpaDao;
+    private final GenreDao genreDao;
+    private final Object writeLock = new Object(); //изменения каталога выполняются по одному
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile long maxId;
+    private long stringsEnd;
+
+    public MappedFilmCatalog(Path path, MpaDao mpaDao, GenreDao genreDao) throws IOException {
+        this(path, mpaDao, genreDao, 0);
+    }
+
+    public MappedFilmCatalog(Path path, MpaDao mpaDao, GenreDao genreDao, long sourceVersion) throws IOException {
+        this.mpaDao = mpaDao;
+        this.genreDao = genreDao;
+        Path directory = path.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        this.index = new MappedFile(path.resolveSibling(path.getFileName() + ".idx"));
+        this.strings = new MappedFile(path.resolveSibling(path.getFileName() + ".str"));
+        if (index.isCleanCatalog(sourceVersion)) {
+            reopen();
+            log.info("Каталог фильмов {} открыт: фильмов {}, наибольший id {}.", path, size.get(), maxId);
+        } else {
+            index.truncate();
+            strings.truncate();
+            ByteBuffer header = index.segment(0, true);
+            header.putLong(H_MAGIC, MAGIC);
+            header.putInt(H_FORMAT, FORMAT_VERSION);
+            header.putLong(H_SOURCE_VERSION, sourceVersion);
+            log.info("Создан пустой каталог фильмов {}.", path);
+        }
+        //до штатного закрытия каталог считается открытым
+        index.segment(0, true).putInt(H_CLEAN, 0);
+        index.force();
+    }
+
+    //открытие штатно закрытого каталога: число фильмов и наибольший id восстанавливаются по записям
+    private void reopen() throws IOException {
+        index.mapExisting();
+        strings.mapExisting();
+        ByteBuffer header = index.segment(0, true);
+        stringsEnd = header.getLong(H_STRINGS_END);
+        long records = index.mappedSize() / RECORD_SIZE;
+        for (long id = 1; id < records; id++) {
+            long position = id * RECORD_SIZE;
+            ByteBuffer record = index.segment(position, false);
+            int offset = offset(position);
+            if (record.getInt(offset + R_SEQ) != 0) {
+                maxId = id;
+            }
+            if (record.getInt(offset + R_PRESENT) == 1) {
+                size.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void put(Film film) {
+        long filmId = film.getId();
+        if (filmId <= 0) {
+            throw new IllegalArgumentException("Некорректный id фильма: " + filmId);
+        }
+        long genres = genresMask(film);
+        synchronized (writeLock) {
+            //строки записываются до публикации записи, поэтому читатель видит их вместе с новой версией
+            long nameOffset = appendString(film.getName());
+            long descriptionOffset = appendString(film.getDescription());
+            long position = filmId * RECORD_SIZE;
+            ByteBuffer record = index.segment(position, true);
+            int offset = offset(position);
+            int seq = record.getInt(offset + R_SEQ);
+            boolean existed = record.getInt(offset + R_PRESENT) == 1;
+            INT.setVolatile(record, offset + R_SEQ, seq + 1);
+            VarHandle.storeStoreFence();
+            record.putInt(offset + R_PRESENT, 1);
+            record.putLong(offset + R_RELEASE, film.getReleaseDate() == null ? NO_DATE
+                    : film.getReleaseDate().toEpochDay());
+            record.putInt(offset + R_DURATION, film.getDuration());
+            record.putInt(offset + R_RATE, film.getRate());
+            record.putInt(offset + R_MPA, film.getMpa() == null ? 0 : film.getMpa().getId());
+            record.putLong(offset + R_GENRES, genres);
+            record.putLong(offset + R_NAME_OFFSET, nameOffset);
+            record.putInt(offset + R_NAME_LENGTH, byteLength(film.getName()));
+            record.putLong(offset + R_DESCRIPTION_OFFSET, descriptionOffset);
+            record.putInt(offset + R_DESCRIPTION_LENGTH, byteLength(film.getDescription()));
+            INT.setRelease(record, offset + R_SEQ, seq + 2);
+            if (!existed) {
+                size.incrementAndGet();
+            }
+            if (filmId > maxId) {
+                maxId = filmId;
+            }
+        }
+    }
+
+    @Override
+    public Film get(long filmId) {
+        if (filmId <= 0 || filmId > maxId) {
+            return null;
+        }
+        long position = filmId * RECORD_SIZE;
+        ByteBuffer record = index.segment(position, false);
+        if (record == null) {
+            return null;
+        }
+        int offset = offset(position);
+        while (true) {
+            int seq = (int) INT.getAcquire(record, offset + R_SEQ);
+            if ((seq & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean present = record.getInt(offset + R_PRESENT) == 1;
+            long release = record.getLong(offset + R_RELEASE);
+            int duration = record.getInt(offset + R_DURATION);
+            int rate = record.getInt(offset + R_RATE);
+            int mpaId = record.getInt(offset + R_MPA);
+            long genres = record.getLong(offset + R_GENRES);
+            long nameOffset = record.getLong(offset + R_NAME_OFFSET);
+            int nameLength = record.getInt(offset + R_NAME_LENGTH);
+            long descriptionOffset = record.getLong(offset + R_DESCRIPTION_OFFSET);
+            int descriptionLength = record.getInt(offset + R_DESCRIPTION_LENGTH);
+            VarHandle.acquireFence();
+            if ((int) INT.getAcquire(record, offset + R_SEQ) != seq) {
+                continue;
+            }
+            if (!present) {
+                return null;
+            }
+            //строки после записи не изменяются, поэтому читаются уже после проверки версии
+            return new Film(filmId, readString(nameOffset, nameLength), readString(descriptionOffset, descriptionLength),
+                    release == NO_DATE ? null : LocalDate.ofEpochDay(release), duration, rate,
+                    mpaId == 0 ? null : mpaDao.getRating(mpaId), genres(genres));
+        }
+    }
+
+    @Override
+    public boolean contains(long filmId) {
+        if (filmId <= 0 || filmId > maxId) {
+            return false;
+        }
+        long position = filmId * RECORD_SIZE;
+        ByteBuffer record = index.segment(position, false);
+        if (record == null) {
+            return false;
+        }
+        int offset = offset(position);
+        while (true) {
+            int seq = (int) INT.getAcquire(record, offset + R_SEQ);
+            if ((seq & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean present = record.getInt(offset + R_PRESENT) == 1;
+            VarHandle.acquireFence();
+            if ((int) INT.getAcquire(record, offset + R_SEQ) == seq) {
+                return present;
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(long filmId) {
+        synchronized (writeLock) {
+            if (!contains(filmId)) {
+                return false;
+            }
+            long position = filmId * RECORD_SIZE;
+            ByteBuffer record = index.segment(position, false);
+            int offset = offset(position);
+            int seq = record.getInt(offset + R_SEQ);
+            INT.setVolatile(record, offset + R_SEQ, seq + 1);
+            VarHandle.storeStoreFence();
+            record.putInt(offset + R_PRESENT, 0);
+            INT.setRelease(record, offset + R_SEQ, seq + 2);
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public long maxId() {
+        return maxId;
+    }
+
+    @Override
+    public PrimitiveIterator.OfLong ids() {
+        return new PrimitiveIterator.OfLong() {
+            private long next = advance(1);
+
+            private long advance(long from) {
+                long last = maxId;
+                for (long id = from; id <= last; id++) {
+                    if (contains(id)) {
+                        return id;
+                    }
+                }
+                return 0;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != 0;
+            }
+
+            @Override
+            public long nextLong() {
+                if (next == 0) {
+                    throw new NoSuchElementException();
+                }
+                long id = next;
+                next = advance(id + 1);
+                return id;
+            }
+        };
+    }
+
+    @Override
+    public void forEach(Consumer<Film> consumer) {
+        PrimitiveIterator.OfLong ids = ids();
+        while (ids.hasNext()) {
+            Film film = get(ids.nextLong());
+            if (film != null) {
+                consumer.accept(film);
+            }
+        }
+    }
+
+    //штатное закрытие: данные сбрасываются на диск и ставится признак, что каталог можно открыть как есть
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            index.segment(0, true).putInt(H_CLEAN, 1);
+            strings.force();
+            index.force();
+            strings.close();
+            index.close();
+            log.info("Каталог фильмов закрыт: фильмов {}.", size.get());
+        }
+    }
+
+    //строка дописывается в конец области строк и не пересекает границу сегмента
+    private long appendString(String value) {
+        if (value == null) {
+            return 0;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long position = stringsEnd;
+        if (offset(position) + bytes.length > SEGMENT_SIZE) {
+            position = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        }
+        strings.segment(position, true).put(offset(position), bytes);
+        stringsEnd = position + bytes.length;
+        index.segment(0, true).putLong(H_STRINGS_END, stringsEnd);
+        return position;
+    }
+
+    private String readString(long position, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        if (length > 0) {
+            strings.segment(position, false).get(offset(position), bytes);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int byteLength(String value) {
+        return value == null ? -1 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static long genresMask(Film film) {
+        long mask = 0;
+        if (film.getGenres() != null) {
+            for (Genre genre : film.getGenres()) {
+                if (genre.getId() <= 0 || genre.getId() > MAX_GENRE_ID) {
+                    throw new IllegalArgumentException("Жанр с id=" + genre.getId() + " не может быть сохранён в каталоге.");
+                }
+                mask |= 1L << genre.getId();
+            }
+        }
+        return mask;
+    }
+
+    private TreeSet<Genre> genres(long mask) {
+        TreeSet<Genre> genres = new TreeSet<>((o1, o2) -> o1.getId() - o2.getId());
+        for (long rest = mask; rest != 0; rest &= rest - 1) {
+            genres.add(genreDao.getGenge(Long.numberOfTrailingZeros(rest)));
+        }
+        return genres;
+    }
+
+    private static int offset(long position) {
+        return (int) (position % SEGMENT_SIZE);
+    }
+
+    //файл, отображаемый в память сегментами; недостающие сегменты отображаются при записи, и файл растёт
+    private static class MappedFile {
+        private final FileChannel channel;
+        private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+        private MappedFile(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        //в начале файла заголовок каталога, каталог был штатно закрыт и заполнялся из той же версии фильмов в БД
+        private boolean isCleanCatalog(long sourceVersion) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.nativeOrder());
+            if (channel.read(header, 0) < RECORD_SIZE) {
+                return false;
+            }
+            if (header.getLong(H_MAGIC) != MAGIC || header.getInt(H_FORMAT) != FORMAT_VERSION
+                    || header.getInt(H_CLEAN) != 1) {
+                return false;
+            }
+            if (header.getLong(H_SOURCE_VERSION) != sourceVersion) {
+                log.info("Фильмы в БД изменены без каталога (версия {}, в каталоге {}), каталог создаётся заново.",
+                        sourceVersion, header.getLong(H_SOURCE_VERSION));
+                return false;
+            }
+            return true;
+        }
+
+        //отображение всего существующего файла
+        private void mapExisting() throws IOException {
+            long fileSize = channel.size();
+            if (fileSize > 0) {
+                segment(fileSize - 1, true);
+            }
+        }
+
+        private long mappedSize() {
+            return (long) segments.length * SEGMENT_SIZE;
+        }
+
+        private ByteBuffer segment(long position, boolean create) {
+            int number = (int) (position / SEGMENT_SIZE);
+            MappedByteBuffer[] current = segments;
+            if (number < current.length) {
+                return current[number];
+            }
+            if (!create) {
+                return null;
+            }
+            synchronized (this) {
+                current = segments;
+                if (number >= current.length) {
+                    MappedByteBuffer[] extended = Arrays.copyOf(current, number + 1);
+                    try {
+                        for (int i = current.length; i <= number; i++) {
+                            extended[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE,
+                                    SEGMENT_SIZE);
+                            extended[i].order(ByteOrder.nativeOrder());
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    segments = extended;
+                    current = extended;
+                }
+                return current[number];
+            }
+        }
+
+        private void truncate() throws IOException {
+            channel.truncate(0);
+        }
+
+        private void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
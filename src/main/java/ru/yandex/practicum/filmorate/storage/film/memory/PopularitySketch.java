@@ -0,0 +1,281 @@
+package ru.yandex.practicum.filmorate.storage.film.memory;
+
+import ru.yandex.practicum.filmorate.model.PopularityEstimate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//приближённые счётчики лайков фильмов ограниченного размера для рейтинга популярных.
+//Count-Min sketch: depth строк по width счётчиков, лайк увеличивает в каждой строке счётчик, выбранный
+//хешем id фильма; оценка - минимум по строкам, она не меньше точного значения и с вероятностью
+//1 - e^-depth превышает его не более чем на e/width от числа всех лайков.
+//Space-Saving: список не более capacity фильмов-кандидатов в популярные с верхней оценкой лайков и её
+//погрешностью. фильм вне списка попадает в него с оценкой sketch, вытесняя фильм с наименьшей оценкой,
+//если его оценка больше, поэтому фильм, у которого лайков больше наименьшей оценки списка, всегда в списке.
+//сверка (reset) заменяет счётчики точными значениями; изменения, поступившие во время чтения точных значений,
+//применяются к новым счётчикам так, чтобы границы оценок оставались верными.
+//потокобезопасность: строки sketch - атомарные массивы, лайки увеличивают их без блокировки. под блокировкой
+//только список; лайк фильма вне заполненного списка с оценкой не больше наименьшей в списке его не меняет и
+//блокировку не берёт. сверка заменяет счётчики под блокировкой записи, лайки идут под блокировкой чтения
+public class PopularitySketch {
+    private final int width;
+    private final int depth;
+    private final int capacity;
+    //фильмы списка в порядке возрастания оценки, при равенстве - убывания id
+    private final Comparator<Counter> order = Comparator.<Counter>comparingLong(c -> c.count)
+            .thenComparing(c -> c.filmId, Comparator.reverseOrder());
+    private final ReadWriteLock resetLock = new ReentrantReadWriteLock();
+    private final Object listLock = new Object();
+
+    private volatile AtomicLongArray[] rows;
+    //список: изменяется под listLock, наличие фильма проверяется без блокировки
+    private volatile Map<Long, Counter> counters = new ConcurrentHashMap<>();
+    private TreeSet<Counter> byCount = new TreeSet<>(order);
+    private volatile long minCount = -1; //наименьшая оценка заполненного списка, -1 - список не заполнен
+    private volatile boolean reconciled; //счётчики хотя бы раз сверены с точными значениями
+    private Queue<long[]> pending; //изменения во время сверки: пары (id фильма, изменение)
+
+    public PopularitySketch(double epsilon, double confidence, int capacity) {
+        if (epsilon <= 0 || epsilon >= 1 || confidence <= 0 || confidence >= 1 || capacity <= 0) {
+            throw new IllegalArgumentException("Некорректные параметры счётчиков: epsilon=" + epsilon +
+                    ", confidence=" + confidence + ", capacity=" + capacity);
+        }
+        this.width = (int) Math.ceil(Math.E / epsilon);
+        this.depth = (int) Math.ceil(Math.log(1 / (1 - confidence)));
+        this.capacity = capacity;
+        this.rows = newRows();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    //занимаемая счётчиками память не зависит от числа фильмов и лайков
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isReconciled() {
+        return reconciled;
+    }
+
+    //изменение лайков фильма: delta=1 - лайк, delta=-1 - удаление лайка
+    public void add(long filmId, long delta) {
+        resetLock.readLock().lock();
+        try {
+            Queue<long[]> changes = pending;
+            if (changes != null) {
+                changes.add(new long[]{filmId, delta});
+            }
+            apply(filmId, delta, false);
+        } finally {
+            resetLock.readLock().unlock();
+        }
+    }
+
+    //фильм удалён: исключается из списка, его лайки в sketch остаются до следующей сверки
+    public void remove(long filmId) {
+        synchronized (listLock) {
+            Counter counter = counters.remove(filmId);
+            if (counter != null) {
+                byCount.remove(counter);
+                updateMinCount();
+            }
+        }
+    }
+
+    //начало сверки: изменения до её завершения запоминаются, так как могут не попасть в точные значения
+    public void beginReset() {
+        resetLock.writeLock().lock();
+        try {
+            pending = new ConcurrentLinkedQueue<>();
+        } finally {
+            resetLock.writeLock().unlock();
+        }
+    }
+
+    //сверка не выполнена: изменения уже учтены текущими счётчиками
+    public void cancelReset() {
+        resetLock.writeLock().lock();
+        try {
+            pending = null;
+        } finally {
+            resetLock.writeLock().unlock();
+        }
+    }
+
+    //сверка: счётчики заменяются точными количествами лайков фильмов (фильмы без лайков отсутствуют),
+    //в список попадают capacity фильмов с наибольшим количеством
+    public void reset(Map<Long, Long> likes) {
+        AtomicLongArray[] exactRows = newRows();
+        TreeSet<Counter> exactByCount = new TreeSet<>(order);
+        for (Map.Entry<Long, Long> entry : likes.entrySet()) {
+            long filmId = entry.getKey();
+            long count = entry.getValue();
+            for (int row = 0; row < depth; row++) {
+                exactRows[row].addAndGet(column(row, filmId), count);
+            }
+            exactByCount.add(new Counter(filmId, count, 0));
+            if (exactByCount.size() > capacity) {
+                exactByCount.pollFirst();
+            }
+        }
+        Map<Long, Counter> exactCounters = new ConcurrentHashMap<>();
+        exactByCount.forEach(counter -> exactCounters.put(counter.filmId, counter));
+        resetLock.writeLock().lock();
+        try {
+            synchronized (listLock) {
+                rows = exactRows;
+                counters = exactCounters;
+                byCount = exactByCount;
+                updateMinCount();
+                if (pending != null) {
+                    pending.forEach(change -> apply(change[0], change[1], true));
+                    pending = null;
+                }
+                reconciled = true;
+            }
+        } finally {
+            resetLock.writeLock().unlock();
+        }
+    }
+
+    //не более count фильмов с наибольшей оценкой лайков (при равенстве - меньший id)
+    public List<PopularityEstimate> top(int count) {
+        List<PopularityEstimate> top = new ArrayList<>();
+        synchronized (listLock) {
+            Iterator<Counter> iterator = byCount.descendingIterator();
+            while (iterator.hasNext() && top.size() < count) {
+                Counter counter = iterator.next();
+                long likes = Math.min(counter.count, estimate(counter.filmId));
+                long minLikes = Math.max(0, counter.count - counter.error);
+                top.add(new PopularityEstimate(counter.filmId, likes, likes - Math.min(likes, minLikes)));
+            }
+        }
+        return top;
+    }
+
+    //оценка лайков фильма по sketch: не меньше точного значения
+    public long estimate(long filmId) {
+        AtomicLongArray[] current = rows;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, current[row].get(column(row, filmId)));
+        }
+        return Math.max(0, estimate);
+    }
+
+    //replay=true - повтор изменения после сверки: оно могло уже войти в точные значения, поэтому лайк
+    //увеличивает верхнюю оценку, но не нижнюю, а удаление лайка уменьшает только нижнюю оценку
+    private void apply(long filmId, long delta, boolean replay) {
+        if (delta > 0 || !replay) {
+            AtomicLongArray[] current = rows;
+            for (int row = 0; row < depth; row++) {
+                current[row].addAndGet(column(row, filmId), delta);
+            }
+        }
+        //фильм вне списка, который не попадёт в него, не требует блокировки; решение повторяется под ней
+        if (!counters.containsKey(filmId)) {
+            long min = minCount;
+            if (delta <= 0 || (min >= 0 && estimate(filmId) <= min)) {
+                return;
+            }
+        }
+        synchronized (listLock) {
+            applyToList(filmId, delta, replay);
+            updateMinCount();
+        }
+    }
+
+    private void applyToList(long filmId, long delta, boolean replay) {
+        Counter counter = counters.get(filmId);
+        if (counter != null) {
+            byCount.remove(counter);
+            if (!replay) {
+                counter.count += delta;
+            } else if (delta > 0) {
+                counter.count += delta;
+                counter.error += delta;
+            } else {
+                counter.error -= delta;
+            }
+            if (counter.count <= 0) {
+                counters.remove(filmId);
+            } else {
+                byCount.add(counter);
+            }
+            return;
+        }
+        if (delta <= 0) {
+            return;
+        }
+        //лайков у фильма не больше оценки sketch и не меньше только что поставленных
+        long count = estimate(filmId);
+        if (counters.size() >= capacity) {
+            Counter min = byCount.first();
+            if (count <= min.count) {
+                return;
+            }
+            byCount.pollFirst();
+            counters.remove(min.filmId);
+        }
+        counter = new Counter(filmId, count, replay ? count : count - delta);
+        counters.put(filmId, counter);
+        //лайк, добавленный в sketch до появления фильма в списке, мог не войти в оценку и пройти мимо
+        //списка: после добавления фильма оценка читается повторно, и все такие лайки в ней учтены
+        long recount = estimate(filmId);
+        if (recount > count) {
+            counter.error += recount - count;
+            counter.count = recount;
+        }
+        byCount.add(counter);
+    }
+
+    private void updateMinCount() {
+        minCount = counters.size() >= capacity ? byCount.first().count : -1;
+    }
+
+    private AtomicLongArray[] newRows() {
+        AtomicLongArray[] newRows = new AtomicLongArray[depth];
+        for (int row = 0; row < depth; row++) {
+            newRows[row] = new AtomicLongArray(width);
+        }
+        return newRows;
+    }
+
+    //номер счётчика строки row для фильма: строки используют независимые хеши (перемешивание splitmix64)
+    private int column(int row, long filmId) {
+        long hash = filmId + (row + 1) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        hash ^= hash >>> 31;
+        return (int) Math.floorMod(hash, (long) width);
+    }
+
+    //фильм списка: count - верхняя оценка лайков, count - error - нижняя
+    private static class Counter {
+        private final long filmId;
+        private long count;
+        private long error;
+
+        private Counter(long filmId, long count, long error) {
+            this.filmId = filmId;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ru.yandex.practicum.filmorate.storage.film.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+//счётчики лайков фильмов по часам для трендов: у фильма кольцо из 168 часовых корзин (7 дней) и суммы
+//за 24 часа и 7 дней. при смене часа из сумм вычитаются корзины, вышедшие из окна, поэтому сдвиг окна -
+//O(1) на корзину. кольцо фильма сдвигается при обращении к нему; счётчик фильма без лайков за 7 дней
+//удаляется (его горячесть в трендах не учитывается), поэтому счётчики хранятся только для фильмов в окне.
+//горячесть - сумма лайков с весом, который уменьшается вдвое за half-life часов: при смене часа она
+//умножается на коэффициент затухания, новый лайк прибавляет 1
+@Component
+@Slf4j
+public class TrendingCounters {
+    public static final int HOURS = 168; //глубина кольца, ч
+    private static final int DAY_HOURS = 24;
+    private static final long HOUR_MS = 3_600_000L;
+
+    public enum Ranking {
+        DAY, //лайки за 24 часа
+        WEEK, //лайки за 7 дней
+        HOTNESS //горячесть
+    }
+
+    private final Clock clock;
+    private final double hourDecay; //коэффициент затухания горячести за час
+    private final Map<Long, FilmCounter> films = new ConcurrentHashMap<>();
+
+    @Autowired
+    public TrendingCounters(@Value("${filmorate.trending.half-life-hours:24}") double halfLifeHours) {
+        this(Clock.systemUTC(), halfLifeHours);
+    }
+
+    public TrendingCounters(Clock clock, double halfLifeHours) {
+        this.clock = clock;
+        this.hourDecay = Math.pow(0.5, 1 / halfLifeHours);
+    }
+
+    //время лайков, которые учитываются счётчиками
+    public Instant now() {
+        return clock.instant();
+    }
+
+    //начало окна счётчиков: более ранние лайки не учитываются
+    public Instant windowStart() {
+        return Instant.ofEpochMilli((currentHour() - HOURS + 1) * HOUR_MS);
+    }
+
+    //лайк, поставленный в момент likedAt (delta=1), или удаление такого лайка (delta=-1)
+    public void add(long filmId, Instant likedAt, int delta) {
+        long now = currentHour();
+        long likeHour = Math.floorDiv(likedAt.toEpochMilli(), HOUR_MS);
+        if (now - likeHour >= HOURS) {
+            return;
+        }
+        //изменение и удаление опустевшего счётчика - в compute, поэтому лайк не попадает в удалённый счётчик
+        films.compute(filmId, (id, counter) -> {
+            FilmCounter changed = counter == null ? new FilmCounter(now) : counter;
+            changed.add(Math.min(likeHour, now), delta, now);
+            return changed.isEmpty(now) ? null : changed;
+        });
+    }
+
+    public void remove(long filmId) {
+        films.remove(filmId);
+    }
+
+    //id не более count фильмов с наибольшим значением ranking (при равенстве - меньший id),
+    //фильмы без лайков в окне не учитываются. отбор - минимальной кучей размера count
+    public List<Long> top(Ranking ranking, int count) {
+        long now = currentHour();
+        Comparator<Map.Entry<Long, Double>> worstFirst = Map.Entry.<Long, Double>comparingByValue()
+                .thenComparing(Map.Entry.<Long, Double>comparingByKey().reversed());
+        PriorityQueue<Map.Entry<Long, Double>> heap = new PriorityQueue<>(worstFirst);
+        List<Long> empty = new ArrayList<>();
+        films.forEach((filmId, counter) -> {
+            if (counter.isEmpty(now)) {
+                empty.add(filmId);
+                return;
+            }
+            double value = counter.value(ranking, now);
+            if (value <= 0) {
+                return;
+            }
+            Map.Entry<Long, Double> entry = Map.entry(filmId, value);
+            if (heap.size() < count) {
+                heap.add(entry);
+            } else if (worstFirst.compare(entry, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        });
+        //счётчик удаляется, только если лайк не был добавлен после проверки
+        empty.forEach(filmId -> films.computeIfPresent(filmId,
+                (id, counter) -> counter.isEmpty(now) ? null : counter));
+        List<Long> filmIds = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            filmIds.add(heap.poll().getKey());
+        }
+        Collections.reverse(filmIds);
+        return filmIds;
+    }
+
+    //значение ranking фильма
+    public double value(long filmId, Ranking ranking) {
+        FilmCounter counter = films.get(filmId);
+        return counter == null ? 0 : counter.value(ranking, currentHour());
+    }
+
+    //количество фильмов, для которых хранятся счётчики
+    public int size() {
+        return films.size();
+    }
+
+    private long currentHour() {
+        return Math.floorDiv(clock.millis(), HOUR_MS);
+    }
+
+    private class FilmCounter {
+        private final int[] buckets = new int[HOURS]; //лайки часа h - в корзине h % HOURS
+        private long hour; //последний учтённый час
+        private long day; //лайки за часы (hour - 24, hour]
+        private long week; //лайки за часы (hour - 168, hour]
+        private double hotness;
+
+        private FilmCounter(long hour) {
+            this.hour = hour;
+        }
+
+        private synchronized void add(long likeHour, int delta, long now) {
+            advance(now);
+            buckets[index(likeHour)] += delta;
+            week += delta;
+            if (now - likeHour < DAY_HOURS) {
+                day += delta;
+            }
+            hotness = Math.max(0, hotness + delta * Math.pow(hourDecay, now - likeHour));
+        }
+
+        private synchronized double value(Ranking ranking, long now) {
+            advance(now);
+            switch (ranking) {
+                case DAY:
+                    return day;
+                case WEEK:
+                    return week;
+                default:
+                    return hotness;
+            }
+        }
+
+        //нет лайков за 7 дней
+        private synchronized boolean isEmpty(long now) {
+            advance(now);
+            return week <= 0;
+        }
+
+        //сдвиг кольца до часа now: корзина часа - 24 выходит из суток, корзина часа - 168 освобождается
+        private void advance(long now) {
+            if (now - hour >= HOURS) {
+                Arrays.fill(buckets, 0);
+                day = 0;
+                week = 0;
+                hotness *= Math.pow(hourDecay, now - hour);
+                hour = now;
+                return;
+            }
+            while (hour < now) {
+                hour++;
+                day -= buckets[index(hour - DAY_HOURS)];
+                week -= buckets[index(hour)];
+                buckets[index(hour)] = 0;
+                hotness *= hourDecay;
+            }
+        }
+
+        private int index(long hour) {
+            return (int) Math.floorMod(hour, HOURS);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.yandex.practicum.filmorate.storage.hybrid;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmDbDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmStorage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+//гибридное хранилище фильмов: чтение из памяти, изменения вносятся в память и ставятся в очередь
+//отложенной записи в БД. изменение фильма и постановка в очередь выполняются под блокировкой фильма,
+//поэтому изменения одного фильма попадают в БД в том же порядке, что и в память
+@Component("filmHybridDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class HybridFilmDao implements FilmDao {
+    private final InMemoryFilmStorage memory;
+    private final WriteBehindQueue writeBehind;
+    private final DataVersions dataVersions;
+    private final Consumer<List<Film>> saveFilms;
+    private final Consumer<List<Long>> deleteFilms;
+    private final StripedLocks locks = new StripedLocks();
+
+    public HybridFilmDao(InMemoryFilmStorage memory, FilmDbDao filmDbDao, WriteBehindQueue writeBehind,
+                         DataVersions dataVersions) {
+        this.memory = memory;
+        this.writeBehind = writeBehind;
+        this.dataVersions = dataVersions;
+        this.saveFilms = filmDbDao::saveFilms;
+        this.deleteFilms = filmDbDao::deleteFilms;
+    }
+
+    @Override
+    public Film addFilm(Film film) {
+        //фильм ставится в очередь раньше лайков, которые могли его увидеть
+        Film added = writeBehind.create(saveFilms, () -> memory.addFilm(film));
+        dataVersions.filmChanged(added.getId());
+        return added;
+    }
+
+    @Override
+    public Film updateFilm(Film film) {
+        return locks.withLock(film.getId(), () -> {
+            Film updated = memory.updateFilm(film);
+            dataVersions.filmChanged(updated.getId());
+            writeBehind.submit(saveFilms, updated);
+            return updated;
+        });
+    }
+
+    @Override
+    public void deleteFilm(long filmId) {
+        locks.runWithLock(filmId, () -> {
+            if (!memory.exists(filmId)) {
+                throw new FilmNotFoundException("Фильм с id=" + filmId + " для удаления не найден.");
+            }
+            //лайки фильма удаляются из памяти вместе с ним, а в БД - каскадом при удалении фильма
+            memory.deleteFilm(filmId);
+            dataVersions.filmChanged(filmId);
+            writeBehind.submit(deleteFilms, filmId);
+        });
+    }
+
+    @Override
+    public boolean exists(long filmId) {
+        return memory.exists(filmId);
+    }
+
+    @Override
+    public Film getFilm(long filmId) {
+        return memory.getFilm(filmId);
+    }
+
+    @Override
+    public List<Film> getFilms() {
+        return memory.getFilms();
+    }
+
+    @Override
+    public List<Film> getPopularFilms(long maxCount) {
+        return memory.getPopularFilms(maxCount);
+    }
+
+    @Override
+    public List<Film> getFilms(Set<FilmField> fields) {
+        return memory.getFilms(fields);
+    }
+
+    @Override
+    public List<Film> getPopularFilms(long maxCount, Set<FilmField> fields) {
+        return memory.getPopularFilms(maxCount, fields);
+    }
+
+    @Override
+    public Map<Long, Film> getFilmsByIds(Collection<Long> filmIds) {
+        return memory.getFilmsByIds(filmIds);
+    }
+
+    @Override
+    public void exportFilms(Consumer<Film> consumer) {
+        memory.exportFilms(consumer);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.yandex.practicum.filmorate.storage.hybrid;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.model.LikeState;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmLikeDbDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.TrendingCounters;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+//гибридное хранилище лайков: лайк ставится в памяти, а в очередь отложенной записи попадают
+//только изменившие состояние запросы. лайки одного фильма ставятся в очередь под блокировкой фильма.
+//время лайка запоминается при постановке, а не при записи в БД: оно записывается в БД и в счётчики трендов
+@Component("filmLikeHybridDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class HybridFilmLikeDao implements FilmLikeDao {
+    private final InMemoryFilmLikeDao memory;
+    private final WriteBehindQueue writeBehind;
+    private final DataVersions dataVersions;
+    private final Consumer<List<LikeState>> saveLikes;
+    private final TrendingCounters trending;
+    private final StripedLocks locks = new StripedLocks();
+
+    public HybridFilmLikeDao(InMemoryFilmLikeDao memory, FilmLikeDbDao filmLikeDbDao, WriteBehindQueue writeBehind,
+                             DataVersions dataVersions, TrendingCounters trending) {
+        this.memory = memory;
+        this.writeBehind = writeBehind;
+        this.dataVersions = dataVersions;
+        this.trending = trending;
+        this.saveLikes = filmLikeDbDao::saveLikes;
+    }
+
+    @Override
+    public LikeState addLike(long filmId, long userId) {
+        return locks.withLock(filmId, () -> saved(memory.addLike(filmId, userId)));
+    }
+
+    @Override
+    public LikeState deleteLike(long filmId, long userId) {
+        return locks.withLock(filmId, () -> saved(memory.deleteLike(filmId, userId)));
+    }
+
+    //лайки в памяти актуальны, в БД изменения могут быть ещё не записаны
+    @Override
+    public Map<Long, Long> getLikeCounts() {
+        return memory.getLikeCounts();
+    }
+
+    private LikeState saved(LikeState state) {
+        if (state.isChanged()) {
+            state.setChangedAt(trending.now());
+            dataVersions.likesChanged(state.getFilmId());
+            writeBehind.submit(saveLikes, state);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,68 @@
+package ru.yandex.practicum.filmorate.storage.hybrid;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
+import ru.yandex.practicum.filmorate.storage.user.dao.FriendsDao;
+import ru.yandex.practicum.filmorate.storage.user.daoImpl.FriendsDbDao;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryFriendsStorage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+//гибридное хранилище друзей: чтение из памяти, изменения - в память и в очередь отложенной записи в БД
+//под блокировками обоих пользователей
+@Component("friendsHybridDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class HybridFriendsDao implements FriendsDao {
+    private final InMemoryFriendsStorage memory;
+    private final WriteBehindQueue writeBehind;
+    private final Consumer<List<Map.Entry<Long, Long>>> addFriends;
+    private final Consumer<List<Map.Entry<Long, Long>>> deleteFriends;
+    private final StripedLocks locks = new StripedLocks();
+
+    public HybridFriendsDao(InMemoryFriendsStorage memory, FriendsDbDao friendsDbDao, WriteBehindQueue writeBehind) {
+        this.memory = memory;
+        this.writeBehind = writeBehind;
+        this.addFriends = friendsDbDao::addFriends;
+        this.deleteFriends = friendsDbDao::deleteFriends;
+    }
+
+    @Override
+    public void addFriend(long userId, long friendId) {
+        locks.runWithLocks(userId, friendId, () -> {
+            memory.addFriend(userId, friendId);
+            writeBehind.submit(addFriends, Map.entry(userId, friendId));
+        });
+    }
+
+    @Override
+    public void deleteFriend(long userId, long friendId) {
+        locks.runWithLocks(userId, friendId, () -> {
+            memory.deleteFriend(userId, friendId);
+            writeBehind.submit(deleteFriends, Map.entry(userId, friendId));
+        });
+    }
+
+    @Override
+    public List<User> getFriends(long userId) {
+        return memory.getFriends(userId);
+    }
+
+    @Override
+    public List<User> getCommonFriends(long userId, long otherId) {
+        return memory.getCommonFriends(userId, otherId);
+    }
+
+    @Override
+    public Map<Long, long[]> getFriendIds(Collection<Long> userIds) {
+        return memory.getFriendIds(userIds);
+    }
+}
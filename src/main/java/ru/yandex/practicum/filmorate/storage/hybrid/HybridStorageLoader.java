@@ -0,0 +1,106 @@
+package ru.yandex.practicum.filmorate.storage.hybrid;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmDbDao;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmLikeDbDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmStorage;
+import ru.yandex.practicum.filmorate.storage.user.daoImpl.FriendsDbDao;
+import ru.yandex.practicum.filmorate.storage.user.daoImpl.UserDbDao;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryFriendsStorage;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryUserStorage;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+//заполнение хранилищ в памяти из БД при запуске в гибридном режиме: пользователи, фильмы, лайки и друзья
+//читаются построчно и загружаются с id из БД (фильмы - если каталог фильмов не открыт из файла; каталог
+//открывается из файла, только если фильмы в БД не изменялись после его заполнения, см. MappedFilmCatalog).
+//после остановки, когда очередь отложенной записи записана, счётчики id в БД продолжаются
+//с наибольших id, выданных хранилищем в памяти
+@Component
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class HybridStorageLoader {
+    private final InMemoryUserStorage users;
+    private final InMemoryFilmStorage films;
+    private final InMemoryFilmLikeDao likes;
+    private final InMemoryFriendsStorage friends;
+    private final UserDbDao userDbDao;
+    private final FilmDbDao filmDbDao;
+    private final FilmLikeDbDao filmLikeDbDao;
+    private final FriendsDbDao friendsDbDao;
+
+    public HybridStorageLoader(InMemoryUserStorage users, InMemoryFilmStorage films, InMemoryFilmLikeDao likes,
+                               InMemoryFriendsStorage friends, UserDbDao userDbDao, FilmDbDao filmDbDao,
+                               FilmLikeDbDao filmLikeDbDao, FriendsDbDao friendsDbDao, WriteBehindQueue writeBehind) {
+        this.users = users;
+        this.films = films;
+        this.likes = likes;
+        this.friends = friends;
+        this.userDbDao = userDbDao;
+        this.filmDbDao = filmDbDao;
+        this.filmLikeDbDao = filmLikeDbDao;
+        this.friendsDbDao = friendsDbDao;
+        writeBehind.addDrainListener(() -> {
+            filmDbDao.restartIdentity();
+            userDbDao.restartIdentity();
+        });
+    }
+
+    @PostConstruct
+    public void load() {
+        long start = System.currentTimeMillis();
+        AtomicLong userCount = new AtomicLong();
+        userDbDao.exportUsers(user -> {
+            users.loadUser(user);
+            userCount.incrementAndGet();
+        });
+        AtomicLong filmCount = new AtomicLong();
+        if (films.size() > 0) {
+            //каталог фильмов, отображённый в память, открыт из файла и соответствует БД: фильмы уже загружены
+            filmCount.set(films.size());
+            log.info("Каталог фильмов открыт из файла, загрузка фильмов из БД не требуется.");
+        } else {
+            filmDbDao.exportFilms(film -> {
+                films.loadFilm(film);
+                filmCount.incrementAndGet();
+            });
+        }
+        long likeCount = loadLikes();
+        AtomicLong friendCount = new AtomicLong();
+        friendsDbDao.exportFriends((userId, friendId) -> {
+            friends.loadFriend(userId, friendId);
+            friendCount.incrementAndGet();
+        });
+        log.info("Хранилище в памяти загружено из БД за {} мс: пользователей {}, фильмов {}, лайков {}, дружб {}.",
+                System.currentTimeMillis() - start, userCount.get(), filmCount.get(), likeCount, friendCount.get());
+    }
+
+    //лайки выгружаются в порядке id фильмов: собираем id пользователей фильма и загружаем их пачкой
+    private long loadLikes() {
+        long[] filmId = {0};
+        int[][] userIds = {new int[64]};
+        int[] size = {0};
+        long[] total = {0};
+        filmLikeDbDao.exportLikes((likeFilmId, userId) -> {
+            if (likeFilmId != filmId[0] && size[0] > 0) {
+                likes.loadLikes(filmId[0], Arrays.copyOf(userIds[0], size[0]));
+                size[0] = 0;
+            }
+            filmId[0] = likeFilmId;
+            if (size[0] == userIds[0].length) {
+                userIds[0] = Arrays.copyOf(userIds[0], size[0] * 2);
+            }
+            userIds[0][size[0]++] = Math.toIntExact(userId);
+            total[0]++;
+        });
+        if (size[0] > 0) {
+            likes.loadLikes(filmId[0], Arrays.copyOf(userIds[0], size[0]));
+        }
+        return total[0];
+    }
+}
@@ -0,0 +1,75 @@
+package ru.yandex.practicum.filmorate.storage.hybrid;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
+import ru.yandex.practicum.filmorate.storage.user.daoImpl.UserDbDao;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryUserStorage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+//гибридное хранилище пользователей: чтение из памяти, изменения - в память и в очередь отложенной записи в БД
+@Component("userHybridDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class HybridUserDao implements UserDao {
+    private final InMemoryUserStorage memory;
+    private final WriteBehindQueue writeBehind;
+    private final Consumer<List<User>> saveUsers;
+    private final StripedLocks locks = new StripedLocks();
+
+    public HybridUserDao(InMemoryUserStorage memory, UserDbDao userDbDao, WriteBehindQueue writeBehind) {
+        this.memory = memory;
+        this.writeBehind = writeBehind;
+        this.saveUsers = userDbDao::saveUsers;
+    }
+
+    @Override
+    public User addUser(User user) {
+        //пользователь ставится в очередь раньше дружбы и лайков, которые могли его увидеть
+        return writeBehind.create(saveUsers, () -> memory.addUser(user));
+    }
+
+    @Override
+    public User updateUser(User user) {
+        return locks.withLock(user.getId(), () -> {
+            User updated = memory.updateUser(user);
+            writeBehind.submit(saveUsers, updated);
+            return updated;
+        });
+    }
+
+    @Override
+    public Set<User> getUsers() {
+        return memory.getUsers();
+    }
+
+    @Override
+    public User getUser(long userId) {
+        return memory.getUser(userId);
+    }
+
+    @Override
+    public boolean exists(long userId) {
+        return memory.exists(userId);
+    }
+
+    @Override
+    public Map<Long, User> getUsersByIds(Collection<Long> userIds) {
+        return memory.getUsersByIds(userIds);
+    }
+
+    @Override
+    public void exportUsers(Consumer<User> consumer) {
+        memory.exportUsers(consumer);
+    }
+}
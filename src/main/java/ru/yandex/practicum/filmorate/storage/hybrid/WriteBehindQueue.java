@@ -0,0 +1,314 @@
+package ru.yandex.practicum.filmorate.storage.hybrid;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.model.WriteBehindStats;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+//очередь отложенной записи изменений гибридного хранилища в БД.
+//изменения записываются одним потоком в порядке поступления; подряд идущие изменения одного вида
+//передаются записывающему методу одним списком (пакетом), а каждая порция очереди - в одной транзакции.
+//очередь ограничена: при заполнении запись ждёт освобождения места, поэтому отставание БД не растёт без предела.
+//постановка в очередь выполняется под общей блокировкой: создание объекта в памяти и его запись (create)
+//ставятся в очередь раньше любого изменения, которое могло увидеть созданный объект (лайк нового фильма),
+//а изменение, поставленное до остановки, гарантированно попадает в дописываемую при остановке очередь.
+//изменение, которое не удалось записать, повторяется (max-attempts попыток с растущей паузой) до записи
+//следующих, чтобы не нарушить порядок; после этого оно сохраняется в списке незаписанных (не более capacity),
+//откуда его можно поставить в очередь повторно (retryFailed).
+//при остановке приложения очередь дописывается до конца
+@Component
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
+@Slf4j
+public class WriteBehindQueue {
+    private final BlockingQueue<PendingWrite> queue;
+    private final int capacity;
+    private final int batchSize; //максимальное число изменений в одной транзакции
+    private final long lingerNanos; //сколько ждать новых изменений, чтобы набрать пакет
+    private final int maxAttempts; //попыток записи изменения, после которых оно считается незаписанным
+    private final long retryDelayMs; //пауза перед повторной попыткой, умножается на номер попытки
+    private final TransactionTemplate transactionTemplate;
+    private final List<Runnable> drainListeners = new CopyOnWriteArrayList<>();
+    private final ReentrantLock submitLock = new ReentrantLock(); //порядок постановки в очередь и остановка
+    private final Deque<PendingWrite> failedWrites = new ArrayDeque<>(); //незаписанные изменения, под своим монитором
+    private final Thread writer;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private volatile long inFlightSince; //время постановки в очередь самого старого изменения записываемой порции
+    private volatile boolean closed;
+
+    public WriteBehindQueue(PlatformTransactionManager transactionManager, int capacity, int batchSize,
+                            long lingerMs) {
+        this(transactionManager, capacity, batchSize, lingerMs, 3, 1000);
+    }
+
+    @Autowired
+    public WriteBehindQueue(PlatformTransactionManager transactionManager,
+                            @Value("${filmorate.storage.write-behind.capacity:10000}") int capacity,
+                            @Value("${filmorate.storage.write-behind.batch-size:500}") int batchSize,
+                            @Value("${filmorate.storage.write-behind.linger-ms:0}") long lingerMs,
+                            @Value("${filmorate.storage.write-behind.max-attempts:3}") int maxAttempts,
+                            @Value("${filmorate.storage.write-behind.retry-delay-ms:1000}") long retryDelayMs) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMs = retryDelayMs;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.writer = new Thread(this::run, "write-behind");
+    }
+
+    @PostConstruct
+    public void start() {
+        writer.start();
+        log.info("Отложенная запись в БД: очередь {}, пакет до {} изменений.", capacity, batchSize);
+    }
+
+    //ставит изменение в очередь; writer должен быть одним и тем же объектом для изменений одного вида,
+    //чтобы они объединялись в пакет
+    public <T> void submit(Consumer<List<T>> writer, T value) {
+        create(writer, () -> value);
+    }
+
+    //создание объекта в памяти (change) и постановка его записи в очередь одним шагом: изменения,
+    //поставленные после того, как объект стал виден в памяти, запишутся в БД после него
+    @SuppressWarnings("unchecked")
+    public <T> T create(Consumer<List<T>> writer, Supplier<T> change) {
+        submitLock.lock();
+        try {
+            T value = change.get();
+            PendingWrite write = new PendingWrite((Consumer<List<Object>>) (Consumer<?>) writer, value,
+                    System.nanoTime());
+            if (closed) {
+                //очередь уже дописывается при остановке: записываем сразу
+                write(List.of(write));
+            } else {
+                enqueue(write);
+            }
+            return value;
+        } finally {
+            submitLock.unlock();
+        }
+    }
+
+    //повторная постановка в очередь изменений, которые не удалось записать; возвращает их количество
+    public int retryFailed() {
+        List<PendingWrite> writes;
+        synchronized (failedWrites) {
+            writes = new ArrayList<>(failedWrites);
+            failedWrites.clear();
+        }
+        for (PendingWrite write : writes) {
+            submit(write.writer, write.value);
+        }
+        log.info("Повторно поставлено в очередь {} незаписанных изменений.", writes.size());
+        return writes.size();
+    }
+
+    //действие после того, как при остановке приложения очередь записана в БД
+    public void addDrainListener(Runnable listener) {
+        drainListeners.add(listener);
+    }
+
+    public WriteBehindStats getStats() {
+        PendingWrite oldest = queue.peek();
+        long since = inFlightSince != 0 ? inFlightSince : oldest == null ? 0 : oldest.enqueuedAt;
+        long lagMs = since == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        int unwritten;
+        synchronized (failedWrites) {
+            unwritten = failedWrites.size();
+        }
+        return new WriteBehindStats(queue.size(), capacity, lagMs, written.get(), failed.get(), batches.get(),
+                throttled.get(), retries.get(), unwritten);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        log.info("Остановка: дописываем {} изменений из очереди в БД...", queue.size());
+        //после этого изменения записываются сразу, а поставленные раньше уже в очереди
+        submitLock.lock();
+        try {
+            closed = true;
+        } finally {
+            submitLock.unlock();
+        }
+        writer.join();
+        //изменения, поставленные в очередь одновременно с остановкой потока записи
+        List<PendingWrite> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            write(rest);
+        }
+        for (Runnable listener : drainListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.warn("Ошибка при завершении отложенной записи: {}", e.getMessage());
+            }
+        }
+        synchronized (failedWrites) {
+            failedWrites.forEach(write -> log.error("Изменение {} не записано в БД.", write.value));
+        }
+        log.info("Очередь отложенной записи записана в БД, всего изменений: {}, ошибок: {}.",
+                written.get(), failed.get());
+    }
+
+    //вызывается под submitLock: ожидание места в очереди задерживает и другие изменения, сохраняя их порядок
+    private void enqueue(PendingWrite write) {
+        if (queue.offer(write)) {
+            return;
+        }
+        throttled.incrementAndGet();
+        log.debug("Очередь отложенной записи заполнена, ожидаем освобождения места.");
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(write);
+                break;
+            } catch (InterruptedException e) {
+                //изменение уже внесено в память, поэтому его нельзя потерять
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    PendingWrite next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //поток записи завершается только после записи всей очереди
+                log.debug("Поток отложенной записи прерван, продолжаем запись очереди.");
+            }
+            if (!batch.isEmpty()) {
+                inFlightSince = batch.get(0).enqueuedAt;
+                write(batch);
+                inFlightSince = 0;
+                batch.clear();
+            }
+        }
+    }
+
+    //порция записывается одной транзакцией; если она не удалась, то изменения записываются по одному,
+    //чтобы ошибочное изменение не помешало записи остальных
+    private void write(List<PendingWrite> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> apply(batch));
+            written.addAndGet(batch.size());
+        } catch (RuntimeException e) {
+            log.warn("Не удалось записать пакет из {} изменений: {}, записываем по одному.", batch.size(), e.getMessage());
+            for (PendingWrite write : batch) {
+                writeWithRetries(write);
+            }
+        }
+        batches.incrementAndGet();
+    }
+
+    //следующие изменения ждут, пока изменение не запишется или не исчерпает попытки: после временной
+    //недоступности БД изменения одного объекта записываются в исходном порядке
+    private void writeWithRetries(PendingWrite write) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> apply(List.of(write)));
+                written.incrementAndGet();
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= maxAttempts) {
+                    failed.incrementAndGet();
+                    log.error("Изменение {} не записано в БД после {} попыток: {}", write.value, attempt,
+                            e.getMessage());
+                    addFailed(write);
+                    return;
+                }
+                retries.incrementAndGet();
+                log.warn("Изменение {} не записано в БД (попытка {}): {}", write.value, attempt, e.getMessage());
+            }
+            try {
+                Thread.sleep(retryDelayMs * attempt);
+            } catch (InterruptedException e) {
+                //запись продолжается до исчерпания попыток, прерывание восстанавливается для вызывающего
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void addFailed(PendingWrite write) {
+        synchronized (failedWrites) {
+            if (failedWrites.size() >= capacity) {
+                log.error("Список незаписанных изменений заполнен, изменение {} отброшено.",
+                        failedWrites.pollFirst().value);
+            }
+            failedWrites.addLast(write);
+        }
+    }
+
+    //подряд идущие изменения одного вида передаются записывающему методу одним списком
+    private static void apply(List<PendingWrite> writes) {
+        int from = 0;
+        while (from < writes.size()) {
+            Consumer<List<Object>> writer = writes.get(from).writer;
+            List<Object> values = new ArrayList<>();
+            int to = from;
+            while (to < writes.size() && writes.get(to).writer == writer) {
+                values.add(writes.get(to).value);
+                to++;
+            }
+            writer.accept(values);
+            from = to;
+        }
+    }
+
+    private static class PendingWrite {
+        private final Consumer<List<Object>> writer;
+        private final Object value;
+        private final long enqueuedAt;
+
+        private PendingWrite(Consumer<List<Object>> writer, Object value, long enqueuedAt) {
+            this.writer = writer;
+            this.value = value;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
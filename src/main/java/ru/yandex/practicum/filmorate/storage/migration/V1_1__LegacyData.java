@@ -0,0 +1,45 @@
+package ru.yandex.practicum.filmorate.storage.migration;
+
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+//перенос данных БД, созданной до перехода на миграции (принимается за версию 0): дружба из прежней таблицы
+//friends (запись в направлении запроса дружбы) переносится в friendships, и таблица friends удаляется;
+//дубли лайков удаляются, и добавляется ограничение уникальности, которое в новой БД создаёт V1.
+//в новой БД таблицы friends нет, а дублей лайков быть не может, поэтому миграция ничего не меняет
+@Slf4j
+public class V1_1__LegacyData extends BaseJavaMigration {
+
+    @Override
+    public void migrate(Context context) {
+        JdbcTemplate jdbc = new JdbcTemplate(new SingleConnectionDataSource(context.getConnection(), true));
+        if (tableExists(jdbc, "FRIENDS")) {
+            int pairs = jdbc.update("MERGE INTO friendships t USING (" +
+                    "SELECT LEAST(user_id, friend_id) AS user_low, GREATEST(user_id, friend_id) AS user_high, " +
+                    "BOOL_OR(user_id < friend_id OR friend_status) AS low_to_high, " +
+                    "BOOL_OR(user_id > friend_id OR friend_status) AS high_to_low " +
+                    "FROM friends WHERE user_id <> friend_id " +
+                    "GROUP BY LEAST(user_id, friend_id), GREATEST(user_id, friend_id)) s " +
+                    "ON t.user_low = s.user_low AND t.user_high = s.user_high " +
+                    "WHEN NOT MATCHED THEN INSERT (user_low, user_high, low_to_high, high_to_low) " +
+                    "VALUES (s.user_low, s.user_high, s.low_to_high, s.high_to_low)");
+            jdbc.execute("DROP TABLE friends");
+            log.info("Дружба перенесена из таблицы friends в friendships: пар пользователей {}.", pairs);
+        }
+        int duplicates = jdbc.update("DELETE FROM films_like l WHERE EXISTS (SELECT 1 FROM films_like l2 " +
+                "WHERE l2.film_id = l.film_id AND l2.user_id = l.user_id AND l2.films_like_id < l.films_like_id)");
+        jdbc.execute("ALTER TABLE films_like ADD CONSTRAINT IF NOT EXISTS uq_films_like UNIQUE (film_id, user_id)");
+        if (duplicates > 0) {
+            log.info("Удалено повторных лайков: {}.", duplicates);
+        }
+    }
+
+    private static boolean tableExists(JdbcTemplate jdbc, String table) {
+        Integer count = jdbc.queryForObject("SELECT COUNT(*) FROM information_schema.tables " +
+                "WHERE table_schema = CURRENT_SCHEMA AND table_name = ?", Integer.class, table);
+        return count != null && count > 0;
+    }
+}
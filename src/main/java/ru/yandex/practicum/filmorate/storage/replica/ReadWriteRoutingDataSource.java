@@ -0,0 +1,95 @@
+package ru.yandex.practicum.filmorate.storage.replica;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+//выбор БД для соединения: методы хранилищ, выполняемые в транзакции только для чтения
+//(@Transactional(readOnly = true)), читают из реплики, остальные работают с первичной БД.
+//чтение своих изменений: после фиксации изменения запрос запоминает его lsn, а ответ передаёт lsn клиенту
+//в cookie filmorate-lsn. запрос с таким lsn (свой или из cookie) читает из реплики, только если она уже
+//повторила изменения до этого lsn, иначе - из первичной БД. соединение должно выбираться при первой команде,
+//а не при начале транзакции, поэтому источник используется через LazyConnectionDataSourceProxy
+public class ReadWriteRoutingDataSource extends AbstractRoutingDataSource {
+    public static final String LSN_COOKIE = "filmorate-lsn";
+    private static final String LSN_ATTRIBUTE = ReadWriteRoutingDataSource.class.getName() + ".lsn";
+
+    private final LongPredicate replicaApplied; //реплика синхронизирована и повторила изменения до lsn
+
+    public ReadWriteRoutingDataSource(DataSource primary, DataSource replica, LongPredicate replicaApplied) {
+        this.replicaApplied = replicaApplied;
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(Route.PRIMARY, primary);
+        targets.put(Route.REPLICA, replica);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    //текущий запрос зафиксировал изменение с номером lsn: дальше он и клиент, вернувший cookie,
+    //читают из реплики только после повторения этого изменения
+    public static void committed(long lsn) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return;
+        }
+        attributes.setAttribute(LSN_ATTRIBUTE, lsn, RequestAttributes.SCOPE_REQUEST);
+        if (attributes instanceof ServletRequestAttributes) {
+            HttpServletResponse response = ((ServletRequestAttributes) attributes).getResponse();
+            if (response != null && !response.isCommitted()) {
+                Cookie cookie = new Cookie(LSN_COOKIE, Long.toString(lsn));
+                cookie.setPath("/");
+                cookie.setHttpOnly(true);
+                response.addCookie(cookie);
+            }
+        }
+    }
+
+    //наибольший lsn изменений, которые должен видеть текущий запрос
+    private static long requiredLsn() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return 0;
+        }
+        Object own = attributes.getAttribute(LSN_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        long lsn = own == null ? 0 : (Long) own;
+        if (attributes instanceof ServletRequestAttributes) {
+            Cookie[] cookies = ((ServletRequestAttributes) attributes).getRequest().getCookies();
+            if (cookies != null) {
+                for (Cookie cookie : cookies) {
+                    if (LSN_COOKIE.equals(cookie.getName())) {
+                        try {
+                            lsn = Math.max(lsn, Long.parseLong(cookie.getValue()));
+                        } catch (NumberFormatException e) {
+                            //некорректный cookie не учитывается
+                        }
+                    }
+                }
+            }
+        }
+        return lsn;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+                && replicaApplied.test(requiredLsn())) {
+            return Route.REPLICA;
+        }
+        return Route.PRIMARY;
+    }
+
+    private enum Route {
+        PRIMARY,
+        REPLICA
+    }
+}
@@ -0,0 +1,242 @@
+package ru.yandex.practicum.filmorate.storage.replica;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+//доставка журнала первичной БД на реплику (H2) для локальной проверки чтения из реплики.
+//после создания всех бинов (и миграций) реплика заполняется снимком первичной БД (SCRIPT / RUNSCRIPT),
+//затем записи журнала, появившиеся после снимка, повторяются на реплике одним потоком,
+//каждая запись - в одной транзакции. lagMs задаёт искусственную задержку доставки.
+//вставленным строкам назначаются id, выданные первичной БД: счётчик identity реплики перед командой
+//переставляется так, чтобы выданные репликой id не совпали с существующими, затем id заменяются.
+//если запись не удалось повторить или она была отброшена переполненным журналом, реплика считается
+//рассинхронизированной: чтение идёт из первичной БД, пока реплика не будет заполнена заново новым снимком
+@Slf4j
+public class ReplicaLogShipper implements SmartInitializingSingleton {
+    private static final long POLL_MS = 100;
+
+    private final ReplicatingDataSource primary;
+    private final JdbcTemplate replicaJdbc;
+    private final TransactionTemplate replicaTransaction;
+    private final long lagMs;
+    private final Thread shipper;
+    private final AtomicLong appliedLsn = new AtomicLong();
+    private volatile long snapshotLsn;
+    private volatile boolean synced; //реплика заполнена и все доставленные записи повторены успешно
+    private volatile boolean closed;
+
+    public ReplicaLogShipper(ReplicatingDataSource primary, DataSource replica, long lagMs) {
+        this.primary = primary;
+        this.replicaJdbc = new JdbcTemplate(replica);
+        this.replicaTransaction = new TransactionTemplate(new DataSourceTransactionManager(replica));
+        this.lagMs = lagMs;
+        this.shipper = new Thread(this::run, "replica-shipper");
+        this.shipper.setDaemon(true);
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        snapshot();
+        shipper.start();
+        log.info("Реплика заполнена снимком первичной БД, доставка журнала запущена (задержка {} мс).", lagMs);
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    public long getAppliedLsn() {
+        return appliedLsn.get();
+    }
+
+    //реплика синхронизирована и повторила изменения до lsn включительно. lsn больше последнего выданного
+    //первичной БД получен до её перезапуска (счётчик начинается заново) и не учитывается
+    public boolean hasApplied(long lsn) {
+        return synced && (appliedLsn.get() >= lsn || lsn > primary.getLastLsn());
+    }
+
+    //ожидает, пока на реплике будут повторены все изменения, зафиксированные к моменту вызова
+    public boolean awaitCaughtUp(long timeoutMs) throws InterruptedException {
+        long lsn = primary.getLastLsn();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (appliedLsn.get() < lsn) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        closed = true;
+        shipper.interrupt();
+        shipper.join();
+    }
+
+    //заполняет реплику копией первичной БД; изменения во время снимка ждут его окончания
+    private void snapshot() {
+        synced = false;
+        Path file = null;
+        try {
+            file = Files.createTempFile("filmorate-replica", ".sql");
+            String path = file.toAbsolutePath().toString().replace("'", "''");
+            JdbcTemplate primaryJdbc = new JdbcTemplate(primary.getTargetDataSource());
+            long lsn = primary.withCommitLock(() -> {
+                primaryJdbc.execute("SCRIPT TO '" + path + "'");
+                return primary.getLastLsn();
+            });
+            replicaJdbc.execute("DROP ALL OBJECTS");
+            replicaJdbc.execute("RUNSCRIPT FROM '" + path + "'");
+            snapshotLsn = lsn;
+            appliedLsn.set(lsn);
+            synced = true;
+            log.debug("Снимок первичной БД загружен в реплику, lsn={}.", lsn);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    log.warn("Не удалось удалить файл снимка {}: {}", file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                if (!synced || primary.getDroppedLsn() > appliedLsn.get()) {
+                    resync();
+                    continue;
+                }
+                ReplicatingDataSource.LogEntry entry = primary.poll(POLL_MS);
+                if (entry == null || entry.lsn() <= snapshotLsn) {
+                    continue;
+                }
+                if (entry.lsn() != appliedLsn.get() + 1) {
+                    log.warn("Пропущены записи журнала до lsn={}, реплика будет заполнена заново.", entry.lsn());
+                    synced = false;
+                    continue;
+                }
+                long wait = entry.createdAt() + lagMs - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                apply(entry);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.error("Ошибка доставки журнала на реплику, реплика будет заполнена заново: {}", e.getMessage());
+                synced = false;
+            }
+        }
+    }
+
+    private void resync() throws InterruptedException {
+        try {
+            snapshot();
+            log.info("Реплика заполнена заново снимком первичной БД.");
+        } catch (RuntimeException e) {
+            log.error("Не удалось заполнить реплику: {}", e.getMessage());
+            Thread.sleep(POLL_MS);
+        }
+    }
+
+    private void apply(ReplicatingDataSource.LogEntry entry) {
+        replicaTransaction.executeWithoutResult(status -> {
+            for (ReplicatingDataSource.Change change : entry.changes()) {
+                if (change.keys() != null) {
+                    replicaJdbc.execute((ConnectionCallback<Void>) connection -> {
+                        applyWithKeys(connection, change);
+                        return null;
+                    });
+                } else if (change.rows().size() == 1) {
+                    replicaJdbc.update(change.sql(), change.rows().get(0));
+                } else {
+                    replicaJdbc.batchUpdate(change.sql(), change.rows());
+                }
+            }
+        });
+        appliedLsn.set(entry.lsn());
+        log.debug("На реплике повторена запись журнала lsn={}, изменений {}.", entry.lsn(), entry.changes().size());
+    }
+
+    //вставка с id первичной БД. счётчик identity начинается с наименьшего выданного id, если он больше
+    //всех id реплики (обычно выданные репликой id совпадут с ними), иначе - после всех id реплики и выданных:
+    //замена id с наибольшего не встречает занятых значений
+    private void applyWithKeys(Connection connection, ReplicatingDataSource.Change change) throws SQLException {
+        ReplicatingDataSource.GeneratedKeys keys = change.keys();
+        long[] primaryIds = keys.values();
+        long maxId = Optional.ofNullable(replicaJdbc.queryForObject("SELECT MAX(" + keys.column() + ") FROM " +
+                keys.table(), Long.class)).orElse(0L);
+        long minKey = Arrays.stream(primaryIds).min().orElseThrow();
+        long start = minKey > maxId ? minKey : Math.max(maxId, Arrays.stream(primaryIds).max().orElseThrow()) + 1;
+        replicaJdbc.update("ALTER TABLE " + keys.table() + " ALTER COLUMN " + keys.column() + " RESTART WITH ?",
+                start);
+        long[] replicaIds;
+        try (PreparedStatement statement = connection.prepareStatement(change.sql(), new String[]{keys.column()})) {
+            for (Object[] row : change.rows()) {
+                new ArgumentPreparedStatementSetter(row).setValues(statement);
+                if (change.rows().size() > 1) {
+                    statement.addBatch();
+                }
+            }
+            if (change.rows().size() > 1) {
+                statement.executeBatch();
+            } else {
+                statement.executeUpdate();
+            }
+            replicaIds = readKeys(statement);
+        }
+        if (replicaIds.length != primaryIds.length) {
+            throw new IllegalStateException("На реплике вставлено строк " + replicaIds.length + " вместо " +
+                    primaryIds.length + " в таблицу " + keys.table());
+        }
+        List<Object[]> renames = new ArrayList<>();
+        for (int i = primaryIds.length - 1; i >= 0; i--) {
+            if (replicaIds[i] != primaryIds[i]) {
+                renames.add(new Object[]{primaryIds[i], replicaIds[i]});
+            }
+        }
+        if (!renames.isEmpty()) {
+            replicaJdbc.batchUpdate("UPDATE " + keys.table() + " SET " + keys.column() + " = ? WHERE " +
+                    keys.column() + " = ?", renames);
+        }
+    }
+
+    private static long[] readKeys(Statement statement) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            while (keys.next()) {
+                ids.add(keys.getLong(1));
+            }
+        }
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+}
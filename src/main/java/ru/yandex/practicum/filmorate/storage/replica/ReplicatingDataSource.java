@@ -0,0 +1,452 @@
+package ru.yandex.practicum.filmorate.storage.replica;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//первичная БД с журналом изменений для реплики (репликация команд).
+//соединения оборачиваются: выполненные изменяющие команды с параметрами запоминаются и после фиксации
+//транзакции попадают в журнал одной записью с порядковым номером (lsn). транзакции выполняются параллельно,
+//под блокировкой только фиксация и добавление в журнал, поэтому порядок записей журнала - порядок фиксаций.
+//изменяющая команда в режиме автофиксации выполняется как отдельная транзакция с той же фиксацией.
+//id, выданные первичной БД при вставке (identity), запоминаются вместе с командой: при повторении на реплике
+//они назначаются тем же строкам, даже если транзакции получили id не в порядке фиксации.
+//журнал ограничен capacity записями: фиксация ждёт места не дольше waitMs, затем запись отбрасывается,
+//и реплика заполняется заново снимком (см. ReplicaLogShipper)
+public class ReplicatingDataSource extends DelegatingDataSource {
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final long DEFAULT_WAIT_MS = 1_000;
+
+    private static final List<String> WRITE_METHODS = List.of("execute", "executeUpdate", "executeLargeUpdate",
+            "executeBatch", "executeLargeBatch");
+    private static final Pattern INSERT_TABLE = Pattern.compile("^\\s*(?:INSERT|MERGE)\\s+INTO\\s+(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+    private static final RowSetFactory ROW_SETS = rowSetFactory();
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final BlockingQueue<LogEntry> journal = new LinkedBlockingQueue<>();
+    private final Semaphore journalSpace; //свободные места журнала
+    private final long waitMs;
+    private final AtomicLong lastLsn = new AtomicLong();
+    private final AtomicLong droppedLsn = new AtomicLong(); //наибольший lsn отброшенной записи
+    private final Map<String, Optional<String>> identityColumns = new ConcurrentHashMap<>(); //таблица -> identity
+    private final LongConsumer onCommit; //вызывается в потоке, зафиксировавшем изменение, с его lsn
+
+    public ReplicatingDataSource(DataSource primary, LongConsumer onCommit) {
+        this(primary, DEFAULT_CAPACITY, DEFAULT_WAIT_MS, onCommit);
+    }
+
+    public ReplicatingDataSource(DataSource primary, int capacity, long waitMs, LongConsumer onCommit) {
+        super(primary);
+        if (capacity <= 0 || waitMs < 0) {
+            throw new IllegalArgumentException("Некорректные параметры журнала: capacity=" + capacity +
+                    ", waitMs=" + waitMs);
+        }
+        this.journalSpace = new Semaphore(capacity);
+        this.waitMs = waitMs;
+        this.onCommit = onCommit;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrap(super.getConnection(username, password));
+    }
+
+    //выполняет действие, пока фиксации изменений ждут (снимок для реплики): данные первичной БД
+    //соответствуют записям журнала до getLastLsn() включительно
+    public <T> T withCommitLock(Supplier<T> action) {
+        commitLock.lock();
+        try {
+            return action.get();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    public long getLastLsn() {
+        return lastLsn.get();
+    }
+
+    //изменения до этого lsn могли не попасть в журнал: реплику нужно заполнить заново
+    public long getDroppedLsn() {
+        return droppedLsn.get();
+    }
+
+    //следующая запись журнала или null, если за время ожидания изменений не было
+    public LogEntry poll(long timeoutMs) throws InterruptedException {
+        LogEntry entry = journal.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (entry != null) {
+            journalSpace.release();
+        }
+        return entry;
+    }
+
+    private Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                new ConnectionHandler(connection));
+    }
+
+    //таблица, в которую вставляет команда, или null
+    private static String insertTable(String sql) {
+        Matcher matcher = INSERT_TABLE.matcher(sql);
+        return matcher.find() ? matcher.group(1).toUpperCase(Locale.ROOT) : null;
+    }
+
+    //столбец identity таблицы или null; столбцы читаются из метаданных один раз для каждой таблицы
+    private String identityColumn(Connection connection, String table) throws SQLException {
+        Optional<String> column = identityColumns.get(table);
+        if (column == null) {
+            String found = null;
+            try (ResultSet columns = connection.getMetaData().getColumns(null, null, table, null)) {
+                while (columns.next()) {
+                    if ("YES".equals(columns.getString("IS_AUTOINCREMENT"))) {
+                        found = columns.getString("COLUMN_NAME");
+                    }
+                }
+            }
+            column = Optional.ofNullable(found);
+            identityColumns.put(table, column);
+        }
+        return column.orElse(null);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static RowSetFactory rowSetFactory() {
+        try {
+            return RowSetProvider.newFactory();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Реализация RowSet недоступна", e);
+        }
+    }
+
+    //запись журнала: изменяющие команды одной транзакции
+    public record LogEntry(long lsn, long createdAt, List<Change> changes) {
+    }
+
+    //команда и наборы параметров (несколько - для пакета, пустой массив - команда без параметров);
+    //keys - id, выданные вставленным строкам, или null
+    public record Change(String sql, List<Object[]> rows, GeneratedKeys keys) {
+    }
+
+    //значения столбца identity таблицы в порядке вставки строк
+    public record GeneratedKeys(String table, String column, long[] values) {
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private final Connection target;
+        private final List<Change> pending = new ArrayList<>();
+        private boolean implicitTransaction; //автофиксация отключена на время изменяющей команды
+
+        private ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return prepareStatement(method, args);
+                case "createStatement":
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Statement.class},
+                            new StatementHandler(this, (Statement) ReplicatingDataSource.invoke(target, method, args),
+                                    null, null));
+                case "commit":
+                    commit();
+                    return null;
+                case "rollback":
+                    Object result = ReplicatingDataSource.invoke(target, method, args);
+                    if (args == null) {
+                        pending.clear();
+                    }
+                    return result;
+                case "setAutoCommit":
+                    //включение автофиксации фиксирует текущую транзакцию
+                    if ((Boolean) args[0] && !target.getAutoCommit()) {
+                        commit();
+                    }
+                    target.setAutoCommit((Boolean) args[0]);
+                    return null;
+                case "close":
+                    pending.clear();
+                    target.close();
+                    return null;
+                default:
+                    return ReplicatingDataSource.invoke(target, method, args);
+            }
+        }
+
+        //вставка в таблицу с identity готовится с возвратом выданных id, если вызывающий не запросил другое
+        private Object prepareStatement(Method method, Object[] args) throws Throwable {
+            String sql = (String) args[0];
+            String[] identity = identity(sql);
+            Statement statement;
+            if (identity != null && args.length == 1) {
+                statement = target.prepareStatement(sql, new String[]{identity[1]});
+            } else {
+                statement = (Statement) ReplicatingDataSource.invoke(target, method, args);
+                if (identity != null && !returnsKey(args, identity[1])) {
+                    identity = null;
+                }
+            }
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                    new StatementHandler(this, statement, sql, identity));
+        }
+
+        //таблица и столбец identity, если команда вставляет в таблицу с identity, иначе null
+        private String[] identity(String sql) throws SQLException {
+            String table = insertTable(sql);
+            String column = table == null ? null : identityColumn(target, table);
+            return column == null ? null : new String[]{table, column};
+        }
+
+        private boolean returnsKey(Object[] args, String column) {
+            if (args.length != 2) {
+                return false;
+            }
+            if (args[1] instanceof String[]) {
+                return Arrays.stream((String[]) args[1]).anyMatch(column::equalsIgnoreCase);
+            }
+            return Integer.valueOf(Statement.RETURN_GENERATED_KEYS).equals(args[1]);
+        }
+
+        //перед изменяющей командой в режиме автофиксации открывается транзакция
+        private void beforeWrite() throws SQLException {
+            if (target.getAutoCommit()) {
+                target.setAutoCommit(false);
+                implicitTransaction = true;
+            }
+        }
+
+        private void afterWrite(Change change) throws SQLException {
+            if (change != null) {
+                pending.add(change);
+            }
+            if (implicitTransaction) {
+                try {
+                    commit();
+                } finally {
+                    endImplicitTransaction();
+                }
+            }
+        }
+
+        private void afterFailedWrite() throws SQLException {
+            if (implicitTransaction) {
+                try {
+                    pending.clear();
+                    target.rollback();
+                } finally {
+                    endImplicitTransaction();
+                }
+            }
+        }
+
+        private void endImplicitTransaction() throws SQLException {
+            implicitTransaction = false;
+            target.setAutoCommit(true);
+        }
+
+        //фиксация и добавление записи в журнал под одной блокировкой: порядок журнала совпадает с порядком
+        //фиксаций, а снимок под этой блокировкой не видит изменений, которых нет в журнале.
+        //место в журнале ожидается до блокировки, чтобы медленная реплика не останавливала другие фиксации
+        private void commit() throws SQLException {
+            if (pending.isEmpty()) {
+                target.commit();
+                return;
+            }
+            boolean reserved = reserveSpace();
+            long lsn;
+            commitLock.lock();
+            try {
+                target.commit();
+                lsn = lastLsn.incrementAndGet();
+                if (reserved) {
+                    journal.add(new LogEntry(lsn, System.currentTimeMillis(), List.copyOf(pending)));
+                } else {
+                    droppedLsn.set(lsn);
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (reserved) {
+                    journalSpace.release();
+                }
+                throw e;
+            } finally {
+                pending.clear();
+                commitLock.unlock();
+            }
+            onCommit.accept(lsn);
+        }
+
+        private boolean reserveSpace() {
+            try {
+                return journalSpace.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    //запоминает параметры команды и передаёт выполненные изменяющие команды соединению
+    private static class StatementHandler implements InvocationHandler {
+        private final ConnectionHandler connection;
+        private final Statement target;
+        private final String sql; //null для Statement: команда передаётся при выполнении
+        private final String[] identity; //таблица и столбец identity, если выданные id возвращаются командой
+        private String[] sqlIdentity; //то же для последней команды Statement
+        private Object[] parameters = new Object[0];
+        private final List<Object[]> batch = new ArrayList<>();
+        private final List<String> sqlBatch = new ArrayList<>();
+        private CachedRowSet generatedKeys; //выданные id, прочитанные для журнала
+
+        private StatementHandler(ConnectionHandler connection, Statement target, String sql, String[] identity) {
+            this.connection = connection;
+            this.target = target;
+            this.sql = sql;
+            this.identity = identity;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+                    && sql != null) {
+                setParameter((Integer) args[0], name.equals("setNull") ? null : args[1]);
+            } else if (name.equals("clearParameters")) {
+                parameters = new Object[0];
+            } else if (name.equals("addBatch")) {
+                if (args == null) {
+                    batch.add(parameters.clone());
+                } else {
+                    sqlBatch.add((String) args[0]);
+                }
+            } else if (name.equals("clearBatch")) {
+                batch.clear();
+                sqlBatch.clear();
+            } else if (name.equals("getGeneratedKeys") && generatedKeys != null) {
+                return generatedKeys;
+            } else if (WRITE_METHODS.contains(name)) {
+                return execute(method, args);
+            }
+            return ReplicatingDataSource.invoke(target, method, args);
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            connection.beforeWrite();
+            generatedKeys = null;
+            Object result;
+            Change change;
+            try {
+                result = sql == null ? executeSql(method, args) : ReplicatingDataSource.invoke(target, method, args);
+                //execute, вернувший true, выполнил запрос с результатом - изменений нет
+                boolean query = Boolean.TRUE.equals(result) && method.getName().equals("execute");
+                change = query ? null : change(method, args);
+            } catch (Throwable e) {
+                connection.afterFailedWrite();
+                throw e;
+            }
+            connection.afterWrite(change);
+            return result;
+        }
+
+        //команда Statement со вставкой в таблицу с identity выполняется с возвратом выданных id
+        private Object executeSql(Method method, Object[] args) throws Throwable {
+            sqlIdentity = args != null && args.length == 1 ? connection.identity((String) args[0]) : null;
+            if (sqlIdentity == null) {
+                return ReplicatingDataSource.invoke(target, method, args);
+            }
+            String[] columns = {sqlIdentity[1]};
+            switch (method.getName()) {
+                case "execute":
+                    return target.execute((String) args[0], columns);
+                case "executeUpdate":
+                    return target.executeUpdate((String) args[0], columns);
+                default:
+                    return target.executeLargeUpdate((String) args[0], columns);
+            }
+        }
+
+        private Change change(Method method, Object[] args) throws SQLException {
+            boolean isBatch = method.getName().endsWith("Batch");
+            if (sql == null) {
+                if (isBatch) {
+                    List<String> commands = List.copyOf(sqlBatch);
+                    sqlBatch.clear();
+                    return new Change(String.join(";\n", commands), List.<Object[]>of(new Object[0]), null);
+                }
+                return new Change((String) args[0], List.<Object[]>of(new Object[0]), readKeys(sqlIdentity));
+            }
+            if (isBatch) {
+                List<Object[]> rows = List.copyOf(batch);
+                batch.clear();
+                return rows.isEmpty() ? null : new Change(sql, rows, readKeys(identity));
+            }
+            return new Change(sql, List.<Object[]>of(parameters.clone()), readKeys(identity));
+        }
+
+        //выданные id копируются: вызывающий код прочитает их из копии
+        private GeneratedKeys readKeys(String[] identity) throws SQLException {
+            if (identity == null) {
+                return null;
+            }
+            generatedKeys = ROW_SETS.createCachedRowSet();
+            try (ResultSet keys = target.getGeneratedKeys()) {
+                generatedKeys.populate(keys);
+            }
+            long[] values = new long[generatedKeys.size()];
+            for (int i = 0; generatedKeys.next(); i++) {
+                values[i] = generatedKeys.getLong(identity[1]);
+            }
+            generatedKeys.beforeFirst();
+            return values.length == 0 ? null : new GeneratedKeys(identity[0], identity[1], values);
+        }
+
+        private void setParameter(int index, Object value) {
+            if (index > parameters.length) {
+                parameters = Arrays.copyOf(parameters, index);
+            }
+            parameters[index - 1] = value;
+        }
+    }
+}
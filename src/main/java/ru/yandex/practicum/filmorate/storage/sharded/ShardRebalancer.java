@@ -0,0 +1,144 @@
+package ru.yandex.practicum.filmorate.storage.sharded;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+//изменение числа шардов: пользователи, шард которых при новом списке шардов изменился, переносятся
+//вместе со своими друзьями и лайками. запись пары друзей остаётся в старом шарде, если в нём остался
+//второй пользователь пары. запускается при остановленном приложении:
+//java -cp filmorate.jar -Dloader.main=ru.yandex.practicum.filmorate.storage.sharded.ShardRebalancer
+//  org.springframework.boot.loader.PropertiesLauncher --from=url1,url2 --to=url1,url2,url3 [--user=sa --password=...]
+//после завершения в filmorate.sharding.urls указывается новый список. при добавлении шарда в конец списка
+//jump hash переносит пользователей только в новый шард. пользователь сначала копируется в новый шард,
+//затем удаляется из старого, поэтому прерванный перенос можно безопасно запустить повторно
+@Slf4j
+public class ShardRebalancer {
+    private static final int CHUNK_SIZE = 500; //пользователей, переносимых за одну транзакцию
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Неизвестный аргумент: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        if (!options.containsKey("from") || !options.containsKey("to")) {
+            throw new IllegalArgumentException("Использование: --from=url1,url2 --to=url1,url2,url3 " +
+                    "[--user=sa --password=password]");
+        }
+        String user = options.getOrDefault("user", "sa");
+        String password = options.getOrDefault("password", "password");
+        long moved = rebalance(List.of(options.get("from").split(",")), List.of(options.get("to").split(",")),
+                url -> new DriverManagerDataSource(url, user, password));
+        log.info("Перенесено пользователей: {}", moved);
+    }
+
+    //переносит пользователей из шардов from в шарды to, возвращает число перенесённых пользователей.
+    //шард определяется адресом: адрес, входящий в оба списка, - одна и та же БД
+    public static long rebalance(List<String> from, List<String> to, Function<String, DataSource> connect) {
+        Map<String, DataSource> dataSources = new HashMap<>();
+        for (String url : to) {
+            Shards.migrate(dataSources.computeIfAbsent(url, connect));
+        }
+        long moved = 0;
+        for (String url : from) {
+            DataSource source = dataSources.computeIfAbsent(url, connect);
+            Shards.migrate(source);
+            moved += drain(url, source, to, dataSources);
+        }
+        return moved;
+    }
+
+    //переносит из шарда source пользователей, которые при новом списке шардов хранятся в другом шарде
+    private static long drain(String sourceUrl, DataSource source, List<String> to, Map<String, DataSource> targets) {
+        JdbcTemplate sourceJdbc = new JdbcTemplate(source);
+        TransactionTemplate sourceTransaction = new TransactionTemplate(new DataSourceTransactionManager(source));
+        long moved = 0;
+        long lastId = 0;
+        while (true) {
+            List<Long> ids = sourceJdbc.queryForList("SELECT user_id FROM users WHERE user_id > ? " +
+                    "ORDER BY user_id LIMIT ?;", Long.class, lastId, CHUNK_SIZE);
+            if (ids.isEmpty()) {
+                break;
+            }
+            lastId = ids.get(ids.size() - 1);
+            Map<String, List<Long>> byTarget = new HashMap<>();
+            for (long userId : ids) {
+                String targetUrl = to.get(Shards.jumpHash(userId, to.size()));
+                if (!targetUrl.equals(sourceUrl)) {
+                    byTarget.computeIfAbsent(targetUrl, url -> new ArrayList<>()).add(userId);
+                }
+            }
+            for (Map.Entry<String, List<Long>> entry : byTarget.entrySet()) {
+                List<Long> userIds = entry.getValue();
+                copy(sourceJdbc, new JdbcTemplate(targets.get(entry.getKey())), targets.get(entry.getKey()), userIds);
+                //лайки удаляются каскадно, записи друзей - если ни один пользователь пары не остался в шарде
+                sourceTransaction.executeWithoutResult(status -> {
+                    List<Object[]> unused = sourceJdbc.query("SELECT user_low, user_high FROM friendships" +
+                                    friendshipsOf(userIds), (rs, rowNum) -> new Object[]{rs.getLong("user_low"),
+                                    rs.getLong("user_high")}, friendshipsArgs(userIds)).stream()
+                            .filter(pair -> !to.get(Shards.jumpHash((Long) pair[0], to.size())).equals(sourceUrl)
+                                    && !to.get(Shards.jumpHash((Long) pair[1], to.size())).equals(sourceUrl))
+                            .collect(Collectors.toList());
+                    sourceJdbc.batchUpdate("DELETE FROM friendships WHERE user_low = ? AND user_high = ?;", unused);
+                    sourceJdbc.update("DELETE FROM users WHERE user_id IN (" + placeholders(userIds) + ");",
+                            userIds.toArray());
+                });
+                moved += userIds.size();
+                log.debug("Из шарда {} в шард {} перенесено пользователей: {}", sourceUrl, entry.getKey(),
+                        userIds.size());
+            }
+        }
+        log.info("Шард {}: перенесено пользователей: {}", sourceUrl, moved);
+        return moved;
+    }
+
+    //копирует пользователей, записи их пар друзей и лайки в шард target в одной транзакции
+    private static void copy(JdbcTemplate source, JdbcTemplate target, DataSource targetDataSource,
+                             List<Long> userIds) {
+        String in = " WHERE user_id IN (" + placeholders(userIds) + ");";
+        List<Object[]> users = source.query("SELECT user_id, email, login, name, birthday FROM users" + in,
+                (rs, rowNum) -> new Object[]{rs.getLong("user_id"), rs.getString("email"), rs.getString("login"),
+                        rs.getString("name"), rs.getDate("birthday")}, userIds.toArray());
+        List<Object[]> friendships = source.query("SELECT user_low, user_high, low_to_high, high_to_low " +
+                        "FROM friendships" + friendshipsOf(userIds),
+                (rs, rowNum) -> new Object[]{rs.getLong("user_low"), rs.getLong("user_high"),
+                        rs.getBoolean("low_to_high"), rs.getBoolean("high_to_low")}, friendshipsArgs(userIds));
+        List<Object[]> likes = source.query("SELECT user_id, film_id, created_at FROM films_like" + in,
+                (rs, rowNum) -> new Object[]{rs.getLong("user_id"), rs.getLong("film_id"),
+                        rs.getTimestamp("created_at")}, userIds.toArray());
+        new TransactionTemplate(new DataSourceTransactionManager(targetDataSource)).executeWithoutResult(status -> {
+            target.batchUpdate("MERGE INTO users(user_id,email,login,name,birthday) KEY(user_id) " +
+                    "VALUES(?,?,?,?,?);", users);
+            target.batchUpdate("MERGE INTO friendships(user_low, user_high, low_to_high, high_to_low) " +
+                    "KEY(user_low, user_high) VALUES(?, ?, ?, ?);", friendships);
+            target.batchUpdate("MERGE INTO films_like(user_id, film_id, created_at) KEY(user_id, film_id) " +
+                    "VALUES(?, ?, ?);", likes);
+        });
+    }
+
+    //условие на записи пар друзей, в которые входят пользователи, и его параметры
+    private static String friendshipsOf(List<Long> userIds) {
+        return " WHERE user_low IN (" + placeholders(userIds) + ") OR user_high IN (" + placeholders(userIds) + ");";
+    }
+
+    private static Object[] friendshipsArgs(List<Long> userIds) {
+        List<Long> args = new ArrayList<>(userIds);
+        args.addAll(userIds);
+        return args.toArray();
+    }
+
+    private static String placeholders(List<Long> ids) {
+        return String.join(",", Collections.nCopies(ids.size(), "?"));
+    }
+}
@@ -0,0 +1,104 @@
+package ru.yandex.practicum.filmorate.storage.sharded;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+//фильмы в режиме с шардами хранятся в основной БД, а их лайки - в шардах пользователей.
+//популярные фильмы: отбираются по количествам лайков, которые хранилище лайков держит в памяти,
+//затем читаются данные выбранных фильмов. удаление фильма удаляет его лайки во всех шардах
+@Component("filmShardedDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "sharded")
+@Slf4j
+public class ShardedFilmDao implements FilmDao {
+    private final FilmDao filmDao;
+    private final ShardedFilmLikeDao likeDao;
+
+    public ShardedFilmDao(@Qualifier("filmDbStorage") FilmDao filmDao, ShardedFilmLikeDao likeDao) {
+        this.filmDao = filmDao;
+        this.likeDao = likeDao;
+    }
+
+    @Override
+    public Film addFilm(Film film) {
+        return filmDao.addFilm(film);
+    }
+
+    @Override
+    public Film updateFilm(Film film) {
+        return filmDao.updateFilm(film);
+    }
+
+    @Override
+    public void deleteFilm(long filmId) {
+        filmDao.deleteFilm(filmId);
+        likeDao.deleteFilmLikes(filmId);
+    }
+
+    @Override
+    public boolean exists(long filmId) {
+        return filmDao.exists(filmId);
+    }
+
+    @Override
+    public Film getFilm(long filmId) {
+        return filmDao.getFilm(filmId);
+    }
+
+    @Override
+    public List<Film> getFilms() {
+        return filmDao.getFilms();
+    }
+
+    @Override
+    public List<Film> getFilms(Set<FilmField> fields) {
+        return filmDao.getFilms(fields);
+    }
+
+    @Override
+    public List<Film> getPopularFilms(long maxCount) {
+        return getPopularFilms(maxCount, FilmField.ALL);
+    }
+
+    //порядок тот же, что у хранилища БД: по убыванию лайков, затем по id,
+    //фильмы без лайков - после фильмов с лайками. фильмы с лайками отбираются по количествам лайков в памяти,
+    //список всех фильмов читается, только если фильмов с лайками меньше maxCount
+    @Override
+    public List<Film> getPopularFilms(long maxCount, Set<FilmField> fields) {
+        int count = (int) Math.min(maxCount, Integer.MAX_VALUE);
+        List<Long> ranking = new ArrayList<>(likeDao.getMostLiked(count));
+        if (ranking.size() < count) {
+            Set<Long> liked = new HashSet<>(ranking);
+            filmDao.getFilms(EnumSet.of(FilmField.ID)).stream()
+                    .map(Film::getId)
+                    .filter(id -> !liked.contains(id))
+                    .sorted()
+                    .limit(count - ranking.size())
+                    .forEach(ranking::add);
+        }
+        //лайки удалённого фильма могли остаться в количествах до завершения его удаления
+        Map<Long, Film> films = filmDao.getFilmsByIds(ranking);
+        log.debug("Популярные фильмы выбраны по количествам лайков из шардов: {} фильмов.", ranking.size());
+        return ranking.stream().map(films::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<Long, Film> getFilmsByIds(Collection<Long> filmIds) {
+        return filmDao.getFilmsByIds(filmIds);
+    }
+
+    @Override
+    public void exportFilms(Consumer<Film> consumer) {
+        filmDao.exportFilms(consumer);
+    }
+}
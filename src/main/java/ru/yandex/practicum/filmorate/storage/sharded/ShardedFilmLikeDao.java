@@ -0,0 +1,239 @@
+package ru.yandex.practicum.filmorate.storage.sharded;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
+import ru.yandex.practicum.filmorate.model.LikeState;
+import ru.yandex.practicum.filmorate.model.UserEvent;
+import ru.yandex.practicum.filmorate.model.UserEventType;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmDao;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.TrendingCounters;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserEventDao;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//лайки в шардах: лайк хранится в шарде пользователя, поэтому добавление и удаление - запрос к одному шарду.
+//лайки фильма разнесены по всем шардам, поэтому количества лайков фильмов (для популярных и ответа на лайк)
+//читаются из всех шардов один раз при первом обращении и дальше поддерживаются в памяти при изменениях
+//лайков (шарды изменяются только этим приложением). изменение лайка и обновление количества выполняются
+//под блокировкой чтения, чтение количеств из шардов - под блокировкой записи, поэтому изменение не
+//учитывается дважды и не теряется. время лайка записывается в шард и учитывается счётчиками трендов,
+//события лайков записываются в ленту в основной БД
+@Component("filmLikeShardedDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "sharded")
+@Slf4j
+public class ShardedFilmLikeDao implements FilmLikeDao {
+    //если лайк уже есть, то запись не добавляется и число изменённых строк равно 0
+    private static final String ADD_LIKE_SQL = "MERGE INTO films_like t " +
+            "USING (VALUES (CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS TIMESTAMP))) " +
+            "s(user_id, film_id, created_at) ON t.user_id = s.user_id AND t.film_id = s.film_id " +
+            "WHEN NOT MATCHED THEN INSERT (user_id, film_id, created_at) VALUES (s.user_id, s.film_id, s.created_at);";
+
+    private final Shards shards;
+    private final FilmDao filmDao; //фильмы хранятся в основной БД
+    private final DataVersions dataVersions;
+    private final TrendingCounters trending;
+    private final UserEventDao eventDao;
+    private final ReadWriteLock countsLock = new ReentrantReadWriteLock();
+    private volatile Map<Long, Long> likeCounts; //количества лайков фильмов, у которых они есть; null до чтения
+
+    public ShardedFilmLikeDao(Shards shards, @Qualifier("filmDbStorage") FilmDao filmDao, DataVersions dataVersions,
+                              TrendingCounters trending, UserEventDao eventDao) {
+        this.shards = shards;
+        this.filmDao = filmDao;
+        this.dataVersions = dataVersions;
+        this.trending = trending;
+        this.eventDao = eventDao;
+    }
+
+    //заполнение счётчиков трендов лайками за окно счётчиков из всех шардов
+    @PostConstruct
+    public void loadTrending() {
+        Timestamp windowStart = Timestamp.from(trending.windowStart());
+        List<List<Object[]>> likes = shards.scatter(shard -> shard.query("SELECT film_id, created_at " +
+                "FROM films_like WHERE created_at >= ?;", (rs, rowNum) -> new Object[]{rs.getLong("film_id"),
+                rs.getTimestamp("created_at").toInstant()}, windowStart));
+        likes.forEach(shardLikes -> shardLikes.forEach(like -> trending.add((Long) like[0], (Instant) like[1], 1)));
+        log.debug("В счётчики трендов загружено лайков из шардов: {}",
+                likes.stream().mapToInt(List::size).sum());
+    }
+
+    @Override
+    public LikeState addLike(long filmId, long userId) {
+        checkFilm(filmId);
+        Instant likedAt = trending.now();
+        boolean changed;
+        countsLock.readLock().lock();
+        try {
+            changed = shards.forUser(userId).update(ADD_LIKE_SQL, userId, filmId, Timestamp.from(likedAt)) > 0;
+            if (changed) {
+                adjustCount(filmId, 1);
+            }
+        } catch (DuplicateKeyException e) {
+            log.debug("Лайк фильму с id={} от пользователя с id={} добавлен параллельным запросом.", filmId, userId);
+            changed = false;
+        } catch (DataIntegrityViolationException e) {
+            log.debug("Возникло исключение: пользователь не найден.");
+            throw new FilmNotFoundException("Фильм с id=" + filmId + " или пользователь с id=" + userId + " не найден.");
+        } finally {
+            countsLock.readLock().unlock();
+        }
+        if (changed) {
+            trending.add(filmId, likedAt, 1);
+            eventDao.addEvents(List.of(new UserEvent(0, userId, UserEventType.LIKE, filmId, null)));
+            dataVersions.likesChanged(filmId);
+            log.debug("Для фильма с id={} добавлен лайк пользователем с id={}.", filmId, userId);
+        }
+        return new LikeState(filmId, userId, true, changed, countLikes(filmId));
+    }
+
+    //время лайка читается с блокировкой строки в транзакции шарда, чтобы вычесть лайк из счётчика его часа
+    @Override
+    public LikeState deleteLike(long filmId, long userId) {
+        checkFilm(filmId);
+        List<Timestamp> likedAt;
+        countsLock.readLock().lock();
+        try {
+            likedAt = shards.transaction(shards.shardOf(userId)).execute(status -> {
+                JdbcTemplate shard = shards.forUser(userId);
+                List<Timestamp> times = shard.queryForList("SELECT created_at FROM films_like " +
+                        "WHERE user_id = ? AND film_id = ? FOR UPDATE;", Timestamp.class, userId, filmId);
+                if (!times.isEmpty()) {
+                    shard.update("DELETE FROM films_like WHERE user_id = ? AND film_id = ?;", userId, filmId);
+                }
+                return times;
+            });
+            if (!likedAt.isEmpty()) {
+                adjustCount(filmId, -1);
+            }
+        } finally {
+            countsLock.readLock().unlock();
+        }
+        boolean changed = !likedAt.isEmpty();
+        if (changed) {
+            //у лайков, поставленных до появления времени лайка, времени нет, и в счётчиках они не учитывались
+            if (likedAt.get(0) != null) {
+                trending.add(filmId, likedAt.get(0).toInstant(), -1);
+            }
+            eventDao.addEvents(List.of(new UserEvent(0, userId, UserEventType.UNLIKE, filmId, null)));
+            dataVersions.likesChanged(filmId);
+            log.debug("Для фильма с id={} удалён лайк пользователем с id={}.", filmId, userId);
+        }
+        return new LikeState(filmId, userId, false, changed, countLikes(filmId));
+    }
+
+    //количество лайков фильма
+    public long countLikes(long filmId) {
+        return counts().getOrDefault(filmId, 0L);
+    }
+
+    //количество лайков каждого фильма, у которого они есть
+    @Override
+    public Map<Long, Long> getLikeCounts() {
+        return new HashMap<>(counts());
+    }
+
+    //id не более count фильмов с наибольшим количеством лайков (при равенстве - меньший id), фильмы без лайков
+    //не учитываются. отбор - минимальной кучей размера count
+    public List<Long> getMostLiked(int count) {
+        Comparator<Map.Entry<Long, Long>> worstFirst = Map.Entry.<Long, Long>comparingByValue()
+                .thenComparing(Map.Entry.<Long, Long>comparingByKey().reversed());
+        PriorityQueue<Map.Entry<Long, Long>> heap = new PriorityQueue<>(worstFirst);
+        for (Map.Entry<Long, Long> entry : counts().entrySet()) {
+            Map.Entry<Long, Long> candidate = Map.entry(entry.getKey(), entry.getValue());
+            if (heap.size() < count) {
+                heap.add(candidate);
+            } else if (count > 0 && worstFirst.compare(candidate, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(candidate);
+            }
+        }
+        List<Long> filmIds = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            filmIds.add(heap.poll().getKey());
+        }
+        Collections.reverse(filmIds);
+        return filmIds;
+    }
+
+    //удаление лайков удалённого фильма во всех шардах
+    public void deleteFilmLikes(long filmId) {
+        int rows;
+        countsLock.readLock().lock();
+        try {
+            rows = shards.scatter(shard -> shard.update("DELETE FROM films_like WHERE film_id = ?;", filmId))
+                    .stream().mapToInt(Integer::intValue).sum();
+            Map<Long, Long> counts = likeCounts;
+            if (counts != null) {
+                counts.remove(filmId);
+            }
+        } finally {
+            countsLock.readLock().unlock();
+        }
+        log.debug("Удалено {} лайков фильма с id={}.", rows, filmId);
+    }
+
+    private Map<Long, Long> counts() {
+        Map<Long, Long> counts = likeCounts;
+        if (counts != null) {
+            return counts;
+        }
+        countsLock.writeLock().lock();
+        try {
+            if (likeCounts == null) {
+                Map<Long, Long> loaded = new ConcurrentHashMap<>();
+                shards.scatter(shard -> {
+                    Map<Long, Long> shardLikes = new HashMap<>();
+                    shard.query("SELECT film_id, COUNT(*) AS likes FROM films_like GROUP BY film_id;",
+                            (RowCallbackHandler) rs -> shardLikes.put(rs.getLong("film_id"), rs.getLong("likes")));
+                    return shardLikes;
+                }).forEach(shardLikes -> shardLikes.forEach((filmId, count) -> loaded.merge(filmId, count, Long::sum)));
+                likeCounts = loaded;
+                log.debug("Количества лайков прочитаны из шардов для {} фильмов.", loaded.size());
+            }
+            return likeCounts;
+        } finally {
+            countsLock.writeLock().unlock();
+        }
+    }
+
+    //изменение количества лайков, если количества уже прочитаны (вызывается под блокировкой чтения)
+    private void adjustCount(long filmId, long delta) {
+        Map<Long, Long> counts = likeCounts;
+        if (counts != null) {
+            counts.compute(filmId, (id, count) -> {
+                long likes = (count == null ? 0 : count) + delta;
+                return likes > 0 ? likes : null;
+            });
+        }
+    }
+
+    private void checkFilm(long filmId) {
+        if (!filmDao.exists(filmId)) {
+            log.debug("Фильм с id={} не найден.", filmId);
+            throw new FilmNotFoundException("Фильм с id=" + filmId + " не найден.");
+        }
+    }
+}
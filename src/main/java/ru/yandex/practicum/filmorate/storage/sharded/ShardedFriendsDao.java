@@ -0,0 +1,137 @@
+package ru.yandex.practicum.filmorate.storage.sharded;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.UserEvent;
+import ru.yandex.practicum.filmorate.model.UserEventType;
+import ru.yandex.practicum.filmorate.storage.user.dao.FriendsDao;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserEventDao;
+import ru.yandex.practicum.filmorate.storage.user.daoImpl.FriendsDbDao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+//друзья в шардах: дружба хранится как в основной БД (friendships, одна запись на пару с признаками дружбы
+//в каждую сторону), запись пары - в шардах обоих пользователей. поэтому список id друзей и общие друзья
+//пользователей одного шарда - запрос к одному шарду, а изменение дружбы пользователей разных шардов
+//записывается в оба шарда: сначала в шард друга, затем в шард пользователя. запросы идемпотентны, поэтому
+//повтор прерванного изменения приводит шарды к одной записи. данные друзей читаются из их шардов параллельно.
+//события ленты хранятся в основной БД, как и в других режимах: событие записывается, если изменилась запись
+//в шарде пользователя
+@Component("friendsShardedDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "sharded")
+@Slf4j
+public class ShardedFriendsDao implements FriendsDao {
+    private final Shards shards;
+    private final UserDao userDao;
+    private final UserEventDao eventDao;
+
+    public ShardedFriendsDao(Shards shards, @Qualifier("userShardedDao") UserDao userDao, UserEventDao eventDao) {
+        this.shards = shards;
+        this.userDao = userDao;
+        this.eventDao = eventDao;
+    }
+
+    @Override
+    public void addFriend(long userId, long friendId) {
+        int rows = mergeFriendship(FriendsDbDao.ADD_FRIEND_SQL, userId, friendId);
+        if (rows > 0) {
+            eventDao.addEvents(List.of(new UserEvent(0, userId, UserEventType.FRIEND_ADD, friendId, null)));
+        }
+        log.debug("Добавление в друзья: userId={}, friendId={}, изменено записей: {}", userId, friendId, rows);
+    }
+
+    @Override
+    public void deleteFriend(long userId, long friendId) {
+        int rows = mergeFriendship(FriendsDbDao.DELETE_FRIEND_SQL, userId, friendId);
+        if (rows > 0) {
+            eventDao.addEvents(List.of(new UserEvent(0, userId, UserEventType.FRIEND_REMOVE, friendId, null)));
+        }
+        log.debug("Удаление из друзей: userId={}, friendId={}, изменено записей: {}", userId, friendId, rows);
+    }
+
+    //изменение записи пары в шарде друга (если он в другом шарде) и в шарде пользователя,
+    //возвращает число изменённых строк в шарде пользователя
+    private int mergeFriendship(String sql, long userId, long friendId) {
+        Object[] args = FriendsDbDao.friendshipArgs(userId, friendId);
+        if (shards.shardOf(friendId) != shards.shardOf(userId)) {
+            merge(shards.forUser(friendId), sql, args);
+        }
+        return merge(shards.forUser(userId), sql, args);
+    }
+
+    //при одновременной вставке одной пары второй запрос нарушит первичный ключ: повторяем его,
+    //и он найдёт запись, добавленную первым
+    private static int merge(JdbcTemplate shard, String sql, Object[] args) {
+        try {
+            return shard.update(sql, args);
+        } catch (DuplicateKeyException e) {
+            return shard.update(sql, args);
+        }
+    }
+
+    @Override
+    public List<User> getFriends(long userId) {
+        List<Long> friendIds = shards.forUser(userId).queryForList(FriendsDbDao.FRIEND_IDS_SQL, Long.class,
+                userId, userId);
+        List<User> users = loadUsers(friendIds);
+        log.debug("Количество друзей пользователя с id={}: {}", userId, users.size());
+        return users;
+    }
+
+    @Override
+    public List<User> getCommonFriends(long userId, long otherId) {
+        List<Long> commonIds;
+        if (shards.shardOf(userId) == shards.shardOf(otherId)) {
+            //запрос друзей - объединение, а INTERSECT выполняется раньше UNION, поэтому запросы в скобках
+            commonIds = shards.forUser(userId).queryForList("(" + FriendsDbDao.FRIEND_IDS_SQL + ") INTERSECT (" +
+                    FriendsDbDao.FRIEND_IDS_SQL + ")", Long.class, userId, userId, otherId, otherId);
+        } else {
+            List<List<Long>> friendIds = shards.scatter(List.of(shards.shardOf(userId), shards.shardOf(otherId)),
+                    shard -> {
+                        long id = shard == shards.shardOf(userId) ? userId : otherId;
+                        return shards.get(shard).queryForList(FriendsDbDao.FRIEND_IDS_SQL, Long.class, id, id);
+                    });
+            Set<Long> common = new HashSet<>(friendIds.get(0));
+            common.retainAll(friendIds.get(1));
+            commonIds = new ArrayList<>(common);
+        }
+        List<User> users = loadUsers(commonIds);
+        log.debug("Количество общих друзей пользователей с id={},{}: {}", userId, otherId, users.size());
+        return users;
+    }
+
+    //id друзей пользователей читаются из их шардов параллельно, внутри шарда - порциями по первичному ключу
+    //(user_low, user_high) и индексу (user_high, user_low)
+    @Override
+    public Map<Long, long[]> getFriendIds(Collection<Long> userIds) {
+        Map<Integer, List<Long>> groups = shards.groupByShard(new LinkedHashSet<>(userIds));
+        Map<Long, long[]> result = new HashMap<>();
+        shards.scatter(groups.keySet(), shard -> FriendsDbDao.readFriendIds(shards.get(shard), groups.get(shard)))
+                .forEach(result::putAll);
+        return result;
+    }
+
+    //пользователи по списку id в порядке id
+    private List<User> loadUsers(Collection<Long> userIds) {
+        return userDao.getUsersByIds(userIds).values().stream()
+                .sorted(Comparator.comparingLong(User::getId))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,156 @@
+package ru.yandex.practicum.filmorate.storage.sharded;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.cache.KnownIds;
+import ru.yandex.practicum.filmorate.exceptions.user.UserNotFoundException;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
+
+import javax.annotation.PostConstruct;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Consumer;
+
+//хранилище пользователей в шардах: пользователь читается и изменяется в своём шарде,
+//список всех пользователей и чтение по списку id собираются из шардов параллельно.
+//id выдаются последовательностью user_id_seq основной БД
+@Component("userShardedDao")
+@Primary
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "sharded")
+@Slf4j
+public class ShardedUserDao implements UserDao {
+    private static final String SAVE_USER_SQL = "MERGE INTO users(user_id,email,login,name,birthday) KEY(user_id) " +
+            "VALUES(?,?,?,?,?);";
+
+    private final Shards shards;
+    private final JdbcTemplate jdbcTemplate; //основная БД
+    private final KnownIds knownIds = new KnownIds(this::probeUser);
+
+    public ShardedUserDao(Shards shards, JdbcTemplate jdbcTemplate) {
+        this.shards = shards;
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public User addUser(User user) {
+        if (user.getName() == null || user.getName().isEmpty()) {
+            user.setName(user.getLogin());
+        }
+        long userId = jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR user_id_seq;", Long.class);
+        user.setId(userId);
+        shards.forUser(userId).update(SAVE_USER_SQL, userId, user.getEmail(), user.getLogin(), user.getName(),
+                user.getBirthday());
+        knownIds.added(userId);
+        log.debug("Добавлен новый пользователь с id={} в шард {}", userId, shards.shardOf(userId));
+        return user;
+    }
+
+    @Override
+    public User updateUser(User user) {
+        if (user.getName() == null || user.getName().isEmpty()) {
+            user.setName(user.getLogin());
+        }
+        int updateRow = shards.forUser(user.getId()).update(
+                "UPDATE users SET email=?,login=?,name=?,birthday=? WHERE user_id=?;",
+                user.getEmail(), user.getLogin(), user.getName(), user.getBirthday(), user.getId());
+        if (updateRow <= 0) {
+            log.debug("Пользователь с id={} для обновления не найден.", user.getId());
+            throw new UserNotFoundException("Пользователь с id=" + user.getId() + " не найден.");
+        }
+        log.debug("Пользователь с id={} обновлён.", user.getId());
+        return user;
+    }
+
+    @Override
+    public Set<User> getUsers() {
+        Set<User> users = new HashSet<>();
+        shards.scatter(shard -> shard.query("select * from users;", (rs, rowNum) -> userMapper(rs)))
+                .forEach(users::addAll);
+        log.debug("Найдено пользователей: {} шт. в {} шардах", users.size(), shards.size());
+        return users;
+    }
+
+    @Override
+    public User getUser(long userId) {
+        return shards.forUser(userId).query("select * from users where user_id=?", (rs, rowNum) -> userMapper(rs),
+                userId).stream().findAny().orElseThrow(() -> {
+                    log.debug("Пользователь с id={} не найден.", userId);
+                    return new UserNotFoundException("Пользователь с id=" + userId + " не найден.");
+                });
+    }
+
+    @Override
+    public boolean exists(long userId) {
+        return knownIds.exists(userId);
+    }
+
+    private boolean probeUser(long userId) {
+        return Boolean.TRUE.equals(shards.forUser(userId).queryForObject(
+                "select exists(select 1 from users where user_id=?);", Boolean.class, userId));
+    }
+
+    //id группируются по шардам, шарды читаются параллельно
+    @Override
+    public Map<Long, User> getUsersByIds(Collection<Long> userIds) {
+        Map<Integer, List<Long>> groups = shards.groupByShard(new LinkedHashSet<>(userIds));
+        Map<Long, User> result = new HashMap<>();
+        if (groups.isEmpty()) {
+            return result;
+        }
+        shards.scatter(groups.keySet(), shard -> readUsers(shards.get(shard), groups.get(shard)))
+                .forEach(users -> users.forEach(user -> result.put(user.getId(), user)));
+        log.debug("Найдено пользователей: {} из {}", result.size(), userIds.size());
+        return result;
+    }
+
+    private List<User> readUsers(JdbcTemplate shard, List<Long> ids) {
+        List<User> users = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += QueryLimits.IN_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + QueryLimits.IN_CHUNK_SIZE, ids.size()));
+            String getUsersSql = "select * from users where user_id IN ("
+                    + String.join(",", Collections.nCopies(chunk.size(), "?")) + ");";
+            shard.query(getUsersSql, (RowCallbackHandler) rs -> users.add(userMapper(rs)), chunk.toArray());
+        }
+        return users;
+    }
+
+    //выгрузка пользователей по шардам: внутри шарда в порядке id
+    @Override
+    public void exportUsers(Consumer<User> consumer) {
+        for (int shard = 0; shard < shards.size(); shard++) {
+            shards.get(shard).query("select * from users order by user_id;",
+                    (RowCallbackHandler) rs -> consumer.accept(userMapper(rs)));
+        }
+        log.debug("Выгрузка пользователей из {} шардов завершена.", shards.size());
+    }
+
+    //после переноса пользователей из другой БД последовательность продолжается с наибольшего id в шардах.
+    //выполняется после создания бина, а не в конструкторе: конструктор не обращается к БД
+    @PostConstruct
+    public void restartSequence() {
+        long maxId = shards.scatter(shard -> shard.queryForObject("select coalesce(max(user_id), 0) from users;",
+                Long.class)).stream().mapToLong(Long::longValue).max().orElse(0);
+        //следующее значение читается без его выдачи
+        long next = jdbcTemplate.queryForObject("SELECT base_value FROM information_schema.sequences " +
+                "WHERE sequence_name = 'USER_ID_SEQ';", Long.class);
+        if (next <= maxId) {
+            jdbcTemplate.execute("ALTER SEQUENCE user_id_seq RESTART WITH " + (maxId + 1));
+            log.info("Последовательность id пользователей продолжается с {}.", maxId + 1);
+        }
+    }
+
+    private User userMapper(ResultSet rs) throws SQLException {
+        return new User(rs.getLong("user_id"),
+                rs.getString("email"),
+                rs.getString("login"),
+                rs.getString("name"),
+                rs.getDate("birthday").toLocalDate());
+    }
+}
@@ -0,0 +1,153 @@
+package ru.yandex.practicum.filmorate.storage.sharded;
+
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.Flyway;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+//шарды пользователей: пользователь, его друзья и лайки хранятся в шарде jumpHash(user_id, N).
+//jump consistent hash при переходе от N к N+1 шардам переносит только ~1/(N+1) пользователей,
+//и только в новый шард. запросы к нескольким шардам выполняются параллельно: в виртуальных потоках
+//при filmorate.threads.virtual=true, иначе - в пуле из queryThreads потоков платформы
+@Slf4j
+public class Shards {
+    public static final int DEFAULT_QUERY_THREADS = 16;
+
+    private final List<DataSource> dataSources;
+    private final List<JdbcTemplate> jdbcTemplates = new ArrayList<>();
+    private final List<TransactionTemplate> transactionTemplates = new ArrayList<>();
+    private final ExecutorService executor;
+
+    public Shards(List<DataSource> dataSources) {
+        this(dataSources, false, DEFAULT_QUERY_THREADS);
+    }
+
+    public Shards(List<DataSource> dataSources, boolean virtualThreads, int queryThreads) {
+        this.dataSources = List.copyOf(dataSources);
+        for (DataSource dataSource : dataSources) {
+            jdbcTemplates.add(new JdbcTemplate(dataSource));
+            transactionTemplates.add(new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(queryThreads, r -> {
+                    Thread thread = new Thread(r, "shard-query-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    //применяет к шарду миграции схемы шарда (db/shard)
+    public static void migrate(DataSource dataSource) {
+        Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/shard")
+                .load()
+                .migrate();
+    }
+
+    //номер шарда ключа среди buckets шардов (Lamping, Veach. A Fast, Minimal Memory, Consistent Hash Algorithm)
+    public static int jumpHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    public int size() {
+        return jdbcTemplates.size();
+    }
+
+    public int shardOf(long userId) {
+        return jumpHash(userId, jdbcTemplates.size());
+    }
+
+    //шард пользователя
+    public JdbcTemplate forUser(long userId) {
+        return jdbcTemplates.get(shardOf(userId));
+    }
+
+    public JdbcTemplate get(int shard) {
+        return jdbcTemplates.get(shard);
+    }
+
+    public TransactionTemplate transaction(int shard) {
+        return transactionTemplates.get(shard);
+    }
+
+    //id пользователей, сгруппированные по шардам
+    public Map<Integer, List<Long>> groupByShard(Collection<Long> userIds) {
+        Map<Integer, List<Long>> groups = new HashMap<>();
+        for (long userId : userIds) {
+            groups.computeIfAbsent(shardOf(userId), shard -> new ArrayList<>()).add(userId);
+        }
+        return groups;
+    }
+
+    //выполняет запрос на всех шардах параллельно, результаты - в порядке шардов
+    public <T> List<T> scatter(Function<JdbcTemplate, T> query) {
+        List<Integer> shards = new ArrayList<>();
+        for (int shard = 0; shard < size(); shard++) {
+            shards.add(shard);
+        }
+        return scatter(shards, shard -> query.apply(jdbcTemplates.get(shard)));
+    }
+
+    //выполняет запрос на указанных шардах параллельно, результаты - в порядке shards
+    public <T> List<T> scatter(Collection<Integer> shards, Function<Integer, T> query) {
+        if (shards.size() == 1) {
+            return List.of(query.apply(shards.iterator().next()));
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (int shard : shards) {
+            futures.add(executor.submit(() -> query.apply(shard)));
+        }
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new CompletionException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }
+        return results;
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        executor.shutdown();
+        for (DataSource dataSource : dataSources) {
+            if (dataSource instanceof Closeable) {
+                ((Closeable) dataSource).close();
+            }
+        }
+    }
+}
@@ -2,11 +2,15 @@ package ru.yandex.practicum.filmorate.storage.user.dao;
 
 import ru.yandex.practicum.filmorate.model.User;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface FriendsDao {
     void addFriend(long userId, long friendId); //пользователь userId добавляет в друзья пользователя friendId
     void deleteFriend(long userId, long friendId); //удаление пользователем друга friendId
     List<User> getFriends(long userId); //возвращение списка друзей пользователя userId
     List<User> getCommonFriends(long userId, long otherId); //возвращение общих друзей пользователя
+    //отсортированные по возрастанию id друзей каждого из пользователей (у пользователя без друзей - пустой массив)
+    Map<Long, long[]> getFriendIds(Collection<Long> userIds);
 }
@@ -1,7 +1,10 @@
 package ru.yandex.practicum.filmorate.storage.user.dao;
 
 import ru.yandex.practicum.filmorate.model.User;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 //методы добавления, удаления и модификации объектов.
 public interface UserDao {
@@ -12,4 +15,13 @@ public interface UserDao {
     Set<User> getUsers();
 
     User getUser(long userId);
+
+    //проверка существования пользователя без чтения его данных
+    boolean exists(long userId);
+
+    //чтение нескольких пользователей по списку id, отсутствующие id в результат не попадают
+    Map<Long, User> getUsersByIds(Collection<Long> userIds);
+
+    //построчная выгрузка всех пользователей без накопления результата в памяти
+    void exportUsers(Consumer<User> consumer);
 }
@@ -0,0 +1,17 @@
+package ru.yandex.practicum.filmorate.storage.user.dao;
+
+import ru.yandex.practicum.filmorate.model.UserEvent;
+
+import java.util.List;
+
+//лента событий пользователей
+public interface UserEventDao {
+    //запись событий одним пакетом, eventId и timestamp событий назначаются хранилищем
+    void addEvents(List<UserEvent> events);
+
+    //не более limit событий пользователя с id меньше beforeEventId, от новых к старым
+    List<UserEvent> getFeed(long userId, long beforeEventId, int limit);
+
+    //удаление старых событий: у каждого пользователя остаются maxEvents последних, возвращает число удалённых
+    int compact(int maxEvents);
+}
@@ -3,15 +3,29 @@ package ru.yandex.practicum.filmorate.storage.user.daoImpl;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Primary;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.UserEvent;
+import ru.yandex.practicum.filmorate.model.UserEventType;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
 import ru.yandex.practicum.filmorate.storage.user.dao.FriendsDao;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserEventDao;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
 
 @Component
 @Qualifier("friendsDbDao")
@@ -19,101 +33,185 @@ import java.util.List;
 @Slf4j
 public class FriendsDbDao implements FriendsDao {
 
+    //запросы к friendships используются и хранилищем в шардах (ShardedFriendsDao), где таблица та же.
+    //id друзей пользователя (параметр id пользователя указывается дважды)
+    public static final String FRIEND_IDS_SQL = "SELECT USER_HIGH AS FRIEND_ID FROM FRIENDSHIPS " +
+            "WHERE USER_LOW = ? AND LOW_TO_HIGH " +
+            "UNION ALL SELECT USER_LOW AS FRIEND_ID FROM FRIENDSHIPS WHERE USER_HIGH = ? AND HIGH_TO_LOW";
+
+    //установка признака дружбы в направлении от пользователя к другу, параметры: меньший id, больший id
+    //и направление (true - от меньшего id к большему). если признак уже установлен, то изменённых строк нет
+    public static final String ADD_FRIEND_SQL = "MERGE INTO friendships t USING (VALUES (CAST(? AS INTEGER), " +
+            "CAST(? AS INTEGER), CAST(? AS BOOLEAN))) s(lo, hi, fwd) ON t.user_low = s.lo AND t.user_high = s.hi " +
+            "WHEN MATCHED AND NOT (CASE WHEN s.fwd THEN t.low_to_high ELSE t.high_to_low END) THEN UPDATE SET low_to_high = t.low_to_high OR s.fwd, " +
+            "high_to_low = t.high_to_low OR NOT s.fwd " +
+            "WHEN NOT MATCHED THEN INSERT (user_low, user_high, low_to_high, high_to_low) " +
+            "VALUES (s.lo, s.hi, s.fwd, NOT s.fwd);";
+    //снятие признака дружбы, запись о паре удаляется, если признаков не осталось; параметры те же.
+    //если признака нет, то изменённых строк нет
+    public static final String DELETE_FRIEND_SQL = "MERGE INTO friendships t USING (VALUES (CAST(? AS INTEGER), " +
+            "CAST(? AS INTEGER), CAST(? AS BOOLEAN))) s(lo, hi, fwd) ON t.user_low = s.lo AND t.user_high = s.hi " +
+            "WHEN MATCHED AND (CASE WHEN s.fwd THEN t.low_to_high ELSE t.high_to_low END) " +
+            "AND NOT (CASE WHEN s.fwd THEN t.high_to_low ELSE t.low_to_high END) THEN DELETE " +
+            "WHEN MATCHED AND (CASE WHEN s.fwd THEN t.low_to_high ELSE t.high_to_low END) THEN UPDATE SET low_to_high = t.low_to_high AND NOT s.fwd, " +
+            "high_to_low = t.high_to_low AND s.fwd;";
+
     private final JdbcTemplate jdbcTemplate;
+    private final UserEventDao eventDao;
 
-    public FriendsDbDao(JdbcTemplate jdbcTemplate) {
+    public FriendsDbDao(JdbcTemplate jdbcTemplate, UserEventDao eventDao) {
         this.jdbcTemplate = jdbcTemplate;
+        this.eventDao = eventDao;
     }
 
     @Override
+    @Transactional
     public void addFriend(long userId, long friendId) {
-        //считываем из таблицы friends
-        String friendsSql = "select user_id, friend_id, friend_status from friends where (user_id=? and friend_id=?) " +
-                "or (user_id=? and friend_id=?);";
-        Object[] args = new Object[]{userId, friendId, friendId, userId};
-        SqlRowSet friendsRows = jdbcTemplate.queryForRowSet(friendsSql, args);
-        if (friendsRows.first()) {
-            int user1 = friendsRows.getInt("user_id");
-            boolean status = friendsRows.getBoolean("friend_status");
-            //если найдена запись, то смотрим на friend_status, если он true,то пользователи дружат между собой
-            //тогда просто выходим
-            //если friend_status=false, то user_id дружит с friend_id, но не наоборот
-            //если user_id=userId, то просто выходим
-            //если user_id=friendId и friend_status=true, то выходим
-            if (status || user1 == userId) {
-                return;
-            } else if (user1 == friendId & !status) {
-                //если user_id=friendId и friend_status=false, то отправляем запрос на friend_status=true (подтверждаем дружбу)
-                String friendSqlTrue = "UPDATE friends SET user_id=?,friend_id=?,friend_status=?;";
-                args = new Object[]{friendId, userId, true};
-                jdbcTemplate.update(friendSqlTrue, args);
-            }
-        } else {
-            //если запись не найдена, то добавляем её
-            String addFriendSql = "INSERT INTO friends(user_id,friend_id) VALUES(?,?);";
-            args = new Object[]{userId, friendId};
-            jdbcTemplate.update(addFriendSql, args);
+        //пара пользователей хранится одной записью (user_low, user_high) с признаками дружбы в каждую сторону,
+        //поэтому добавление в друзья - установка признака userId -> friendId одним запросом
+        int rows = mergeFriendship(ADD_FRIEND_SQL, userId, friendId);
+        if (rows > 0) {
+            eventDao.addEvents(List.of(new UserEvent(0, userId, UserEventType.FRIEND_ADD, friendId, null)));
         }
+        log.debug("Добавление в друзья: userId={}, friendId={}, изменено записей: {}", userId, friendId, rows);
     }
 
     @Override
+    @Transactional
     public void deleteFriend(long userId, long friendId) {
-        //userId удаляет из друзей friendId
-        //возможно в след. случаях:
-        //существует запись: userId, friendId, false - неподтверждённая дружба - просто удаляем
-        //существует запись: friendId, userId, false - неподтверждённая дружба - ничего не делаем
-        //существует запись: userId, friendId, true - подтверждённая дружба - удаляем и записываем friendId, userId, false
-        //существует запись: friendId, userId, true - подтверждённая дружба - удаляем и записываем friendId, userId, false
-        //если запись не найдена, то ничего не делаем.
-        //считываем из таблицы friends
-        String friendsSql = "select user_id, friend_id, friend_status from friends where (user_id=? and friend_id=?) " +
-                "or (user_id=? and friend_id=?);";
-        Object[] args = new Object[]{userId, friendId, friendId, userId};
-        SqlRowSet friendsRows = jdbcTemplate.queryForRowSet(friendsSql, args);
-        if (friendsRows.first()) {
-            log.debug("Получен непустой ответ на удаление от сервера...");
-            boolean status = friendsRows.getBoolean("friend_status");
-            log.debug("Статус дружбы: обоюдная...");
-            String delFriendSql = "DELETE FROM friends WHERE (user_id=? and friend_id=?) OR (user_id=? and friend_id=?);";
-            args = new Object[]{userId, friendId, friendId, userId};
-            jdbcTemplate.update(delFriendSql, args);
-            if (status) {
-                String addFriendSql = "INSERT INTO friends(user_id,friend_id) VALUES(?,?);";
-                args = new Object[]{friendId, userId};
-                jdbcTemplate.update(addFriendSql, args);
+        //userId удаляет из друзей friendId: снимаем признак userId -> friendId,
+        //если в обратную сторону признака тоже нет, то удаляем запись о паре
+        int rows = mergeFriendship(DELETE_FRIEND_SQL, userId, friendId);
+        if (rows > 0) {
+            eventDao.addEvents(List.of(new UserEvent(0, userId, UserEventType.FRIEND_REMOVE, friendId, null)));
+        }
+        log.debug("Удаление из друзей: userId={}, friendId={}, изменено записей: {}", userId, friendId, rows);
+    }
+
+    //параметры запроса: меньший id, больший id и направление (true - от меньшего id к большему).
+    //при одновременной вставке одной и той же пары второй запрос нарушит первичный ключ:
+    //тогда повторяем его, и он уже найдёт запись, добавленную первым
+    private int mergeFriendship(String sql, long userId, long friendId) {
+        Object[] args = friendshipArgs(userId, friendId);
+        try {
+            return jdbcTemplate.update(sql, args);
+        } catch (DuplicateKeyException e) {
+            log.debug("Запись о дружбе userId={}, friendId={} добавлена параллельным запросом, повторяем.",
+                    userId, friendId);
+            return jdbcTemplate.update(sql, args);
+        }
+    }
+
+    //параметры ADD_FRIEND_SQL и DELETE_FRIEND_SQL для изменения дружбы userId -> friendId
+    public static Object[] friendshipArgs(long userId, long friendId) {
+        return new Object[]{Math.min(userId, friendId), Math.max(userId, friendId), userId < friendId};
+    }
+
+    //пакетное добавление в друзья (отложенная запись гибридного хранилища): пары (id пользователя, id друга).
+    //события ленты записываются одним пакетом для пар, дружба которых изменилась
+    public void addFriends(List<Map.Entry<Long, Long>> friendships) {
+        saveFriendships(ADD_FRIEND_SQL, UserEventType.FRIEND_ADD, friendships);
+        log.debug("Записано {} добавлений в друзья.", friendships.size());
+    }
+
+    //пакетное удаление из друзей: пары (id пользователя, id друга)
+    public void deleteFriends(List<Map.Entry<Long, Long>> friendships) {
+        saveFriendships(DELETE_FRIEND_SQL, UserEventType.FRIEND_REMOVE, friendships);
+        log.debug("Записано {} удалений из друзей.", friendships.size());
+    }
+
+    private void saveFriendships(String sql, UserEventType eventType, List<Map.Entry<Long, Long>> friendships) {
+        int[] rows = jdbcTemplate.batchUpdate(sql, friendships.stream()
+                .map(f -> friendshipArgs(f.getKey(), f.getValue()))
+                .collect(Collectors.toList()));
+        List<UserEvent> events = new ArrayList<>();
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] > 0) {
+                Map.Entry<Long, Long> friendship = friendships.get(i);
+                events.add(new UserEvent(0, friendship.getKey(), eventType, friendship.getValue(), null));
             }
         }
+        eventDao.addEvents(events);
+    }
+
+    //выгрузка всех дружб в виде пар (id пользователя, id друга)
+    public void exportFriends(BiConsumer<Long, Long> consumer) {
+        String exportFriendsSql = "SELECT user_low, user_high, low_to_high, high_to_low FROM friendships;";
+        jdbcTemplate.query(exportFriendsSql, (RowCallbackHandler) rs -> {
+            long low = rs.getLong("user_low");
+            long high = rs.getLong("user_high");
+            if (rs.getBoolean("low_to_high")) {
+                consumer.accept(low, high);
+            }
+            if (rs.getBoolean("high_to_low")) {
+                consumer.accept(high, low);
+            }
+        });
+        log.debug("Выгрузка друзей завершена.");
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<User> getFriends(long userId) {
-        //возвращаем друзей пользователя userId
-        //посмотреть, возможно переписать
-        String getFriendsSql = "SELECT u2.* FROM USERS u2 LEFT JOIN (SELECT DISTINCT CASE WHEN "+
-                "(f.FRIEND_ID =? AND f.FRIEND_STATUS) THEN f.USER_ID ELSE f.FRIEND_ID END AS FRIEND_ID " +
-                "FROM FRIENDS f WHERE f.USER_ID =? OR (f.FRIEND_ID =? AND f.FRIEND_STATUS)) fr " +
-                "ON u2.USER_ID =fr.FRIEND_ID WHERE fr.FRIEND_ID IS NOT NULL;";
-        Object[] args=new Object[]{userId,userId,userId};
-        List<User> users=jdbcTemplate.query(getFriendsSql, (rs, rowNum) ->userMapper(rs),args);
-        log.debug("Количество друзей пользователя с id={}: {}",userId,users.size());
+        //возвращаем друзей пользователя userId: поиск по первичному ключу и по индексу (user_high, user_low).
+        //порядок - по возрастанию id, как и до перехода на friendships: прежний запрос перебирал USERS
+        //по первичному ключу, а UNION ALL двух поисков порядка не задаёт, поэтому он указан явно
+        String getFriendsSql = "SELECT u.* FROM (" + FRIEND_IDS_SQL + ") fr JOIN USERS u ON u.USER_ID = fr.FRIEND_ID " +
+                "ORDER BY u.USER_ID;";
+        List<User> users = jdbcTemplate.query(getFriendsSql, (rs, rowNum) -> userMapper(rs), userId, userId);
+        log.debug("Количество друзей пользователя с id={}: {}", userId, users.size());
         return users;
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<User> getCommonFriends(long userId, long otherId) {
-        String commonFriendSql="SELECT * FROM USERS WHERE USER_ID IN (SELECT f1.friend FROM (SELECT DISTINCT CASE WHEN (u.USER_ID =f.FRIEND_ID AND "+
-                "f.FRIEND_STATUS) THEN f.USER_ID ELSE f.FRIEND_ID END AS friend FROM (SELECT * FROM USERS  WHERE USER_ID =?) u LEFT JOIN "+
-                "FRIENDS f ON u.USER_ID =f.USER_ID OR (u.USER_ID =f.FRIEND_ID AND f.FRIEND_STATUS) "+
-                ") f1 INNER JOIN (SELECT DISTINCT CASE WHEN (u.USER_ID =f.FRIEND_ID AND "+
-                "f.FRIEND_STATUS) THEN f.USER_ID ELSE f.FRIEND_ID END AS friend FROM (SELECT * FROM USERS  WHERE USER_ID =?) u LEFT JOIN FRIENDS f " +
-                "ON u.USER_ID =f.USER_ID OR (u.USER_ID =f.FRIEND_ID AND f.FRIEND_STATUS)) f2 " +
-                "ON f1.friend=f2.friend);";
-        Object[] args=new Object[]{userId,otherId};
-        List<User> users=jdbcTemplate.query(commonFriendSql, (rs, rowNum) ->userMapper(rs),args);
-        log.debug("Количество общих друзей пользователей с id={},{}: {}",userId,otherId,users.size());
+        //порядок по возрастанию id, как и в getFriends
+        String commonFriendSql = "SELECT u.* FROM (" + FRIEND_IDS_SQL + ") f1 " +
+                "JOIN (" + FRIEND_IDS_SQL + ") f2 ON f1.FRIEND_ID = f2.FRIEND_ID " +
+                "JOIN USERS u ON u.USER_ID = f1.FRIEND_ID ORDER BY u.USER_ID;";
+        List<User> users = jdbcTemplate.query(commonFriendSql, (rs, rowNum) -> userMapper(rs),
+                userId, userId, otherId, otherId);
+        log.debug("Количество общих друзей пользователей с id={},{}: {}", userId, otherId, users.size());
         return users;
     }
 
+    //id друзей пользователей читаются порциями, каждая - одним запросом по первичному ключу (user_low, user_high)
+    //и индексу (user_high, user_low)
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Long, long[]> getFriendIds(Collection<Long> userIds) {
+        Map<Long, long[]> result = readFriendIds(jdbcTemplate, userIds);
+        log.debug("Прочитаны id друзей {} пользователей.", result.size());
+        return result;
+    }
+
+    //отсортированные id друзей пользователей из таблицы friendships БД jdbcTemplate (основной БД или шарда)
+    public static Map<Long, long[]> readFriendIds(JdbcTemplate jdbcTemplate, Collection<Long> userIds) {
+        Map<Long, List<Long>> friendIds = new HashMap<>();
+        userIds.forEach(userId -> friendIds.put(userId, new ArrayList<>()));
+        List<Long> ids = new ArrayList<>(friendIds.keySet());
+        for (int from = 0; from < ids.size(); from += QueryLimits.IN_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + QueryLimits.IN_CHUNK_SIZE, ids.size()));
+            String in = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            List<Long> args = new ArrayList<>(chunk);
+            args.addAll(chunk);
+            jdbcTemplate.query("SELECT USER_LOW AS USER_ID, USER_HIGH AS FRIEND_ID FROM FRIENDSHIPS " +
+                            "WHERE USER_LOW IN (" + in + ") AND LOW_TO_HIGH " +
+                            "UNION ALL SELECT USER_HIGH, USER_LOW FROM FRIENDSHIPS WHERE USER_HIGH IN (" + in + ") " +
+                            "AND HIGH_TO_LOW;",
+                    (RowCallbackHandler) rs -> friendIds.get(rs.getLong("user_id")).add(rs.getLong("friend_id")),
+                    args.toArray());
+        }
+        Map<Long, long[]> result = new HashMap<>();
+        friendIds.forEach((userId, friends) -> {
+            long[] sorted = friends.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            result.put(userId, sorted);
+        });
+        return result;
+    }
+
     private User userMapper(ResultSet rs) throws SQLException {
         //перебираем записи результирующего набора
         return new User(rs.getLong("user_id"),
@@ -5,19 +5,23 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Primary;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.cache.KnownIds;
 import ru.yandex.practicum.filmorate.exceptions.user.UserNotFoundException;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.QueryLimits;
 import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Component
@@ -25,7 +29,9 @@ import java.util.stream.Collectors;
 @Primary
 @Slf4j
 public class UserDbDao implements UserDao {
+    private static final int EXPORT_FETCH_SIZE = 500; //размер порции строк при выгрузке
     private final JdbcTemplate jdbcTemplate;
+    private final KnownIds knownIds = new KnownIds(this::probeUser); //id существующих пользователей
 
     public UserDbDao(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
@@ -54,6 +60,7 @@ public class UserDbDao implements UserDao {
                 keyHolder);
         long userId=keyHolder.getKey().intValue();
         user.setId(userId);
+        knownIds.added(userId);
         log.debug("Добавлен новый пользователь с id={}", userId);
         return user;
     }
@@ -78,6 +85,7 @@ public class UserDbDao implements UserDao {
     }
 
     @Override
+    @Transactional(readOnly = true)
     public Set<User> getUsers() {
         log.debug("Получен запрос на чтение всех фильмов");
         String getUserSql="select * from users;";
@@ -91,6 +99,19 @@ public class UserDbDao implements UserDao {
     }
 
     @Override
+    public boolean exists(long userId) {
+        return knownIds.exists(userId);
+    }
+
+    //проверка существования пользователя по первичному ключу
+    private boolean probeUser(long userId) {
+        log.debug("Проверка существования пользователя с id={} в БД", userId);
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "select exists(select 1 from users where user_id=?);", Boolean.class, userId));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
     public User getUser(long userId) {
         log.debug("Получен запрос на фильм с id={};",userId);
         String getFilmSql="select * from users where user_id=?";
@@ -103,6 +124,57 @@ public class UserDbDao implements UserDao {
         return user;
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Long, User> getUsersByIds(Collection<Long> userIds) {
+        log.debug("Получен запрос на чтение {} пользователей по списку id", userIds.size());
+        Map<Long, User> result = new HashMap<>();
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(userIds));
+        //одним запросом с IN по порциям, чтобы не превышать ограничение на число параметров
+        for (int from = 0; from < ids.size(); from += QueryLimits.IN_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + QueryLimits.IN_CHUNK_SIZE, ids.size()));
+            String getUsersSql = "select * from users where user_id IN ("
+                    + String.join(",", Collections.nCopies(chunk.size(), "?")) + ");";
+            jdbcTemplate.query(getUsersSql, (RowCallbackHandler) rs -> {
+                User user = userMapper(rs);
+                result.put(user.getId(), user);
+            }, chunk.toArray());
+        }
+        log.debug("Найдено пользователей: {} из {}", result.size(), ids.size());
+        return result;
+    }
+
+    @Override
+    public void exportUsers(Consumer<User> consumer) {
+        log.debug("Получен запрос на выгрузку всех пользователей");
+        String exportUserSql = "select * from users order by user_id;";
+        //курсор только для чтения в прямом направлении с фиксированным размером порции
+        jdbcTemplate.query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(exportUserSql, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(EXPORT_FETCH_SIZE);
+            return ps;
+        }, (RowCallbackHandler) rs -> consumer.accept(userMapper(rs)));
+        log.debug("Выгрузка пользователей завершена.");
+    }
+
+    //пакетная запись пользователей с уже назначенными id (отложенная запись гибридного хранилища)
+    public void saveUsers(List<User> users) {
+        String saveUserSql = "MERGE INTO users(user_id,email,login,name,birthday) KEY(user_id) VALUES(?,?,?,?,?);";
+        jdbcTemplate.batchUpdate(saveUserSql, users.stream()
+                .map(u -> new Object[]{u.getId(), u.getEmail(), u.getLogin(), u.getName(), u.getBirthday()})
+                .collect(Collectors.toList()));
+        users.forEach(u -> knownIds.added(u.getId()));
+        log.debug("Записано {} пользователей.", users.size());
+    }
+
+    //после записи пользователей с заданными id счётчик user_id продолжается с наибольшего id
+    public void restartIdentity() {
+        Long maxId = jdbcTemplate.queryForObject("select coalesce(max(user_id), 0) from users;", Long.class);
+        jdbcTemplate.execute("ALTER TABLE users ALTER COLUMN user_id RESTART WITH " + (maxId + 1));
+        log.debug("Счётчик id пользователей продолжается с {}.", maxId + 1);
+    }
+
     private User userMapper(ResultSet rs) throws SQLException {
         //перебираем записи результирующего набора
         return new User(rs.getLong("user_id"),
@@ -0,0 +1,98 @@
+package ru.yandex.practicum.filmorate.storage.user.daoImpl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.model.UserEvent;
+import ru.yandex.practicum.filmorate.model.UserEventType;
+import ru.yandex.practicum.filmorate.storage.user.dao.UserEventDao;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+//лента событий в таблице user_events. события записываются в транзакции изменения, которое их вызвало.
+//сжатие проверяет только пользователей, у которых появились события после прошлого сжатия
+//(первое сжатие после запуска проверяет всех). время события передаётся явно, а не значением по умолчанию
+//столбца, чтобы при повторении на реплике оно совпало с первичной БД
+@Component
+@Slf4j
+public class UserEventDbDao implements UserEventDao {
+    private static final String ADD_EVENT_SQL = "INSERT INTO user_events(user_id, event_type, entity_id, created_at) " +
+            "VALUES(?,?,?,?);";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Set<Long> changedUsers = ConcurrentHashMap.newKeySet(); //пользователи с новыми событиями
+    private volatile boolean compacted; //было ли сжатие всех пользователей после запуска
+
+    public UserEventDbDao(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void addEvents(List<UserEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(ADD_EVENT_SQL, events.stream()
+                .map(event -> new Object[]{event.getUserId(), event.getEventType().name(), event.getEntityId(),
+                        event.getTimestamp() == null ? now : Timestamp.valueOf(event.getTimestamp())})
+                .collect(Collectors.toList()));
+        events.forEach(event -> changedUsers.add(event.getUserId()));
+        log.debug("Записано событий ленты: {}", events.size());
+    }
+
+    //чтение по ключу (user_id, event_id) покрывающего индекса idx_user_events_feed: сортировка по
+    //столбцам индекса позволяет прочитать только limit записей индекса без сортировки
+    @Override
+    @Transactional(readOnly = true)
+    public List<UserEvent> getFeed(long userId, long beforeEventId, int limit) {
+        String getFeedSql = "SELECT event_id, user_id, event_type, entity_id, created_at FROM user_events " +
+                "WHERE user_id = ? AND event_id < ? ORDER BY user_id, event_id DESC LIMIT ?;";
+        List<UserEvent> events = jdbcTemplate.query(getFeedSql, (rs, rowNum) -> eventMapper(rs),
+                userId, beforeEventId, limit);
+        log.debug("Событий в ленте пользователя с id={}: {}", userId, events.size());
+        return events;
+    }
+
+    @Override
+    public int compact(int maxEvents) {
+        List<Long> userIds;
+        if (compacted) {
+            userIds = new ArrayList<>(changedUsers);
+            changedUsers.removeAll(userIds);
+        } else {
+            changedUsers.clear();
+            userIds = jdbcTemplate.queryForList("SELECT user_id FROM user_events GROUP BY user_id " +
+                    "HAVING COUNT(*) > ?;", Long.class, maxEvents);
+            compacted = true;
+        }
+        //у каждого пользователя удаляются события старше maxEvents-го с конца
+        String compactSql = "DELETE FROM user_events WHERE user_id = ? AND event_id <= (SELECT event_id " +
+                "FROM user_events WHERE user_id = ? ORDER BY user_id, event_id DESC LIMIT 1 OFFSET ?);";
+        int deleted = 0;
+        for (long userId : userIds) {
+            deleted += jdbcTemplate.update(compactSql, userId, userId, maxEvents);
+        }
+        if (deleted > 0) {
+            log.debug("Сжатие ленты: удалено {} событий {} пользователей.", deleted, userIds.size());
+        }
+        return deleted;
+    }
+
+    private UserEvent eventMapper(ResultSet rs) throws SQLException {
+        return new UserEvent(rs.getLong("event_id"),
+                rs.getLong("user_id"),
+                UserEventType.valueOf(rs.getString("event_type")),
+                rs.getLong("entity_id"),
+                rs.getTimestamp("created_at").toLocalDateTime());
+    }
+}
@@ -2,19 +2,28 @@ package ru.yandex.practicum.filmorate.storage.user.memory;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
 import ru.yandex.practicum.filmorate.storage.user.dao.FriendsDao;
 import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.stream.Collectors;
 
+//друзья пользователя хранятся как упорядоченные наборы id, данные пользователей читаются из хранилища
+//пользователей, поэтому в ответе всегда актуальные данные. изменения дружбы выполняются под блокировками
+//обоих пользователей; чтение - без блокировок: наборы потокобезопасны, а их обход не падает при изменении
 @Component("friendsInMemoryDao")
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
 @Slf4j
 public class InMemoryFriendsStorage implements FriendsDao {
 
-    private Map<Long, LinkedHashSet<User>> friends = new HashMap<>(); //информация о друзьях пользователя
+    private final Map<Long, Set<Long>> friends = new ConcurrentHashMap<>(); //id друзей пользователя
+    private final StripedLocks locks = new StripedLocks();
     UserDao userDao;
 
     public InMemoryFriendsStorage(@Qualifier("userInMemoryDao") UserDao userDao) {
@@ -24,57 +33,59 @@ public class InMemoryFriendsStorage implements FriendsDao {
     @Override
     public void addFriend(long userId, long friendId) {
         log.debug("Получен запрос на добавление пользователю с user_id={} друга с friend_id={}.", userId, friendId);
-        Optional<LinkedHashSet<User>> friendSet = Optional.ofNullable(friends.get(userId));
-        LinkedHashSet<User> newUser = new LinkedHashSet<>();
-        if (friendSet.isPresent()) {
-            newUser = friendSet.get();
-            Optional<User> user = newUser.stream().filter(u -> u.getId() == friendId).findFirst();
-            if (user.isPresent()) {
-                return;
+        //проверяем, что друг существует
+        userDao.getUser(friendId);
+        locks.runWithLocks(userId, friendId, () -> {
+            if (friends.computeIfAbsent(userId, id -> new ConcurrentSkipListSet<>()).add(friendId)) {
+                log.debug("Пользователю с userId={} добавлен очередной друг с friendId={}", userId, friendId);
             }
-        }
-        log.debug("Пользователю с userId={} добавлен очередной друг с friendIв={}", userId, friendId);
-        newUser.add(userDao.getUser(friendId));
-        friends.put(userId, newUser);
+        });
+    }
+
+    //загрузка дружбы без проверки пользователей (например, при заполнении хранилища из БД)
+    public void loadFriend(long userId, long friendId) {
+        friends.computeIfAbsent(userId, id -> new ConcurrentSkipListSet<>()).add(friendId);
     }
 
     @Override
     public void deleteFriend(long userId, long friendId) {
         log.debug("Получен запрос на удаление пользователю с user_id={} друга с friend_id={}.", userId, friendId);
-        Optional<LinkedHashSet<User>> friendSet = Optional.ofNullable(friends.get(userId));
-        if (friendSet.isPresent()) {
-            Iterator<User> userIter = friendSet.get().iterator();
-            while (userIter.hasNext()) {
-                if (userIter.next().getId() == friendId) {
-                    userIter.remove();
-                    log.debug("Для пользователя userId={} удалён друг с friendId={}.", userId, friendId);
-                }
+        locks.runWithLocks(userId, friendId, () -> {
+            Set<Long> friendIds = friends.get(userId);
+            if (friendIds != null && friendIds.remove(friendId)) {
+                log.debug("Для пользователя userId={} удалён друг с friendId={}.", userId, friendId);
             }
-        }
+        });
     }
 
     @Override
     public List<User> getFriends(long userId) {
         log.debug("Запрос на получение друзей пользователя с userId={}", userId);
-        Optional<Set<User>> friendSet = Optional.ofNullable(friends.get(userId));
-        Set<User> newUser = new HashSet<>();
-        if (!friendSet.isPresent()) {
-            return new ArrayList<>();
-        }
-        return friendSet.get().stream().collect(Collectors.toList());
+        return toUsers(friends.getOrDefault(userId, Collections.emptySet()));
     }
 
     @Override
     public List<User> getCommonFriends(long userId, long otherId) {
         log.debug("Получен запрос на поиск общих друзей для пользователей с userId={} и otherId={}.", userId, otherId);
-        Optional<Set<User>> userFriendsOp = Optional.ofNullable(friends.get(userId));
-        Optional<Set<User>> otherFriendsOp = Optional.ofNullable(friends.get(otherId));
-        if (userFriendsOp.isPresent() && otherFriendsOp.isPresent()) {
-            Set<Long> userFriends = userFriendsOp.get().stream().map(User::getId).collect(Collectors.toSet());
-            Set<Long> otherFriends = otherFriendsOp.get().stream().map(User::getId).collect(Collectors.toSet());
-            return userFriends.stream().filter(otherFriends::contains).map(userDao::getUser)
-                    .collect(Collectors.toList());
+        Set<Long> otherFriends = friends.getOrDefault(otherId, Collections.emptySet());
+        return toUsers(friends.getOrDefault(userId, Collections.emptySet()).stream()
+                .filter(otherFriends::contains)
+                .collect(Collectors.toList()));
+    }
+
+    //наборы id друзей упорядочены, поэтому массивы получаются без сортировки
+    @Override
+    public Map<Long, long[]> getFriendIds(Collection<Long> userIds) {
+        Map<Long, long[]> result = new HashMap<>();
+        for (long userId : userIds) {
+            result.put(userId, friends.getOrDefault(userId, Collections.emptySet()).stream()
+                    .mapToLong(Long::longValue)
+                    .toArray());
         }
-        return new ArrayList<>();
+        return result;
+    }
+
+    private List<User> toUsers(Collection<Long> userIds) {
+        return userIds.stream().map(userDao::getUser).collect(Collectors.toList());
     }
 }
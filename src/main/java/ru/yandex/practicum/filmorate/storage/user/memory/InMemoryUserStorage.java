@@ -1,21 +1,29 @@
 package ru.yandex.practicum.filmorate.storage.user.memory;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.exceptions.user.UserNotFoundException;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.StripedLocks;
 import ru.yandex.practicum.filmorate.storage.user.dao.UserDao;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 //реализация методов добавления, удаления и модификации объектов.
+//потокобезопасна: данные в ConcurrentHashMap, id выдаются атомарно, обновление - под блокировкой пользователя
 @Component("userInMemoryDao")
+@ConditionalOnProperty(name = "filmorate.storage.mode", havingValue = "hybrid")
 @Slf4j
 public class InMemoryUserStorage implements UserDao {
-    private long maxId = 0;
+    private final AtomicLong maxId = new AtomicLong();
 
-    private Map<Long, User> users = new HashMap<>(); //информация о пользователях
+    private final Map<Long, User> users = new ConcurrentHashMap<>(); //информация о пользователях
+    private final StripedLocks locks = new StripedLocks();
 
     @Override
     public User addUser(User user) {
@@ -34,9 +42,18 @@ public class InMemoryUserStorage implements UserDao {
         return user;
     }
 
+    //загрузка пользователя с уже назначенным id (например, при заполнении хранилища из БД)
+    public void loadUser(User user) {
+        users.put(user.getId(), user);
+        maxId.accumulateAndGet(user.getId(), Math::max);
+    }
+
     @Override
     public User updateUser(User user) {
-        if (this.users.containsKey(user.getId())) {
+        return locks.withLock(user.getId(), () -> {
+            if (!this.users.containsKey(user.getId())) {
+                throw new UserNotFoundException("Пользователь с id=" + user.getId() + " не найден.");
+            }
             String name = user.getName();
             String login = user.getLogin();
             if (name == null || name.isBlank()) {
@@ -46,8 +63,7 @@ public class InMemoryUserStorage implements UserDao {
             log.info("Обновлены данные пользователя с id={}, name={}, email={}, login={}, birthday={}"
                     , user.getId(), user.getName(), user.getEmail(), user.getLogin(), user.getBirthday());
             return user;
-        }
-        throw new UserNotFoundException("Пользователь с id=" + user.getId() + " не найден.");
+        });
     }
 
     @Override
@@ -56,18 +72,41 @@ public class InMemoryUserStorage implements UserDao {
         return this.users.values().stream().collect(Collectors.toSet());
     }
 
+    @Override
+    public boolean exists(long userId) {
+        return users.containsKey(userId);
+    }
+
     //возвращает данные о пользователе
     @Override
     public User getUser(long userId) {
         log.debug("Получен запрос из InMemory на пользователя с id={}",userId);
-        if(!users.containsKey(userId)) {
+        User user = users.get(userId);
+        if (user == null) {
             throw new UserNotFoundException("Пользователь с id="+userId+" не найден.");
         }
-        return users.get(userId);
+        return user;
+    }
+
+    @Override
+    public Map<Long, User> getUsersByIds(Collection<Long> userIds) {
+        Map<Long, User> result = new HashMap<>();
+        for (Long userId : userIds) {
+            User user = users.get(userId);
+            if (user != null) {
+                result.put(userId, user);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void exportUsers(Consumer<User> consumer) {
+        users.values().forEach(consumer);
     }
 
     private long generateId() {
-        return ++maxId;
+        return maxId.incrementAndGet();
     }
 
 }
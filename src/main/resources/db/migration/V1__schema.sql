@@ -39,17 +39,22 @@ CREATE TABLE IF NOT EXISTS films_genre (
         genre_id INTEGER REFERENCES genre (genre_id) ON DELETE CASCADE
 );
 
---создание таблицы friends
-CREATE TABLE IF NOT EXISTS friends (
-        user_friend_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
-        user_id INTEGER REFERENCES users (user_id) ON DELETE CASCADE,
-        friend_id INTEGER REFERENCES users (user_id) ON DELETE CASCADE,
-        friend_status BOOLEAN DEFAULT FALSE
+--создание таблицы friendships: одна запись на пару пользователей (user_low < user_high)
+--low_to_high - user_low добавил user_high в друзья, high_to_low - наоборот
+CREATE TABLE IF NOT EXISTS friendships (
+        user_low INTEGER NOT NULL REFERENCES users (user_id) ON DELETE CASCADE,
+        user_high INTEGER NOT NULL REFERENCES users (user_id) ON DELETE CASCADE,
+        low_to_high BOOLEAN NOT NULL DEFAULT FALSE,
+        high_to_low BOOLEAN NOT NULL DEFAULT FALSE,
+        PRIMARY KEY (user_low, user_high),
+        CHECK (user_low < user_high)
 );
+CREATE INDEX IF NOT EXISTS idx_friendships_high ON friendships (user_high, user_low);
 
---создание таблицы films_like
+--создание таблицы films_like: пользователь может поставить фильму только один лайк
 CREATE TABLE IF NOT EXISTS films_like (
         films_like_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         film_id INTEGER REFERENCES films (film_id) ON DELETE CASCADE,
-        user_id INTEGER REFERENCES users (user_id) ON DELETE CASCADE
+        user_id INTEGER REFERENCES users (user_id) ON DELETE CASCADE,
+        constraint uq_films_like unique (film_id, user_id)
 );
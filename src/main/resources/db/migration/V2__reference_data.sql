@@ -0,0 +1,14 @@
+--заполняем справочники рейтингов MPA и жанров.
+--MERGE по названию: в БД, созданной до перехода на миграции, справочники уже заполнены
+MERGE INTO ratings_mpa(rating_name) KEY (rating_name) VALUES('G'),
+                                                            ('PG'),
+                                                            ('PG-13'),
+                                                            ('R'),
+                                                            ('NC-17');
+
+MERGE INTO genre(genre_name) KEY (genre_name) VALUES('Комедия'),
+                                                    ('Драма'),
+                                                    ('Мультфильм'),
+                                                    ('Триллер'),
+                                                    ('Документальный'),
+                                                    ('Боевик');
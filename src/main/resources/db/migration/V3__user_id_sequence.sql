@@ -0,0 +1,3 @@
+--последовательность id пользователей для режима с шардами (filmorate.storage.mode=sharded):
+--пользователи хранятся в шардах, а id выдаются здесь, чтобы не совпадать между шардами
+CREATE SEQUENCE IF NOT EXISTS user_id_seq;
@@ -0,0 +1,13 @@
+--лента событий пользователей: записи только добавляются, старые события удаляются фоновым сжатием.
+--лента читается по индексу (user_id, event_id DESC), который содержит все столбцы, поэтому таблица
+--при чтении ленты не читается. внешнего ключа на users нет: H2 создал бы для него ещё один индекс,
+--обновляемый при каждой записи события, а пользователи не удаляются
+CREATE TABLE IF NOT EXISTS user_events (
+        event_id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+        user_id INTEGER NOT NULL,
+        event_type VARCHAR(16) NOT NULL,
+        entity_id INTEGER NOT NULL,
+        created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+CREATE INDEX IF NOT EXISTS idx_user_events_feed ON user_events (user_id, event_id DESC, event_type, entity_id,
+        created_at);
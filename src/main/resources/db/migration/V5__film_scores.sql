@@ -0,0 +1,22 @@
+--оценки фильмов пользователями (1-10). внешних ключей на users и films нет: в гибридном режиме пользователь
+--и фильм записываются в БД с задержкой, а в режиме с шардами пользователь хранится в шарде.
+--пользователя и фильм проверяет сервис, он же удаляет оценки удалённого фильма
+CREATE TABLE IF NOT EXISTS film_scores (
+        film_id INTEGER NOT NULL,
+        user_id INTEGER NOT NULL,
+        score TINYINT NOT NULL CHECK (score BETWEEN 1 AND 10),
+        PRIMARY KEY (film_id, user_id)
+);
+
+--агрегаты оценок фильма: количество, сумма и сумма квадратов изменяются вместе с оценкой в одной транзакции.
+--байесовское среднее - среднее оценок фильма вместе с 10 априорными оценками 5.5, поэтому фильм
+--с несколькими оценками не обгоняет фильм со многими. оно вычисляется при изменении строки, и топ
+--читается по индексу idx_film_score_stats_top без сортировки
+CREATE TABLE IF NOT EXISTS film_score_stats (
+        film_id INTEGER PRIMARY KEY,
+        score_count INTEGER NOT NULL,
+        score_sum BIGINT NOT NULL,
+        score_sum_sq BIGINT NOT NULL,
+        bayesian_average DOUBLE PRECISION GENERATED ALWAYS AS ((score_sum + 55.0) / (score_count + 10))
+);
+CREATE INDEX IF NOT EXISTS idx_film_score_stats_top ON film_score_stats (bayesian_average DESC, film_id);
@@ -0,0 +1,5 @@
+--время лайка для трендов. у лайков, поставленных раньше, время неизвестно (NULL), и в трендах они не учитываются
+ALTER TABLE films_like ADD COLUMN IF NOT EXISTS created_at TIMESTAMP;
+ALTER TABLE films_like ALTER COLUMN created_at SET DEFAULT CURRENT_TIMESTAMP;
+--лайки за последние 7 дней читаются при запуске для заполнения счётчиков трендов
+CREATE INDEX IF NOT EXISTS idx_films_like_created ON films_like (created_at);
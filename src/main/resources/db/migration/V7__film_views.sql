@@ -0,0 +1,10 @@
+--уникальные зрители фильмов по дням: регистры HyperLogLog (2048 регистров по 6 бит) вместо пар фильм-пользователь.
+--зрители за несколько дней - объединение регистров дней (максимум по каждому регистру).
+--внешнего ключа на films нет: в гибридном режиме фильм записывается в БД с задержкой; просмотры удалённого
+--фильма удаляет сервис
+CREATE TABLE IF NOT EXISTS film_views (
+        film_id INTEGER NOT NULL,
+        view_day DATE NOT NULL,
+        registers VARBINARY(1536) NOT NULL,
+        PRIMARY KEY (film_id, view_day)
+);
@@ -0,0 +1,9 @@
+--счётчик изменений фильмов, внесённых через БД (режимы db и sharded). каталог фильмов в файле (hybrid, mapped)
+--запоминает значение счётчика, с которым он был заполнен, и при расхождении загружается из БД заново.
+--отложенная запись гибридного хранилища счётчик не меняет: она повторяет изменения, уже внесённые в каталог.
+--миграции, изменяющие фильмы, должны увеличивать счётчик
+CREATE TABLE IF NOT EXISTS films_version (
+        id INTEGER PRIMARY KEY,
+        version BIGINT NOT NULL
+);
+MERGE INTO films_version KEY(id) VALUES (1, 0);
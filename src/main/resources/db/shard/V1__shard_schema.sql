@@ -0,0 +1,33 @@
+--схема шарда: пользователи, их друзья и лайки. пользователь и все его записи хранятся в одном шарде,
+--id пользователей выдаются последовательностью user_id_seq основной БД
+
+--создание таблицы users
+CREATE TABLE IF NOT EXISTS users (
+        user_id INTEGER PRIMARY KEY,
+        email VARCHAR(320) NOT NULL,
+        login VARCHAR(100) NOT NULL,
+        name VARCHAR(100) NOT NULL,
+        birthday DATE
+);
+
+--дружба в шардах хранится так же, как в основной БД: одна запись на пару пользователей (user_low < user_high)
+--с признаками дружбы в каждую сторону. запись пары хранится в шардах обоих пользователей, поэтому
+--друзья пользователя и подтверждение дружбы читаются из его шарда. внешних ключей нет: второй пользователь
+--пары может находиться в другом шарде
+CREATE TABLE IF NOT EXISTS friendships (
+        user_low INTEGER NOT NULL,
+        user_high INTEGER NOT NULL,
+        low_to_high BOOLEAN NOT NULL DEFAULT FALSE,
+        high_to_low BOOLEAN NOT NULL DEFAULT FALSE,
+        PRIMARY KEY (user_low, user_high),
+        CHECK (user_low < user_high)
+);
+CREATE INDEX IF NOT EXISTS idx_friendships_high ON friendships (user_high, user_low);
+
+--создание таблицы films_like: лайк хранится в шарде пользователя, фильмы - в основной БД
+CREATE TABLE IF NOT EXISTS films_like (
+        user_id INTEGER NOT NULL REFERENCES users (user_id) ON DELETE CASCADE,
+        film_id INTEGER NOT NULL,
+        PRIMARY KEY (user_id, film_id)
+);
+CREATE INDEX IF NOT EXISTS idx_films_like_film ON films_like (film_id);
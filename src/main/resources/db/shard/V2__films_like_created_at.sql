@@ -0,0 +1,3 @@
+--время лайка для трендов, как в основной БД. у лайков, поставленных раньше, время неизвестно (NULL)
+ALTER TABLE films_like ADD COLUMN IF NOT EXISTS created_at TIMESTAMP;
+CREATE INDEX IF NOT EXISTS idx_films_like_created ON films_like (created_at);
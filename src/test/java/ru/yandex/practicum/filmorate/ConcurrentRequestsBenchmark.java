@@ -0,0 +1,152 @@
+package ru.yandex.practicum.filmorate;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+//одновременные запросы: 1000-10000 клиентов одновременно выполняют по REQUESTS_PER_CLIENT запросов
+//GET /users/{id} (чтение из БД) к приложению в отдельной JVM, которое обрабатывает запросы на потоках
+//платформы (пул Tomcat) или на виртуальных потоках (filmorate.threads.virtual=true).
+//выводятся пропускная способность, задержки и число ошибок. параллелизм работы с БД в обоих режимах
+//ограничен пулом соединений (spring.datasource.hikari.maximum-pool-size). запуск вручную:
+//mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+//    -Dexec.args="-cp %classpath ru.yandex.practicum.filmorate.ConcurrentRequestsBenchmark"
+public class ConcurrentRequestsBenchmark {
+    private static final int[] CLIENTS = {1_000, 2_000, 5_000, 10_000};
+    private static final int REQUESTS_PER_CLIENT = 5;
+    private static final int USERS = 100;
+    private static final Duration TIMEOUT = Duration.ofSeconds(120);
+
+    public static void main(String[] args) throws Exception {
+        HttpClient client = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+        for (boolean virtual : new boolean[]{false, true}) {
+            Path dir = Files.createTempDirectory("filmorate-concurrency");
+            Process process = null;
+            try {
+                int port = StartupBenchmark.freePort();
+                process = start(port, virtual, dir);
+                String base = "http://localhost:" + port;
+                awaitStarted(client, process, base, dir);
+                for (int i = 1; i <= USERS; i++) {
+                    client.send(HttpRequest.newBuilder(URI.create(base + "/users"))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString("{\"email\":\"user" + i + "@mail.ru\"," +
+                                    "\"login\":\"user" + i + "\",\"birthday\":\"2000-01-01\"}"))
+                            .build(), HttpResponse.BodyHandlers.discarding());
+                }
+                run(client, base, CLIENTS[0]); //прогрев
+                for (int clients : CLIENTS) {
+                    System.out.printf("virtual=%s %s%n", virtual, run(client, base, clients));
+                }
+            } finally {
+                if (process != null) {
+                    process.destroy();
+                    process.waitFor();
+                }
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+    }
+
+    private static String run(HttpClient client, String base, int clients) throws Exception {
+        AtomicInteger errors = new AtomicInteger();
+        long[] latencies = new long[clients * REQUESTS_PER_CLIENT];
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        long began;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int clientId = c;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int r = 0; r < REQUESTS_PER_CLIENT; r++) {
+                        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/users/" +
+                                ((clientId + r) % USERS + 1))).timeout(TIMEOUT).build();
+                        long sent = System.nanoTime();
+                        try {
+                            if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies[next.getAndIncrement()] = System.nanoTime() - sent;
+                    }
+                    return null;
+                }));
+            }
+            began = System.nanoTime();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        Arrays.sort(latencies);
+        return String.format("clients=%d requests=%d req/s=%.0f p50=%dms p99=%dms max=%dms errors=%d",
+                clients, latencies.length, latencies.length / seconds, percentile(latencies, 0.5),
+                percentile(latencies, 0.99), latencies[latencies.length - 1] / 1_000_000, errors.get());
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(sorted.length * p))] / 1_000_000;
+    }
+
+    //очередь соединений Tomcat рассчитана на наибольшее число клиентов
+    private static Process start(int port, boolean virtual, Path dir) throws IOException {
+        List<String> command = List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dfile.encoding=UTF-8",
+                "-cp", StartupBenchmark.mainClassPath(),
+                FilmorateApplication.class.getName(),
+                "--server.port=" + port,
+                "--server.tomcat.max-connections=" + 2 * CLIENTS[CLIENTS.length - 1],
+                "--server.tomcat.accept-count=" + CLIENTS[CLIENTS.length - 1],
+                "--spring.datasource.url=jdbc:h2:file:" + dir.resolve("filmorate") + ";DB_CLOSE_ON_EXIT=FALSE",
+                "--filmorate.threads.virtual=" + virtual,
+                "--logging.level.root=warn",
+                "--logging.level.ru.yandex.practicum=warn");
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(dir.resolve("app.log").toFile()).start();
+    }
+
+    private static void awaitStarted(HttpClient client, Process process, String base, Path dir) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/mpa")).build();
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < TIMEOUT.toNanos()) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Приложение завершилось при запуске, см. " + dir.resolve("app.log"));
+            }
+            try {
+                if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                //приложение ещё не принимает соединения
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Приложение не ответило за " + TIMEOUT.toSeconds() + " с");
+    }
+}
@@ -1,34 +1,155 @@
 package ru.yandex.practicum.filmorate;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
+import org.flywaydb.core.Flyway;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.cache.DataVersions;
+import ru.yandex.practicum.filmorate.cache.KnownIds;
+import ru.yandex.practicum.filmorate.cache.ResponseCache;
+import ru.yandex.practicum.filmorate.controller.NdjsonWriter;
+import ru.yandex.practicum.filmorate.exceptions.ValidationException;
 import ru.yandex.practicum.filmorate.exceptions.film.FilmNotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.genre.GenreNotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.mpa.MpaNotFoundException;
 import ru.yandex.practicum.filmorate.exceptions.user.UserNotFoundException;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmField;
+import ru.yandex.practicum.filmorate.model.FilmScoreStats;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeState;
 import ru.yandex.practicum.filmorate.model.MPA;
+import ru.yandex.practicum.filmorate.model.PopularityEstimate;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.UserEvent;
+import ru.yandex.practicum.filmorate.model.UserEventType;
+import ru.yandex.practicum.filmorate.model.WriteBehindStats;
+import ru.yandex.practicum.filmorate.service.ApproximatePopularity;
+import ru.yandex.practicum.filmorate.service.FilmViewTracker;
+import ru.yandex.practicum.filmorate.service.MutualFriends;
+import ru.yandex.practicum.filmorate.service.PopularFilmsFeed;
+import ru.yandex.practicum.filmorate.service.UserService;
 import ru.yandex.practicum.filmorate.storage.film.dao.FilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.dao.FilmViewDao;
 import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmDbDao;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmLikeDbDao;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmScoreDbDao;
+import ru.yandex.practicum.filmorate.storage.film.daoImpl.FilmViewDbDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.HyperLogLog;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryGenreDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryMpaDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.MappedFilmCatalog;
+import ru.yandex.practicum.filmorate.storage.film.memory.PopularitySketch;
+import ru.yandex.practicum.filmorate.storage.film.memory.TrendingCounters;
 import ru.yandex.practicum.filmorate.storage.film.daoImpl.GenreDbDao;
 import ru.yandex.practicum.filmorate.storage.film.daoImpl.MpaDbDao;
+import ru.yandex.practicum.filmorate.storage.replica.ReadWriteRoutingDataSource;
+import ru.yandex.practicum.filmorate.storage.replica.ReplicaLogShipper;
+import ru.yandex.practicum.filmorate.storage.replica.ReplicatingDataSource;
+import ru.yandex.practicum.filmorate.storage.sharded.ShardRebalancer;
+import ru.yandex.practicum.filmorate.storage.sharded.ShardedFilmDao;
+import ru.yandex.practicum.filmorate.storage.sharded.ShardedFilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.sharded.ShardedFriendsDao;
+import ru.yandex.practicum.filmorate.storage.sharded.ShardedUserDao;
+import ru.yandex.practicum.filmorate.storage.sharded.Shards;
 import ru.yandex.practicum.filmorate.storage.user.dao.FriendsDao;
+import ru.yandex.practicum.filmorate.storage.hybrid.HybridFilmDao;
+import ru.yandex.practicum.filmorate.storage.hybrid.HybridFilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.hybrid.HybridFriendsDao;
+import ru.yandex.practicum.filmorate.storage.hybrid.HybridStorageLoader;
+import ru.yandex.practicum.filmorate.storage.hybrid.HybridUserDao;
+import ru.yandex.practicum.filmorate.storage.hybrid.WriteBehindQueue;
+import ru.yandex.practicum.filmorate.storage.user.daoImpl.FriendsDbDao;
 import ru.yandex.practicum.filmorate.storage.user.daoImpl.UserDbDao;
+import ru.yandex.practicum.filmorate.storage.user.daoImpl.UserEventDbDao;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryFriendsStorage;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryUserStorage;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.Cookie;
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
 @AutoConfigureTestDatabase
+@AutoConfigureMockMvc
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
 class FilmoRateApplicationTests {
 
@@ -38,6 +159,15 @@ class FilmoRateApplicationTests {
     private final FilmLikeDao filmLikeDao;
     private final MpaDbDao mpaDbStorage;
     private final GenreDbDao genreDbStorage;
+    private final JdbcTemplate jdbcTemplate;
+    private final FilmLikeDbDao filmLikeDbDao;
+    private final FriendsDbDao friendsDbDao;
+    private final PlatformTransactionManager transactionManager;
+    private final DataVersions dataVersions;
+    private final MockMvc mockMvc;
+    private final ResponseCache responseCache;
+    private final NdjsonWriter ndjsonWriter;
+    private final ObjectMapper objectMapper;
 
     private final User user1 = new User(1, "user1_test_1@email.ru", "user1_login", "user1_name",
             LocalDate.of(2002, 5, 3));
@@ -103,6 +233,56 @@ class FilmoRateApplicationTests {
         assertEquals(0, friendsUser5.size(), "У пользователя с id=5 не должно быть друзей.");
     }
 
+    @Test
+    public void testConcurrentFriends() throws Exception {
+        //встречные запросы на дружбу и удаление из друзей выполняются параллельно:
+        //для каждой пары должна остаться одна подтверждённая запись, а после удаления - ни одной
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 25; round++) {
+                runConcurrently(executor, () -> friendsDao.addFriend(6, 2), () -> friendsDao.addFriend(2, 6),
+                        () -> friendsDao.addFriend(6, 3), () -> friendsDao.addFriend(3, 6),
+                        () -> friendsDao.addFriend(6, 2), () -> friendsDao.addFriend(2, 6),
+                        () -> friendsDao.addFriend(6, 3), () -> friendsDao.addFriend(3, 6));
+                assertEquals(List.of(true), friendStatuses(2, 6), "Дружба пользователей 2 и 6 не подтверждена.");
+                assertEquals(List.of(true), friendStatuses(3, 6), "Дружба пользователей 3 и 6 не подтверждена.");
+                assertEquals(2, friendsDao.getFriends(6).size(), "Количество друзей пользователя с id=6 не совпадает.");
+
+                runConcurrently(executor, () -> friendsDao.deleteFriend(6, 2), () -> friendsDao.deleteFriend(2, 6),
+                        () -> friendsDao.deleteFriend(6, 3), () -> friendsDao.deleteFriend(3, 6),
+                        () -> friendsDao.deleteFriend(6, 2), () -> friendsDao.deleteFriend(2, 6),
+                        () -> friendsDao.deleteFriend(6, 3), () -> friendsDao.deleteFriend(3, 6));
+                assertEquals(List.of(), friendStatuses(2, 6), "Запись о дружбе пользователей 2 и 6 не удалена.");
+                assertEquals(List.of(), friendStatuses(3, 6), "Запись о дружбе пользователей 3 и 6 не удалена.");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    //запускает задачи одновременно и дожидается их завершения, пробрасывая ошибки
+    private void runConcurrently(ExecutorService executor, Runnable... tasks) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Runnable task : tasks) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                task.run();
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private List<Boolean> friendStatuses(long userLow, long userHigh) {
+        return jdbcTemplate.queryForList("select low_to_high and high_to_low from friendships " +
+                        "where user_low=? and user_high=?",
+                Boolean.class, userLow, userHigh);
+    }
+
     @Test
     public void testCrudFilms() {
         //добавление фильма
@@ -119,8 +299,11 @@ class FilmoRateApplicationTests {
         //удаление фильма с несуществующим id
         assertThrows(FilmNotFoundException.class, () -> filmDbStorage.deleteFilm(9999));
         //удаление фильма с корректным id
+        assertTrue(filmDbStorage.exists(5), "Фильм с id=5 должен существовать.");
         filmDbStorage.deleteFilm(5);
         assertThrows(FilmNotFoundException.class, () -> filmDbStorage.getFilm(5));
+        assertFalse(filmDbStorage.exists(5), "Фильм с id=5 удалён.");
+        assertFalse(filmDbStorage.exists(9999), "Фильм с id=9999 не должен существовать.");
         //получение списка фильмов
         List<Film> films = filmDbStorage.getFilms();
         assertEquals(4, films.size(), "Количество фильмов не совпадает.");
@@ -130,6 +313,229 @@ class FilmoRateApplicationTests {
         assertEquals("The Lion King", films.get(3).getName(), "name фильма с id=4 не совпадает.");
     }
 
+    @Test
+    public void testGetByIds() {
+        //несколько фильмов одним запросом, отсутствующий id в результат не попадает
+        Map<Long, Film> films = filmDbStorage.getFilmsByIds(List.of(3L, 9999L, 2L, 3L));
+        assertEquals(2, films.size(), "Количество найденных фильмов не совпадает.");
+        assertEquals("Back to the Future", films.get(3L).getName(), "name фильма с id=3 не совпадает.");
+        assertEquals(3, films.get(3L).getGenres().size(), "Жанры фильма с id=3 не совпадают.");
+        //несколько пользователей одним запросом
+        Map<Long, User> users = userStorage.getUsersByIds(List.of(6L, 2L, 9999L));
+        assertEquals(2, users.size(), "Количество найденных пользователей не совпадает.");
+        assertEquals("user6_login", users.get(6L).getLogin(), "login пользователя с id=6 не совпадает.");
+    }
+
+    @Test
+    public void testKnownIds() {
+        //хранится не более capacity id, вытесненный id проверяется в БД заново
+        KnownIds ids = new KnownIds(id -> id > 0, 2);
+        for (long id = 1; id <= 5; id++) {
+            assertTrue(ids.exists(id), "id=" + id + " не найден.");
+        }
+        assertEquals(2, ids.size(), "Количество запомненных id превышает ограничение.");
+        assertFalse(new KnownIds(id -> false, 2).exists(1), "Отсутствующий id найден.");
+        //id, удалённый во время проверки в БД, не запоминается
+        KnownIds[] racing = new KnownIds[1];
+        racing[0] = new KnownIds(id -> {
+            racing[0].removed(id);
+            return true;
+        }, 2);
+        assertTrue(racing[0].exists(7), "id=7 не найден.");
+        assertEquals(0, racing[0].size(), "Удалённый во время проверки id запомнен.");
+    }
+
+    @Test
+    public void testConditionalGet() throws Exception {
+        //пока фильм не изменён, запрос с его ETag получает 304 без тела
+        MvcResult result = mockMvc.perform(get("/films/1")).andExpect(status().isOk()).andReturn();
+        String etag = result.getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(etag, "Ответ должен содержать ETag.");
+        mockMvc.perform(get("/films/1").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        String filmsEtag = mockMvc.perform(get("/films")).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mockMvc.perform(get("/films").header(HttpHeaders.IF_NONE_MATCH, filmsEtag))
+                .andExpect(status().isNotModified());
+
+        //запись фильма (даже без изменения данных) увеличивает версии фильма и списка фильмов
+        mockMvc.perform(put("/films").contentType(MediaType.APPLICATION_JSON)
+                        .content(result.getResponse().getContentAsString()))
+                .andExpect(status().isOk());
+        String updatedEtag = mockMvc.perform(get("/films/1").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotEquals(etag, updatedEtag, "ETag фильма после записи должен измениться.");
+        //новый зритель изменяет ETag фильма, повторный просмотр - нет
+        mockMvc.perform(post("/films/1/views/1")).andExpect(status().isOk());
+        String viewedEtag = mockMvc.perform(get("/films/1").header(HttpHeaders.IF_NONE_MATCH, updatedEtag))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mockMvc.perform(post("/films/1/views/1")).andExpect(status().isOk());
+        mockMvc.perform(get("/films/1").header(HttpHeaders.IF_NONE_MATCH, viewedEtag))
+                .andExpect(status().isNotModified());
+        //ETag несуществующего фильма строится без чтения зрителей, фильм не найден
+        mockMvc.perform(get("/films/9999").header(HttpHeaders.IF_NONE_MATCH, viewedEtag))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/films").header(HttpHeaders.IF_NONE_MATCH, filmsEtag))
+                .andExpect(status().isOk());
+
+        //справочники не изменяются после запуска: их ETag постоянен
+        for (String path : List.of("/genres", "/mpa", "/genres/1", "/mpa/1")) {
+            String referenceEtag = mockMvc.perform(get(path)).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+            mockMvc.perform(get(path).header(HttpHeaders.IF_NONE_MATCH, referenceEtag))
+                    .andExpect(status().isNotModified());
+        }
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<List<Film>> loader = () -> {
+            loads.incrementAndGet();
+            return filmDbStorage.getFilms();
+        };
+        //ответ формируется один раз и отдаётся из кэша, пока не изменится ETag
+        byte[] json = cachedResponse("\"v1\"", loader, null).getContentAsByteArray();
+        MockHttpServletResponse cached = cachedResponse("\"v1\"", loader, null);
+        assertEquals(1, loads.get(), "Ответ с тем же ETag должен браться из кэша.");
+        assertArrayEquals(json, cached.getContentAsByteArray(), "Ответ из кэша не совпадает.");
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, cached.getHeader(HttpHeaders.VARY), "Заголовок Vary не совпадает.");
+        assertNull(cached.getHeader(HttpHeaders.CONTENT_ENCODING), "Ответ без Accept-Encoding не сжимается.");
+
+        //сжатый вариант хранится вместе с ответом и отдаётся клиентам, принимающим gzip
+        MockHttpServletResponse gzipped = cachedResponse("\"v1\"", loader, "deflate, gzip;q=0.5");
+        assertEquals("gzip", gzipped.getHeader(HttpHeaders.CONTENT_ENCODING), "Ответ должен быть сжат.");
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.getContentAsByteArray()))) {
+            assertArrayEquals(json, in.readAllBytes(), "Распакованный ответ не совпадает.");
+        }
+        assertNull(cachedResponse("\"v1\"", loader, "gzip;q=0").getHeader(HttpHeaders.CONTENT_ENCODING),
+                "Запрещённый через q=0 gzip не должен использоваться.");
+        assertEquals(1, loads.get(), "Сжатый ответ должен браться из кэша.");
+
+        //новая версия данных делает запись кэша устаревшей
+        cachedResponse("\"v2\"", loader, null);
+        cachedResponse("\"v2\"", loader, "gzip");
+        assertEquals(2, loads.get(), "Ответ с новым ETag должен формироваться заново один раз.");
+
+        //при заполненном кэше новые ключи кэшируются, вытесняя ключи, к которым дольше всего не обращались
+        Supplier<String> small = () -> {
+            loads.incrementAndGet();
+            return "small";
+        };
+        for (int i = 0; i < ResponseCache.MAX_ENTRIES; i++) {
+            cachedResponse("lru-" + i, "\"v1\"", small, null);
+        }
+        cachedResponse("lru-new", "\"v1\"", small, null);
+        cachedResponse("lru-new", "\"v1\"", small, null);
+        assertEquals(3 + ResponseCache.MAX_ENTRIES, loads.get(), "Новый ключ должен кэшироваться и при полном кэше.");
+        cachedResponse("\"v2\"", loader, null);
+        assertEquals(4 + ResponseCache.MAX_ENTRIES, loads.get(), "Давно не запрошенный ключ должен вытесняться.");
+    }
+
+    private MockHttpServletResponse cachedResponse(String etag, Supplier<?> loader, String acceptEncoding)
+            throws IOException {
+        return cachedResponse("test-films", etag, loader, acceptEncoding);
+    }
+
+    private MockHttpServletResponse cachedResponse(String key, String etag, Supplier<?> loader,
+                                                   String acceptEncoding) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (acceptEncoding != null) {
+            request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        responseCache.write(key, etag, loader, new ServletWebRequest(request, response));
+        return response;
+    }
+
+    @Test
+    public void testNdjsonExport() throws Exception {
+        //каждый фильм - строка JSON, записанная в поток до того, как из курсора прочитан следующий фильм
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<Integer> writtenBeforeNext = new ArrayList<>();
+        ndjsonWriter.<Film>stream(consumer -> filmDbStorage.exportFilms(film -> {
+            writtenBeforeNext.add(out.size());
+            consumer.accept(film);
+        })).getBody().writeTo(out);
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        List<Film> films = filmDbStorage.getFilms();
+        assertEquals(films.size(), lines.length, "Количество строк выгрузки не совпадает.");
+        for (int i = 0; i < lines.length; i++) {
+            Film exported = objectMapper.readValue(lines[i], Film.class);
+            assertEquals(films.get(i).getId(), exported.getId(), "Порядок фильмов выгрузки не совпадает.");
+            assertEquals(films.get(i).getGenres(), exported.getGenres(), "Жанры фильма выгрузки не совпадают.");
+        }
+        for (int i = 1; i < writtenBeforeNext.size(); i++) {
+            assertTrue(writtenBeforeNext.get(i) > writtenBeforeNext.get(i - 1),
+                    "Фильм должен записываться в поток сразу после чтения.");
+        }
+
+        //ошибка записи (клиент закрыл соединение) прерывает выгрузку
+        OutputStream closed = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("closed");
+            }
+        };
+        AtomicInteger exported = new AtomicInteger();
+        assertThrows(IOException.class, () -> ndjsonWriter.<Film>stream(consumer -> filmDbStorage.exportFilms(film -> {
+            exported.incrementAndGet();
+            consumer.accept(film);
+        })).getBody().writeTo(closed));
+        assertEquals(1, exported.get(), "После ошибки записи выгрузка должна прерываться.");
+
+        //выгрузка пользователей через контроллер
+        MvcResult result = mockMvc.perform(get("/users/export")).andExpect(request().asyncStarted()).andReturn();
+        String users = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString(StandardCharsets.UTF_8);
+        assertEquals(userStorage.getUsers().size(), users.split("\n").length,
+                "Количество строк выгрузки пользователей не совпадает.");
+    }
+
+    @Test
+    public void testFilmFields() throws Exception {
+        //id возвращается всегда, без параметра - все поля, неизвестное поле - ошибка
+        assertEquals(EnumSet.of(FilmField.ID, FilmField.NAME, FilmField.MPA), FilmField.parse(" name,mpa"),
+                "Набор полей не совпадает.");
+        assertEquals(FilmField.ALL, FilmField.parse(null), "Без параметра должны возвращаться все поля.");
+        assertThrows(ValidationException.class, () -> FilmField.parse("name,budget"));
+        //без запрошенных полей sql запрос не читает рейтинг MPA и жанры
+        Film projected = filmDbStorage.getFilms(EnumSet.of(FilmField.ID, FilmField.NAME)).get(0);
+        assertNull(projected.getMpa(), "Рейтинг MPA не запрашивался.");
+        assertTrue(projected.getGenres().isEmpty(), "Жанры не запрашивались.");
+
+        //в ответе только запрошенные поля
+        Set<String> allProperties = FilmField.ALL.stream().map(FilmField::getProperty).collect(Collectors.toSet());
+        List<Map<String, Object>> films = filmsJson(get("/films").param("fields", "name,mpa"));
+        assertEquals(filmDbStorage.getFilms().size(), films.size(), "Количество фильмов не совпадает.");
+        assertTrue(films.stream().allMatch(film -> film.keySet().equals(Set.of("id", "name", "mpa"))),
+                "Поля фильмов не совпадают с запрошенными: " + films);
+        List<Map<String, Object>> popular = filmsJson(get("/films/popular").param("count", "2")
+                .param("fields", "genres"));
+        assertEquals(2, popular.size(), "Количество популярных фильмов не совпадает.");
+        assertTrue(popular.stream().allMatch(film -> film.keySet().equals(Set.of("id", "genres"))),
+                "Поля популярных фильмов не совпадают с запрошенными: " + popular);
+        //без параметра и в ответах без фильтра (фильм по id) фильм сериализуется полностью
+        assertTrue(filmsJson(get("/films")).stream().allMatch(film -> film.keySet().containsAll(allProperties)),
+                "Без параметра fields должны возвращаться все поля.");
+        Map<String, Object> film = objectMapper.readValue(mockMvc.perform(get("/films/1"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString(StandardCharsets.UTF_8), new TypeReference<>() {
+        });
+        assertTrue(film.keySet().containsAll(allProperties), "Фильм по id должен сериализоваться полностью.");
+        mockMvc.perform(get("/films").param("fields", "budget")).andExpect(status().isBadRequest());
+    }
+
+    private List<Map<String, Object>> filmsJson(MockHttpServletRequestBuilder request) throws Exception {
+        return objectMapper.readValue(mockMvc.perform(request)
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString(StandardCharsets.UTF_8), new TypeReference<>() {
+        });
+    }
+
     @Test
     public void testCrudFilmLike() {
         //самые популярные фильмы
@@ -140,7 +546,12 @@ class FilmoRateApplicationTests {
         //добавляем лайк фильму с несуществующим id
         assertThrows(FilmNotFoundException.class, () -> filmLikeDao.addLike(9999, 1));
         //добавляем лайк фильму с корректным id
-        filmLikeDao.addLike(1, 1);
+        LikeState like = filmLikeDao.addLike(1, 1);
+        assertTrue(like.isLiked() && like.isChanged(), "Лайк фильму с id=1 не добавлен.");
+        //повторный лайк не меняет состояние
+        LikeState repeatedLike = filmLikeDao.addLike(1, 1);
+        assertFalse(repeatedLike.isChanged(), "Повторный лайк не должен менять состояние.");
+        assertEquals(like.getLikes(), repeatedLike.getLikes(), "Количество лайков фильма с id=1 не совпадает.");
         filmLikeDao.addLike(1, 3);
         popularFilms = filmDbStorage.getPopularFilms(1);
         assertEquals(1, popularFilms.get(0).getId(), "Самый популярный фильм не совпадает.");
@@ -153,6 +564,1223 @@ class FilmoRateApplicationTests {
         assertEquals(2, popularFilms.get(0).getId(), "Самый популярный фильм не совпадает.");
     }
 
+    @Test
+    public void testConcurrentLikes() throws Exception {
+        //одновременные повторные лайки и удаления лайка: состояние меняет только один запрос
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            long likesBefore = filmLikeDao.deleteLike(3, 6).getLikes();
+            List<LikeState> states = new CopyOnWriteArrayList<>();
+            Runnable like = () -> states.add(filmLikeDao.addLike(3, 6));
+            runConcurrently(executor, like, like, like, like, like, like, like, like);
+            assertEquals(1, states.stream().filter(LikeState::isChanged).count(), "Лайк должен быть добавлен один раз.");
+            assertEquals(likesBefore + 1, filmLikeDao.addLike(3, 6).getLikes(), "Количество лайков не совпадает.");
+
+            states.clear();
+            Runnable unlike = () -> states.add(filmLikeDao.deleteLike(3, 6));
+            runConcurrently(executor, unlike, unlike, unlike, unlike, unlike, unlike, unlike, unlike);
+            assertEquals(1, states.stream().filter(LikeState::isChanged).count(), "Лайк должен быть удалён один раз.");
+            assertEquals(likesBefore, filmLikeDao.deleteLike(3, 6).getLikes(), "Количество лайков не совпадает.");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentInMemoryStorage() throws Exception {
+        //параллельное добавление пользователей и друзей в хранилище в памяти: id не повторяются, записи не теряются
+        InMemoryUserStorage users = new InMemoryUserStorage();
+        InMemoryFriendsStorage friends = new InMemoryFriendsStorage(users);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Runnable addUsers = () -> {
+                for (int i = 0; i < 100; i++) {
+                    users.addUser(new User(0, "user@mail.ru", "login", "name", LocalDate.of(2000, 1, 1)));
+                }
+            };
+            runConcurrently(executor, addUsers, addUsers, addUsers, addUsers, addUsers, addUsers, addUsers, addUsers);
+            Set<User> allUsers = users.getUsers();
+            assertEquals(800, allUsers.size(), "Количество пользователей не совпадает.");
+            assertEquals(800, allUsers.stream().mapToLong(User::getId).max().orElse(0), "id пользователей повторяются.");
+
+            List<Runnable> addFriends = new ArrayList<>();
+            for (long userId = 1; userId <= 8; userId++) {
+                long id = userId;
+                addFriends.add(() -> {
+                    for (long friendId = 1; friendId <= 800; friendId++) {
+                        friends.addFriend(id, friendId);
+                        friends.addFriend(friendId, id);
+                    }
+                });
+            }
+            runConcurrently(executor, addFriends.toArray(new Runnable[0]));
+            assertEquals(800, friends.getFriends(1).size(), "Количество друзей пользователя с id=1 не совпадает.");
+            assertEquals(8, friends.getFriends(100).size(), "Количество друзей пользователя с id=100 не совпадает.");
+            assertEquals(800, friends.getCommonFriends(1, 2).size(), "Количество общих друзей не совпадает.");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLikesFootprint() {
+        //1 млн лайков: 20 фильмов по 50 тыс. лайков от пользователей, разбросанных среди 5 млн id
+        //(100 млн лайков - LikesFootprintBenchmark)
+        InMemoryFilmLikeDao likes = new InMemoryFilmLikeDao();
+        int[] userIds = new int[50_000];
+        for (long filmId = 1; filmId <= 20; filmId++) {
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = (int) ((i * 97L + filmId * 7_919) % 5_000_000 + 1);
+            }
+            likes.loadLikes(filmId, userIds);
+        }
+        long likesCount = likes.getLikeCounts().values().stream().mapToLong(Long::longValue).sum();
+        assertEquals(1_000_000, likesCount, "Количество лайков не совпадает.");
+        //повторный лайк не меняет состояние
+        assertFalse(likes.addLike(20, userIds[0]).isChanged(), "Повторный лайк не должен менять состояние.");
+        double bytesPerLike = (double) likes.getSizeInBytes() / likesCount;
+        assertTrue(bytesPerLike < 4, "На лайк должно приходиться меньше 4 байт, фактически: " + bytesPerLike);
+        //id вне диапазона набора - ошибка запроса, а не переполнение
+        assertThrows(ValidationException.class, () -> likes.addLike(1, Integer.MAX_VALUE + 1L));
+        assertThrows(ValidationException.class, () -> likes.addLike(Integer.MAX_VALUE + 1L, 1));
+        assertFalse(likes.deleteLike(1, Integer.MAX_VALUE + 1L).isChanged(), "Несуществующий лайк удалён.");
+        assertEquals(0, likes.getLikesCount(Integer.MAX_VALUE + 1L), "Количество лайков не совпадает.");
+    }
+
+    @Test
+    public void testInMemoryPopularFilms() {
+        InMemoryFilmLikeDao likes = new InMemoryFilmLikeDao();
+        InMemoryFilmStorage films = new InMemoryFilmStorage(likes, new InMemoryGenreDao(), new InMemoryMpaDao());
+        for (int i = 1; i <= 6; i++) {
+            films.addFilm(new Film(0, "film" + i, "description", LocalDate.of(2000, 1, 1), 100, 0,
+                    new MPA(1, "G"), new HashSet<>()));
+        }
+        //фильмы 2 и 5 по два лайка, фильм 4 - один, у остальных лайков нет
+        likes.loadLikes(5, new int[]{1, 2});
+        likes.loadLikes(2, new int[]{3, 4});
+        likes.loadLikes(4, new int[]{1});
+        //при равном числе лайков первым идёт фильм с меньшим id, фильмы без лайков тоже попадают в рейтинг
+        assertEquals(List.of(2L, 5L, 4L, 1L, 3L, 6L), films.getPopularFilms(10).stream()
+                .map(Film::getId).collect(Collectors.toList()), "Порядок популярных фильмов не совпадает.");
+        assertEquals(List.of(2L, 5L, 4L, 1L), films.getPopularFilms(4).stream()
+                .map(Film::getId).collect(Collectors.toList()), "Порядок популярных фильмов не совпадает.");
+        assertTrue(films.getPopularFilms(0).isEmpty(), "Список популярных фильмов должен быть пустым.");
+        //лайки удалённого фильма удаляются вместе с ним
+        films.deleteFilm(5);
+        assertEquals(Map.of(2L, 2L, 4L, 1L), likes.getLikeCounts(), "Лайки удалённого фильма не удалены.");
+        assertEquals(0, likes.getLikesCount(5), "Лайки удалённого фильма не удалены.");
+    }
+
+    @Test
+    public void testPopularFilmsStream() throws Exception {
+        //подписка на рейтинг фильмов хранилища в памяти с пересчётом не чаще раза в 200 мс
+        InMemoryFilmLikeDao likes = new InMemoryFilmLikeDao();
+        InMemoryFilmStorage films = new InMemoryFilmStorage(likes, new InMemoryGenreDao(), new InMemoryMpaDao());
+        for (int i = 1; i <= 3; i++) {
+            films.addFilm(new Film(0, "film" + i, "description", LocalDate.of(2000, 1, 1), 100, 0,
+                    new MPA(1, "G"), new HashSet<>()));
+        }
+        ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+        PopularFilmsFeed feed = new PopularFilmsFeed(films, senders, 200, 60_000);
+        MockMvc feedMvc = MockMvcBuilders.standaloneSetup(new PopularStreamController(feed))
+                .setMessageConverters(new MappingJackson2HttpMessageConverter(objectMapper))
+                .build();
+        try {
+            //подписчик сразу получает текущий рейтинг, подписка живёт timeout-ms
+            MvcResult subscription = feedMvc.perform(get("/popular/stream").param("count", "2"))
+                    .andExpect(request().asyncStarted()).andReturn();
+            assertEquals(60_000, subscription.getRequest().getAsyncContext().getTimeout(),
+                    "Время жизни подписки не совпадает.");
+            assertEquals(List.of(List.of(1L, 2L)), awaitPopularEvents(subscription, 1),
+                    "Первое событие подписки не совпадает.");
+
+            //несколько уведомлений об изменениях - одно событие с последним рейтингом
+            //(лайки ставятся до уведомлений: пересчёт может начаться сразу после первого)
+            likes.addLike(3, 1);
+            likes.addLike(2, 1);
+            likes.addLike(3, 2);
+            feed.likesChanged();
+            feed.likesChanged();
+            feed.likesChanged();
+            assertEquals(List.of(3L, 2L), awaitPopularEvents(subscription, 2).get(1),
+                    "Событие после изменения лайков не совпадает.");
+            //пересчёт без изменения рейтинга события не отправляет
+            feed.likesChanged();
+            Thread.sleep(400);
+            assertEquals(2, popularEvents(subscription).size(), "Лишнее событие при неизменном рейтинге.");
+
+            //по истечении времени жизни подписчик удаляется и событий не получает
+            MockAsyncContext asyncContext = (MockAsyncContext) subscription.getRequest().getAsyncContext();
+            for (AsyncListener listener : asyncContext.getListeners()) {
+                listener.onTimeout(new AsyncEvent(asyncContext));
+            }
+            likes.addLike(1, 1);
+            likes.addLike(1, 2);
+            likes.addLike(1, 3);
+            feed.likesChanged();
+            Thread.sleep(400);
+            assertEquals(2, popularEvents(subscription).size(), "Подписка после истечения не должна получать события.");
+        } finally {
+            feed.shutdown();
+            senders.shutdown();
+        }
+    }
+
+    //ожидает count событий подписки на популярные фильмы и возвращает id фильмов каждого события
+    private List<List<Long>> awaitPopularEvents(MvcResult subscription, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        List<List<Long>> events = popularEvents(subscription);
+        while (events.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            events = popularEvents(subscription);
+        }
+        return events;
+    }
+
+    //разбираются только события, записанные целиком (событие заканчивается пустой строкой)
+    private List<List<Long>> popularEvents(MvcResult subscription) throws Exception {
+        List<List<Long>> events = new ArrayList<>();
+        String content = subscription.getResponse().getContentAsString(StandardCharsets.UTF_8);
+        content = content.substring(0, content.lastIndexOf("\n\n") + 1);
+        for (String line : content.split("\n")) {
+            if (line.startsWith("data:")) {
+                events.add(filmIds(Arrays.asList(objectMapper.readValue(line.substring(5), Film[].class))));
+            }
+        }
+        return events;
+    }
+
+    //подписка на популярные фильмы отдельно от контроллера приложения (без @Controller, чтобы не попасть в контекст)
+    @RequestMapping("/popular")
+    private static class PopularStreamController {
+        private final PopularFilmsFeed feed;
+
+        private PopularStreamController(PopularFilmsFeed feed) {
+            this.feed = feed;
+        }
+
+        @GetMapping("/stream")
+        public SseEmitter stream(@RequestParam long count) {
+            return feed.subscribe(count);
+        }
+    }
+
+    @Test
+    public void testHybridWriteBehind() throws Exception {
+        //очередь на 2 изменения: при заполнении запись в память ждёт, пока изменения запишутся в БД
+        WriteBehindQueue writeBehind = new WriteBehindQueue(transactionManager, 2, 2, 0);
+        writeBehind.start();
+        InMemoryUserStorage users = new InMemoryUserStorage();
+        InMemoryFilmLikeDao likes = new InMemoryFilmLikeDao();
+        InMemoryFilmStorage films = new InMemoryFilmStorage(likes, new InMemoryGenreDao(), new InMemoryMpaDao());
+        InMemoryFriendsStorage friends = new InMemoryFriendsStorage(users);
+        new HybridStorageLoader(users, films, likes, friends, userStorage, filmDbStorage, filmLikeDbDao,
+                friendsDbDao, writeBehind).load();
+        //хранилище в памяти заполнено из БД
+        assertEquals(userStorage.getUsers(), users.getUsers(), "Пользователи в памяти не совпадают с БД.");
+        assertEquals(friendsDao.getFriends(1), friends.getFriends(1), "Друзья в памяти не совпадают с БД.");
+        assertEquals(filmDbStorage.getFilms().size(), films.getFilms().size(), "Количество фильмов не совпадает.");
+
+        HybridUserDao hybridUsers = new HybridUserDao(users, userStorage, writeBehind);
+        HybridFilmDao hybridFilms = new HybridFilmDao(films, filmDbStorage, writeBehind, dataVersions);
+        HybridFilmLikeDao hybridLikes = new HybridFilmLikeDao(likes, filmLikeDbDao, writeBehind, dataVersions,
+                new TrendingCounters(24));
+        HybridFriendsDao hybridFriends = new HybridFriendsDao(friends, friendsDbDao, writeBehind);
+        User user = hybridUsers.addUser(new User(0, "hybrid@mail.ru", "hybrid", "hybrid", LocalDate.of(2000, 1, 1)));
+        Film film = hybridFilms.addFilm(new Film(0, "hybrid", "description", LocalDate.of(2000, 1, 1), 100, 0,
+                new MPA(1, "G"), new HashSet<>(Set.of(new Genre(2, "Драма")))));
+        hybridLikes.addLike(film.getId(), user.getId());
+        hybridLikes.addLike(film.getId(), 1);
+        hybridLikes.deleteLike(film.getId(), 1);
+        hybridFriends.addFriend(user.getId(), 1);
+        //при остановке очередь дописывается в БД в порядке изменений
+        writeBehind.close();
+        try {
+            WriteBehindStats stats = writeBehind.getStats();
+            assertEquals(0, stats.getDepth(), "Очередь должна быть пустой.");
+            assertEquals(6, stats.getWritten(), "Количество записанных изменений не совпадает.");
+            assertEquals(0, stats.getFailed(), "Все изменения должны быть записаны.");
+            assertEquals(user, userStorage.getUser(user.getId()), "Пользователь в БД не совпадает.");
+            Film saved = filmDbStorage.getFilm(film.getId());
+            assertEquals("hybrid", saved.getName(), "Название фильма в БД не совпадает.");
+            assertEquals(1, saved.getGenres().size(), "Жанры фильма в БД не совпадают.");
+            assertEquals(1, filmLikeDao.addLike(film.getId(), user.getId()).getLikes(),
+                    "Количество лайков фильма в БД не совпадает.");
+            assertEquals(List.of(1L), friendsDao.getFriends(user.getId()).stream().map(User::getId)
+                    .collect(Collectors.toList()), "Друзья пользователя в БД не совпадают.");
+        } finally {
+            filmDbStorage.deleteFilm(film.getId());
+            jdbcTemplate.update("delete from users where user_id=?", user.getId());
+        }
+
+        //изменение, не записанное за все попытки, не теряется и может быть поставлено в очередь повторно
+        WriteBehindQueue failing = new WriteBehindQueue(transactionManager, 2, 2, 0, 2, 0);
+        failing.start();
+        List<Integer> saved = new CopyOnWriteArrayList<>();
+        AtomicInteger failures = new AtomicInteger(3);
+        Consumer<List<Integer>> flaky = values -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("БД недоступна");
+            }
+            saved.addAll(values);
+        };
+        failing.submit(flaky, 1);
+        failing.close();
+        assertEquals(List.of(), saved, "Изменение не должно быть записано.");
+        assertEquals(1, failing.getStats().getUnwritten(), "Незаписанное изменение потеряно.");
+        assertEquals(1, failing.getStats().getRetries(), "Количество повторных попыток не совпадает.");
+        assertEquals(1, failing.retryFailed(), "Незаписанное изменение не поставлено в очередь повторно.");
+        assertEquals(List.of(1), saved, "Повторно поставленное изменение не записано.");
+        assertEquals(0, failing.getStats().getUnwritten(), "Записанное изменение осталось в списке незаписанных.");
+    }
+
+    @Test
+    public void testMappedFilmCatalog(@TempDir Path dir) throws Exception {
+        Path path = dir.resolve("films");
+        InMemoryMpaDao mpa = new InMemoryMpaDao();
+        InMemoryGenreDao genres = new InMemoryGenreDao();
+        MappedFilmCatalog catalog = new MappedFilmCatalog(path, mpa, genres);
+        InMemoryFilmStorage films = new InMemoryFilmStorage(new InMemoryFilmLikeDao(), genres, mpa, catalog);
+        Film first = films.addFilm(new Film(0, "Фильм", "описание", LocalDate.of(2000, 1, 1), 100, 5,
+                new MPA(3, "PG-13"), new HashSet<>(Set.of(new Genre(6, "Боевик"), new Genre(2, "Драма")))));
+        Film second = films.addFilm(new Film(0, "second", null, null, 90, 0, new MPA(1, "G"), null));
+        Film third = films.addFilm(new Film(0, "third", "", LocalDate.of(1990, 5, 5), 60, 0, new MPA(1, "G"), null));
+        films.deleteFilm(third.getId());
+        first.setName("Фильм обновлён");
+        films.updateFilm(first);
+        assertEquals(first, films.getFilm(first.getId()), "Фильм из каталога не совпадает.");
+        assertEquals(second, films.getFilm(second.getId()), "Фильм из каталога не совпадает.");
+
+        //чтение во время изменения фильма видит название и описание одной версии
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            runConcurrently(executor, () -> {
+                for (int i = 0; i < 2_000; i++) {
+                    films.updateFilm(new Film(second.getId(), "n" + i, "d" + i, null, 90, 0, new MPA(1, "G"), null));
+                }
+            }, () -> {
+                for (int i = 0; i < 2_000; i++) {
+                    Film film = films.getFilm(second.getId());
+                    if (film.getDescription() != null) {
+                        assertEquals(film.getName().substring(1), film.getDescription().substring(1),
+                                "Прочитана несогласованная запись фильма.");
+                    }
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+        films.updateFilm(second);
+        catalog.close();
+
+        //штатно закрытый каталог открывается из файла
+        MappedFilmCatalog reopened = new MappedFilmCatalog(path, mpa, genres);
+        InMemoryFilmStorage restored = new InMemoryFilmStorage(new InMemoryFilmLikeDao(), genres, mpa, reopened);
+        assertEquals(2, restored.size(), "Количество фильмов в каталоге не совпадает.");
+        assertEquals(first, restored.getFilm(first.getId()), "Фильм из каталога не совпадает.");
+        assertEquals(second, restored.getFilm(second.getId()), "Фильм из каталога не совпадает.");
+        assertFalse(restored.exists(third.getId()), "Удалённый фильм не должен быть в каталоге.");
+        //id удалённого фильма не выдаётся повторно
+        assertEquals(4, restored.addFilm(new Film(0, "fourth", "d", null, 1, 0, new MPA(1, "G"), null)).getId(),
+                "Id нового фильма не совпадает.");
+        //каталог не закрыт штатно: при следующем открытии он создаётся заново
+        MappedFilmCatalog recreated = new MappedFilmCatalog(path, mpa, genres);
+        assertEquals(0, recreated.size(), "Каталог после аварийной остановки должен быть пустым.");
+        recreated.put(new Film(1, "first", "d", null, 1, 0, new MPA(1, "G"), null));
+        recreated.close();
+        //фильмы в БД изменились после заполнения каталога: он создаётся заново
+        MappedFilmCatalog stale = new MappedFilmCatalog(path, mpa, genres, 1);
+        assertEquals(0, stale.size(), "Устаревший каталог должен быть пустым.");
+        stale.close();
+        MappedFilmCatalog current = new MappedFilmCatalog(path, mpa, genres, 1);
+        assertEquals(0, current.size(), "Количество фильмов в каталоге не совпадает.");
+        current.close();
+        //счётчик изменений фильмов в БД растёт при изменении фильмов через БД
+        long version = filmDbStorage.getVersion();
+        Film film = filmDbStorage.getFilm(1);
+        filmDbStorage.updateFilm(film);
+        assertEquals(version + 1, filmDbStorage.getVersion(), "Счётчик изменений фильмов не изменился.");
+    }
+
+    @Test
+    public void testMigrations() {
+        //новая БД: применяются все миграции, при повторном запуске они пропускаются
+        DriverManagerDataSource dataSource = memoryDb("migrations");
+        assertEquals(9, migrate(dataSource), "Количество применённых миграций не совпадает.");
+        assertEquals(0, migrate(dataSource), "Применённые миграции не должны выполняться повторно.");
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        assertEquals(List.of("G", "PG", "PG-13", "R", "NC-17"),
+                jdbc.queryForList("SELECT rating_name FROM ratings_mpa ORDER BY rating_id", String.class),
+                "Справочник рейтингов MPA не совпадает.");
+        assertEquals("Боевик", jdbc.queryForObject("SELECT genre_name FROM genre WHERE genre_id = 6", String.class),
+                "Справочник жанров не совпадает.");
+
+        //БД, созданная до перехода на миграции: данные сохраняются и переносятся, справочники не дублируются
+        DriverManagerDataSource legacy = memoryDb("legacy");
+        ResourceDatabasePopulator populator = new ResourceDatabasePopulator(
+                new ClassPathResource("db/legacy/schema.sql"));
+        populator.setSqlScriptEncoding("UTF-8");
+        populator.execute(legacy);
+        assertEquals(9, migrate(legacy), "Количество применённых миграций не совпадает.");
+        JdbcTemplate legacyJdbc = new JdbcTemplate(legacy);
+        assertEquals(3, legacyJdbc.queryForObject("SELECT COUNT(*) FROM users", Integer.class),
+                "Пользователи не должны удаляться при миграции.");
+        assertEquals(5, legacyJdbc.queryForObject("SELECT COUNT(*) FROM ratings_mpa", Integer.class),
+                "Справочник рейтингов MPA не должен дублироваться.");
+        assertEquals(6, legacyJdbc.queryForObject("SELECT COUNT(*) FROM genre", Integer.class),
+                "Справочник жанров не должен дублироваться.");
+        assertEquals(List.of("1-2:TRUE:TRUE", "1-3:FALSE:TRUE"), legacyJdbc.queryForList(
+                "SELECT CONCAT(user_low, '-', user_high, ':', low_to_high, ':', high_to_low) FROM friendships " +
+                        "ORDER BY user_low, user_high", String.class), "Дружба не перенесена из таблицы friends.");
+        assertEquals(2, legacyJdbc.queryForObject("SELECT COUNT(*) FROM films_like", Integer.class),
+                "Повторный лайк не удалён.");
+        assertThrows(RuntimeException.class, () -> legacyJdbc.update("INSERT INTO films_like(film_id,user_id) " +
+                "VALUES(1,2)"), "Повторный лайк должен быть запрещён.");
+    }
+
+    private int migrate(DataSource dataSource) {
+        return Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration", "classpath:ru/yandex/practicum/filmorate/storage/migration")
+                .baselineOnMigrate(true)
+                .baselineVersion("0")
+                .load()
+                .migrate()
+                .migrationsExecuted;
+    }
+
+    //отдельная пустая БД H2 в памяти: одно имя - одна БД на все тесты
+    private static DriverManagerDataSource memoryDb(String name) {
+        return new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "password");
+    }
+
+    //отдельная БД H2 в памяти со схемой и справочниками из миграций
+    private DriverManagerDataSource migratedDb(String name) {
+        DriverManagerDataSource dataSource = memoryDb(name);
+        migrate(dataSource);
+        return dataSource;
+    }
+
+    private FilmDbDao filmDbDao(JdbcTemplate jdbc) {
+        return new FilmDbDao(jdbc, new MpaDbDao(jdbc), new GenreDbDao(jdbc, dataVersions), dataVersions);
+    }
+
+    private FilmLikeDbDao filmLikeDbDao(JdbcTemplate jdbc, UserEventDbDao events, TrendingCounters trending) {
+        return new FilmLikeDbDao(jdbc, new MpaDbDao(jdbc), new GenreDbDao(jdbc, dataVersions), dataVersions, events,
+                trending);
+    }
+
+    @Test
+    public void testShardedStorage() {
+        String[] urls = {"jdbc:h2:mem:shard-a;DB_CLOSE_DELAY=-1", "jdbc:h2:mem:shard-b;DB_CLOSE_DELAY=-1",
+                "jdbc:h2:mem:shard-c;DB_CLOSE_DELAY=-1"};
+        JdbcTemplate mainJdbc = new JdbcTemplate(migratedDb("sharded-main"));
+        FilmDbDao films = filmDbDao(mainJdbc);
+        List<DataSource> twoShards = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            DataSource shard = new DriverManagerDataSource(urls[i], "sa", "password");
+            Shards.migrate(shard);
+            twoShards.add(shard);
+        }
+        Shards shards = new Shards(twoShards);
+        ShardedUserDao users = new ShardedUserDao(shards, mainJdbc);
+        users.restartSequence();
+        UserEventDbDao events = new UserEventDbDao(mainJdbc);
+        ShardedFriendsDao friends = new ShardedFriendsDao(shards, users, events);
+        TrendingCounters trending = new TrendingCounters(24);
+        ShardedFilmLikeDao likes = new ShardedFilmLikeDao(shards, films, dataVersions, trending, events);
+        ShardedFilmDao shardedFilms = new ShardedFilmDao(films, likes);
+
+        //пользователи распределяются по шардам, id выдаются последовательностью основной БД
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(i, users.addUser(new User(0, "user" + i + "@mail.ru", "login" + i, null,
+                    LocalDate.of(2000, 1, 1))).getId(), "id пользователя не совпадает.");
+        }
+        for (int i = 0; i < 2; i++) {
+            Integer count = shards.get(i).queryForObject("SELECT COUNT(*) FROM users", Integer.class);
+            assertTrue(count > 0 && count < 20, "Пользователи должны распределяться по обоим шардам.");
+        }
+        assertEquals(20, users.getUsers().size(), "Количество пользователей во всех шардах не совпадает.");
+        assertEquals("login7", users.getUser(7).getName(), "Имя пользователя должно совпадать с логином.");
+        assertEquals(Set.of(3L, 12L, 19L), users.getUsersByIds(List.of(3L, 12L, 19L, 999L)).keySet(),
+                "Пользователи по списку id не совпадают.");
+        assertThrows(UserNotFoundException.class, () -> users.getUser(999));
+
+        //запись пары друзей из разных шардов хранится в шардах обоих пользователей
+        long pairUser = 2;
+        long pairFriend = 3;
+        while (shards.shardOf(pairFriend) == shards.shardOf(pairUser)) {
+            pairFriend++;
+        }
+        friends.addFriend(pairUser, pairFriend);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(1, shards.get(i).queryForObject("SELECT COUNT(*) FROM friendships", Integer.class),
+                    "Запись пары должна добавляться в шарды обоих пользователей.");
+        }
+        assertEquals(List.of(pairFriend), ids(friends.getFriends(pairUser)), "Друзья пользователя не совпадают.");
+        assertEquals(List.of(), ids(friends.getFriends(pairFriend)), "Дружба не должна становиться взаимной.");
+        friends.deleteFriend(pairUser, pairFriend);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0, shards.get(i).queryForObject("SELECT COUNT(*) FROM friendships", Integer.class),
+                    "Запись пары должна удаляться из шардов обоих пользователей.");
+        }
+
+        //общие друзья пользователей одного шарда и разных шардов
+        long sameShard = 2;
+        while (shards.shardOf(sameShard) != shards.shardOf(1)) {
+            sameShard++;
+        }
+        long otherShard = 2;
+        while (shards.shardOf(otherShard) == shards.shardOf(1)) {
+            otherShard++;
+        }
+        for (long friendId : List.of(5L, 10L, 15L, 20L)) {
+            friends.addFriend(1, friendId);
+        }
+        friends.addFriend(1, 5);
+        friends.addFriend(sameShard, 10);
+        friends.addFriend(sameShard, 20);
+        friends.addFriend(otherShard, 5);
+        friends.addFriend(otherShard, 15);
+        friends.addFriend(otherShard, 20);
+        assertEquals(List.of(5L, 10L, 15L, 20L), ids(friends.getFriends(1)), "Друзья пользователя не совпадают.");
+        assertEquals(List.of(), ids(friends.getFriends(5)), "Дружба не должна становиться взаимной.");
+        friends.addFriend(5, 1);
+        assertEquals(List.of(1L), ids(friends.getFriends(5)), "Друзья пользователя не совпадают.");
+        for (int shard : List.of(shards.shardOf(1), shards.shardOf(5))) {
+            assertEquals(Boolean.TRUE, shards.get(shard).queryForObject("SELECT low_to_high AND high_to_low " +
+                    "FROM friendships WHERE user_low = 1 AND user_high = 5", Boolean.class),
+                    "Взаимная дружба должна храниться в шардах обоих пользователей.");
+        }
+        assertEquals(List.of(10L, 20L), ids(friends.getCommonFriends(1, sameShard)),
+                "Общие друзья пользователей одного шарда не совпадают.");
+        assertEquals(List.of(5L, 15L, 20L), ids(friends.getCommonFriends(otherShard, 1)),
+                "Общие друзья пользователей разных шардов не совпадают.");
+        friends.deleteFriend(1, 15);
+        assertEquals(List.of(5L, 20L), ids(friends.getCommonFriends(1, otherShard)),
+                "Общие друзья после удаления из друзей не совпадают.");
+
+        //лайки из всех шардов суммируются для популярных фильмов
+        long first = films.addFilm(new Film(0, "first", "d", LocalDate.of(2000, 1, 1), 100, 0, new MPA(1, "G"), null))
+                .getId();
+        long second = films.addFilm(new Film(0, "second", "d", LocalDate.of(2000, 1, 1), 100, 0, new MPA(1, "G"), null))
+                .getId();
+        long third = films.addFilm(new Film(0, "third", "d", LocalDate.of(2000, 1, 1), 100, 0, new MPA(1, "G"), null))
+                .getId();
+        for (long userId = 1; userId <= 8; userId++) {
+            likes.addLike(second, userId);
+        }
+        likes.addLike(third, 1);
+        assertEquals(List.of(second), trending.top(TrendingCounters.Ranking.DAY, 1),
+                "Лайки должны учитываться счётчиками трендов.");
+        LikeState state = likes.addLike(third, otherShard);
+        assertTrue(state.isChanged(), "Лайк должен быть добавлен.");
+        assertEquals(2, state.getLikes(), "Количество лайков фильма не совпадает.");
+        assertFalse(likes.addLike(third, otherShard).isChanged(), "Повторный лайк не должен изменять данные.");
+        assertThrows(FilmNotFoundException.class, () -> likes.addLike(9999, 1));
+        assertEquals(List.of(second, third, first), filmIds(shardedFilms.getPopularFilms(10)),
+                "Популярные фильмы не совпадают.");
+        assertEquals(List.of(second), filmIds(shardedFilms.getPopularFilms(1)), "Популярные фильмы не совпадают.");
+        likes.deleteLike(second, 8);
+        assertEquals(7, likes.countLikes(second), "Количество лайков после удаления лайка не совпадает.");
+        likes.addLike(second, 8);
+        assertEquals(List.of(UserEventType.LIKE, UserEventType.UNLIKE, UserEventType.LIKE),
+                events.getFeed(8, Long.MAX_VALUE, 10).stream().map(UserEvent::getEventType)
+                        .collect(Collectors.toList()), "События лайков пользователя не совпадают.");
+        assertEquals(List.of(UserEventType.LIKE, UserEventType.FRIEND_ADD), events.getFeed(5, Long.MAX_VALUE, 10)
+                .stream().map(UserEvent::getEventType).collect(Collectors.toList()),
+                "События дружбы и лайков пользователя не совпадают.");
+        TrendingCounters loaded = new TrendingCounters(24);
+        new ShardedFilmLikeDao(shards, films, dataVersions, loaded, events).loadTrending();
+        assertEquals(trending.top(TrendingCounters.Ranking.WEEK, 10), loaded.top(TrendingCounters.Ranking.WEEK, 10),
+                "Счётчики трендов, заполненные из шардов, не совпадают.");
+        shardedFilms.deleteFilm(third);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(0, shards.get(i).queryForObject("SELECT COUNT(*) FROM films_like WHERE film_id = ?",
+                    Integer.class, third), "Лайки удалённого фильма должны удаляться во всех шардах.");
+        }
+        assertEquals(List.of(second, first), filmIds(shardedFilms.getPopularFilms(10)),
+                "Популярные фильмы после удаления фильма не совпадают.");
+
+        //добавление шарда: пользователи переносятся только в новый шард вместе с друзьями и лайками
+        long expectedMoved = 0;
+        for (long userId = 1; userId <= 20; userId++) {
+            if (Shards.jumpHash(userId, 3) == 2) {
+                expectedMoved++;
+            } else {
+                assertEquals(Shards.jumpHash(userId, 2), Shards.jumpHash(userId, 3),
+                        "Пользователь не должен переходить между старыми шардами.");
+            }
+        }
+        Function<String, DataSource> connect = url -> new DriverManagerDataSource(url, "sa", "password");
+        long moved = ShardRebalancer.rebalance(List.of(urls[0], urls[1]), List.of(urls), connect);
+        assertTrue(moved > 0, "Пользователи должны переноситься в новый шард.");
+        assertEquals(expectedMoved, moved, "Количество перенесённых пользователей не совпадает.");
+        assertEquals(0, ShardRebalancer.rebalance(List.of(urls), List.of(urls), connect),
+                "Повторный перенос не должен переносить пользователей.");
+
+        Shards threeShards = new Shards(List.of(connect.apply(urls[0]), connect.apply(urls[1]),
+                connect.apply(urls[2])));
+        for (int i = 0; i < 3; i++) {
+            for (long userId : threeShards.get(i).queryForList("SELECT user_id FROM users", Long.class)) {
+                assertEquals(i, threeShards.shardOf(userId), "Пользователь хранится не в своём шарде.");
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            for (Map<String, Object> pair : threeShards.get(i).queryForList("SELECT * FROM friendships")) {
+                long low = ((Number) pair.get("USER_LOW")).longValue();
+                long high = ((Number) pair.get("USER_HIGH")).longValue();
+                assertTrue(threeShards.shardOf(low) == i || threeShards.shardOf(high) == i,
+                        "Запись пары должна храниться только в шардах её пользователей.");
+                for (int shard : List.of(threeShards.shardOf(low), threeShards.shardOf(high))) {
+                    assertEquals(pair, threeShards.get(shard).queryForMap("SELECT * FROM friendships " +
+                            "WHERE user_low = ? AND user_high = ?", low, high),
+                            "Запись пары должна быть в шардах обоих пользователей.");
+                }
+            }
+        }
+        ShardedUserDao rebalancedUsers = new ShardedUserDao(threeShards, mainJdbc);
+        rebalancedUsers.restartSequence();
+        ShardedFriendsDao rebalancedFriends = new ShardedFriendsDao(threeShards, rebalancedUsers, events);
+        ShardedFilmDao rebalancedFilms = new ShardedFilmDao(films,
+                new ShardedFilmLikeDao(threeShards, films, dataVersions, new TrendingCounters(24), events));
+        assertEquals(20, rebalancedUsers.getUsers().size(), "Пользователи не должны теряться при переносе.");
+        assertEquals(List.of(5L, 10L, 20L), ids(rebalancedFriends.getFriends(1)),
+                "Друзья пользователя после переноса не совпадают.");
+        assertEquals(List.of(1L), ids(rebalancedFriends.getFriends(5)),
+                "Друзья пользователя после переноса не совпадают.");
+        assertEquals(List.of(5L, 20L), ids(rebalancedFriends.getCommonFriends(1, otherShard)),
+                "Общие друзья после переноса не совпадают.");
+        assertEquals(List.of(second, first), filmIds(rebalancedFilms.getPopularFilms(10)),
+                "Популярные фильмы после переноса не совпадают.");
+        assertEquals(8, new ShardedFilmLikeDao(threeShards, films, dataVersions, new TrendingCounters(24), events)
+                        .countLikes(second),
+                "Лайки не должны теряться при переносе.");
+        assertEquals(21, rebalancedUsers.addUser(new User(0, "new@mail.ru", "new", "new",
+                LocalDate.of(2000, 1, 1))).getId(), "id нового пользователя не совпадает.");
+    }
+
+    private static List<Long> ids(List<User> users) {
+        return users.stream().map(User::getId).collect(Collectors.toList());
+    }
+
+    private static List<Long> filmIds(List<Film> films) {
+        return films.stream().map(Film::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testReadReplicaRouting() throws Exception {
+        DriverManagerDataSource primaryDb = migratedDb("routing-primary");
+        DriverManagerDataSource replicaDb = memoryDb("routing-replica");
+        ReplicatingDataSource primary = new ReplicatingDataSource(primaryDb, ReadWriteRoutingDataSource::committed);
+        ReplicaLogShipper shipper = new ReplicaLogShipper(primary, replicaDb, 0);
+        shipper.afterSingletonsInstantiated();
+        DataSource routing = new LazyConnectionDataSourceProxy(
+                new ReadWriteRoutingDataSource(primary, replicaDb, shipper::hasApplied));
+        JdbcTemplate jdbc = new JdbcTemplate(routing);
+        DataSourceTransactionManager routingTransactionManager = new DataSourceTransactionManager(routing);
+        TransactionTemplate readOnly = new TransactionTemplate(routingTransactionManager);
+        readOnly.setReadOnly(true);
+        TransactionTemplate readWrite = new TransactionTemplate(routingTransactionManager);
+        Supplier<String> readOnlyDatabase = () -> readOnly.execute(
+                status -> jdbc.queryForObject("SELECT DATABASE()", String.class));
+        try {
+            //чтение в транзакции только для чтения - из реплики, остальное - из первичной БД
+            assertEquals("ROUTING-REPLICA", readOnlyDatabase.get(), "Чтение должно выполняться из реплики.");
+            assertEquals("ROUTING-PRIMARY", jdbc.queryForObject("SELECT DATABASE()", String.class),
+                    "Запрос вне транзакции только для чтения должен выполняться в первичной БД.");
+            //реплика заполнена снимком первичной БД
+            Integer genres = readOnly.execute(status -> jdbc.queryForObject("SELECT COUNT(*) FROM genre", Integer.class));
+            assertEquals(6, genres, "Справочник жанров в реплике не совпадает.");
+
+            //изменения доставляются на реплику: автофиксация, зафиксированная и отменённая транзакции
+            UserDbDao users = new UserDbDao(jdbc);
+            long userId = users.addUser(user1).getId();
+            readWrite.executeWithoutResult(status -> {
+                users.addUser(new User(0, "tx@mail.ru", "tx_login", "tx_name", LocalDate.of(2000, 1, 1)));
+                users.updateUser(new User(userId, "updated@mail.ru", "updated", "updated", LocalDate.of(2001, 1, 1)));
+            });
+            readWrite.executeWithoutResult(status -> {
+                users.addUser(new User(0, "rollback@mail.ru", "rollback", "rollback", LocalDate.of(2000, 1, 1)));
+                status.setRollbackOnly();
+            });
+            long nextId = users.addUser(new User(0, "next@mail.ru", "next", "next", LocalDate.of(2000, 1, 1))).getId();
+            //транзакции, зафиксированные не в порядке выдачи id: на реплике у строк те же id
+            try (Connection first = primary.getConnection(); Connection second = primary.getConnection()) {
+                first.setAutoCommit(false);
+                second.setAutoCommit(false);
+                first.createStatement().executeUpdate("INSERT INTO users(email,login,name,birthday) " +
+                        "VALUES('first@mail.ru','first','first','2000-01-01')");
+                second.createStatement().executeUpdate("INSERT INTO users(email,login,name,birthday) " +
+                        "VALUES('second@mail.ru','second','second','2000-01-01')");
+                try (PreparedStatement insert = second.prepareStatement("INSERT INTO users(email,login,name,birthday) " +
+                        "VALUES(?,?,?,'2000-01-01')")) {
+                    insert.setString(1, "third@mail.ru");
+                    insert.setString(2, "third");
+                    insert.setString(3, "third");
+                    insert.executeUpdate();
+                }
+                second.commit();
+                first.commit();
+            }
+            new UserEventDbDao(jdbc).addEvents(List.of(new UserEvent(0, userId, UserEventType.LIKE, 1, null)));
+            assertTrue(shipper.awaitCaughtUp(5_000), "Изменения не доставлены на реплику.");
+            String selectUsers = "SELECT user_id, email, login, name, birthday FROM users ORDER BY user_id";
+            assertEquals(new JdbcTemplate(primaryDb).queryForList(selectUsers),
+                    readOnly.execute(status -> jdbc.queryForList(selectUsers)),
+                    "Данные реплики не совпадают с первичной БД.");
+            assertEquals(userId + 3, nextId, "Отменённая вставка должна занять id, как и в первичной БД.");
+            String selectEvents = "SELECT * FROM user_events ORDER BY event_id";
+            assertEquals(new JdbcTemplate(primaryDb).queryForList(selectEvents),
+                    readOnly.execute(status -> jdbc.queryForList(selectEvents)),
+                    "События реплики не совпадают с первичной БД.");
+            assertTrue(shipper.hasApplied(primary.getLastLsn() + 1),
+                    "lsn из предыдущего запуска первичной БД не должен направлять чтение в первичную БД.");
+
+            //чтение своих изменений: реплика, повторившая изменения до lsn запроса или cookie, управляется тестом
+            AtomicLong replicaLsn = new AtomicLong(primary.getLastLsn());
+            DataSource controlled = new LazyConnectionDataSourceProxy(
+                    new ReadWriteRoutingDataSource(primary, replicaDb, lsn -> replicaLsn.get() >= lsn));
+            JdbcTemplate controlledJdbc = new JdbcTemplate(controlled);
+            TransactionTemplate controlledReadOnly = new TransactionTemplate(new DataSourceTransactionManager(controlled));
+            controlledReadOnly.setReadOnly(true);
+            Supplier<String> controlledDatabase = () -> controlledReadOnly.execute(
+                    status -> controlledJdbc.queryForObject("SELECT DATABASE()", String.class));
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest(),
+                    response));
+            assertEquals("ROUTING-REPLICA", controlledDatabase.get(), "До изменения чтение должно идти из реплики.");
+            users.updateUser(new User(userId, "sticky@mail.ru", "sticky", "sticky", LocalDate.of(2001, 1, 1)));
+            assertEquals("ROUTING-PRIMARY", controlledDatabase.get(),
+                    "После изменения чтение должно идти из первичной БД.");
+            Cookie lsnCookie = response.getCookie(ReadWriteRoutingDataSource.LSN_COOKIE);
+            assertNotNull(lsnCookie, "Ответ должен передать клиенту lsn изменения.");
+            assertEquals(primary.getLastLsn(), Long.parseLong(lsnCookie.getValue()), "lsn в cookie не совпадает.");
+
+            MockHttpServletRequest sameClient = new MockHttpServletRequest();
+            sameClient.setCookies(lsnCookie);
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(sameClient));
+            assertEquals("ROUTING-PRIMARY", controlledDatabase.get(),
+                    "Клиент должен читать свои изменения из первичной БД, пока реплика их не повторила.");
+            replicaLsn.set(primary.getLastLsn());
+            assertEquals("ROUTING-REPLICA", controlledDatabase.get(),
+                    "После повторения изменения клиент должен читать из реплики.");
+            replicaLsn.set(0);
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+            assertEquals("ROUTING-REPLICA", controlledDatabase.get(), "Другой клиент должен читать из реплики.");
+
+            //переполненный журнал не останавливает фиксацию: запись отбрасывается, реплику нужно заполнить заново
+            ReplicatingDataSource bounded = new ReplicatingDataSource(primaryDb, 1, 0, lsn -> { });
+            JdbcTemplate boundedJdbc = new JdbcTemplate(bounded);
+            boundedJdbc.update("UPDATE users SET name = name WHERE user_id = ?", userId);
+            boundedJdbc.update("UPDATE users SET name = name WHERE user_id = ?", userId);
+            assertEquals(2, bounded.getLastLsn(), "Обе фиксации должны получить lsn.");
+            assertEquals(2, bounded.getDroppedLsn(), "Запись, не поместившаяся в журнал, должна быть отброшена.");
+            assertEquals(1, bounded.poll(0).lsn(), "В журнале должна остаться первая запись.");
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+            shipper.close();
+        }
+    }
+
+    @Test
+    public void testUserFeed() {
+        JdbcTemplate jdbc = new JdbcTemplate(migratedDb("feed"));
+        UserDbDao users = new UserDbDao(jdbc);
+        UserEventDbDao events = new UserEventDbDao(jdbc);
+        FriendsDbDao friends = new FriendsDbDao(jdbc, events);
+        FilmDbDao films = filmDbDao(jdbc);
+        FilmLikeDbDao likes = filmLikeDbDao(jdbc, events, new TrendingCounters(24));
+        long userId = users.addUser(new User(0, "feed@mail.ru", "feed", "feed", LocalDate.of(2000, 1, 1))).getId();
+        long friendId = users.addUser(new User(0, "friend@mail.ru", "friend", "friend", LocalDate.of(2000, 1, 1)))
+                .getId();
+        long filmId = films.addFilm(new Film(0, "feed", "d", LocalDate.of(2000, 1, 1), 100, 0, new MPA(1, "G"), null))
+                .getId();
+
+        //повторные запросы не меняют данные и не добавляют событий
+        likes.addLike(filmId, userId);
+        likes.addLike(filmId, userId);
+        friends.addFriend(userId, friendId);
+        friends.addFriend(userId, friendId);
+        friends.addFriend(friendId, userId);
+        friends.deleteFriend(userId, friendId);
+        friends.deleteFriend(userId, friendId);
+        likes.deleteLike(filmId, userId);
+        likes.deleteLike(filmId, userId);
+        likes.saveLikes(List.of(new LikeState(filmId, userId, true, true, 1)));
+        friends.addFriends(List.of(Map.entry(userId, friendId), Map.entry(friendId, userId)));
+
+        //лента от новых к старым, страницы по eventId последнего события
+        List<UserEvent> firstPage = events.getFeed(userId, Long.MAX_VALUE, 3);
+        assertEquals(List.of(UserEventType.FRIEND_ADD, UserEventType.LIKE, UserEventType.UNLIKE),
+                firstPage.stream().map(UserEvent::getEventType).collect(Collectors.toList()),
+                "События первой страницы ленты не совпадают.");
+        List<UserEvent> secondPage = events.getFeed(userId, firstPage.get(2).getEventId(), 3);
+        assertEquals(List.of(UserEventType.FRIEND_REMOVE, UserEventType.FRIEND_ADD, UserEventType.LIKE),
+                secondPage.stream().map(UserEvent::getEventType).collect(Collectors.toList()),
+                "События второй страницы ленты не совпадают.");
+        assertEquals(List.of(filmId, friendId, friendId), List.of(secondPage.get(2).getEntityId(),
+                secondPage.get(1).getEntityId(), secondPage.get(0).getEntityId()), "id объектов событий не совпадают.");
+        assertEquals(0, events.getFeed(userId, secondPage.get(2).getEventId(), 3).size(),
+                "После последней страницы событий быть не должно.");
+        assertEquals(List.of(UserEventType.FRIEND_ADD), events.getFeed(friendId, Long.MAX_VALUE, 10).stream()
+                .map(UserEvent::getEventType).collect(Collectors.toList()), "Лента друга не совпадает.");
+
+        //лента читается только из покрывающего индекса
+        String plan = jdbc.queryForObject("EXPLAIN SELECT event_id, user_id, event_type, entity_id, created_at " +
+                "FROM user_events WHERE user_id = 1 AND event_id < 100 ORDER BY user_id, event_id DESC LIMIT 3", String.class);
+        assertTrue(plan.contains("IDX_USER_EVENTS_FEED") && plan.contains("index sorted"),
+                "Лента должна читаться по индексу idx_user_events_feed: " + plan);
+
+        //сжатие оставляет последние события каждого пользователя
+        assertEquals(4, events.compact(2), "Количество удалённых событий не совпадает.");
+        assertEquals(firstPage.subList(0, 2), events.getFeed(userId, Long.MAX_VALUE, 10),
+                "После сжатия должны остаться последние события.");
+        assertEquals(0, events.compact(2), "Повторное сжатие не должно удалять события.");
+        likes.deleteLike(filmId, userId);
+        assertEquals(1, events.compact(2), "Сжатие новых событий пользователя не выполнено.");
+    }
+
+    @Test
+    public void testFilmScores() throws Exception {
+        DriverManagerDataSource dataSource = migratedDb("scores");
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        FilmDbDao films = filmDbDao(jdbc);
+        FilmScoreDbDao scores = new FilmScoreDbDao(jdbc);
+        TransactionTemplate transaction = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        long[] filmIds = new long[3];
+        for (int i = 0; i < filmIds.length; i++) {
+            filmIds[i] = films.addFilm(new Film(0, "scored" + i, "d", LocalDate.of(2000, 1, 1), 100, 0,
+                    new MPA(1, "G"), null)).getId();
+        }
+
+        //агрегаты изменяются на разницу между новой и прежней оценкой
+        scores.setScore(filmIds[0], 1, 8);
+        FilmScoreStats stats = scores.setScore(filmIds[0], 2, 6);
+        assertEquals(2, stats.getCount(), "Количество оценок не совпадает.");
+        assertEquals(7.0, stats.getAverage(), 1e-9, "Средняя оценка не совпадает.");
+        assertEquals(1.0, stats.getStdDev(), 1e-9, "Стандартное отклонение не совпадает.");
+        assertEquals(69.0 / 12, stats.getBayesianAverage(), 1e-9, "Байесовское среднее не совпадает.");
+        stats = scores.setScore(filmIds[0], 1, 10);
+        assertEquals(2, stats.getCount(), "Повторная оценка не должна добавлять оценку.");
+        assertEquals(8.0, stats.getAverage(), 1e-9, "Средняя оценка после изменения не совпадает.");
+        assertEquals(2.0, stats.getStdDev(), 1e-9, "Стандартное отклонение после изменения не совпадает.");
+        assertEquals(stats, scores.setScore(filmIds[0], 1, 10), "Та же оценка не должна изменять агрегаты.");
+        assertEquals(1, scores.deleteScore(filmIds[0], 2).getCount(), "Оценка не удалена.");
+        assertEquals(1, scores.deleteScore(filmIds[0], 2).getCount(), "Удаление отсутствующей оценки.");
+        //фильм, ещё не записанный в БД гибридным хранилищем, можно оценить: его проверяет сервис
+        assertEquals(1, scores.setScore(9999, 1, 5).getCount(), "Оценка фильма не из БД не сохранена.");
+        scores.deleteFilmScores(9999);
+        assertEquals(new FilmScoreStats(9999, 0, null, null, null), scores.getStats(9999),
+                "Оценки фильма должны удаляться вместе с агрегатами.");
+        assertEquals(new FilmScoreStats(filmIds[2], 0, null, null, null), scores.getStats(filmIds[2]),
+                "У фильма без оценок нет средних.");
+
+        //фильм с одной высокой оценкой не обгоняет фильм с многими хорошими
+        for (int userId = 1; userId <= 20; userId++) {
+            scores.setScore(filmIds[1], userId, 9);
+        }
+        scores.setScore(filmIds[2], 1, 2);
+        assertEquals(List.of(filmIds[1], filmIds[0], filmIds[2]), scores.getTopRatedIds(10),
+                "Порядок фильмов по оценкам не совпадает.");
+        assertEquals(List.of(filmIds[1]), scores.getTopRatedIds(1), "Порядок фильмов по оценкам не совпадает.");
+        scores.deleteScore(filmIds[2], 1);
+        assertEquals(List.of(filmIds[1], filmIds[0]), scores.getTopRatedIds(10),
+                "Фильм без оценок не должен попадать в топ.");
+        String plan = jdbc.queryForObject("EXPLAIN SELECT film_id FROM film_score_stats " +
+                "ORDER BY bayesian_average DESC, film_id LIMIT 10", String.class);
+        assertTrue(plan.contains("IDX_FILM_SCORE_STATS_TOP") && plan.contains("index sorted"),
+                "Топ должен читаться по индексу idx_film_score_stats_top: " + plan);
+
+        //параллельные изменения оценок не нарушают агрегаты
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 100; i++) {
+                    long filmId = filmIds[random.nextInt(filmIds.length)];
+                    long userId = 1 + random.nextInt(8);
+                    int score = random.nextInt(11);
+                    transaction.executeWithoutResult(status -> {
+                        if (score == 0) {
+                            scores.deleteScore(filmId, userId);
+                        } else {
+                            scores.setScore(filmId, userId, score);
+                        }
+                    });
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertEquals(jdbc.queryForList("SELECT film_id, COUNT(*) AS c, CAST(SUM(score) AS BIGINT) AS s, " +
+                        "CAST(SUM(score * score) AS BIGINT) AS q " +
+                        "FROM film_scores GROUP BY film_id ORDER BY film_id"),
+                jdbc.queryForList("SELECT film_id, CAST(score_count AS BIGINT) AS c, score_sum AS s, score_sum_sq AS q " +
+                        "FROM film_score_stats ORDER BY film_id"),
+                "Агрегаты не совпадают с оценками.");
+
+        //оценки и агрегаты удалённого фильма удаляются отдельно от фильма
+        films.deleteFilm(filmIds[1]);
+        scores.deleteFilmScores(filmIds[1]);
+        assertEquals(0, jdbc.queryForObject("SELECT COUNT(*) FROM film_scores WHERE film_id = ?", Integer.class,
+                filmIds[1]), "Оценки удалённого фильма не удалены.");
+        assertFalse(scores.getTopRatedIds(10).contains(filmIds[1]), "Удалённый фильм не должен быть в топе.");
+    }
+
+    @Test
+    public void testTrendingFilms() {
+        long hour = 3_600_000L;
+        AtomicLong millis = new AtomicLong(1_000_000 * hour);
+        Clock clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return Instant.ofEpochMilli(millis.get());
+            }
+        };
+        TrendingCounters counters = new TrendingCounters(clock, 24);
+        Instant start = clock.instant();
+        counters.add(1, start, 1);
+        for (int i = 0; i < 3; i++) {
+            counters.add(2, start.minusSeconds(30 * 3600), 1);
+        }
+        counters.add(3, start.minusSeconds(200 * 3600), 1);
+        assertEquals(List.of(1L), counters.top(TrendingCounters.Ranking.DAY, 10), "Тренд за сутки не совпадает.");
+        assertEquals(List.of(2L, 1L), counters.top(TrendingCounters.Ranking.WEEK, 10), "Тренд за неделю не совпадает.");
+        assertEquals(List.of(2L), counters.top(TrendingCounters.Ranking.WEEK, 1), "Тренд за неделю не совпадает.");
+        assertEquals(3 * Math.pow(0.5, 30.0 / 24), counters.value(2, TrendingCounters.Ranking.HOTNESS), 1e-9,
+                "Горячесть не совпадает.");
+        millis.addAndGet(24 * hour);
+        assertEquals(List.of(), counters.top(TrendingCounters.Ranking.DAY, 10), "Лайк должен выйти из окна суток.");
+        assertEquals(List.of(2L, 1L), counters.top(TrendingCounters.Ranking.HOTNESS, 10), "Порядок горячести.");
+        millis.addAndGet(114 * hour);
+        assertEquals(List.of(1L), counters.top(TrendingCounters.Ranking.WEEK, 10), "Лайки должны выйти из окна недели.");
+        counters.add(1, start, -1);
+        assertEquals(List.of(), counters.top(TrendingCounters.Ranking.WEEK, 10), "Удалённый лайк не вычтен.");
+        assertEquals(0, counters.size(), "Счётчики фильмов без лайков за неделю должны удаляться.");
+
+        //суммы окон при сдвиге совпадают с подсчётом по всем лайкам
+        Random random = new Random(7);
+        List<long[]> likes = new ArrayList<>(); //id фильма, время лайка
+        for (int step = 0; step < 500; step++) {
+            millis.addAndGet(random.nextInt(3) == 0 ? random.nextInt(30) * hour / 10 : 0);
+            long filmId = 10 + random.nextInt(5);
+            if (random.nextInt(4) > 0 || likes.isEmpty()) {
+                long at = millis.get() - random.nextInt(200) * hour / 4;
+                likes.add(new long[]{filmId, at});
+                counters.add(filmId, Instant.ofEpochMilli(at), 1);
+            } else {
+                long[] like = likes.remove(random.nextInt(likes.size()));
+                counters.add(like[0], Instant.ofEpochMilli(like[1]), -1);
+            }
+        }
+        long nowHour = millis.get() / hour;
+        for (long filmId = 10; filmId < 15; filmId++) {
+            long id = filmId;
+            assertEquals(likes.stream().filter(l -> l[0] == id && nowHour - l[1] / hour < 24).count(),
+                    counters.value(filmId, TrendingCounters.Ranking.DAY), "Сумма за сутки не совпадает.");
+            assertEquals(likes.stream().filter(l -> l[0] == id && nowHour - l[1] / hour < TrendingCounters.HOURS)
+                    .count(), counters.value(filmId, TrendingCounters.Ranking.WEEK), "Сумма за неделю не совпадает.");
+        }
+
+        //счётчики изменяются при записи лайков в БД и восстанавливаются из БД при запуске
+        JdbcTemplate jdbc = new JdbcTemplate(migratedDb("trending"));
+        FilmDbDao films = filmDbDao(jdbc);
+        UserDbDao users = new UserDbDao(jdbc);
+        TrendingCounters dbCounters = new TrendingCounters(clock, 24);
+        FilmLikeDbDao likeDao = filmLikeDbDao(jdbc, new UserEventDbDao(jdbc), dbCounters);
+        long filmId = films.addFilm(new Film(0, "trending", "d", LocalDate.of(2000, 1, 1), 100, 0,
+                new MPA(1, "G"), null)).getId();
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            userIds.add(users.addUser(new User(0, "t" + i + "@mail.ru", "t" + i, "t", LocalDate.of(2000, 1, 1)))
+                    .getId());
+        }
+        likeDao.addLike(filmId, userIds.get(0));
+        likeDao.addLike(filmId, userIds.get(0));
+        likeDao.addLike(filmId, userIds.get(1));
+        Instant likedBeforeFlush = clock.instant();
+        millis.addAndGet(25 * hour);
+        //лайк, поставленный до отложенной записи, учитывается в часе постановки
+        likeDao.saveLikes(List.of(new LikeState(filmId, userIds.get(2), true, true, 0),
+                new LikeState(filmId, userIds.get(3), true, true, 0, likedBeforeFlush)));
+        likeDao.saveLikes(List.of(new LikeState(filmId, userIds.get(0), false, true, 0)));
+        likeDao.deleteLike(filmId, userIds.get(2));
+        likeDao.deleteLike(filmId, userIds.get(2));
+        assertEquals(0, dbCounters.value(filmId, TrendingCounters.Ranking.DAY), "Лайки за сутки не совпадают.");
+        assertEquals(2, dbCounters.value(filmId, TrendingCounters.Ranking.WEEK), "Лайки за неделю не совпадают.");
+        assertEquals(Timestamp.from(likedBeforeFlush), jdbc.queryForObject("SELECT created_at FROM films_like " +
+                "WHERE film_id = ? AND user_id = ?", Timestamp.class, filmId, userIds.get(3)),
+                "Время лайка в БД должно быть временем постановки.");
+        TrendingCounters loaded = new TrendingCounters(clock, 24);
+        filmLikeDbDao(jdbc, new UserEventDbDao(jdbc), loaded).loadTrending();
+        for (TrendingCounters.Ranking ranking : TrendingCounters.Ranking.values()) {
+            assertEquals(dbCounters.value(filmId, ranking), loaded.value(filmId, ranking), 1e-9,
+                    "Счётчики, загруженные из БД, не совпадают: " + ranking);
+        }
+    }
+
+    @Test
+    public void testApproximatePopularity() throws Exception {
+        //лайки с убывающей частотой по id фильма (log-равномерное распределение) и удаления случайных лайков
+        PopularitySketch sketch = new PopularitySketch(0.001, 0.99, 20);
+        Random random = new Random(11);
+        List<Long> likes = new ArrayList<>();
+        Map<Long, Long> exact = new HashMap<>();
+        for (int step = 0; step < 50_000; step++) {
+            if (random.nextInt(10) > 0 || likes.isEmpty()) {
+                long filmId = (long) Math.pow(2000, random.nextDouble());
+                likes.add(filmId);
+                exact.merge(filmId, 1L, Long::sum);
+                sketch.add(filmId, 1);
+            } else {
+                long filmId = likes.remove(random.nextInt(likes.size()));
+                exact.merge(filmId, -1L, Long::sum);
+                sketch.add(filmId, -1);
+            }
+        }
+        List<PopularityEstimate> top = sketch.top(10);
+        assertEquals(10, top.size(), "Количество популярных фильмов не совпадает.");
+        for (PopularityEstimate estimate : top) {
+            long count = exact.getOrDefault(estimate.getFilmId(), 0L);
+            assertTrue(count <= estimate.getLikes() && count >= estimate.getLikes() - estimate.getError(),
+                    "Лайки фильма вне границ оценки: " + estimate + ", точно: " + count);
+            assertTrue(sketch.estimate(estimate.getFilmId()) >= count, "Оценка sketch меньше точного значения.");
+        }
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), top.subList(0, 5).stream().map(PopularityEstimate::getFilmId)
+                .collect(Collectors.toList()), "Наиболее популярные фильмы не совпадают.");
+
+        //параллельные лайки: строки sketch изменяются без блокировки, оценки списка остаются в границах
+        PopularitySketch shared = new PopularitySketch(0.001, 0.99, 20);
+        Map<Long, Long> sharedExact = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t;
+            futures.add(executor.submit(() -> {
+                Random threadRandom = new Random(seed);
+                for (int i = 0; i < 5_000; i++) {
+                    long filmId = (long) Math.pow(2000, threadRandom.nextDouble());
+                    sharedExact.merge(filmId, 1L, Long::sum);
+                    shared.add(filmId, 1);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        for (PopularityEstimate estimate : shared.top(10)) {
+            long count = sharedExact.get(estimate.getFilmId());
+            assertTrue(count <= estimate.getLikes() && count >= estimate.getLikes() - estimate.getError(),
+                    "Лайки фильма вне границ оценки при параллельных лайках: " + estimate + ", точно: " + count);
+        }
+
+        //сверка: оценки равны точным значениям, лайк во время чтения точных значений остаётся в границах
+        //независимо от того, попал ли он в точные значения
+        sketch.beginReset();
+        sketch.add(7, 1);
+        sketch.add(1, -1);
+        sketch.reset(exact);
+        top = sketch.top(10);
+        PopularityEstimate first = top.get(0);
+        assertEquals(1L, first.getFilmId(), "Наиболее популярный фильм после сверки не совпадает.");
+        assertEquals(exact.get(1L), first.getLikes(), "Оценка после сверки не совпадает.");
+        assertEquals(1, first.getError(), "Погрешность после сверки не совпадает.");
+        PopularityEstimate seventh = top.stream().filter(e -> e.getFilmId() == 7).findAny().orElseThrow();
+        assertEquals(exact.get(7L) + 1, seventh.getLikes(), "Оценка после сверки не совпадает.");
+        assertEquals(1, seventh.getError(), "Погрешность после сверки не совпадает.");
+        assertTrue(top.stream().filter(e -> e.getFilmId() != 1 && e.getFilmId() != 7)
+                .allMatch(e -> e.getError() == 0 && e.getLikes() == exact.get(e.getFilmId())),
+                "Оценки после сверки не совпадают с точными значениями.");
+
+        //сверка с лайками в БД
+        ApproximatePopularity popularity = new ApproximatePopularity(filmLikeDbDao, dataVersions, "approximate",
+                0.001, 0.99, 3, 3_600_000);
+        try {
+            popularity.reconcile();
+            Map<Long, Long> dbLikes = filmLikeDbDao.getLikeCounts();
+            List<Long> expected = dbLikes.keySet().stream()
+                    .sorted(Comparator.comparingLong((Long id) -> -dbLikes.get(id)).thenComparingLong(id -> id))
+                    .limit(3)
+                    .collect(Collectors.toList());
+            assertEquals(expected, popularity.top(3).stream().map(PopularityEstimate::getFilmId)
+                    .collect(Collectors.toList()), "Популярные фильмы после сверки с БД не совпадают.");
+            assertTrue(popularity.isUsedFor(3) && !popularity.isUsedFor(4), "Приближённый рейтинг не выбран.");
+        } finally {
+            popularity.close();
+        }
+    }
+
+    @Test
+    public void testFilmViews() {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (long userId = 0; userId < 60_000; userId++) {
+            first.add(userId);
+            second.add(userId + 40_000);
+        }
+        assertEquals(60_000, first.estimate(), 60_000 * 0.06, "Оценка количества зрителей вне погрешности.");
+        HyperLogLog restored = HyperLogLog.fromBytes(first.toBytes());
+        assertEquals(HyperLogLog.PACKED_SIZE, first.toBytes().length, "Размер упакованных регистров не совпадает.");
+        assertEquals(first.estimate(), restored.estimate(), "Оценка после упаковки регистров не совпадает.");
+        restored.merge(second);
+        assertEquals(100_000, restored.estimate(), 100_000 * 0.06, "Оценка объединения вне погрешности.");
+        HyperLogLog small = new HyperLogLog();
+        for (int i = 0; i < 3; i++) {
+            for (long userId = 1; userId <= 50; userId++) {
+                small.add(userId);
+            }
+        }
+        assertEquals(50, small.estimate(), 2, "Оценка малого количества зрителей вне погрешности.");
+
+        //просмотры по дням: до записи в БД, после записи и после перезапуска (новый экземпляр)
+        FilmViewDbDao viewDao = new FilmViewDbDao(new JdbcTemplate(migratedDb("views")));
+        DataVersions viewVersions = new DataVersions();
+        FilmViewTracker tracker = new FilmViewTracker(viewDao, viewVersions, 10, 3_600_000);
+        LocalDate day1 = LocalDate.of(2024, 3, 1);
+        LocalDate day2 = day1.plusDays(1);
+        try {
+            for (long userId = 0; userId < 1000; userId++) {
+                tracker.addView(1, userId, day1);
+                tracker.addView(1, userId + 500, day2);
+                tracker.addView(1, userId + 500, day2);
+            }
+            long viewers = tracker.getViewers(1);
+            long viewsVersion = viewVersions.getViewsVersion(1);
+            assertTrue(viewsVersion > 0, "Новые зрители должны увеличивать версию зрителей.");
+            tracker.addView(1, 0, day1);
+            assertEquals(viewsVersion, viewVersions.getViewsVersion(1), "Повторный просмотр не изменяет зрителей.");
+            assertEquals(1500, viewers, 1500 * 0.06, "Зрители за всё время вне погрешности.");
+            tracker.flush();
+            assertEquals(1000, tracker.getViewers(1, day2, day2), 1000 * 0.06, "Зрители за день вне погрешности.");
+            for (long userId = 1500; userId < 2000; userId++) {
+                tracker.addView(1, userId, day2);
+            }
+            assertEquals(1500, tracker.getViewers(1, day2, day2), 1500 * 0.06,
+                    "Зрители за день с незаписанными просмотрами вне погрешности.");
+            assertEquals(2000, tracker.getViewers(1), 2000 * 0.06, "Зрители за всё время не обновлены.");
+            tracker.flush();
+            assertEquals(tracker.getViewers(1), new FilmViewTracker(viewDao, viewVersions, 10, 3_600_000)
+                            .getViewers(1),
+                    "Зрители после перезапуска не совпадают.");
+            assertEquals(tracker.getViewers(1, day1, day2), tracker.getViewers(1),
+                    "Объединение дней не совпадает с зрителями за всё время.");
+            tracker.addView(1, 1, day2);
+            tracker.filmDeleted(1);
+            tracker.flush();
+            assertEquals(0, tracker.getViewers(1), "Зрители удалённого фильма не удалены.");
+        } finally {
+            tracker.close();
+        }
+
+        //просмотры, добавленные и записанные в БД во время чтения зрителей за всё время, не теряются
+        AtomicReference<FilmViewTracker> racing = new AtomicReference<>();
+        AtomicBoolean raced = new AtomicBoolean();
+        FilmViewDao racingDao = new FilmViewDao() {
+            @Override
+            public void mergeViews(LocalDate day, Map<Long, HyperLogLog> views) {
+                viewDao.mergeViews(day, views);
+            }
+
+            @Override
+            public HyperLogLog getViews(long filmId, LocalDate from, LocalDate to) {
+                HyperLogLog views = viewDao.getViews(filmId, from, to);
+                if (raced.compareAndSet(false, true)) {
+                    for (long userId = 100; userId < 200; userId++) {
+                        racing.get().addView(2, userId, day1);
+                    }
+                    racing.get().flush();
+                }
+                return views;
+            }
+
+            @Override
+            public void deleteViews(long filmId) {
+                viewDao.deleteViews(filmId);
+            }
+        };
+        racing.set(new FilmViewTracker(racingDao, viewVersions, 10, 3_600_000));
+        try {
+            for (long userId = 0; userId < 100; userId++) {
+                racing.get().addView(2, userId, day1);
+            }
+            long viewers = racing.get().getViewers(2);
+            racing.get().flush();
+            assertEquals(racing.get().getViewers(2, LocalDate.EPOCH, LocalDate.of(9999, 12, 31)), viewers,
+                    "Зрители за всё время должны учитывать просмотры во время чтения.");
+        } finally {
+            racing.get().close();
+        }
+    }
+
+    @Test
+    public void testMutualFriends() {
+        //пересечение отсортированных массивов слиянием и двоичным поиском совпадает с пересечением множеств
+        Random random = new Random(5);
+        for (int size : new int[]{0, 3, 40, 5000}) {
+            long[] a = random.longs(size, 0, 20_000).distinct().sorted().toArray();
+            long[] b = random.longs(400, 0, 20_000).distinct().sorted().toArray();
+            Set<Long> common = Arrays.stream(a).boxed().collect(Collectors.toCollection(HashSet::new));
+            common.retainAll(Arrays.stream(b).boxed().collect(Collectors.toSet()));
+            assertEquals(common.size(), MutualFriends.intersectionSize(a, b), "Размер пересечения не совпадает.");
+            assertEquals(common.size(), MutualFriends.intersectionSize(b, a), "Размер пересечения не совпадает.");
+        }
+
+        //друзья с общими друзьями совпадают с пересечением добавленных друзей,
+        //в том числе при параллельном счёте для большого списка друзей (не меньше MutualFriends.PARALLEL_THRESHOLD)
+        JdbcTemplate jdbc = new JdbcTemplate(migratedDb("mutual"));
+        UserDbDao users = new UserDbDao(jdbc);
+        UserEventDbDao events = new UserEventDbDao(jdbc);
+        FriendsDbDao friends = new FriendsDbDao(jdbc, events);
+        UserService service = new UserService(users, friends, events);
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            userIds.add(users.addUser(new User(0, "m" + i + "@mail.ru", "m" + i, "m", LocalDate.of(2000, 1, 1)))
+                    .getId());
+        }
+        List<Map.Entry<Long, Long>> friendships = new ArrayList<>();
+        for (int i = 1; i < userIds.size(); i++) {
+            friendships.add(Map.entry(userIds.get(0), userIds.get(i)));
+        }
+        for (int i = 0; i < 1500; i++) {
+            long userId = userIds.get(1 + random.nextInt(userIds.size() - 1));
+            long friendId = userIds.get(random.nextInt(userIds.size()));
+            if (userId != friendId) {
+                friendships.add(Map.entry(userId, friendId));
+            }
+        }
+        friends.addFriends(friendships);
+        Map<Long, Set<Long>> added = new HashMap<>();
+        friendships.forEach(f -> added.computeIfAbsent(f.getKey(), id -> new HashSet<>()).add(f.getValue()));
+        for (long userId : List.of(userIds.get(0), userIds.get(1), userIds.get(2))) {
+            List<User> withMutual = service.getFriendsWithMutual(userId);
+            assertEquals(ids(friends.getFriends(userId)), ids(withMutual), "Список друзей не совпадает.");
+            for (User friend : withMutual) {
+                Set<Long> common = new HashSet<>(added.get(userId));
+                common.retainAll(added.getOrDefault(friend.getId(), Set.of()));
+                assertEquals(common.size(), friend.getMutualFriends(),
+                        "Количество общих друзей не совпадает: " + userId + ", " + friend.getId());
+            }
+        }
+        assertNull(friends.getFriends(userIds.get(0)).get(0).getMutualFriends(),
+                "Общие друзья без запроса должны отсутствовать.");
+    }
+
     @Test
     public void testMpa() {
         //получаем список всех рейтингов MPA
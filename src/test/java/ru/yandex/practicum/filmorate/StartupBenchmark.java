@@ -0,0 +1,94 @@
+package ru.yandex.practicum.filmorate;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+//время запуска: от старта отдельной JVM с приложением до первого успешного ответа (GET /mpa).
+//для каждого режима хранилища (db, hybrid) первый запуск создаёт новую файловую БД (применяются миграции),
+//следующие запуски открывают ту же БД (миграции пропускаются). запуск вручную (в отдельной JVM,
+//classpath которой передаётся приложению):
+//mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+//    -Dexec.args="-cp %classpath ru.yandex.practicum.filmorate.StartupBenchmark"
+public class StartupBenchmark {
+    private static final int RUNS = 3;
+    private static final Duration TIMEOUT = Duration.ofSeconds(120);
+
+    public static void main(String[] args) throws Exception {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(200)).build();
+        for (String mode : List.of("db", "hybrid")) {
+            Path dir = Files.createTempDirectory("filmorate-startup");
+            try {
+                for (int run = 1; run <= RUNS; run++) {
+                    long ms = startAndWait(client, mode, dir);
+                    System.out.printf("mode=%s run=%d %s first-request=%dms%n", mode, run,
+                            run == 1 ? "new-db" : "existing-db", ms);
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+    }
+
+    private static long startAndWait(HttpClient client, String mode, Path dir) throws Exception {
+        int port = freePort();
+        List<String> command = List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dfile.encoding=UTF-8",
+                "-cp", mainClassPath(),
+                FilmorateApplication.class.getName(),
+                "--server.port=" + port,
+                "--spring.datasource.url=jdbc:h2:file:" + dir.resolve("filmorate") + ";DB_CLOSE_ON_EXIT=FALSE",
+                "--filmorate.storage.mode=" + mode,
+                "--logging.level.ru.yandex.practicum=warn");
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/mpa")).build();
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(dir.resolve("app.log").toFile()).start();
+        try {
+            while (System.nanoTime() - start < TIMEOUT.toNanos()) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Приложение завершилось при запуске, см. " + dir.resolve("app.log"));
+                }
+                try {
+                    if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                        return (System.nanoTime() - start) / 1_000_000;
+                    }
+                } catch (IOException e) {
+                    //приложение ещё не принимает соединения
+                }
+                Thread.sleep(10);
+            }
+            throw new IllegalStateException("Приложение не ответило за " + TIMEOUT.toSeconds() + " с");
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    //без каталога тестовых классов: иначе тестовый application.properties заменил бы основной
+    static String mainClassPath() {
+        return Stream.of(System.getProperty("java.class.path").split(File.pathSeparator))
+                .filter(entry -> !Path.of(entry).endsWith("test-classes"))
+                .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.MPA;
+import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryGenreDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryMpaDao;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryFriendsStorage;
+import ru.yandex.practicum.filmorate.storage.user.memory.InMemoryUserStorage;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+//нагрузочная проверка хранилищ в памяти: пропускная способность чтения (фильм, друзья пользователя)
+//при 1, 2, 4... потоках и доле записей (лайки, дружба) 10%. запуск вручную:
+//mvn test-compile exec:java -Dexec.classpathScope=test
+//    -Dexec.mainClass=ru.yandex.practicum.filmorate.storage.InMemoryStorageBenchmark
+//scaling - ops/s относительно одного потока; результат зависит от числа ядер машины и на одном ядре не показателен
+public class InMemoryStorageBenchmark {
+    private static final int FILMS = 10_000;
+    private static final int USERS = 10_000;
+    private static final long DURATION_MS = 2_000;
+    private static final int WRITE_PERCENT = 10;
+
+    public static void main(String[] args) throws Exception {
+        //отладочный журнал хранилищ исказил бы измерения
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        InMemoryUserStorage users = new InMemoryUserStorage();
+        InMemoryFriendsStorage friends = new InMemoryFriendsStorage(users);
+        InMemoryFilmLikeDao likes = new InMemoryFilmLikeDao();
+        InMemoryFilmStorage films = new InMemoryFilmStorage(likes, new InMemoryGenreDao(), new InMemoryMpaDao());
+        for (int i = 0; i < USERS; i++) {
+            users.addUser(new User(0, "user" + i + "@mail.ru", "user" + i, "user" + i, LocalDate.of(2000, 1, 1)));
+        }
+        for (int i = 0; i < FILMS; i++) {
+            films.addFilm(new Film(0, "film" + i, "description", LocalDate.of(2000, 1, 1), 100, 0,
+                    new MPA(1, "G"), new HashSet<>()));
+        }
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        double singleThread = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double opsPerSecond = run(threads, users, friends, films, likes);
+            if (threads == 1) {
+                singleThread = opsPerSecond;
+            }
+            System.out.printf("threads=%d ops/s=%.0f scaling=%.2f%n", threads, opsPerSecond, opsPerSecond / singleThread);
+        }
+    }
+
+    private static double run(int threads, InMemoryUserStorage users, InMemoryFriendsStorage friends,
+                              InMemoryFilmStorage films, InMemoryFilmLikeDao likes) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                while (System.nanoTime() < deadline[0]) {
+                    long userId = random.nextInt(USERS) + 1;
+                    long filmId = random.nextInt(FILMS) + 1;
+                    if (random.nextInt(100) < WRITE_PERCENT) {
+                        likes.addLike(filmId, userId);
+                        friends.addFriend(userId, random.nextInt(USERS) + 1);
+                    } else {
+                        films.getFilm(filmId);
+                        users.getUser(userId);
+                        friends.getFriends(userId);
+                    }
+                    done++;
+                }
+                ops.add(done);
+                return null;
+            }));
+        }
+        deadline[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MS);
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        return ops.sum() * 1000.0 / DURATION_MS;
+    }
+}
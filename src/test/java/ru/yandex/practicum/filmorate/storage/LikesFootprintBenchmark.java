@@ -0,0 +1,32 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmLikeDao;
+
+//объём памяти лайков в памяти: 100 млн лайков - 2000 фильмов по 50 тыс. лайков от пользователей,
+//разбросанных среди 5 млн id. требует около 1 ГБ кучи, поэтому не входит в тесты. запуск вручную:
+//mvn test-compile exec:java -Dexec.classpathScope=test
+//    -Dexec.mainClass=ru.yandex.practicum.filmorate.storage.LikesFootprintBenchmark
+public class LikesFootprintBenchmark {
+    private static final int FILMS = 2_000;
+    private static final int LIKES_PER_FILM = 50_000;
+
+    public static void main(String[] args) {
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        InMemoryFilmLikeDao likes = new InMemoryFilmLikeDao();
+        int[] userIds = new int[LIKES_PER_FILM];
+        long start = System.nanoTime();
+        for (long filmId = 1; filmId <= FILMS; filmId++) {
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = (int) ((i * 97L + filmId * 7_919) % 5_000_000 + 1);
+            }
+            likes.loadLikes(filmId, userIds);
+        }
+        long loadMs = (System.nanoTime() - start) / 1_000_000;
+        long likesCount = likes.getLikeCounts().values().stream().mapToLong(Long::longValue).sum();
+        double bytesPerLike = (double) likes.getSizeInBytes() / likesCount;
+        System.out.printf("likes=%d load=%d ms bytes/like=%.2f%n", likesCount, loadMs, bytesPerLike);
+    }
+}
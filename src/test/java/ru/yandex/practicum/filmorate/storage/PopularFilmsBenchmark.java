@@ -0,0 +1,83 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.MPA;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmLikeDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryFilmStorage;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryGenreDao;
+import ru.yandex.practicum.filmorate.storage.film.memory.InMemoryMpaDao;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Collectors;
+
+//сравнение отбора популярных фильмов в памяти: прежняя полная сортировка всех фильмов
+//и отбор через кучу размера count. запуск вручную:
+//mvn test-compile exec:java -Dexec.classpathScope=test
+//    -Dexec.mainClass=ru.yandex.practicum.filmorate.storage.PopularFilmsBenchmark
+public class PopularFilmsBenchmark {
+    private static final int FILMS = 1_000_000;
+    private static final int LIKED_FILMS = 200_000; //у остальных фильмов лайков нет
+    private static final int USERS = 1_000;
+    private static final int[] COUNTS = {10, 100, 1_000};
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) {
+        //отладочный журнал хранилищ исказил бы измерения
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        InMemoryFilmLikeDao likes = new InMemoryFilmLikeDao();
+        InMemoryFilmStorage films = new InMemoryFilmStorage(likes, new InMemoryGenreDao(), new InMemoryMpaDao());
+        for (int i = 0; i < FILMS; i++) {
+            films.addFilm(new Film(0, "film" + i, "description", LocalDate.of(2000, 1, 1), 100, 0,
+                    new MPA(1, "G"), new HashSet<>()));
+        }
+        Random random = new Random(42);
+        for (long filmId = 1; filmId <= LIKED_FILMS; filmId++) {
+            int[] userIds = new int[random.nextInt(USERS)];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = i + 1;
+            }
+            likes.loadLikes(random.nextInt(FILMS) + 1, userIds);
+        }
+
+        for (int count : COUNTS) {
+            //прежняя реализация упорядочивала фильмы с равным числом лайков в порядке обхода HashMap,
+            //поэтому сравниваем последовательности числа лайков
+            List<Integer> expected = likeCounts(sortAll(films, likes, count), likes);
+            if (!expected.equals(likeCounts(films.getPopularFilms(count), likes))) {
+                throw new IllegalStateException("Рейтинги не совпадают для count=" + count);
+            }
+            double sortMs = measure(() -> sortAll(films, likes, count));
+            double heapMs = measure(() -> films.getPopularFilms(count));
+            System.out.printf("films=%d count=%d sort=%.1f ms heap=%.1f ms%n", FILMS, count, sortMs, heapMs);
+        }
+    }
+
+    //прежняя реализация: карта лайков всех фильмов (HashMap с упакованными значениями), дополненная нулями,
+    //и сортировка всех записей
+    private static List<Film> sortAll(InMemoryFilmStorage films, InMemoryFilmLikeDao likes, long maxCount) {
+        Map<Long, Integer> popFilms = new HashMap<>();
+        likes.getLikeCounts().forEach((filmId, count) -> popFilms.put(filmId, count.intValue()));
+        for (Film film : films.getFilms()) {
+            popFilms.putIfAbsent(film.getId(), 0);
+        }
+        return popFilms.entrySet().stream().sorted(Collections.reverseOrder(Map.Entry.comparingByValue()))
+                .map(f -> films.getFilm(f.getKey())).limit(maxCount).collect(Collectors.toList());
+    }
+
+    private static double measure(Runnable task) {
+        task.run(); //прогрев
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    private static List<Integer> likeCounts(List<Film> films, InMemoryFilmLikeDao likes) {
+        return films.stream().map(f -> likes.getLikesCount(f.getId())).collect(Collectors.toList());
+    }
+}
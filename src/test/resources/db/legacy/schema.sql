@@ -1,18 +1,17 @@
---создание таблицы ratings
+--схема и данные БД, созданной до перехода на миграции (schema.sql и data.sql первой версии приложения):
+--дружба хранится в таблице friends по записи на направление, повторные лайки не запрещены
 CREATE TABLE IF NOT EXISTS ratings_mpa (
         rating_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         rating_name VARCHAR(10) NOT NULL,
         constraint uq1 unique (rating_name)
 );
 
---создание таблицы genre
 CREATE TABLE IF NOT EXISTS genre (
         genre_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         genre_name VARCHAR(100) NOT NULL,
         constraint uq2 unique (genre_name)
 );
 
---создание таблицы users
 CREATE TABLE IF NOT EXISTS users (
         user_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         email VARCHAR(320) NOT NULL,
@@ -21,7 +20,6 @@ CREATE TABLE IF NOT EXISTS users (
         birthday DATE
 );
 
---создание таблицы films
 CREATE TABLE IF NOT EXISTS films (
         film_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         name VARCHAR(100) NOT NULL,
@@ -32,14 +30,12 @@ CREATE TABLE IF NOT EXISTS films (
         rating_id INTEGER REFERENCES ratings_mpa (rating_id) ON DELETE SET NULL
 );
 
---создание таблицы films_genre
 CREATE TABLE IF NOT EXISTS films_genre (
         films_genre_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         film_id INTEGER REFERENCES films (film_id) ON DELETE CASCADE,
         genre_id INTEGER REFERENCES genre (genre_id) ON DELETE CASCADE
 );
 
---создание таблицы friends
 CREATE TABLE IF NOT EXISTS friends (
         user_friend_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         user_id INTEGER REFERENCES users (user_id) ON DELETE CASCADE,
@@ -47,9 +43,20 @@ CREATE TABLE IF NOT EXISTS friends (
         friend_status BOOLEAN DEFAULT FALSE
 );
 
---создание таблицы films_like
 CREATE TABLE IF NOT EXISTS films_like (
         films_like_id INTEGER GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
         film_id INTEGER REFERENCES films (film_id) ON DELETE CASCADE,
         user_id INTEGER REFERENCES users (user_id) ON DELETE CASCADE
 );
+
+INSERT INTO ratings_mpa(rating_name) VALUES('G'), ('PG'), ('PG-13'), ('R'), ('NC-17');
+INSERT INTO genre(genre_name) VALUES('Комедия'), ('Драма'), ('Мультфильм'), ('Триллер'), ('Документальный'), ('Боевик');
+INSERT INTO users(email,login,name,birthday) VALUES('user1@mail.ru','user1_login','user1_name','1990-12-01'),
+                                                    ('user2@yandex.ru','user2_login','user2_name','2000-05-09'),
+                                                    ('user3@gmail.ru','user3_login','user3_name','1995-07-03');
+INSERT INTO films(name,description,release_date,duration,rate,rating_id)
+VALUES('Interstellar','description','2014-11-06',169,9,3);
+--1 и 2 - взаимные друзья (две записи), 3 добавил 1 в друзья
+INSERT INTO friends(user_id,friend_id,friend_status) VALUES(1,2,false), (2,1,false), (3,1,false);
+--повторный лайк пользователя 2
+INSERT INTO films_like(film_id,user_id) VALUES(1,2), (1,2), (1,3);
@@ -1,36 +1,4 @@
---удаляем все данные и обнуляем счётчики первичных ключей
-DELETE FROM FILMS_GENRE;
-DELETE FROM GENRE;
-DELETE FROM FILMS_LIKE;
-DELETE FROM FILMS;
-DELETE FROM RATINGS_MPA;
-DELETE FROM FRIENDS;
-DELETE FROM USERS;
-
-ALTER TABLE FILMS ALTER COLUMN film_id RESTART WITH 1;
-ALTER TABLE RATINGS_MPA ALTER COLUMN rating_id RESTART WITH 1;
-ALTER TABLE FILMS_GENRE ALTER COLUMN films_genre_id RESTART WITH 1;
-ALTER TABLE FILMS_LIKE ALTER COLUMN films_like_id RESTART WITH 1;
-ALTER TABLE FRIENDS ALTER COLUMN user_friend_id RESTART WITH 1;
-ALTER TABLE GENRE ALTER COLUMN genre_id RESTART WITH 1;
-ALTER TABLE USERS ALTER COLUMN user_id RESTART WITH 1;
-
---заполняем таблицу ratings
-INSERT INTO ratings_mpa(rating_name) VALUES('G'),
-                                        ('PG'),
-                                        ('PG-13'),
-                                        ('R'),
-                                        ('NC-17');
-
---заполянем таблицу genre
-INSERT INTO genre(genre_name) VALUES('Комедия'),
-                                    ('Драма'),
-                                    ('Мультфильм'),
-                                    ('Триллер'),
-                                    ('Документальный'),
-                                    ('Боевик');
-
-
+--тестовые данные: применяются после всех миграций схемы, справочники рейтингов и жанров заполняет V2
 --заполняем таблицу users
 INSERT INTO users(email,login,name,birthday) VALUES('user1@mail.ru','user1_login','user1_name','1990-12-01'),
                                                     ('user2@yandex.ru','user2_login','user2_name','2000-05-09'),
@@ -60,13 +28,13 @@ INSERT INTO films_genre(film_id,genre_id) VALUES(1,2),
                                                 (3,1),(3,4),(3,6),
                                                 (4,2),(4,3);
 
---заполняем таблицу friends
-INSERT INTO friends(user_id,friend_id,friend_status) VALUES(1,2,true),
-                                                            (1,3,false),
-                                                            (4,1,false),
-                                                            (4,2,true),
-                                                            (2,5,false),
-                                                            (3,4,true);
+--заполняем таблицу friendships
+INSERT INTO friendships(user_low,user_high,low_to_high,high_to_low) VALUES(1,2,true,true),
+                                                                          (1,3,true,false),
+                                                                          (1,4,false,true),
+                                                                          (2,4,true,true),
+                                                                          (2,5,true,false),
+                                                                          (3,4,true,true);
 
 --заполняем таблицу films_like
 INSERT INTO films_like(film_id,user_id) VALUES(1,2),